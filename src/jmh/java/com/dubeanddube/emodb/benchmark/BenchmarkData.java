@@ -0,0 +1,49 @@
+package com.dubeanddube.emodb.benchmark;
+
+import com.dubeanddube.emodb.data.Item;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates documents for the JMH benchmarks, similar to the generated EmoDB documents.
+ *
+ * @author Dominique Dube
+ */
+public class BenchmarkData {
+
+    public static final String[] COLORS = { "red", "green", "blue", "yellow", "black", "white" };
+
+    /**
+     * Creates a random item with one of <code>COLORS</code> and a text of 5 to 24 random words.
+     *
+     * @param random the random generator (seeded, so that runs are comparable).
+     * @return the item.
+     */
+    public static Item randomItem(Random random) {
+
+        StringBuilder text = new StringBuilder();
+
+        for (int j = 0, numWords = 5 + random.nextInt(20); j < numWords; ++j) {
+
+            for (int k = 0, numLetters = 2 + random.nextInt(8); k < numLetters; ++k) {
+                text.append((char)('a' + random.nextInt(26)));
+            }
+
+            text.append(' ');
+        }
+
+        return new Item(COLORS[random.nextInt(COLORS.length)], text.toString().trim());
+    }
+
+    /**
+     * Creates a random document ID (a UUID, like the EmoDB document IDs).
+     *
+     * @param random the random generator.
+     * @return the document ID.
+     */
+    public static String randomId(Random random) {
+
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+}
@@ -0,0 +1,184 @@
+package com.dubeanddube.emodb.benchmark;
+
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.dubeanddube.emodb.search.SearchEngine;
+import com.dubeanddube.emodb.search.UpdateOutcome;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives 1 to 32 concurrent writers at a small set of document IDs in the memory-based index and
+ * measures the update throughput, without the fallback to the striped locks (retry cap 0, pure
+ * optimistic concurrency control) and with the default retry cap (8). Applied and outdated updates
+ * are reported as secondary results; the OCC contention (failed compare-and-replace attempts and
+ * escalations to the striped locks per update) is printed after every iteration.
+ *
+ * Every update carries a new version of its document (as EmoDB versions increase with every
+ * write), so writers of the same document race to install their version.
+ *
+ * @author Dominique Dube
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ContentionBenchmark {
+
+    private static final int NUM_IDS = 4; // hot documents
+
+    /**
+     * A memory-based search engine with a few hot documents, which all writers update.
+     */
+    @State(Scope.Benchmark)
+    public static class HotDocuments {
+
+        @Param({ "0", "8" })
+        public int maxOccRetries;
+
+        SearchEngine searchEngine;
+        String[] ids;
+        AtomicInteger[] versions;
+        Item item;
+
+        // the same instances the index updates (metrics are looked up by name)
+        Counter retries;
+        Counter escalations;
+
+        final LongAdder numUpdates = new LongAdder();
+        long retriesBefore;
+        long escalationsBefore;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+
+            // read when the index class is loaded, which happens below (every trial runs in its own fork)
+            System.setProperty("emodb.memoryIndex.maxOccRetries", Integer.toString(maxOccRetries));
+
+            searchEngine = new SearchEngine(SearchEngine.IndexType.MEMORY_HASH_MAP);
+
+            Random random = new Random(42);
+
+            ids = new String[NUM_IDS];
+            versions = new AtomicInteger[NUM_IDS];
+
+            for (int i = 0; i < NUM_IDS; ++i) {
+                ids[i] = BenchmarkData.randomId(random);
+                versions[i] = new AtomicInteger(0);
+            }
+
+            item = BenchmarkData.randomItem(random);
+
+            retries = Metrics.counter("emodb_memory_index_occ_retries_total", "");
+            escalations = Metrics.counter("emodb_memory_index_lock_escalations_total", "");
+        }
+
+        @Setup(Level.Iteration)
+        public void startIteration() {
+
+            numUpdates.reset();
+            retriesBefore = retries.get();
+            escalationsBefore = escalations.get();
+        }
+
+        @TearDown(Level.Iteration)
+        public void reportIteration() {
+
+            long updates = Math.max(1, numUpdates.sum());
+
+            System.out.println(String.format("retries/update %.3f, escalations/update %.5f",
+                    (double)(retries.get() - retriesBefore) / updates,
+                    (double)(escalations.get() - escalationsBefore) / updates));
+        }
+    }
+
+    /**
+     * Counts the outcomes of the updates of a writer, reported as secondary results.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcomes {
+
+        public long applied;
+        public long outdated;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+
+            applied = 0;
+            outdated = 0;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public UpdateOutcome writers01(HotDocuments hot, Outcomes outcomes) {
+
+        return update(hot, outcomes);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public UpdateOutcome writers02(HotDocuments hot, Outcomes outcomes) {
+
+        return update(hot, outcomes);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public UpdateOutcome writers04(HotDocuments hot, Outcomes outcomes) {
+
+        return update(hot, outcomes);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public UpdateOutcome writers08(HotDocuments hot, Outcomes outcomes) {
+
+        return update(hot, outcomes);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public UpdateOutcome writers16(HotDocuments hot, Outcomes outcomes) {
+
+        return update(hot, outcomes);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public UpdateOutcome writers32(HotDocuments hot, Outcomes outcomes) {
+
+        return update(hot, outcomes);
+    }
+
+    /**
+     * Updates a random hot document with a new version.
+     *
+     * @param hot the hot documents.
+     * @param outcomes the outcome counters of the calling writer.
+     * @return the outcome of the update.
+     */
+    private static UpdateOutcome update(HotDocuments hot, Outcomes outcomes) {
+
+        int index = ThreadLocalRandom.current().nextInt(NUM_IDS);
+
+        UpdateOutcome outcome = hot.searchEngine.updateDocument(
+                new VersionedIDItem(hot.ids[index], hot.item, hot.versions[index].incrementAndGet()));
+
+        if (outcome.isSuccess()) ++outcomes.applied;
+        else ++outcomes.outdated;
+
+        hot.numUpdates.increment();
+
+        return outcome;
+    }
+}
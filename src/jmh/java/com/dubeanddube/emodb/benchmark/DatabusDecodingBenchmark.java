@@ -0,0 +1,68 @@
+package com.dubeanddube.emodb.benchmark;
+
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.services.EmoBus;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the decoding of databus poll responses into document updates with
+ * <code>EmoBus.decodeEvents</code>, which the subscription consumer of <code>App</code> uses.
+ *
+ * @author Dominique Dube
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabusDecodingBenchmark {
+
+    @Param({ "5", "100" })
+    public int numEvents;
+
+    private String responseString;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        Random random = new Random(42);
+
+        ArrayNode events = JsonUtils.MAPPER.createArrayNode();
+
+        for (int i = 0; i < numEvents; ++i) {
+
+            Item item = BenchmarkData.randomItem(random);
+
+            ObjectNode event = events.addObject();
+            event.put("eventKey", BenchmarkData.randomId(random) + "#" + i);
+
+            ObjectNode content = event.putObject("content");
+            content.put("~id", BenchmarkData.randomId(random));
+            content.put("~table", "items");
+            content.put("~version", 1 + random.nextInt(100));
+            content.put("~lastUpdateAt", Instant.ofEpochMilli(1487000000000L + i).toString());
+            content.put("color", item.getColor());
+            content.put("text", item.getText());
+
+            event.putArray("tags");
+        }
+
+        responseString = JsonUtils.MAPPER.writeValueAsString(events);
+    }
+
+    @Benchmark
+    public List<EmoBus.Event> decode() throws IOException {
+
+        return EmoBus.decodeEvents(responseString);
+    }
+}
@@ -0,0 +1,78 @@
+package com.dubeanddube.emodb.benchmark;
+
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.ItemArrayResult;
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the encode and decode cost of the response encodings of the query API (JSON, Smile,
+ * CBOR) on item array results of several sizes. The payload size of each encoding is printed
+ * when its state is set up.
+ *
+ * @author Dominique Dube
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+
+    @Param({ "json", "smile", "cbor" })
+    public String format;
+
+    @Param({ "1", "100", "10000" })
+    public int numItems;
+
+    private ObjectMapper mapper;
+
+    private ItemArrayResult result;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        switch (format) {
+            case "smile": mapper = JsonUtils.SMILE_MAPPER; break;
+            case "cbor": mapper = JsonUtils.CBOR_MAPPER; break;
+            default: mapper = JsonUtils.MAPPER;
+        }
+
+        Random random = new Random(42);
+
+        List<Item> items = new ArrayList<>(numItems);
+
+        for (int i = 0; i < numItems; ++i) items.add(BenchmarkData.randomItem(random));
+
+        result = new ItemArrayResult();
+        result.success = true;
+        result.size = numItems;
+        result.payload = items;
+
+        encoded = mapper.writeValueAsBytes(result);
+
+        System.out.println(format + " encoding of " + numItems + " items: " + encoded.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+
+        return mapper.writeValueAsBytes(result);
+    }
+
+    @Benchmark
+    public ItemArrayResult decode() throws IOException {
+
+        return mapper.readValue(encoded, ItemArrayResult.class);
+    }
+}
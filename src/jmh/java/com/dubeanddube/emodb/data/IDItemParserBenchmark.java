@@ -0,0 +1,73 @@
+package com.dubeanddube.emodb.data;
+
+import com.dubeanddube.emodb.benchmark.BenchmarkData;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of <code>IDItemParser.getNext</code> on a document file like the
+ * milestone files (one score is the time per parsed document).
+ *
+ * @author Dominique Dube
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IDItemParserBenchmark {
+
+    private static final int NUM_DOCUMENTS = 10000;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        Random random = new Random(42);
+
+        file = File.createTempFile("emodb-documents", ".json");
+
+        try (JsonGenerator generator = JsonUtils.MAPPER.getFactory().createGenerator(file, JsonEncoding.UTF8)) {
+
+            generator.writeStartObject();
+
+            for (int i = 0; i < NUM_DOCUMENTS; ++i) {
+                generator.writeFieldName(BenchmarkData.randomId(random));
+                generator.writeObject(BenchmarkData.randomItem(random));
+            }
+
+            generator.writeEndObject();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        if (! file.delete()) file.deleteOnExit();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_DOCUMENTS)
+    public int getNext() throws IOException {
+
+        IDItemParser parser = new IDItemParser(file.toURI().toURL());
+
+        int numDocuments = 0;
+
+        try {
+            while (parser.getNext() != null) ++numDocuments;
+        } finally {
+            parser.close();
+        }
+
+        return numDocuments;
+    }
+}
@@ -0,0 +1,118 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.benchmark.BenchmarkData;
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures updates and queries of the memory-based index: updates by a single writer and by
+ * contending writers, lookups by ID, and color queries at several corpus sizes.
+ *
+ * @author Dominique Dube
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MemoryIndexBenchmark {
+
+    private static final int NUM_HOT_DOCUMENTS = 4;
+
+    /**
+     * A memory-based index filled with random documents.
+     */
+    @State(Scope.Benchmark)
+    public static class Corpus {
+
+        @Param({ "1000", "10000", "100000" })
+        public int corpusSize;
+
+        MemoryIndex index;
+        String[] ids;
+        Item item;
+
+        // every update carries a newer version than all indexed documents
+        final AtomicInteger nextVersion = new AtomicInteger(1);
+
+        @Setup
+        public void setUp() {
+
+            Random random = new Random(42);
+
+            index = new MemoryIndex();
+            ids = new String[corpusSize];
+
+            for (int i = 0; i < corpusSize; ++i) {
+                ids[i] = BenchmarkData.randomId(random);
+                index.updateDocument(new VersionedIDItem(ids[i], BenchmarkData.randomItem(random), 1));
+            }
+
+            item = BenchmarkData.randomItem(random);
+        }
+    }
+
+    /**
+     * A memory-based index with a few documents, which all writers update.
+     */
+    @State(Scope.Benchmark)
+    public static class HotDocuments {
+
+        MemoryIndex index;
+        String[] ids;
+        Item item;
+
+        final AtomicInteger nextVersion = new AtomicInteger(1);
+
+        @Setup
+        public void setUp() {
+
+            Random random = new Random(42);
+
+            index = new MemoryIndex();
+            ids = new String[NUM_HOT_DOCUMENTS];
+
+            for (int i = 0; i < ids.length; ++i) ids[i] = BenchmarkData.randomId(random);
+
+            item = BenchmarkData.randomItem(random);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public UpdateOutcome updateSingleWriter(Corpus corpus) {
+
+        String id = corpus.ids[ThreadLocalRandom.current().nextInt(corpus.ids.length)];
+
+        return corpus.index.updateDocument(new VersionedIDItem(id, corpus.item, corpus.nextVersion.incrementAndGet()));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public UpdateOutcome updateContended(HotDocuments hot) {
+
+        String id = hot.ids[ThreadLocalRandom.current().nextInt(hot.ids.length)];
+
+        return hot.index.updateDocument(new VersionedIDItem(id, hot.item, hot.nextVersion.incrementAndGet()));
+    }
+
+    @Benchmark
+    public String getDocumentById(Corpus corpus) {
+
+        return corpus.index.getDocumentById(corpus.ids[ThreadLocalRandom.current().nextInt(corpus.ids.length)]);
+    }
+
+    @Benchmark
+    public String getDocumentsByColor(Corpus corpus) {
+
+        String[] colors = BenchmarkData.COLORS;
+
+        return corpus.index.getDocumentsByColor(colors[ThreadLocalRandom.current().nextInt(colors.length)]);
+    }
+}
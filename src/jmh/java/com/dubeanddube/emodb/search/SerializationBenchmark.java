@@ -0,0 +1,45 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.benchmark.BenchmarkData;
+import com.dubeanddube.emodb.data.Item;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the serialization of item array results (<code>ItemIndex.serializeItems</code>).
+ *
+ * @author Dominique Dube
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({ "1", "100", "10000" })
+    public int numItems;
+
+    private List<Item> items;
+
+    @Setup
+    public void setUp() {
+
+        Random random = new Random(42);
+
+        items = new ArrayList<>(numItems);
+
+        for (int i = 0; i < numItems; ++i) items.add(BenchmarkData.randomItem(random));
+    }
+
+    @Benchmark
+    public String serializeItems() {
+
+        return ItemIndex.serializeItems(items);
+    }
+}
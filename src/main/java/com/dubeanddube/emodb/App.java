@@ -1,26 +1,44 @@
 package com.dubeanddube.emodb;
 
+import com.dubeanddube.emodb.cluster.Cluster;
+import com.dubeanddube.emodb.data.BulkItemLoader;
 import com.dubeanddube.emodb.data.IDItem;
 import com.dubeanddube.emodb.data.IDItemParser;
-import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.TableConfig;
 import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.events.DatabusPhaseEvent;
+import com.dubeanddube.emodb.metrics.FreshnessMonitor;
+import com.dubeanddube.emodb.metrics.Histogram;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.dubeanddube.emodb.replication.ReplicaClient;
+import com.dubeanddube.emodb.replication.ReplicationLeader;
 import com.dubeanddube.emodb.services.EmoBus;
 import com.dubeanddube.emodb.services.EmoSor;
 import com.dubeanddube.emodb.services.EmoGen;
 import com.dubeanddube.emodb.services.Spark;
 import com.dubeanddube.emodb.search.SearchEngine;
+import com.dubeanddube.emodb.search.UpdateOutcome;
+import com.dubeanddube.emodb.workload.WorkloadConfig;
+import com.dubeanddube.emodb.workload.WorkloadGenerator;
 import com.fasterxml.jackson.core.*;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.impl.SimpleLogger;
 
 import java.io.*;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 /**
  * Entry point class.
@@ -32,15 +50,58 @@ public class App {
     private final Logger logger = LoggerFactory.getLogger(App.class); // some basic logging
 
     static {
-        System.setProperty(SimpleLogger.DEFAULT_LOG_LEVEL_KEY, "DEBUG");
+        // INFO unless set on the command line (e.g. -Dorg.slf4j.simpleLogger.defaultLogLevel=debug)
+        if (System.getProperty(SimpleLogger.DEFAULT_LOG_LEVEL_KEY) == null) {
+            System.setProperty(SimpleLogger.DEFAULT_LOG_LEVEL_KEY, "INFO");
+        }
     }
 
     private static final SearchEngine.IndexType INDEX_TYPE = SearchEngine.IndexType.LOCAL_ELASTIC_SEARCH;
 
-    private SearchEngine searchEngine;
+    // cluster members index their shards in memory (a shared Elasticsearch index needs no sharding),
+    // and replication leaders and replicas index in memory, which is what replicas scale out
+    private static final SearchEngine.IndexType MEMORY_INDEX_TYPE = SearchEngine.IndexType.MEMORY_HASH_MAP;
+
+    private List<TableConfig> tables;
+
+    private Cluster cluster; // null unless running in cluster mode (-Demodb.cluster.dir=<path>)
+
+    private boolean joiner = false; // whether this member joined a running cluster
+
+    private ReplicationLeader leader; // null unless publishing changes to read replicas
+
+    private ReplicaClient replica; // null unless running as read replica
+
+    // loads and drops the documents of shards that moved, one change after another
+    private final ExecutorService rebalanceExecutor = Executors.newSingleThreadExecutor();
+
+    private final Map<String, SearchEngine> searchEngines = new ConcurrentHashMap<>(); // by table name
+
+    private Spark spark;
+
+    private final Histogram pollBatchSizes = Metrics.sizeHistogram("emodb_databus_poll_batch_size",
+            "Number of events returned by a databus poll.");
 
     private static final int SUBSCRIPTION_POLL_TIME_MILLIS = 2000;
     private static final int DOCUMENT_UPDATE_TIME_MILLIS = 1000;
+    private static final int RECONCILE_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    // the consumers of all tables share this many threads (e.g. -Demodb.consumer.threads=8)
+    private static final int CONSUMER_THREADS = Integer.getInteger("emodb.consumer.threads", 4);
+
+    // seed files are loaded with the specified parallelism and batch size
+    private static final int SEED_PARALLELISM = Integer.getInteger("emodb.seed.parallelism",
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+    private static final int SEED_BATCH_SIZE = Integer.getInteger("emodb.seed.batchSize", 500);
+
+    // "milestone2" replays the updates in milestone2.txt, "synthetic" generates a configurable workload
+    private static final String WORKLOAD = System.getProperty("emodb.workload", "milestone2");
+
+    // publishes the changes of the indexes to read replicas on this local port (e.g. -Demodb.replication.port=4600)
+    private static final int REPLICATION_PORT = Integer.getInteger("emodb.replication.port", 0);
+
+    // runs as read replica of the leader at this address (e.g. -Demodb.replication.leader=localhost:4600)
+    private static final String REPLICATION_LEADER = System.getProperty("emodb.replication.leader");
 
     /**
      * Application entry point.
@@ -61,123 +122,434 @@ public class App {
     /**
      * Starts the application: prepares EmoDB's system of records and databus, prepares
      * the search index and real-time monitoring, initializes all services and functions.
-     * Upon completion of the initialization phase, establishes a RESTful interface at
-     * localhost:4567 for requests to the search index.
+     * Establishes a RESTful interface at localhost:4567 for requests to the search index,
+     * which reports being ready on <code>/health</code> once the initialization phase is complete.
+     *
+     * Every configured table (see <code>TableConfig</code>, <code>-Demodb.tables=items,orders</code>)
+     * gets its own subscription, search index, consumer, and query routes.
+     *
+     * The initialization steps run as a dependency graph (see <code>StartupGraph</code>), so that
+     * independent steps overlap: the search index of each table is set up alongside the table, the
+     * tables are prepared alongside each other, and the query service starts while the tables are
+     * populated.
      *
-     * @see Spark#Spark(SearchEngine) for details on possible requests at localhost:4567.
+     * In cluster mode (<code>-Demodb.cluster.dir=&lt;shared directory&gt;</code>, see <code>Cluster</code>),
+     * the instance joins the other members first and indexes only the documents of its shards. The
+     * first member prepares and populates the tables, members joining later leave them as they are.
+     *
+     * With <code>-Demodb.replication.port=&lt;port&gt;</code>, the instance indexes in memory and
+     * publishes its index updates to read replicas; with <code>-Demodb.replication.leader=&lt;host:port&gt;</code>,
+     * it runs as such a replica (see <code>startReplica</code>).
+     *
+     * @see Spark#Spark(Map, Cluster) for details on possible requests at localhost:4567.
      */
     private void start() {
 
         logger.info("Starting application");
 
-        if (! EmoGen.isUp()) {
-            logger.error("EmoDB is not available - it must be running on localhost:8081 - aborting");
+        try {
+            tables = TableConfig.fromProperties();
+        } catch (IllegalArgumentException e) {
+            logger.error("invalid table configuration (" + e.getMessage() + ") - aborting");
             return;
         }
-        logger.info("Detected running EmoDB instance on localhost:8081 - good!");
 
-        if (! EmoGen.isHealthy()) {
-            logger.error("EmoDB seems to be not healthy - aborting");
+        for (TableConfig config : tables) logger.info("indexing " + config);
+
+        if (REPLICATION_LEADER != null) {
+            startReplica();
             return;
         }
-        logger.info("EmoDB looks healthy - good!");
 
-        if (! EmoSor.dropTable()) {
-            logger.warn("Items table not deleted - EmoDB clean start? - continuing");
-        } else {
-            logger.info("Items table deleted - starting fresh");
-        }
+        cluster = Cluster.fromProperties(Spark.getPort());
 
-        if (! EmoBus.unsubscribe()) {
-            logger.warn("Did not unsubscribe from changes on items table - continuing");
-        } else {
-            logger.info("Subscription to the items table removed - starting fresh");
+        if (REPLICATION_PORT > 0) {
+
+            if (cluster != null) {
+                logger.warn("replication is not supported in cluster mode - not publishing changes to replicas");
+            } else {
+                leader = new ReplicationLeader(REPLICATION_PORT);
+            }
         }
 
-        if (! EmoSor.createTable()) {
-            logger.error("Failed to create items table in system of records - aborting");
-            return;
+        StartupGraph startup = new StartupGraph();
+
+        startup.add("emodb-check", () -> {
+
+            if (! EmoGen.isUp()) {
+                throw new StartupGraph.StepFailedException(
+                        "EmoDB is not available - it must be running on localhost:8081");
+            }
+            logger.info("Detected running EmoDB instance on localhost:8081 - good!");
+
+            if (! EmoGen.isHealthy()) throw new StartupGraph.StepFailedException("EmoDB seems to be not healthy");
+            logger.info("EmoDB looks healthy - good!");
+        });
+
+        if (cluster != null) {
+
+            // the tables are only prepared by the first member, so joining comes first
+
+            startup.add("cluster-join", () -> {
+
+                try {
+                    joiner = cluster.join();
+                } catch (IOException e) {
+                    throw new StartupGraph.StepFailedException("Failed to join cluster (" + e.getMessage() + ")");
+                }
+
+                logger.info(joiner ? "Joined running cluster - leaving the tables as they are" :
+                        "First member of the cluster - preparing the tables");
+
+            }, "emodb-check");
         }
-        logger.info("Successfully created items table");
 
-        if (! populateTable()) {
-            logger.warn("Failed to complete populating items table - continuing anyway");
-        } else {
-            logger.info("Successfully populated items table");
+        List<String> searchIndexSteps = new ArrayList<>();
+        List<String> indexLoadSteps = new ArrayList<>();
+
+        for (TableConfig config : tables) {
+
+            addTableSteps(startup, config);
+
+            searchIndexSteps.add("search-index:" + config.table);
+            indexLoadSteps.add("index-load:" + config.table);
         }
 
-        long tableSize = EmoSor.getTableSize();
+        // the query service answers pings (and reports not being ready) while the indexes are loaded
 
-        if (tableSize < 0) {
-            logger.warn("Failed to read size of items table - continuing");
-        } else {
-            logger.info("Size of items table: " + tableSize +
-                    (tableSize == 100 ? " (just what I expected)" : " (should be 100)"));
+        startup.add("query-service", this::startQueryService, searchIndexSteps.toArray(new String[0]));
+
+        indexLoadSteps.add("query-service");
+
+        startup.add("background-services", () -> {
+
+            logger.info("initializing subscription consumers");
+            initConsumers();
+
+            if (joiner) {
+                logger.info("document updates are run by the first cluster member");
+            } else {
+                logger.info("initializing document updates");
+                initUpdates();
+            }
+
+            logger.info("initializing index reconciliation");
+            initReconciler();
+
+            if (leader != null) {
+
+                logger.info("initializing change stream to read replicas");
+
+                try {
+                    leader.start();
+                } catch (IOException e) {
+                    logger.warn("failed to open replication port " + REPLICATION_PORT + " (" + e.getMessage() +
+                            ") - continuing without replicas");
+                }
+            }
+
+            spark.setReady(true);
+
+        }, indexLoadSteps.toArray(new String[0]));
+
+        if (! startup.await()) {
+
+            logger.error("startup failed - aborting");
+
+            if (spark != null) spark.stop();
         }
+    }
+
+    /**
+     * Starts the query service on the search indexes of all tables.
+     */
+    private void startQueryService() {
+
+        Map<String, SearchEngine> searchEnginesByPrefix = new LinkedHashMap<>();
 
-        logger.info("Setting up search index of type " + INDEX_TYPE + "...");
+        for (TableConfig config : tables) searchEnginesByPrefix.put(config.routePrefix, searchEngines.get(config.table));
 
-        searchEngine = new SearchEngine(INDEX_TYPE);
+        spark = new Spark(searchEnginesByPrefix, cluster);
 
-        logger.info("Created search index of index type = " + searchEngine.getIndexType());
+        // the health of a replica is its lag behind the leader, it does not consume the databus
+        if (replica != null) spark.setLagSupplier(replica::getLagMillis);
 
-        logger.info("Loading sample data into search index...");
+        spark.awaitInitialization();
 
-        if (! searchEngine.loadSampleData()) {
-            logger.warn("Failed to load sample data into search index - continuing anyway");
+        if (! spark.isUp()) {
+            logger.error("Spark is not available - it must be running on localhost:" + Spark.getPort() +
+                    " - continuing anyway");
         } else {
-            logger.info("Successfully loaded sample data into search index");
+            logger.info("Detected running Spark instance on localhost:" + Spark.getPort() + " - good!");
         }
+    }
+
+    /**
+     * Starts the application as read replica of a leader (<code>-Demodb.replication.leader=&lt;host:port&gt;</code>):
+     * sets up a memory index for every table, receives a snapshot and then the change stream of the
+     * leader (see <code>ReplicaClient</code>), and serves the same query routes as the leader. A replica
+     * needs neither EmoDB nor Elasticsearch, and reports being ready once the first snapshot is applied.
+     */
+    private void startReplica() {
 
-        // ready to start the query service at this point
+        String[] hostAndPort = REPLICATION_LEADER.split(":");
 
-        Spark spark = new Spark(searchEngine);
+        int leaderPort = hostAndPort.length == 2 ? NumberUtils.toInt(hostAndPort[1], -1) : -1;
 
-        int retries = 10; // wait 10 seconds max
-        boolean success = false;
+        if (leaderPort <= 0) {
+            logger.error("invalid replication leader " + REPLICATION_LEADER + " (expected host:port) - aborting");
+            return;
+        }
 
-        while (! success && retries > 0) {
+        logger.info("running as read replica of " + REPLICATION_LEADER);
 
-            success = spark.isUp();
-            --retries;
+        StartupGraph startup = new StartupGraph();
 
-            logger.info("waiting for Spark to ignite ...");
+        startup.add("search-index", () -> {
 
-            try { Thread.sleep(1000); } catch (InterruptedException ignored) { }
-        }
+            for (TableConfig config : tables) {
+                searchEngines.put(config.table, new SearchEngine(MEMORY_INDEX_TYPE, config.table, config.index));
+            }
 
-        if (! success) {
-            logger.error("Spark is not available - it must be running on localhost:4567 - continuing anyway");
-        } else {
-            logger.info("Detected running Spark instance on localhost:4567 - good!");
+            replica = new ReplicaClient(hostAndPort[0], leaderPort, searchEngines);
+        });
+
+        startup.add("query-service", this::startQueryService, "search-index");
+
+        startup.add("replication-snapshot", () -> {
+
+            replica.start();
+
+            try {
+                replica.awaitSynchronized();
+            } catch (InterruptedException e) {
+                throw new StartupGraph.StepFailedException("interrupted while waiting for the first snapshot");
+            }
+
+        }, "search-index");
+
+        startup.add("background-services", () -> spark.setReady(true), "query-service", "replication-snapshot");
+
+        if (! startup.await()) {
+
+            logger.error("startup failed - aborting");
+
+            if (spark != null) spark.stop();
         }
+    }
+
+    /**
+     * Adds the startup steps of one table: setting up its search index, recreating the table and its
+     * subscription, populating the table, and loading the search index. The steps of different
+     * tables do not depend on each other.
+     *
+     * In cluster mode, the steps depend on joining the cluster. Members joining a running cluster
+     * only subscribe (sharing the subscription of the others) and load the documents of their shards.
+     *
+     * @param startup the startup graph.
+     * @param config the configuration of the table.
+     */
+    private void addTableSteps(StartupGraph startup, TableConfig config) {
+
+        String table = config.table;
+
+        String start = cluster == null ? "emodb-check" : "cluster-join";
+
+        // the search index (including the reset of the Elasticsearch index) is set up alongside the table
+
+        startup.add("search-index:" + table, () -> {
+
+            SearchEngine.IndexType indexType = cluster == null && leader == null ? INDEX_TYPE : MEMORY_INDEX_TYPE;
+
+            logger.info("Setting up search index of type " + indexType + " for table " + table + "...");
+
+            SearchEngine searchEngine = new SearchEngine(indexType, table, config.index);
+
+            if (cluster != null) {
+                searchEngine.setDocumentFilter(cluster::isLocal);
+                cluster.addOwnershipListener((gained, lost) -> rebalance(searchEngine, gained, lost));
+            }
+
+            if (leader != null) leader.publish(table, searchEngine); // before loading, so replicas miss nothing
+
+            searchEngines.put(table, searchEngine);
+
+            logger.info("Created search index of index type = " + searchEngine.getIndexType() + " for table " + table);
+
+        }, start);
+
+        startup.add("table:" + table, () -> {
+
+            if (joiner) return; // prepared by the first member
+
+            if (! EmoSor.dropTable(table)) {
+                logger.warn("Table " + table + " not deleted - EmoDB clean start? - continuing");
+            } else {
+                logger.info("Table " + table + " deleted - starting fresh");
+            }
+
+            if (! EmoBus.unsubscribe(config.subscription)) {
+                logger.warn("Did not unsubscribe from changes on table " + table + " - continuing");
+            } else {
+                logger.info("Subscription to table " + table + " removed - starting fresh");
+            }
+
+            if (! EmoSor.createTable(table)) {
+                throw new StartupGraph.StepFailedException("Failed to create table " + table + " in system of records");
+            }
+            logger.info("Successfully created table " + table);
+
+        }, start);
+
+        // subscribe to all changes to the table (databus, milestone 2) before populating it,
+        // so that no change is missed
+
+        startup.add("subscription:" + table, () -> {
+
+            if (! EmoBus.subscribe(config.subscription, table)) {
+                logger.warn("failed to subscribe to table " + table + " - continuing anyway");
+            } else {
+                logger.info("successfully subscribed to table " + table);
+            }
+
+            FreshnessMonitor.register(table);
+
+        }, "table:" + table);
 
-        // databus (milestone 2)
+        startup.add("table-population:" + table, () -> {
 
-        // subscribe to all changes to items table
+            if (joiner) return; // populated by the first member
+
+            boolean milestoneData = config == tables.get(0) && config.seedFile == null;
+
+            if (! milestoneData && config.seedFile == null) {
+                logger.info("No seed file for table " + table + " - starting with an empty table");
+                return;
+            }
+
+            if (! populateTable(config)) {
+                logger.warn("Failed to complete populating table " + table + " - continuing anyway");
+            } else {
+                logger.info("Successfully populated table " + table);
+            }
+
+            long tableSize = EmoSor.getTableSize(table);
+
+            if (tableSize < 0) {
+                logger.warn("Failed to read size of table " + table + " - continuing");
+            } else {
+                logger.info("Size of table " + table + ": " + tableSize + (! milestoneData ? "" :
+                        tableSize == 100 ? " (just what I expected)" : " (should be 100)"));
+            }
+
+        }, "subscription:" + table);
+
+        startup.add("index-load:" + table, () -> {
+
+            if (cluster != null) {
+
+                long numLoaded = searchEngines.get(table).loadDocuments(cluster::isLocal);
+
+                if (numLoaded < 0) {
+                    logger.warn("Failed to load the documents of table " + table + " owned by this member - continuing anyway");
+                } else {
+                    logger.info("Loaded " + numLoaded + " documents of table " + table + " owned by this member");
+                }
+
+                return;
+            }
+
+            logger.info("Loading sample data of table " + table + " into search index...");
+
+            if (! searchEngines.get(table).loadSampleData()) {
+                logger.warn("Failed to load sample data of table " + table + " into search index - continuing anyway");
+            } else {
+                logger.info("Successfully loaded sample data of table " + table + " into search index");
+            }
+
+        }, "search-index:" + table, "table-population:" + table);
+    }
+
+    /**
+     * Adapts the search index of a table to a change of the shards owned by this cluster member:
+     * drops the documents of lost shards, and loads the documents of gained shards from the table.
+     * Runs in the background, as the membership thread must not block.
+     *
+     * @param searchEngine the search index of the table.
+     * @param gained accepts the IDs of documents of gained shards.
+     * @param lost accepts the IDs of documents of lost shards.
+     */
+    private void rebalance(SearchEngine searchEngine, Predicate<String> gained, Predicate<String> lost) {
+
+        rebalanceExecutor.execute(() -> {
+
+            int numRemoved = searchEngine.removeDocuments(lost);
+
+            long numLoaded = searchEngine.loadDocuments(gained);
+
+            if (numLoaded < 0) {
+                // remark: the reconciler catches up with the missing documents
+                logger.warn("failed to load documents of gained shards of table " + searchEngine.getTable());
+            }
+
+            logger.info("rebalanced table " + searchEngine.getTable() + ": dropped " + numRemoved +
+                    " and loaded " + numLoaded + " documents");
+        });
+    }
+
+    /**
+     * Populates a table in the system of records for the first time with the items in its seed file
+     * (<code>-Demodb.seedFile=&lt;path&gt;</code> or <code>-Demodb.table.&lt;name&gt;.seedFile=&lt;path&gt;</code>),
+     * milestone0.txt by default.
+     *
+     * Seed files are loaded in parallel and written in batches (see <code>BulkItemLoader</code>),
+     * unless milestone0.txt is not a plain file (e.g. packaged in a jar), in which case it is
+     * parsed and written sequentially.
+     *
+     * @param config the configuration of the table.
+     * @return <code>true</code> if all items could be added to the table in the system of records,
+     *         <code>false</code> otherwise.
+     */
+    private boolean populateTable(TableConfig config) {
+
+        Path path;
+
+        if (config.seedFile != null) {
+
+            path = Paths.get(config.seedFile);
 
-        if (! EmoBus.subscribe()) {
-            logger.warn("failed to subscribe to items table - continuing anyway");
         } else {
-            logger.info("successfully subscribed to items table");
+
+            URL url = getClass().getResource("/milestone0.txt");
+
+            if (url == null || ! url.getProtocol().equals("file")) return populateTableSequentially(config.table, url);
+
+            try {
+                path = Paths.get(url.toURI());
+            } catch (URISyntaxException e) {
+                return populateTableSequentially(config.table, url);
+            }
         }
 
-        logger.info("initializing subscription listener");
-        initListener();
+        BulkItemLoader loader = new BulkItemLoader(path, BulkItemLoader.Format.of(path), SEED_BATCH_SIZE);
 
-        logger.info("initializing document updates");
-        initUpdates();
+        try {
+            return loader.load(batch -> EmoSor.updateDocuments(config.table, batch, "initial-submission"), SEED_PARALLELISM);
+        } catch (IOException e) {
+            logger.warn("failed to load seed file " + path + ": " + e.getMessage());
+            return false;
+        }
     }
 
     /**
-     * Populates the items table in the system of records for the first time with the items in milestone0.txt.
+     * Populates a table with the items in the specified file, one at a time.
      *
-     * @return <code>true</code> if all items could be added to the items table in the system of records,
+     * @param table the name of the table.
+     * @param url the URL of the file.
+     * @return <code>true</code> if all items could be added to the table in the system of records,
      *         <code>false</code> otherwise.
      */
-    private boolean populateTable() {
-
-        URL url = getClass().getResource("/milestone0.txt");
+    private boolean populateTableSequentially(String table, URL url) {
 
         IDItemParser parser;
 
@@ -202,7 +574,7 @@ public class App {
             if (nextItem == null) break; // no more items (end of file)
 
             // store the next item in the system of records
-            if (EmoSor.updateDocument(nextItem, "initial-submission")) {
+            if (EmoSor.updateDocument(table, nextItem, "initial-submission")) {
                 logger.debug("added document " + nextItem.getId());
             } else {
                 logger.warn("failed adding document " + nextItem.getId() + " - but will continue");
@@ -219,121 +591,217 @@ public class App {
     }
 
     /**
-     * Initializes the subscription listener and runs it in its own thread.
+     * Initializes the subscription consumers of all tables. The consumers share a pool of
+     * <code>CONSUMER_THREADS</code> threads: each table takes a turn (one poll, indexing the polled
+     * events, acknowledging them) every <code>SUBSCRIPTION_POLL_TIME_MILLIS</code>, and turns are
+     * handed out in the order they become due, so a table with a large backlog cannot starve the others.
      */
-    private void initListener() {
-
-        Executors.newSingleThreadExecutor().execute(() -> {
+    private void initConsumers() {
 
-        logger.info("starting subscription listener thread");
+        ScheduledExecutorService consumerExecutor = Executors.newScheduledThreadPool(CONSUMER_THREADS);
 
         // Remark: provide means to terminate application cleanly would be a next step.
 
-            while (true) {
+        for (TableConfig config : tables) {
+
+            logger.info("starting subscription consumer of table " + config.table);
+
+            consumerExecutor.scheduleWithFixedDelay(() -> {
 
                 try {
-                    Thread.sleep(SUBSCRIPTION_POLL_TIME_MILLIS);
-                } catch (InterruptedException ignored) {
+                    consume(config);
+                } catch (RuntimeException e) {
+                    // an exception would cancel all further turns of the table
+                    logger.warn("subscription consumer of table " + config.table + " failed: " + e);
                 }
 
-                logger.debug("polling subscription again after " +
-                        SUBSCRIPTION_POLL_TIME_MILLIS + " milliseconds");
+            }, SUBSCRIPTION_POLL_TIME_MILLIS, SUBSCRIPTION_POLL_TIME_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
 
-                int numUnclaimedEvents = EmoBus.getNumPendingEvents(); // just an estimate
+    /**
+     * Takes one turn of the subscription consumer of a table: polls pending events from the databus,
+     * applies them to the search index of the table, and acknowledges the processed events.
+     *
+     * In cluster mode, all members poll the same subscription. Events of documents owned by another
+     * member are forwarded to it and acknowledged once it applied them.
+     *
+     * @param config the configuration of the table.
+     */
+    private void consume(TableConfig config) {
 
-                logger.debug("databus reports " + numUnclaimedEvents + " unclaimed events");
+        SearchEngine searchEngine = searchEngines.get(config.table);
 
-                List<String> eventKeysToAck = new ArrayList<>();
+        logger.debug("polling subscription " + config.subscription + " again after " +
+                SUBSCRIPTION_POLL_TIME_MILLIS + " milliseconds");
 
-                String responseString = EmoBus.pollPendingEvents();
+        int numUnclaimedEvents = EmoBus.getNumPendingEvents(config.subscription); // just an estimate
 
-                JsonFactory factory = new JsonFactory();
-                ObjectMapper mapper = new ObjectMapper(factory);
+        logger.debug("databus reports " + numUnclaimedEvents + " unclaimed events for table " + config.table);
 
-                JsonNode rootNode;
+        FreshnessMonitor.recordPoll(config.table, numUnclaimedEvents);
 
-                try {
-                    rootNode = mapper.readTree(responseString);
-                } catch (IOException e) {
-                    logger.warn("problem encountered during processing of response string");
-                    continue;
-                }
+        List<String> eventKeysToAck = new ArrayList<>();
 
-                if (! rootNode.isArray()) {
-                    logger.warn("expected array of documents during processing of response string");
-                    continue;
-                }
+        // updates of documents owned by other cluster members, and their event keys, by owner
+        Map<String, List<Cluster.ForwardedUpdate>> forwardedUpdates = new LinkedHashMap<>();
+        Map<String, List<String>> forwardedEventKeys = new HashMap<>();
 
-                for (JsonNode root : rootNode) { // iterate the objects
+        DatabusPhaseEvent pollEvent = new DatabusPhaseEvent();
+        pollEvent.begin();
 
-                    JsonNode eventKeyNode = root.path("eventKey");
-                    String eventKey = eventKeyNode.isMissingNode() ? null : eventKeyNode.asText();
+        String responseString = EmoBus.pollPendingEvents(config.subscription);
 
-                    JsonNode versionNode = root.path("content").path("~version");
-                    String version = versionNode.isMissingNode() ? null : versionNode.asText();
+        pollEvent.end(); // committed once the number of events is known
 
-                    JsonNode colorNode = root.path("content").path("color");
-                    String color = colorNode.isMissingNode() ? null : colorNode.asText();
+        DatabusPhaseEvent decodeEvent = new DatabusPhaseEvent();
+        decodeEvent.begin();
 
-                    JsonNode textNode = root.path("content").path("text");
-                    String text = textNode.isMissingNode() ? null : textNode.asText();
+        List<EmoBus.Event> events;
 
-                    JsonNode idNode = root.path("content").path("~id"); // intrinsic field
-                    String id = idNode.isMissingNode() ? null : idNode.asText();
+        try {
+            events = EmoBus.decodeEvents(responseString);
+        } catch (IOException e) {
+            logger.warn("problem encountered during processing of response string (" + e.getMessage() + ")");
+            return;
+        }
 
-                    // some very basic error handling
-                    if (eventKeyNode.isMissingNode() || versionNode.isMissingNode() ||
-                            colorNode.isMissingNode() || textNode.isMissingNode() || idNode.isMissingNode()) {
-                        logger.warn("at least one relevant document node is missing");
-                        continue;
-                    }
+        long responseLength = responseString.length();
 
-                    Item item = new Item(color, text);
+        pollEvent.record("poll", events.size(), responseLength);
+        decodeEvent.record("decode", events.size(), responseLength);
 
-                    int versionInt = NumberUtils.toInt(version, -1);
+        pollBatchSizes.observe(events.size());
 
-                    if (versionInt == -1) {
-                        logger.warn("encountered illegal version format");
-                        continue;
-                    }
+        DatabusPhaseEvent indexEvent = new DatabusPhaseEvent();
+        indexEvent.begin();
 
-                    VersionedIDItem idItem = new VersionedIDItem(id, item, versionInt);
+        for (EmoBus.Event event : events) {
 
-                    if (! searchEngine.updateDocument(idItem)) {
+            String eventKey = event.eventKey;
+            VersionedIDItem idItem = event.idItem;
+            long writeMillis = event.writeMillis;
 
-                        logger.info("event key " + eventKey +
-                                " was not updated in search index (possibly outdated)");
-                    }
+            String id = idItem.getId();
 
-                    // document update was processed, add to ACK list
-                    eventKeysToAck.add(eventKey);
-                }
+            if (cluster != null && ! cluster.isLocal(id)) {
 
-                // acknowledge all processed document updates
+                String owner = cluster.ownerOf(id);
 
-                String eventsString;
+                forwardedUpdates.computeIfAbsent(owner, key -> new ArrayList<>()).add(
+                        new Cluster.ForwardedUpdate(idItem, writeMillis));
+                forwardedEventKeys.computeIfAbsent(owner, key -> new ArrayList<>()).add(eventKey);
+                continue;
+            }
 
-                try {
-                    eventsString = mapper.writeValueAsString(eventKeysToAck);
-                } catch (JsonProcessingException e) {
-                    logger.warn("failed to write event array to JSON string");
-                    continue;
-                }
+            UpdateOutcome outcome = searchEngine.updateDocument(idItem);
 
-                if (EmoBus.acknowledgeEvents(eventsString)) {
-                    logger.info("successfully acknowledged array of document updates (" + eventsString + ")");
-                } else {
-                    logger.warn("failed to acknowledge array of document updates (" + eventsString + ")");
-                }
+            if (outcome.isSuccess() && writeMillis >= 0) {
+                FreshnessMonitor.recordApplied(config.table, writeMillis);
             }
-        });
+
+            if (outcome == UpdateOutcome.FAILED) {
+
+                // not acknowledged, so the databus redelivers the event after its TTL
+                logger.warn("event key " + eventKey +
+                        " failed to update search index - will be redelivered");
+                continue;
+
+            } else if (outcome == UpdateOutcome.OUTDATED) {
+
+                logger.info("event key " + eventKey +
+                        " was not updated in search index (outdated)");
+            }
+
+            // document update was processed, add to ACK list
+            eventKeysToAck.add(eventKey);
+        }
+
+        for (Map.Entry<String, List<Cluster.ForwardedUpdate>> entry : forwardedUpdates.entrySet()) {
+
+            String owner = entry.getKey();
+
+            if (cluster.forwardUpdates(owner, config.routePrefix + "/cluster/updates", entry.getValue())) {
+                eventKeysToAck.addAll(forwardedEventKeys.get(owner));
+            } else {
+                // not acknowledged, so the databus redelivers the events (possibly to their new owner)
+                logger.warn("failed to forward " + entry.getValue().size() + " updates to cluster member " +
+                        owner + " - will be redelivered");
+            }
+        }
+
+        indexEvent.record("index", events.size(), -1);
+
+        // acknowledge all processed document updates
+
+        DatabusPhaseEvent ackEvent = new DatabusPhaseEvent();
+        ackEvent.begin();
+
+        String eventsString;
+
+        try {
+            eventsString = JsonUtils.MAPPER.writeValueAsString(eventKeysToAck);
+        } catch (JsonProcessingException e) {
+            logger.warn("failed to write event array to JSON string");
+            return;
+        }
+
+        if (EmoBus.acknowledgeEvents(config.subscription, eventsString)) {
+            logger.debug("successfully acknowledged array of document updates (" + eventsString + ")");
+        } else {
+            logger.warn("failed to acknowledge array of document updates (" + eventsString + ")");
+        }
+
+        ackEvent.record("ack", eventKeysToAck.size(), eventsString.length());
+    }
+
+    /**
+     * Initializes the periodic reconciliation of the search indexes with their tables (catches
+     * updates that were lost on the way to the index). The reconciliations of all tables run one
+     * after another in a single thread, so that their scans do not add up.
+     */
+    private void initReconciler() {
+
+        ScheduledExecutorService reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+
+        for (TableConfig config : tables) {
+
+            SearchEngine searchEngine = searchEngines.get(config.table);
+
+            reconcileExecutor.scheduleWithFixedDelay(() -> {
+
+                logger.debug("reconciling search index with table " + config.table);
+
+                int numRepaired = searchEngine.reconcile();
+
+                if (numRepaired < 0) {
+                    logger.warn("failed to reconcile search index with table " + config.table);
+                } else if (numRepaired > 0) {
+                    logger.warn("reconciliation reindexed or removed " + numRepaired + " divergent documents of table " +
+                            config.table);
+                }
+
+            }, RECONCILE_INTERVAL_MILLIS, RECONCILE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
-     * Initializes the document updater and runs it in its own thread.
+     * Initializes the document updater and runs it in its own thread, or starts the synthetic
+     * workload generator instead (<code>-Demodb.workload=synthetic</code>).
      */
     private void initUpdates() {
 
+        if (WORKLOAD.equals("synthetic")) {
+
+            try {
+                new WorkloadGenerator(WorkloadConfig.fromProperties()).start();
+            } catch (IllegalArgumentException e) {
+                logger.warn("invalid workload configuration (" + e.getMessage() + ") - no document updates");
+            }
+
+            return;
+        }
+
         Executors.newSingleThreadExecutor().execute(new Runnable() {
 
             @Override
@@ -374,7 +842,7 @@ public class App {
                         break;
                     }
 
-                    if (EmoSor.updateDocument(nextItem, "document-update")) {
+                    if (EmoSor.updateDocument(tables.get(0).table, nextItem, "document-update")) {
                         logger.debug("updated document " + nextItem.getId() + " in SoR");
                     } else {
                         logger.warn("failed to update document " + nextItem.getId() + " in SoR");
@@ -0,0 +1,157 @@
+package com.dubeanddube.emodb;
+
+import com.dubeanddube.emodb.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the startup of the application as a graph of steps: each step starts as soon as all steps it
+ * depends on have finished, so that independent steps overlap. Every step is timed and logged, and its
+ * duration is exported as a metric.
+ *
+ * A step that cannot complete in a way its dependents can build on throws a
+ * <code>StepFailedException</code>; its dependents (direct and indirect) are then skipped, while
+ * independent steps still run. Steps that merely degrade (e.g. "continuing anyway") just log a warning.
+ *
+ * @author Dominique Dube
+ */
+class StartupGraph {
+
+    private final Logger logger = LoggerFactory.getLogger(StartupGraph.class); // some basic logging
+
+    /**
+     * Thrown by a step whose dependents cannot run.
+     */
+    static class StepFailedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructs the exception.
+         *
+         * @param message the reason, which is logged as an error.
+         */
+        StepFailedException(String message) {
+
+            super(message);
+        }
+    }
+
+    // by step name, in the order the steps were added
+    private final Map<String, CompletableFuture<Void>> steps = new LinkedHashMap<>();
+
+    private final Map<String, Long> durationsNanos = new ConcurrentHashMap<>();
+
+    private final AtomicInteger threadCount = new AtomicInteger(0);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+
+        Thread thread = new Thread(runnable, "startup-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long startNanos = System.nanoTime();
+
+    // omitting default constructor
+
+    /**
+     * Adds a step, which starts once all its dependencies have finished successfully.
+     *
+     * @param name the name of the step (for logging and metrics).
+     * @param action the action of the step, which may throw a <code>StepFailedException</code>.
+     * @param dependencies the names of the steps this step depends on.
+     * @throws IllegalArgumentException if a dependency has not been added before (which also rules out cycles).
+     */
+    void add(String name, Runnable action, String... dependencies) throws IllegalArgumentException {
+
+        CompletableFuture<?>[] dependencyFutures = new CompletableFuture<?>[dependencies.length];
+
+        for (int i = 0; i < dependencies.length; ++i) {
+
+            dependencyFutures[i] = steps.get(dependencies[i]);
+
+            if (dependencyFutures[i] == null) throw new IllegalArgumentException("unknown step " + dependencies[i]);
+        }
+
+        CompletableFuture<Void> step = CompletableFuture.allOf(dependencyFutures).thenRunAsync(() -> {
+
+            long stepStartNanos = System.nanoTime();
+
+            logger.info("startup step " + name + " started");
+
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                logger.error((e instanceof StepFailedException ? e.getMessage() : "startup step " + name +
+                        " failed: " + e) + " - skipping the steps depending on " + name);
+                throw e;
+            } finally {
+
+                long durationNanos = System.nanoTime() - stepStartNanos;
+
+                durationsNanos.put(name, durationNanos);
+
+                logger.info("startup step " + name + " finished in " + durationNanos / 1000000 + " ms");
+            }
+
+        }, executor);
+
+        steps.put(name, step);
+
+        Metrics.gauge("emodb_startup_step_seconds", "Duration of the startup steps (0 if not run).",
+                () -> durationsNanos.getOrDefault(name, 0L) / 1e9, "step", name);
+    }
+
+    /**
+     * Waits until all steps have finished or been skipped, and logs a summary.
+     *
+     * @return <code>true</code> if all steps finished successfully, <code>false</code> otherwise.
+     */
+    boolean await() {
+
+        CompletableFuture<Void> all = CompletableFuture.allOf(steps.values().toArray(new CompletableFuture<?>[0]));
+
+        try {
+            all.join();
+        } catch (RuntimeException ignored) {
+            // some step failed, which is reported below
+        }
+
+        executor.shutdown();
+
+        boolean success = true;
+
+        StringBuilder summary = new StringBuilder();
+
+        for (Map.Entry<String, CompletableFuture<Void>> entry : steps.entrySet()) {
+
+            String name = entry.getKey();
+            Long durationNanos = durationsNanos.get(name);
+
+            String outcome;
+
+            if (! entry.getValue().isCompletedExceptionally()) {
+                outcome = durationNanos / 1000000 + " ms";
+            } else {
+                outcome = durationNanos != null ? "failed" : "skipped";
+                success = false;
+            }
+
+            summary.append(summary.length() > 0 ? ", " : "").append(name).append(' ').append(outcome);
+        }
+
+        logger.info("startup " + (success ? "completed" : "failed") + " in " +
+                (System.nanoTime() - startNanos) / 1000000 + " ms (" + summary + ")");
+
+        return success;
+    }
+}
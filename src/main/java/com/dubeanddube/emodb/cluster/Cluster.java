@@ -0,0 +1,428 @@
+package com.dubeanddube.emodb.cluster;
+
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.dubeanddube.emodb.services.HttpUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Coordinates the instances of the application that index the same tables together (cluster mode).
+ *
+ * The members find each other through a shared directory (see <code>FileMembership</code>) and
+ * split the document ID space into shards by consistent hashing (see <code>ShardRing</code>).
+ * Every member indexes only the documents of the shards it owns: the members share the databus
+ * subscriptions, and events polled by a member that does not own them are forwarded to their owner.
+ * Queries by ID are forwarded to the owner of the document, and queries by color are sent to all
+ * members and merged.
+ *
+ * When members join or leave, the ring is rebuilt and the ownership listeners are told which
+ * documents a member gained (to be loaded from the System of Record) and lost (to be dropped).
+ *
+ * @author Dominique Dube
+ */
+public class Cluster {
+
+    private final Logger logger = LoggerFactory.getLogger(Cluster.class); // some basic logging
+
+    // marks requests between members, which are answered locally and never forwarded again
+    public static final String FORWARDED_HEADER = "X-EmoDB-Forwarded";
+
+    // heartbeat interval and expiry of members (e.g. -Demodb.cluster.heartbeatMillis=500)
+    private static final long HEARTBEAT_MILLIS = Long.getLong("emodb.cluster.heartbeatMillis", 1000);
+    private static final long EXPIRY_MILLIS = Long.getLong("emodb.cluster.expiryMillis", 5 * HEARTBEAT_MILLIS);
+
+    /**
+     * Receives changes of the shards owned by this member.
+     */
+    @FunctionalInterface
+    public interface OwnershipListener {
+
+        /**
+         * Called after the ownership changed, on the membership thread (implementations must not block).
+         *
+         * @param gained accepts the IDs of documents whose shards this member owns now, but did not before.
+         * @param lost accepts the IDs of documents whose shards this member owned before, but does not now.
+         */
+        void onOwnershipChange(Predicate<String> gained, Predicate<String> lost);
+    }
+
+    /**
+     * A document update forwarded from the member that polled it to the owner of the document.
+     */
+    public static class ForwardedUpdate {
+
+        public final VersionedIDItem idItem;
+        public final long writeMillis; // time of the EmoDB write, -1 if unknown
+
+        /**
+         * Constructs a forwarded update.
+         *
+         * @param idItem the document.
+         * @param writeMillis the time of the EmoDB write in milliseconds since the epoch, -1 if unknown.
+         */
+        public ForwardedUpdate(VersionedIDItem idItem, long writeMillis) {
+
+            this.idItem = idItem;
+            this.writeMillis = writeMillis;
+        }
+    }
+
+    private final String self;
+
+    private final FileMembership membership;
+
+    private volatile ShardRing ring;
+
+    private final List<OwnershipListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+
+        Thread thread = new Thread(runnable, "cluster-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter rebalances = Metrics.counter("emodb_cluster_rebalances_total",
+            "Changes of the cluster membership that moved shards.");
+
+    /**
+     * Constructs the cluster view of a member, which has not joined yet.
+     *
+     * @param directory the directory shared by all members.
+     * @param self the ID of this member, the base URL of its query service (e.g. <code>http://localhost:4567</code>).
+     */
+    public Cluster(Path directory, String self) {
+
+        this.self = self;
+        this.membership = new FileMembership(directory, self, EXPIRY_MILLIS);
+        this.ring = new ShardRing(Collections.singleton(self));
+
+        Metrics.gauge("emodb_cluster_members", "Number of live cluster members.", () -> ring.getMembers().size());
+        Metrics.gauge("emodb_cluster_owned_shards", "Number of shards owned by this member (of " +
+                ShardRing.NUM_SHARDS + ").", () -> ring.getNumShards(self));
+    }
+
+    /**
+     * Creates the cluster view from system properties: cluster mode is enabled with
+     * <code>-Demodb.cluster.dir=&lt;shared directory&gt;</code>, and the member is reachable by the
+     * others at <code>emodb.cluster.memberUrl</code> (default <code>http://localhost:&lt;port&gt;</code>).
+     *
+     * @param port the port of the query service of this member.
+     * @return the cluster view, <code>null</code> if cluster mode is not enabled.
+     */
+    public static Cluster fromProperties(int port) {
+
+        String directory = System.getProperty("emodb.cluster.dir");
+
+        if (directory == null) return null;
+
+        return new Cluster(Paths.get(directory), System.getProperty("emodb.cluster.memberUrl", "http://localhost:" + port));
+    }
+
+    /**
+     * Joins the cluster: announces this member, determines the initial ownership, and starts the
+     * heartbeat, which also picks up membership changes.
+     *
+     * @return <code>true</code> if other members were already running (this member joins an existing
+     *         cluster), <code>false</code> if this member is the first one.
+     * @throws IOException if the shared directory could not be written or read.
+     */
+    public boolean join() throws IOException {
+
+        membership.heartbeat();
+
+        Set<String> members = membership.readMembers();
+
+        ring = new ShardRing(members);
+
+        logger.info("joined cluster as " + self + " with members " + members + " - owning " +
+                ring.getNumShards(self) + " of " + ShardRing.NUM_SHARDS + " shards");
+
+        heartbeatExecutor.scheduleWithFixedDelay(this::refresh, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::leave));
+
+        return members.size() > 1;
+    }
+
+    /**
+     * Leaves the cluster, so that the remaining members take over the shards of this member right away.
+     */
+    public void leave() {
+
+        heartbeatExecutor.shutdownNow();
+
+        try {
+            membership.leave();
+        } catch (IOException e) {
+            logger.warn("failed to leave cluster (" + e.getMessage() + ") - members notice after " +
+                    EXPIRY_MILLIS + " ms");
+        }
+    }
+
+    /**
+     * Sends a heartbeat and rebuilds the ring if the members changed.
+     */
+    private void refresh() {
+
+        Set<String> members;
+
+        try {
+            membership.heartbeat();
+            members = membership.readMembers();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("cluster heartbeat failed: " + e); // the others drop this member if it persists
+            return;
+        }
+
+        ShardRing previousRing = ring;
+
+        if (members.equals(previousRing.getMembers())) return;
+
+        ShardRing newRing = new ShardRing(members);
+
+        BitSet gainedShards = new BitSet(ShardRing.NUM_SHARDS);
+        BitSet lostShards = new BitSet(ShardRing.NUM_SHARDS);
+
+        for (int shard = 0; shard < ShardRing.NUM_SHARDS; ++shard) {
+
+            boolean owned = previousRing.ownerOf(shard).equals(self);
+            boolean owns = newRing.ownerOf(shard).equals(self);
+
+            if (owns && ! owned) gainedShards.set(shard);
+            if (owned && ! owns) lostShards.set(shard);
+        }
+
+        ring = newRing;
+
+        logger.info("cluster members changed to " + members + " - gained " + gainedShards.cardinality() +
+                " and lost " + lostShards.cardinality() + " shards, owning " + newRing.getNumShards(self));
+
+        if (gainedShards.isEmpty() && lostShards.isEmpty()) return;
+
+        rebalances.inc();
+
+        for (OwnershipListener listener : listeners) {
+
+            listener.onOwnershipChange(id -> gainedShards.get(ShardRing.shardOf(id)),
+                    id -> lostShards.get(ShardRing.shardOf(id)));
+        }
+    }
+
+    /**
+     * Adds a listener that is told about every change of the shards owned by this member.
+     *
+     * @param listener the listener that is to be added.
+     */
+    public void addOwnershipListener(OwnershipListener listener) {
+
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the ID of this member.
+     *
+     * @return the base URL of the query service of this member.
+     */
+    public String getSelf() {
+
+        return self;
+    }
+
+    /**
+     * Checks whether this member owns a document.
+     *
+     * @param id the document ID.
+     * @return <code>true</code> if this member owns the shard of the document, <code>false</code> otherwise.
+     */
+    public boolean isLocal(String id) {
+
+        return ring.ownerOfDocument(id).equals(self);
+    }
+
+    /**
+     * Returns the owner of a document.
+     *
+     * @param id the document ID.
+     * @return the ID of the member owning the shard of the document.
+     */
+    public String ownerOf(String id) {
+
+        return ring.ownerOfDocument(id);
+    }
+
+    /**
+     * Returns the other live members.
+     *
+     * @return the IDs of all members except this one.
+     */
+    public Set<String> getRemoteMembers() {
+
+        Set<String> members = new TreeSet<>(ring.getMembers());
+
+        members.remove(self);
+
+        return members;
+    }
+
+    /**
+     * Sends a query to another member, which answers it from its own index.
+     *
+     * @param member the ID of the member.
+     * @param pathAndQuery the path and query of the request, e.g. <code>/document?color=green&amp;format=json</code>.
+     * @return the JSON response body, <code>null</code> if the member could not be reached.
+     */
+    public String query(String member, String pathAndQuery) {
+
+        HttpGet request = new HttpGet(member + pathAndQuery);
+
+        request.addHeader(FORWARDED_HEADER, self);
+        request.addHeader("Accept", "application/json");
+
+        String responseString = HttpUtils.execute(request);
+
+        countForwarded("query", responseString != null);
+
+        return responseString;
+    }
+
+    /**
+     * Sends a query with a request body (e.g. a compound query) to another member, which answers it
+     * from its own index.
+     *
+     * @param member the ID of the member.
+     * @param path the path of the request, e.g. <code>/query</code>.
+     * @param body the JSON request body.
+     * @return the JSON response body, <code>null</code> if the member could not be reached.
+     */
+    public String query(String member, String path, String body) {
+
+        HttpPost request = new HttpPost(member + path);
+
+        request.addHeader(FORWARDED_HEADER, self);
+        request.addHeader("Accept", "application/json");
+        request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+
+        String responseString = HttpUtils.execute(request);
+
+        countForwarded("query", responseString != null);
+
+        return responseString;
+    }
+
+    /**
+     * Forwards document updates to their owner, which applies them to its index.
+     *
+     * @param member the ID of the owner.
+     * @param path the path of the update route, e.g. <code>/cluster/updates</code>.
+     * @param updates the updates.
+     * @return <code>true</code> if the owner applied all updates, <code>false</code> otherwise.
+     */
+    public boolean forwardUpdates(String member, String path, List<ForwardedUpdate> updates) {
+
+        ArrayNode root = JsonUtils.MAPPER.createArrayNode();
+
+        for (ForwardedUpdate update : updates) {
+
+            ObjectNode updateNode = root.addObject();
+            updateNode.put("id", update.idItem.getId());
+            updateNode.put("version", update.idItem.getVersion());
+            updateNode.put("color", update.idItem.getItem().getColor());
+            updateNode.put("text", update.idItem.getItem().getText());
+            updateNode.put("writeMillis", update.writeMillis);
+        }
+
+        HttpPost request = new HttpPost(member + path);
+
+        request.addHeader(FORWARDED_HEADER, self);
+
+        boolean success;
+
+        try {
+
+            request.setEntity(new StringEntity(JsonUtils.MAPPER.writeValueAsString(root), ContentType.APPLICATION_JSON));
+
+            String responseString = HttpUtils.execute(request);
+
+            success = responseString != null && JsonUtils.MAPPER.readTree(responseString).path("success").asBoolean();
+
+        } catch (IOException e) {
+            success = false;
+        }
+
+        countForwarded("updates", success);
+
+        return success;
+    }
+
+    /**
+     * Parses document updates forwarded by another member (see <code>forwardUpdates</code>).
+     *
+     * @param body the request body.
+     * @return the updates.
+     * @throws IOException if the body is malformed.
+     */
+    public static List<ForwardedUpdate> parseUpdates(String body) throws IOException {
+
+        JsonNode root = JsonUtils.MAPPER.readTree(body);
+
+        if (root == null || ! root.isArray()) throw new IOException("expected array of updates");
+
+        List<ForwardedUpdate> updates = new ArrayList<>(root.size());
+
+        for (JsonNode updateNode : root) {
+
+            try {
+
+                VersionedIDItem idItem = new VersionedIDItem(updateNode.path("id").asText(),
+                        new Item(updateNode.path("color").asText(), updateNode.path("text").asText()),
+                        updateNode.path("version").asInt(-1));
+
+                updates.add(new ForwardedUpdate(idItem, updateNode.path("writeMillis").asLong(-1)));
+
+            } catch (IllegalArgumentException e) {
+                throw new IOException("malformed update: " + e.getMessage());
+            }
+        }
+
+        return updates;
+    }
+
+    /**
+     * Counts a request to another member.
+     *
+     * @param kind the kind of request (metric label).
+     * @param success whether the request succeeded.
+     */
+    private static void countForwarded(String kind, boolean success) {
+
+        Metrics.counter("emodb_cluster_forwarded_total", "Requests forwarded to other cluster members.",
+                "kind", kind, "outcome", success ? "success" : "failure").inc();
+    }
+}
@@ -0,0 +1,118 @@
+package com.dubeanddube.emodb.cluster;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of the members of a cluster through a directory shared by all members (e.g. a local
+ * directory for instances on one host, or a network file system).
+ *
+ * Every member owns one file in the directory, which contains its ID (the base URL of its query
+ * service) and whose modification time it refreshes with every heartbeat. A member whose file has
+ * not been refreshed for <code>expiryMillis</code> is considered gone, so crashed members drop out
+ * without any coordination; members that stop cleanly delete their file right away.
+ *
+ * @author Dominique Dube
+ */
+class FileMembership {
+
+    private static final String SUFFIX = ".member";
+
+    private final Path directory;
+
+    private final String self;
+
+    private final Path file;
+
+    private final long expiryMillis;
+
+    /**
+     * Constructs the membership of a member.
+     *
+     * @param directory the shared directory.
+     * @param self the ID of this member.
+     * @param expiryMillis the time after which a member without heartbeat is considered gone.
+     */
+    FileMembership(Path directory, String self, long expiryMillis) {
+
+        this.directory = directory;
+        this.self = self;
+        this.file = directory.resolve(self.replaceAll("[^A-Za-z0-9]+", "_") + SUFFIX);
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * Announces this member: creates its file if needed and refreshes its modification time.
+     *
+     * @throws IOException if the file could not be written.
+     */
+    void heartbeat() throws IOException {
+
+        if (Files.exists(file)) {
+
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+
+        } else {
+
+            Files.createDirectories(directory);
+
+            // written to a temporary file first, so that other members never read a partial ID
+            Path temporaryFile = Files.createTempFile(directory, "join", ".tmp");
+            Files.write(temporaryFile, self.getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads the current members, i.e. the members whose heartbeat has not expired.
+     *
+     * @return the IDs of the current members, including this member.
+     * @throws IOException if the directory could not be read.
+     */
+    Set<String> readMembers() throws IOException {
+
+        Set<String> members = new TreeSet<>();
+
+        members.add(self);
+
+        long now = System.currentTimeMillis();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+
+            for (Path memberFile : files) {
+
+                try {
+
+                    if (now - Files.getLastModifiedTime(memberFile).toMillis() > expiryMillis) continue;
+
+                    String member = new String(Files.readAllBytes(memberFile), StandardCharsets.UTF_8).trim();
+
+                    if (! member.isEmpty()) members.add(member);
+
+                } catch (NoSuchFileException e) {
+                    // the member left in the meantime
+                }
+            }
+        }
+
+        return members;
+    }
+
+    /**
+     * Withdraws this member, so that the others take over its shards right away.
+     *
+     * @throws IOException if the file could not be deleted.
+     */
+    void leave() throws IOException {
+
+        Files.deleteIfExists(file);
+    }
+}
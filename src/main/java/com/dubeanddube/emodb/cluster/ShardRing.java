@@ -0,0 +1,141 @@
+package com.dubeanddube.emodb.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Assigns the shards of the document ID space to the members of a cluster by consistent hashing.
+ *
+ * Documents are mapped to one of <code>NUM_SHARDS</code> shards by a hash of their ID. Every
+ * member is placed on a hash ring at <code>VIRTUAL_NODES</code> points, and a shard is owned by
+ * the member at the first point at or after the hash of the shard. When a member joins or leaves,
+ * only the shards next to its points change owner (about 1/n of all shards), all other shards stay
+ * where they are. A ring is immutable; membership changes build a new ring.
+ *
+ * @author Dominique Dube
+ */
+public class ShardRing {
+
+    public static final int NUM_SHARDS = 1024; // a power of two
+
+    private static final int VIRTUAL_NODES = 64; // points per member, evens out the shares of the members
+
+    private final Set<String> members;
+
+    private final String[] owners = new String[NUM_SHARDS]; // by shard
+
+    /**
+     * Constructs the ring of the specified members.
+     *
+     * @param members the IDs of the members (at least one).
+     * @throws IllegalArgumentException if there are no members.
+     */
+    public ShardRing(Collection<String> members) throws IllegalArgumentException {
+
+        if (members.isEmpty()) throw new IllegalArgumentException("no members");
+
+        this.members = Collections.unmodifiableSet(new TreeSet<>(members));
+
+        NavigableMap<Long, String> points = new TreeMap<>();
+
+        for (String member : this.members) {
+            for (int i = 0; i < VIRTUAL_NODES; ++i) points.put(hash(member + "#" + i), member);
+        }
+
+        for (int shard = 0; shard < NUM_SHARDS; ++shard) {
+
+            Map.Entry<Long, String> point = points.ceilingEntry(hash("shard-" + shard));
+
+            owners[shard] = (point != null ? point : points.firstEntry()).getValue(); // wraps around
+        }
+    }
+
+    /**
+     * Returns the shard of a document.
+     *
+     * @param id the document ID.
+     * @return the shard, between 0 and <code>NUM_SHARDS - 1</code>.
+     */
+    public static int shardOf(String id) {
+
+        int h = id.hashCode() * 0x9E3779B9; // spreads similar IDs over the shards
+
+        return (h ^ (h >>> 16)) & (NUM_SHARDS - 1);
+    }
+
+    /**
+     * Returns the owner of a shard.
+     *
+     * @param shard the shard.
+     * @return the ID of the member owning the shard.
+     */
+    public String ownerOf(int shard) {
+
+        return owners[shard];
+    }
+
+    /**
+     * Returns the owner of a document.
+     *
+     * @param id the document ID.
+     * @return the ID of the member owning the shard of the document.
+     */
+    public String ownerOfDocument(String id) {
+
+        return owners[shardOf(id)];
+    }
+
+    /**
+     * Returns the number of shards owned by a member.
+     *
+     * @param member the ID of the member.
+     * @return the number of owned shards, 0 if the ID is not a member.
+     */
+    public int getNumShards(String member) {
+
+        int numShards = 0;
+
+        for (String owner : owners) if (owner.equals(member)) ++numShards;
+
+        return numShards;
+    }
+
+    /**
+     * Returns the members of the ring.
+     *
+     * @return the IDs of the members, sorted.
+     */
+    public Set<String> getMembers() {
+
+        return members;
+    }
+
+    /**
+     * Hashes a string to a point on the ring (64-bit FNV-1a, followed by a final mix so that
+     * strings differing only in their last characters are spread over the ring).
+     *
+     * @param s the string.
+     * @return the point on the ring.
+     */
+    private static long hash(String s) {
+
+        long h = 0xcbf29ce484222325L;
+
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
@@ -0,0 +1,440 @@
+package com.dubeanddube.emodb.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads ID items from large seed files in parallel and passes them on in batches (e.g. to be
+ * written to the system of records).
+ *
+ * The file is memory-mapped and split into chunks at record boundaries, which are parsed in
+ * parallel on a fork/join pool. Two forms are supported: a single JSON object with one field per
+ * ID item (the form of the milestone files, see <code>IDItemParser</code>), and NDJSON with one
+ * such object per line, e.g.
+ *
+ * {"7b8d8a82-77b6-4940-95fe-50ed99b23cb2": {"color": "green", "text": "Lacus augue vitae."}}
+ *
+ * Chunk boundaries are found without parsing from the beginning of the file: a line start in
+ * NDJSON form, and an unescaped quote followed by a UUID, a quote, and a colon in object form
+ * (item fields are never named by UUIDs, and quotes within strings are always escaped).
+ *
+ * @author Dominique Dube
+ */
+public class BulkItemLoader {
+
+    private final Logger logger = LoggerFactory.getLogger(BulkItemLoader.class); // some basic logging
+
+    private static final long CHUNK_BYTES = 4L * 1024 * 1024; // chunks are split until they are at most this large
+
+    private static final long SEGMENT_BYTES = 1L << 30; // mapped buffers are limited to 2 GB
+
+    /**
+     * The form of a seed file.
+     */
+    public enum Format {
+
+        OBJECT, // a single JSON object with one field per ID item
+        NDJSON; // one JSON object per line
+
+        /**
+         * Determines the form of a seed file from its file name.
+         *
+         * @param path the path of the seed file.
+         * @return <code>NDJSON</code> for files ending with <code>.ndjson</code> or <code>.jsonl</code>,
+         *         <code>OBJECT</code> otherwise.
+         */
+        public static Format of(Path path) {
+
+            String name = path.getFileName().toString();
+
+            return name.endsWith(".ndjson") || name.endsWith(".jsonl") ? NDJSON : OBJECT;
+        }
+    }
+
+    /**
+     * Receives batches of loaded ID items. Called concurrently from several threads.
+     */
+    @FunctionalInterface
+    public interface BatchSink {
+
+        /**
+         * Writes a batch of ID items.
+         *
+         * @param batch the ID items.
+         * @return <code>true</code> if the batch was written successfully, <code>false</code> otherwise.
+         */
+        boolean write(List<IDItem> batch);
+    }
+
+    private final Path path;
+    private final Format format;
+    private final int batchSize;
+
+    private MappedByteBuffer[] segments;
+
+    private final AtomicLong numWritten = new AtomicLong(0);
+    private final AtomicBoolean success = new AtomicBoolean(true);
+
+    /**
+     * Constructs a loader for the specified seed file.
+     *
+     * @param path the path of the seed file.
+     * @param format the form of the seed file.
+     * @param batchSize the maximum number of ID items per batch.
+     */
+    public BulkItemLoader(Path path, Format format, int batchSize) {
+
+        this.path = path;
+        this.format = format;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Loads all ID items of the seed file and passes them on to the specified sink in batches.
+     * Batches that fail to be written are logged, the remaining ones are still written.
+     *
+     * @param sink the sink of the batches.
+     * @param parallelism the number of threads parsing chunks and writing batches.
+     * @return <code>true</code> if all batches were written successfully, <code>false</code> otherwise.
+     * @throws IOException if the seed file could not be read or is malformed (some batches may
+     *         have been written nevertheless).
+     */
+    public boolean load(BatchSink sink, int parallelism) throws IOException {
+
+        numWritten.set(0);
+        success.set(true);
+
+        long startNanos = System.nanoTime();
+
+        long size;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            size = channel.size();
+
+            segments = new MappedByteBuffer[(int)((size + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+
+            for (int i = 0; i < segments.length; ++i) {
+
+                long position = i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_BYTES, size - position));
+            }
+        }
+
+        // remark: the mapping stays valid after the channel is closed
+
+        long start = 0;
+        long end = size;
+
+        if (format == Format.OBJECT) {
+
+            // restrict to the fields of the object, between the outer braces
+
+            while (start < size && byteAt(start) != '{') ++start;
+            while (end > start && byteAt(end - 1) != '}') --end;
+
+            if (start >= end) throw new IOException("expected object in seed file " + path);
+
+            start = nextBoundary(start + 1, --end);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            pool.invoke(new ChunkTask(sink, start, end));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+            segments = null;
+        }
+
+        logger.info("loaded " + numWritten.get() + " items from " + path + " (" + size / (1024 * 1024) + " MB) in " +
+                (System.nanoTime() - startNanos) / 1000000 + " ms");
+
+        return success.get();
+    }
+
+    /**
+     * Returns the number of ID items written by the last load.
+     *
+     * @return the number of ID items written successfully.
+     */
+    public long getNumWritten() {
+
+        return numWritten.get();
+    }
+
+    /**
+     * Parses a range of the seed file, splitting it in halves at record boundaries while it is
+     * larger than <code>CHUNK_BYTES</code>.
+     */
+    private class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final BatchSink sink;
+        final long start;
+        final long end;
+
+        ChunkTask(BatchSink sink, long start, long end) {
+
+            this.sink = sink;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (end - start > CHUNK_BYTES) {
+
+                long middle = nextBoundary(start + (end - start) / 2, end);
+
+                if (middle < end) {
+                    invokeAll(new ChunkTask(sink, start, middle), new ChunkTask(sink, middle, end));
+                    return;
+                }
+            }
+
+            try {
+                parseChunk(sink, start, end);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Parses the ID items in a chunk and passes them on in batches.
+     *
+     * @param sink the sink of the batches.
+     * @param start the position of the first record of the chunk.
+     * @param end the position after the last record of the chunk.
+     * @throws IOException if the chunk is malformed.
+     */
+    private void parseChunk(BatchSink sink, long start, long end) throws IOException {
+
+        // trailing whitespace and the comma separating the chunk from the next field
+        while (end > start && isWhitespace(byteAt(end - 1))) --end;
+        if (format == Format.OBJECT && end > start && byteAt(end - 1) == ',') --end;
+
+        long first = start;
+        while (first < end && isWhitespace(byteAt(first))) ++first;
+
+        if (first == end) return; // nothing but whitespace
+
+        InputStream in = new ChunkInputStream(start, end);
+
+        if (format == Format.OBJECT) {
+            in = new SequenceInputStream(new ByteArrayInputStream(new byte[] { '{' }),
+                    new SequenceInputStream(in, new ByteArrayInputStream(new byte[] { '}' })));
+        }
+
+        IDItemParser parser;
+
+        try {
+            parser = new IDItemParser(in);
+        } catch (IOException e) {
+            throw new IOException("malformed seed file " + path + " at position " + start, e);
+        }
+
+        List<IDItem> batch = new ArrayList<>(batchSize);
+
+        try {
+
+            while (true) {
+
+                IDItem idItem;
+
+                try {
+                    idItem = parser.getNext();
+                } catch (IOException e) {
+                    throw new IOException("malformed seed file " + path + " in chunk at position " + start, e);
+                }
+
+                if (idItem == null) break;
+
+                batch.add(idItem);
+
+                if (batch.size() == batchSize) {
+                    write(sink, batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+
+            if (! batch.isEmpty()) write(sink, batch);
+
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Passes a batch on to the sink and records the outcome.
+     *
+     * @param sink the sink of the batches.
+     * @param batch the batch.
+     */
+    private void write(BatchSink sink, List<IDItem> batch) {
+
+        if (sink.write(batch)) {
+            numWritten.addAndGet(batch.size());
+        } else {
+            success.set(false);
+            logger.warn("failed to write batch of " + batch.size() + " items starting with " + batch.get(0).getId());
+        }
+    }
+
+    /**
+     * Finds the first record boundary at or after the specified position.
+     *
+     * @param position the position at which the search starts.
+     * @param limit the position at which the search ends.
+     * @return the position of the boundary, <code>limit</code> if there is none.
+     */
+    private long nextBoundary(long position, long limit) {
+
+        if (format == Format.NDJSON) {
+
+            if (position > 0 && byteAt(position - 1) == '\n') return position;
+
+            while (position < limit && byteAt(position) != '\n') ++position;
+
+            return Math.min(position + 1, limit);
+        }
+
+        for (; position < limit; ++position) {
+            if (byteAt(position) == '"' && ! isEscaped(position) && isIdField(position, limit)) return position;
+        }
+
+        return limit;
+    }
+
+    /**
+     * Checks whether the quote at the specified position starts a field named by a UUID, i.e. is
+     * followed by 36 UUID characters, a quote, optional whitespace, and a colon.
+     *
+     * @param position the position of the quote.
+     * @param limit the position after the last byte that may be examined.
+     * @return <code>true</code> if a field named by a UUID starts at the position, <code>false</code> otherwise.
+     */
+    private boolean isIdField(long position, long limit) {
+
+        if (position + 38 >= limit) return false;
+
+        for (int i = 1; i <= 36; ++i) {
+
+            byte b = byteAt(position + i);
+
+            if (i == 9 || i == 14 || i == 19 || i == 24) {
+                if (b != '-') return false;
+            } else if (! ((b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F'))) {
+                return false;
+            }
+        }
+
+        if (byteAt(position + 37) != '"') return false;
+
+        long next = position + 38;
+        while (next < limit && isWhitespace(byteAt(next))) ++next;
+
+        return next < limit && byteAt(next) == ':';
+    }
+
+    /**
+     * Checks whether the quote at the specified position is escaped, i.e. preceded by an odd
+     * number of backslashes.
+     *
+     * @param position the position of the quote.
+     * @return <code>true</code> if the quote is escaped, <code>false</code> otherwise.
+     */
+    private boolean isEscaped(long position) {
+
+        int numBackslashes = 0;
+
+        while (position > 0 && byteAt(--position) == '\\') ++numBackslashes;
+
+        return numBackslashes % 2 == 1;
+    }
+
+    /**
+     * Checks whether a byte is JSON whitespace.
+     *
+     * @param b the byte.
+     * @return <code>true</code> if the byte is whitespace, <code>false</code> otherwise.
+     */
+    private static boolean isWhitespace(byte b) {
+
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * Returns the byte at the specified position of the mapped seed file.
+     *
+     * @param position the position.
+     * @return the byte.
+     */
+    private byte byteAt(long position) {
+
+        return segments[(int)(position / SEGMENT_BYTES)].get((int)(position % SEGMENT_BYTES));
+    }
+
+    /**
+     * Reads a range of the mapped seed file, across segment boundaries, without copying it first.
+     */
+    private class ChunkInputStream extends InputStream {
+
+        long position;
+        final long end;
+
+        ChunkInputStream(long start, long end) {
+
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+
+            return position < end ? byteAt(position++) & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+
+            if (position >= end) return -1;
+
+            int segmentOffset = (int)(position % SEGMENT_BYTES);
+            MappedByteBuffer segment = segments[(int)(position / SEGMENT_BYTES)];
+
+            length = (int)Math.min(length, Math.min(end - position, segment.capacity() - segmentOffset));
+
+            // a duplicate has its own position, so concurrent chunks do not interfere
+            ByteBuffer view = segment.duplicate();
+            view.position(segmentOffset);
+            view.get(bytes, offset, length);
+
+            position += length;
+
+            return length;
+        }
+    }
+}
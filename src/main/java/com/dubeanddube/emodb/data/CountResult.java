@@ -0,0 +1,12 @@
+package com.dubeanddube.emodb.data;
+
+/**
+ * POJO containing the number of documents matching a query that can be serialized to a JSON string.
+ *
+ * @author Dominique Dube
+ */
+public class CountResult extends JsonResult {
+
+    public boolean success;
+    public long count;
+}
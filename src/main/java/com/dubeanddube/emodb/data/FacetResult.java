@@ -0,0 +1,15 @@
+package com.dubeanddube.emodb.data;
+
+import java.util.Map;
+
+/**
+ * POJO containing the number of documents by color that can be serialized to a JSON string.
+ *
+ * @author Dominique Dube
+ */
+public class FacetResult extends JsonResult {
+
+    public boolean success;
+    public long total; // number of all counted documents
+    public Map<String, Long> payload; // by color
+}
@@ -0,0 +1,28 @@
+package com.dubeanddube.emodb.data;
+
+/**
+ * POJO containing the health of the search index (readiness, and freshness relative to EmoDB).
+ *
+ * Format of the deserialized JSON:
+ *
+ * {
+ *     "success": true,
+ *     "ready": true,
+ *     "freshnessLagSeconds": 2.1,
+ *     "alertThresholdSeconds": 30,
+ *     "pendingEvents": 0
+ * }
+ *
+ * <code>success</code> is <code>false</code> if the application has not completed its startup
+ * (<code>ready</code> is <code>false</code>), or if the lag exceeds the alert threshold.
+ *
+ * @author Dominique Dube
+ */
+public class HealthResult extends JsonResult {
+
+    public boolean success;
+    public boolean ready;
+    public double freshnessLagSeconds;
+    public int alertThresholdSeconds;
+    public int pendingEvents;
+}
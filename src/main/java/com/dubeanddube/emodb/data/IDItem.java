@@ -54,8 +54,23 @@ public class IDItem {
      */
     static boolean isValidId(String id) {
 
-        // check UUID validity without relying on throwing class UUID's exception
-        return id.matches("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+        // check UUID validity without relying on throwing class UUID's exception, and without
+        // a regular expression (this runs once per document when loading seed files)
+
+        if (id.length() != 36) return false;
+
+        for (int i = 0; i < 36; ++i) {
+
+            char c = id.charAt(i);
+
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (! ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     /**
@@ -3,9 +3,9 @@ package com.dubeanddube.emodb.data;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 
 /**
@@ -25,12 +25,18 @@ import java.net.URL;
  *     }
  * }
  *
+ * Several such objects may follow each other, e.g. one per line (NDJSON), in which case the ID
+ * items of all of them are retrieved in order.
+ *
  * @author Dominique Dube
  */
 public class IDItemParser {
 
+    // IDs are field names, and they are all different, so canonicalizing (and interning) field
+    // names would only fill the symbol tables
+    private static final JsonFactory FACTORY = new JsonFactory().disable(JsonFactory.Feature.CANONICALIZE_FIELD_NAMES);
+
     private JsonParser parser;
-    private ObjectMapper mapper;
 
     private boolean eof = false;
 
@@ -47,14 +53,35 @@ public class IDItemParser {
 
         if (url == null) throw new IOException("URL not specified (null)");
 
-        JsonFactory factory = new JsonFactory();
-
         try {
-            parser = factory.createParser(url);
+            parser = FACTORY.createParser(url);
         } catch (IOException e) {
             throw new IOException("failed to open file parser for resource " + url, e);
         }
 
+        skipStartOfObject();
+    }
+
+    /**
+     * Constructs an ID item parser that retrieves consecutive ID items from the specified stream.
+     *
+     * @param in the stream that will be parsed (closed when this parser is closed).
+     * @throws IOException if the first token is not the start of an object, <code>{</code>.
+     */
+    public IDItemParser(InputStream in) throws IOException {
+
+        parser = FACTORY.createParser(in);
+
+        skipStartOfObject();
+    }
+
+    /**
+     * Skips the start of object that must be the first token.
+     *
+     * @throws IOException if the first token is not the start of an object.
+     */
+    private void skipStartOfObject() throws IOException {
+
         try {
 
             // skip start of object
@@ -68,8 +95,7 @@ public class IDItemParser {
             throw new IOException("failed to obtain next token", e);
         }
 
-        // parser is now ready to retrieve individual ID items using an object mapper
-        this.mapper = new ObjectMapper();
+        // parser is now ready to retrieve individual ID items using the shared object mapper
     }
 
     /**
@@ -106,10 +132,21 @@ public class IDItemParser {
 
         if (token == JsonToken.END_OBJECT) {
 
-            // for simplicity, we do not handle the case where more tokens follow
-            // the end of object token, but simply ignore them and assume EOF
-            eof = true;
-            return null;
+            // continue with the next object if one follows, otherwise assume EOF and
+            // ignore whatever else follows (for simplicity)
+
+            try {
+                token = parser.nextToken();
+            } catch (IOException e) {
+                throw new IOException("failed to obtain next token", e);
+            }
+
+            if (token != JsonToken.START_OBJECT) {
+                eof = true;
+                return null;
+            }
+
+            return getNext();
 
         } else if (token != JsonToken.FIELD_NAME) {
 
@@ -137,7 +174,7 @@ public class IDItemParser {
         Item item;
 
         try {
-            item = mapper.readValue(parser, Item.class);
+            item = JsonUtils.MAPPER.readValue(parser, Item.class);
         } catch (IOException e) {
             throw new IOException("expected item (color and text)", e);
         }
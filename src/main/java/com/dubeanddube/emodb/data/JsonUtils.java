@@ -1,5 +1,9 @@
 package com.dubeanddube.emodb.data;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
 /**
  * Simple utility class to provide standard JSON strings.
  *
@@ -8,4 +12,11 @@ package com.dubeanddube.emodb.data;
 public class JsonUtils {
 
     public static final String NO_SUCCESS = "{\"success\":false}";
+
+    // object mappers are thread-safe once configured and expensive to create, so share one
+    public static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // binary encodings of the same JSON data model (same results, smaller and faster to parse)
+    public static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+    public static final ObjectMapper CBOR_MAPPER = new ObjectMapper(new CBORFactory());
 }
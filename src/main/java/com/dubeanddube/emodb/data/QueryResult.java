@@ -0,0 +1,18 @@
+package com.dubeanddube.emodb.data;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * POJO containing the result of a compound query that can be serialized to a JSON string.
+ *
+ * @author Dominique Dube
+ */
+public class QueryResult extends JsonResult {
+
+    public boolean success;
+    public long total; // number of matching documents, of which payload is a window
+    public int size;
+    public String plan; // how the index evaluated the query
+    public List<Map<String, Object>> payload;
+}
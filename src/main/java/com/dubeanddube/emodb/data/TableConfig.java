@@ -0,0 +1,105 @@
+package com.dubeanddube.emodb.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * POJO containing the configuration of one indexed EmoDB table: its databus subscription, its
+ * search index, and the prefix of its query routes.
+ *
+ * The tables are read from system properties: <code>emodb.tables</code> lists the table names
+ * (e.g. <code>-Demodb.tables=items,orders</code>), and each table may override its defaults with
+ * <code>emodb.table.&lt;name&gt;.subscription</code>, <code>.index</code>, <code>.routePrefix</code>,
+ * and <code>.seedFile</code>.
+ *
+ * @author Dominique Dube
+ */
+public class TableConfig {
+
+    public static final String DEFAULT_TABLE = "items";
+
+    private static final String PREFIX = "emodb.table.";
+
+    public String table; // the EmoDB table
+
+    public String subscription; // the databus subscription, default <table>-subscription
+
+    public String index; // the Elasticsearch alias, default the table name
+
+    // the prefix of the query routes, default "" for the first table and /<table> for the others
+    public String routePrefix;
+
+    public String seedFile; // the seed file, null for the milestone data (first table) or none
+
+    /**
+     * Reads the table configurations from system properties, using the defaults for missing ones.
+     *
+     * @return the table configurations, in the order of <code>emodb.tables</code> (at least one).
+     * @throws IllegalArgumentException if a table is listed twice, or two tables share a route prefix.
+     */
+    public static List<TableConfig> fromProperties() throws IllegalArgumentException {
+
+        List<TableConfig> configs = new ArrayList<>();
+
+        for (String name : System.getProperty("emodb.tables", DEFAULT_TABLE).split(",")) {
+
+            name = name.trim();
+
+            if (name.isEmpty()) continue;
+
+            boolean first = configs.isEmpty();
+
+            TableConfig config = new TableConfig();
+
+            config.table = name;
+            config.subscription = System.getProperty(PREFIX + name + ".subscription", name + "-subscription");
+            config.index = System.getProperty(PREFIX + name + ".index", name);
+            config.routePrefix = System.getProperty(PREFIX + name + ".routePrefix", first ? "" : "/" + name);
+            config.seedFile = System.getProperty(PREFIX + name + ".seedFile",
+                    first ? System.getProperty("emodb.seedFile") : null);
+
+            for (TableConfig other : configs) {
+
+                if (other.table.equals(config.table)) {
+                    throw new IllegalArgumentException("table " + name + " is listed twice");
+                }
+
+                if (other.routePrefix.equals(config.routePrefix)) {
+                    throw new IllegalArgumentException("tables " + other.table + " and " + name +
+                            " share the route prefix \"" + config.routePrefix + "\"");
+                }
+            }
+
+            configs.add(config);
+        }
+
+        if (configs.isEmpty()) configs.add(defaultConfig());
+
+        return configs;
+    }
+
+    /**
+     * Returns the configuration of the default table (<code>items</code>), as used before tables
+     * became configurable.
+     *
+     * @return the default table configuration.
+     */
+    public static TableConfig defaultConfig() {
+
+        TableConfig config = new TableConfig();
+
+        config.table = DEFAULT_TABLE;
+        config.subscription = DEFAULT_TABLE + "-subscription";
+        config.index = DEFAULT_TABLE;
+        config.routePrefix = "";
+
+        return config;
+    }
+
+    @Override
+    public String toString() {
+
+        return "table " + table + " (subscription " + subscription + ", index " + index + ", routes " +
+                (routePrefix.isEmpty() ? "/" : routePrefix) + ")";
+    }
+}
@@ -0,0 +1,56 @@
+package com.dubeanddube.emodb.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for one phase of processing a databus poll in the subscription listener:
+ * <code>poll</code> (fetching the events), <code>decode</code> (parsing them), <code>index</code>
+ * (applying them to the search index), and <code>ack</code> (acknowledging them).
+ *
+ * Disabled by default (see <code>emodb-pipeline.jfc</code>).
+ *
+ * @author Dominique Dube
+ */
+@Name("com.dubeanddube.emodb.DatabusPhase")
+@Label("Databus Phase")
+@Description("One phase of processing a databus poll")
+@Category({ "EmoDB", "Databus" })
+@Enabled(false)
+@StackTrace(false)
+public class DatabusPhaseEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Events")
+    @Description("Number of databus events processed in this phase")
+    public int numEvents;
+
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+
+    /**
+     * Ends the event and commits it if the recording accepts it.
+     *
+     * @param phase the name of the phase.
+     * @param numEvents the number of databus events processed in this phase.
+     * @param bytes the number of bytes transferred in this phase, -1 if none.
+     */
+    public void record(String phase, int numEvents, long bytes) {
+
+        if (! shouldCommit()) return;
+
+        this.phase = phase;
+        this.numEvents = numEvents;
+        this.bytes = bytes;
+
+        commit();
+    }
+}
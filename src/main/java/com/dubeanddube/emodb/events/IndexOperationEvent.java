@@ -0,0 +1,71 @@
+package com.dubeanddube.emodb.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for an operation of a search index backend (a document update, a lookup
+ * by ID, or a query by color).
+ *
+ * Disabled by default (see <code>emodb-pipeline.jfc</code>).
+ *
+ * @author Dominique Dube
+ */
+@Name("com.dubeanddube.emodb.IndexOperation")
+@Label("Index Operation")
+@Description("An update or query of a search index backend")
+@Category({ "EmoDB", "Index" })
+@Enabled(false)
+@StackTrace(false)
+public class IndexOperationEvent extends jdk.jfr.Event {
+
+    @Label("Backend")
+    public String backend;
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Key")
+    @Description("Document ID or color")
+    public String key;
+
+    @Label("Outcome")
+    public String outcome;
+
+    @Label("Documents")
+    @Description("Number of documents returned, 1 for updates")
+    public int numDocuments;
+
+    @Label("OCC Retries")
+    @Description("Number of failed optimistic concurrency control attempts before the update completed")
+    public int numRetries;
+
+    /**
+     * Ends the event and commits it if the recording accepts it.
+     *
+     * @param backend the name of the backend (e.g. <code>memory</code>).
+     * @param operation the operation (<code>update</code>, <code>get</code>, or <code>scan</code>).
+     * @param key the document ID or color.
+     * @param outcome the outcome (e.g. an <code>UpdateOutcome</code> in lower case).
+     * @param numDocuments the number of documents returned, 1 for updates.
+     * @param numRetries the number of failed OCC attempts, 0 if not applicable.
+     */
+    public void record(String backend, String operation, String key, String outcome, int numDocuments,
+                       int numRetries) {
+
+        if (! shouldCommit()) return;
+
+        this.backend = backend;
+        this.operation = operation;
+        this.key = key;
+        this.outcome = outcome;
+        this.numDocuments = numDocuments;
+        this.numRetries = numRetries;
+
+        commit();
+    }
+}
@@ -0,0 +1,73 @@
+package com.dubeanddube.emodb.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a request to EmoDB or Elasticsearch, lasting until the response
+ * headers are received.
+ *
+ * Disabled by default (see <code>emodb-pipeline.jfc</code>).
+ *
+ * @author Dominique Dube
+ */
+@Name("com.dubeanddube.emodb.OutboundRequest")
+@Label("Outbound Request")
+@Description("A request to EmoDB or Elasticsearch until the response headers arrive")
+@Category({ "EmoDB", "HTTP" })
+@Enabled(false)
+@StackTrace(false)
+public class OutboundRequestEvent extends jdk.jfr.Event {
+
+    @Label("Target")
+    public String target;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Path")
+    @Description("Request path with IDs replaced by placeholders")
+    public String path;
+
+    @Label("Status")
+    @Description("HTTP status code, 0 if the request failed")
+    public int status;
+
+    @Label("Request Size")
+    @DataAmount
+    public long requestBytes;
+
+    @Label("Response Size")
+    @DataAmount
+    public long responseBytes;
+
+    /**
+     * Ends the event and commits it if the recording accepts it.
+     *
+     * @param target the backend name (e.g. <code>elasticsearch</code>).
+     * @param method the HTTP method.
+     * @param path the normalized request path.
+     * @param status the HTTP status code, 0 if the request failed.
+     * @param requestBytes the length of the request body, -1 if none or unknown.
+     * @param responseBytes the length of the response body, -1 if unknown.
+     */
+    public void record(String target, String method, String path, int status, long requestBytes,
+                       long responseBytes) {
+
+        if (! shouldCommit()) return;
+
+        this.target = target;
+        this.method = method;
+        this.path = path;
+        this.status = status;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+
+        commit();
+    }
+}
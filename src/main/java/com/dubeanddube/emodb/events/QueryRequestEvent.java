@@ -0,0 +1,65 @@
+package com.dubeanddube.emodb.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for the handling of a request by the query server.
+ *
+ * Disabled by default (see <code>emodb-pipeline.jfc</code>).
+ *
+ * @author Dominique Dube
+ */
+@Name("com.dubeanddube.emodb.QueryRequest")
+@Label("Query Request")
+@Description("Handling of a request by the query server")
+@Category({ "EmoDB", "HTTP" })
+@Enabled(false)
+@StackTrace(false)
+public class QueryRequestEvent extends jdk.jfr.Event {
+
+    @Label("Route")
+    public String route;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Query")
+    public String query;
+
+    @Label("Status")
+    @Description("HTTP status code, 0 if the route failed")
+    public int status;
+
+    @Label("Response Size")
+    @Description("Length of the response body if known in advance (not for streamed responses)")
+    @DataAmount
+    public long responseBytes;
+
+    /**
+     * Ends the event and commits it if the recording accepts it.
+     *
+     * @param route the route path.
+     * @param method the HTTP method.
+     * @param query the query string, <code>null</code> if none.
+     * @param status the HTTP status code, 0 if the route failed.
+     * @param responseBytes the length of the response body, -1 if unknown.
+     */
+    public void record(String route, String method, String query, int status, long responseBytes) {
+
+        if (! shouldCommit()) return;
+
+        this.route = route;
+        this.method = method;
+        this.query = query;
+        this.status = status;
+        this.responseBytes = responseBytes;
+
+        commit();
+    }
+}
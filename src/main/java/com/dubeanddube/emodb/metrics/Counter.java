@@ -0,0 +1,43 @@
+package com.dubeanddube.emodb.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing counter (e.g. the number of failed updates).
+ *
+ * @author Dominique Dube
+ */
+public class Counter {
+
+    private final LongAdder count = new LongAdder();
+
+    // omitting default constructor
+
+    /**
+     * Increments the counter by one.
+     */
+    public void inc() {
+
+        count.increment();
+    }
+
+    /**
+     * Increments the counter by the specified amount.
+     *
+     * @param amount the non-negative amount.
+     */
+    public void inc(long amount) {
+
+        count.add(amount);
+    }
+
+    /**
+     * Returns the current count.
+     *
+     * @return the current count.
+     */
+    public long get() {
+
+        return count.sum();
+    }
+}
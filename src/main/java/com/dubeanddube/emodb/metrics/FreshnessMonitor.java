@@ -0,0 +1,154 @@
+package com.dubeanddube.emodb.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the freshness of the search index, i.e. how long it takes until a write to the
+ * EmoDB System of Record is queryable.
+ *
+ * For every applied update, the lag between the EmoDB write timestamp (<code>~lastUpdateAt</code>)
+ * and the time the index accepted the update is recorded in a histogram. Together with the
+ * databus backlog reported at each poll, the monitor estimates the current lag of the index,
+ * which is exported as a gauge and checked against an alert threshold by the health endpoint.
+ *
+ * Every indexed table is monitored on its own (metrics carry a <code>table</code> label); the
+ * health endpoint checks the table lagging furthest behind.
+ *
+ * Note that the measured lag ends when the index accepts an update. With Elasticsearch, an
+ * update becomes visible to searches only after the next index refresh (up to one second later).
+ *
+ * @author Dominique Dube
+ */
+public class FreshnessMonitor {
+
+    // lag buckets in seconds, from 100 milliseconds to 10 minutes
+    private static final double[] LAG_BUCKETS = { 0.1, 0.25, 0.5, 1, 2, 3, 5, 10, 20, 30, 60, 120, 300, 600 };
+
+    /**
+     * The freshness of the index of one table.
+     */
+    private static class TableState {
+
+        final Histogram lag;
+
+        volatile long lastLagMillis = 0;
+
+        volatile long lastPollMillis = System.currentTimeMillis();
+
+        volatile int numPendingEvents = 0;
+
+        TableState(String table) {
+
+            lag = Metrics.histogram("emodb_index_freshness_lag_seconds",
+                    "Time from the EmoDB write of a document until the search index accepted the update.",
+                    LAG_BUCKETS, "table", table);
+
+            // remark: the backlog is cached at poll time, so that scrapes do not call the databus
+            Metrics.gauge("emodb_databus_pending_events",
+                    "Approximate number of unacknowledged events on the databus at the last poll (-1 if unknown).",
+                    () -> numPendingEvents, "table", table);
+
+            Metrics.gauge("emodb_index_freshness_current_lag_seconds",
+                    "Estimated current lag of the search index behind the EmoDB System of Record.",
+                    () -> getLagMillis() / 1000.0, "table", table);
+        }
+
+        long getLagMillis() {
+
+            long backlogLagMillis = numPendingEvents != 0 ? lastLagMillis : 0; // -1 (unknown) counts as backlog
+
+            return backlogLagMillis + Math.max(0, System.currentTimeMillis() - lastPollMillis);
+        }
+    }
+
+    private static final Map<String, TableState> tables = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the state of the specified table, creating it if needed.
+     *
+     * @param table the name of the table.
+     * @return the state of the table.
+     */
+    private static TableState stateOf(String table) {
+
+        return tables.computeIfAbsent(table, TableState::new);
+    }
+
+    /**
+     * Registers a table, so that its lag is monitored from now on (before its first poll).
+     *
+     * @param table the name of the table.
+     */
+    public static void register(String table) {
+
+        stateOf(table);
+    }
+
+    /**
+     * Records an update that was applied to the search index.
+     *
+     * @param table the name of the table of the update.
+     * @param writeMillis the time of the EmoDB write in milliseconds since the epoch.
+     */
+    public static void recordApplied(String table, long writeMillis) {
+
+        long lagMillis = Math.max(0, System.currentTimeMillis() - writeMillis); // clocks may differ slightly
+
+        TableState state = stateOf(table);
+
+        state.lag.observe(lagMillis / 1000.0);
+
+        state.lastLagMillis = lagMillis;
+    }
+
+    /**
+     * Records a poll of the databus.
+     *
+     * @param table the name of the table whose subscription was polled.
+     * @param pendingEvents the number of pending events reported by the databus, -1 if unknown.
+     */
+    public static void recordPoll(String table, int pendingEvents) {
+
+        TableState state = stateOf(table);
+
+        state.numPendingEvents = pendingEvents;
+        state.lastPollMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the number of pending databus events reported at the last polls, summed over all tables.
+     *
+     * @return the number of pending events, -1 if unknown for any table.
+     */
+    public static int getNumPendingEvents() {
+
+        int numPendingEvents = 0;
+
+        for (TableState state : tables.values()) {
+
+            if (state.numPendingEvents < 0) return -1;
+
+            numPendingEvents += state.numPendingEvents;
+        }
+
+        return numPendingEvents;
+    }
+
+    /**
+     * Estimates the current lag of the search index behind the System of Record, for the table
+     * lagging furthest behind. With a backlog, this is the lag of the last applied update; without
+     * one, the index is up to date as of the last poll. The time since the last poll is added in
+     * both cases, so that a stalled listener shows up as a growing lag.
+     *
+     * @return the estimated lag in milliseconds, 0 if no table is monitored.
+     */
+    public static long getLagMillis() {
+
+        long lagMillis = 0;
+
+        for (TableState state : tables.values()) lagMillis = Math.max(lagMillis, state.getLagMillis());
+
+        return lagMillis;
+    }
+}
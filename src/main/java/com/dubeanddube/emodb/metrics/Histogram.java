@@ -0,0 +1,96 @@
+package com.dubeanddube.emodb.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram with fixed buckets, which counts observed values per bucket (e.g. latencies).
+ *
+ * Observations are lock-free and cheap (a short bucket scan and two adder increments), so that
+ * histograms can be updated on every call of a hot path.
+ *
+ * @author Dominique Dube
+ */
+public class Histogram {
+
+    // latency buckets in seconds, from 100 microseconds to 10 seconds
+    static final double[] LATENCY_BUCKETS =
+            { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    // size buckets, e.g. for batch sizes
+    static final double[] SIZE_BUCKETS = { 0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+    private final double[] upperBounds;
+
+    private final LongAdder[] bucketCounts; // not cumulative, the last bucket is +Inf
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * Constructs a histogram with the specified bucket upper bounds.
+     *
+     * @param upperBounds the inclusive upper bounds of the buckets in ascending order
+     *                    (the +Inf bucket is added implicitly).
+     */
+    Histogram(double[] upperBounds) {
+
+        this.upperBounds = upperBounds;
+        this.bucketCounts = new LongAdder[upperBounds.length + 1];
+
+        for (int i = 0; i < bucketCounts.length; ++i) bucketCounts[i] = new LongAdder();
+    }
+
+    /**
+     * Records an observed value.
+     *
+     * @param value the observed value.
+     */
+    public void observe(double value) {
+
+        int bucket = 0;
+
+        while (bucket < upperBounds.length && value > upperBounds[bucket]) ++bucket;
+
+        bucketCounts[bucket].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records an observed duration (for histograms with latency buckets in seconds).
+     *
+     * @param nanos the observed duration in nanoseconds.
+     */
+    public void observeNanos(long nanos) {
+
+        observe(nanos / 1e9);
+    }
+
+    /**
+     * Writes the buckets, sum, and count of this histogram in Prometheus text format.
+     *
+     * @param name the metric name.
+     * @param labels the label pairs of this histogram (e.g. <code>route="/ping"</code>), "" if none.
+     * @param builder the builder to which the samples are written.
+     */
+    void writeSamples(String name, String labels, StringBuilder builder) {
+
+        String separator = labels.isEmpty() ? "" : ",";
+
+        long cumulativeCount = 0;
+
+        for (int i = 0; i < bucketCounts.length; ++i) {
+
+            cumulativeCount += bucketCounts[i].sum();
+
+            String upperBound = i < upperBounds.length ? Double.toString(upperBounds[i]) : "+Inf";
+
+            builder.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"").append(upperBound).append("\"} ").append(cumulativeCount).append('\n');
+        }
+
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+
+        builder.append(name).append("_sum").append(braces).append(' ').append(sum.sum()).append('\n');
+        builder.append(name).append("_count").append(braces).append(' ').append(cumulativeCount).append('\n');
+    }
+}
@@ -0,0 +1,221 @@
+package com.dubeanddube.emodb.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of all application metrics (histograms, counters, gauges), which are exported in the
+ * Prometheus text exposition format (version 0.0.4).
+ *
+ * Metrics are identified by name and label pairs. Looking up a metric is not free, so callers on
+ * hot paths should look up their metrics once and keep them.
+ *
+ * @author Dominique Dube
+ */
+public class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * All series of one metric name, with the metric type and help text.
+     */
+    private static class Family {
+
+        final String type;
+        final String help;
+
+        // by label pairs (e.g. route="/ping"), values are histograms, counters, or gauge suppliers
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String type, String help) {
+
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the latency histogram with the specified name and labels, creating it if needed.
+     * Observations are in seconds (see <code>Histogram.observeNanos</code>).
+     *
+     * @param name the metric name, which should end with <code>_seconds</code>.
+     * @param help the help text of the metric.
+     * @param labels the label names and values, alternating.
+     * @return the histogram.
+     */
+    public static Histogram latencyHistogram(String name, String help, String... labels) {
+
+        return histogram(name, help, Histogram.LATENCY_BUCKETS, labels);
+    }
+
+    /**
+     * Returns the size histogram with the specified name and labels, creating it if needed.
+     *
+     * @param name the metric name.
+     * @param help the help text of the metric.
+     * @param labels the label names and values, alternating.
+     * @return the histogram.
+     */
+    public static Histogram sizeHistogram(String name, String help, String... labels) {
+
+        return histogram(name, help, Histogram.SIZE_BUCKETS, labels);
+    }
+
+    /**
+     * Returns the histogram with the specified name, buckets, and labels, creating it if needed.
+     *
+     * @param name the metric name.
+     * @param help the help text of the metric.
+     * @param upperBounds the inclusive upper bounds of the buckets in ascending order (only used
+     *                    if the histogram is created).
+     * @param labels the label names and values, alternating.
+     * @return the histogram.
+     */
+    public static Histogram histogram(String name, String help, double[] upperBounds, String... labels) {
+
+        return (Histogram)getOrCreate(name, "histogram", help, labels, () -> new Histogram(upperBounds));
+    }
+
+    /**
+     * Returns the counter with the specified name and labels, creating it if needed.
+     *
+     * @param name the metric name, which should end with <code>_total</code>.
+     * @param help the help text of the metric.
+     * @param labels the label names and values, alternating.
+     * @return the counter.
+     */
+    public static Counter counter(String name, String help, String... labels) {
+
+        return (Counter)getOrCreate(name, "counter", help, labels, Counter::new);
+    }
+
+    /**
+     * Registers a gauge, whose value is read from the specified supplier whenever the
+     * metrics are exported. Replaces a gauge registered before with the same name and labels.
+     *
+     * @param name the metric name.
+     * @param help the help text of the metric.
+     * @param supplier the supplier of the current value.
+     * @param labels the label names and values, alternating.
+     */
+    public static void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+
+        getFamily(name, "gauge", help).series.put(formatLabels(labels), supplier);
+    }
+
+    /**
+     * Exports all metrics in Prometheus text format, ordered by name.
+     *
+     * @return the metrics in Prometheus text format.
+     */
+    public static String scrape() {
+
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, Family> familyEntry : new TreeMap<>(families).entrySet()) {
+
+            String name = familyEntry.getKey();
+            Family family = familyEntry.getValue();
+
+            builder.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            builder.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+            for (Map.Entry<String, Object> seriesEntry : new TreeMap<>(family.series).entrySet()) {
+
+                String labels = seriesEntry.getKey();
+                Object metric = seriesEntry.getValue();
+
+                if (metric instanceof Histogram) {
+                    ((Histogram)metric).writeSamples(name, labels, builder);
+                    continue;
+                }
+
+                builder.append(name);
+                if (! labels.isEmpty()) builder.append('{').append(labels).append('}');
+                builder.append(' ');
+
+                if (metric instanceof Counter) {
+                    builder.append(((Counter)metric).get());
+                } else {
+                    builder.append(((DoubleSupplier)metric).getAsDouble());
+                }
+
+                builder.append('\n');
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Supplies a new metric.
+     */
+    @FunctionalInterface
+    private interface MetricFactory {
+
+        Object create();
+    }
+
+    /**
+     * Returns the metric with the specified name and labels, creating it if needed.
+     *
+     * @param name the metric name.
+     * @param type the Prometheus metric type.
+     * @param help the help text of the metric.
+     * @param labels the label names and values, alternating.
+     * @param factory the factory that creates the metric if it does not exist yet.
+     * @return the metric.
+     */
+    private static Object getOrCreate(String name, String type, String help, String[] labels, MetricFactory factory) {
+
+        return getFamily(name, type, help).series.computeIfAbsent(formatLabels(labels), l -> factory.create());
+    }
+
+    /**
+     * Returns the family with the specified name, creating it if needed.
+     *
+     * @param name the metric name.
+     * @param type the Prometheus metric type.
+     * @param help the help text of the metric.
+     * @return the family.
+     * @throws IllegalArgumentException if the family exists with a different type.
+     */
+    private static Family getFamily(String name, String type, String help) {
+
+        Family family = families.computeIfAbsent(name, n -> new Family(type, help));
+
+        if (! family.type.equals(type)) {
+            throw new IllegalArgumentException("metric " + name + " is a " + family.type + ", not a " + type);
+        }
+
+        return family;
+    }
+
+    /**
+     * Formats label names and values as Prometheus label pairs.
+     *
+     * @param labels the label names and values, alternating.
+     * @return the label pairs, e.g. <code>route="/ping",status="2xx"</code>, "" if none.
+     */
+    private static String formatLabels(String[] labels) {
+
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+
+            if (i > 0) builder.append(',');
+
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+
+            builder.append(labels[i]).append("=\"")
+                    .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,123 @@
+package com.dubeanddube.emodb.replication;
+
+import com.dubeanddube.emodb.data.VersionedIDItem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recent document updates accepted by the leader, numbered by consecutive offsets
+ * (starting at 1), so that replicas can read them in order from any retained offset.
+ *
+ * The log is a bounded ring: once it is full, every new change overwrites the oldest one. A replica
+ * that falls behind the oldest retained change catches up from a snapshot instead.
+ *
+ * @author Dominique Dube
+ */
+class ChangeLog {
+
+    /**
+     * A document update in the log.
+     */
+    static class Change {
+
+        final long offset;
+        final long millis; // time the leader accepted the update
+        final String table;
+        final VersionedIDItem idItem;
+
+        /**
+         * Constructs a change.
+         *
+         * @param offset the offset of the change.
+         * @param millis the time the leader accepted the update, in milliseconds since the epoch.
+         * @param table the table of the document.
+         * @param idItem the updated document.
+         */
+        Change(long offset, long millis, String table, VersionedIDItem idItem) {
+
+            this.offset = offset;
+            this.millis = millis;
+            this.table = table;
+            this.idItem = idItem;
+        }
+    }
+
+    private final Change[] changes;
+
+    private long nextOffset = 1; // offset of the next change
+
+    /**
+     * Constructs an empty log.
+     *
+     * @param capacity the number of changes the log retains.
+     */
+    ChangeLog(int capacity) {
+
+        changes = new Change[capacity];
+    }
+
+    /**
+     * Appends a change and wakes up the readers waiting for it.
+     *
+     * @param table the table of the document.
+     * @param idItem the updated document.
+     * @return the offset of the change.
+     */
+    synchronized long append(String table, VersionedIDItem idItem) {
+
+        long offset = nextOffset++;
+
+        changes[(int)(offset % changes.length)] = new Change(offset, System.currentTimeMillis(), table, idItem);
+
+        notifyAll();
+
+        return offset;
+    }
+
+    /**
+     * Returns the offset of the latest change.
+     *
+     * @return the offset of the latest change, 0 if the log is empty.
+     */
+    synchronized long getLatestOffset() {
+
+        return nextOffset - 1;
+    }
+
+    /**
+     * Reads changes starting at the specified offset, waiting for the first one if needed.
+     *
+     * @param fromOffset the offset of the first change that is to be read.
+     * @param maxChanges the maximum number of changes that are read.
+     * @param timeoutMillis the maximum time to wait for the first change.
+     * @return the changes in order of their offsets (empty if none arrived in time),
+     *         <code>null</code> if the change at <code>fromOffset</code> was overwritten already.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    synchronized List<Change> read(long fromOffset, int maxChanges, long timeoutMillis) throws InterruptedException {
+
+        long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+
+        while (fromOffset >= nextOffset) {
+
+            long remainingMillis = deadlineMillis - System.currentTimeMillis();
+
+            if (remainingMillis <= 0) return new ArrayList<>();
+
+            wait(remainingMillis);
+        }
+
+        if (fromOffset < Math.max(1, nextOffset - changes.length)) return null; // fell behind the log
+
+        long toOffset = Math.min(nextOffset, fromOffset + maxChanges);
+
+        List<Change> result = new ArrayList<>((int)(toOffset - fromOffset));
+
+        for (long offset = fromOffset; offset < toOffset; ++offset) {
+            result.add(changes[(int)(offset % changes.length)]);
+        }
+
+        return result;
+    }
+}
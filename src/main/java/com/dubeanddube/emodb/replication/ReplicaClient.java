@@ -0,0 +1,275 @@
+package com.dubeanddube.emodb.replication;
+
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.dubeanddube.emodb.search.SearchEngine;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Keeps the memory indexes of a read replica up to date with the change stream of the leader
+ * (see <code>ReplicationLeader</code>).
+ *
+ * The replica tracks the epoch of the leader and the offset of the last change it applied. When the
+ * connection breaks, it reconnects with this offset and continues where it left off, or receives a
+ * snapshot if the leader cannot serve it from its change log any more. After a snapshot, documents
+ * that are not part of it are dropped.
+ *
+ * The lag of the replica is estimated the same way as the freshness of the leader's index: while
+ * behind the leader, it is the age of the last applied change when it was applied; the time since
+ * the last message from the leader is added in any case, so a lost leader shows up as a growing lag.
+ *
+ * @author Dominique Dube
+ */
+public class ReplicaClient {
+
+    private final Logger logger = LoggerFactory.getLogger(ReplicaClient.class); // some basic logging
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final long RECONNECT_MILLIS = 1000;
+
+    // a leader that sends nothing (not even heartbeats) for this long is considered gone
+    private static final int READ_TIMEOUT_MILLIS = (int)(10 * ReplicationLeader.HEARTBEAT_MILLIS);
+
+    private final String host;
+
+    private final int port;
+
+    private final Map<String, SearchEngine> searchEngines; // by table name
+
+    private final CountDownLatch synchronizedLatch = new CountDownLatch(1); // released by the first snapshot
+
+    private volatile String epoch = null; // epoch of the leader the offset refers to
+
+    private volatile long appliedOffset = 0;
+
+    private volatile long leaderOffset = 0;
+
+    private volatile long lastLagMillis = 0;
+
+    private volatile long lastMessageMillis = System.currentTimeMillis();
+
+    private final Counter snapshots = Metrics.counter("emodb_replication_snapshots_received_total",
+            "Snapshots received from the leader.");
+
+    /**
+     * Constructs the replica, which does not connect before it is started.
+     *
+     * @param host the host of the leader.
+     * @param port the replication port of the leader.
+     * @param searchEngines the memory-based search indexes of the replica by table name.
+     */
+    public ReplicaClient(String host, int port, Map<String, SearchEngine> searchEngines) {
+
+        this.host = host;
+        this.port = port;
+        this.searchEngines = searchEngines;
+
+        Metrics.gauge("emodb_replication_applied_offset", "Offset of the last change applied by this replica.",
+                () -> appliedOffset);
+        Metrics.gauge("emodb_replication_leader_offset", "Offset of the latest change of the leader, as last reported.",
+                () -> leaderOffset);
+        Metrics.gauge("emodb_replication_lag_changes", "Number of changes this replica is behind the leader.",
+                () -> Math.max(0, leaderOffset - appliedOffset));
+        Metrics.gauge("emodb_replication_lag_seconds", "Estimated current lag of this replica behind the leader.",
+                () -> getLagMillis() / 1000.0);
+    }
+
+    /**
+     * Starts following the leader in a background thread, which reconnects whenever the connection breaks.
+     */
+    public void start() {
+
+        Thread follower = new Thread(() -> {
+
+            while (true) {
+
+                try {
+                    follow();
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("lost connection to replication leader " + host + ":" + port + " (" + e.getMessage() +
+                            ") - reconnecting");
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+        }, "replication-follower");
+
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Waits until the first snapshot has been applied.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public void awaitSynchronized() throws InterruptedException {
+
+        synchronizedLatch.await();
+    }
+
+    /**
+     * Estimates the current lag of this replica behind the leader.
+     *
+     * @return the estimated lag in milliseconds.
+     */
+    public long getLagMillis() {
+
+        long backlogLagMillis = appliedOffset < leaderOffset ? lastLagMillis : 0;
+
+        return backlogLagMillis + Math.max(0, System.currentTimeMillis() - lastMessageMillis);
+    }
+
+    /**
+     * Connects to the leader and applies its messages until the connection breaks.
+     *
+     * @throws IOException if the connection could not be established or broke.
+     */
+    private void follow() throws IOException {
+
+        try (Socket socket = new Socket()) {
+
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+
+            ObjectNode handshake = JsonUtils.MAPPER.createObjectNode();
+            if (epoch != null) handshake.put("epoch", epoch);
+            handshake.put("offset", appliedOffset);
+
+            OutputStream out = socket.getOutputStream();
+            out.write((JsonUtils.MAPPER.writeValueAsString(handshake) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            logger.info("connected to replication leader " + host + ":" + port + " at offset " + appliedOffset);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            Map<String, Set<String>> snapshotIds = null; // IDs by table while a snapshot is received
+
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+
+                lastMessageMillis = System.currentTimeMillis();
+
+                JsonNode message = JsonUtils.MAPPER.readTree(line);
+
+                switch (message.path("type").asText()) {
+
+                    case "snapshot":
+
+                        logger.info("receiving snapshot at offset " + message.path("offset").asLong());
+
+                        epoch = message.path("epoch").asText();
+                        snapshotIds = new HashMap<>();
+                        break;
+
+                    case "document":
+
+                        if (snapshotIds == null) throw new IOException("document outside of snapshot");
+
+                        String table = message.path("table").asText();
+
+                        if (apply(message)) snapshotIds.computeIfAbsent(table, key -> new HashSet<>()).add(message.path("id").asText());
+                        break;
+
+                    case "snapshot-end":
+
+                        if (snapshotIds == null) throw new IOException("end of snapshot without snapshot");
+
+                        int numRemoved = 0;
+
+                        for (Map.Entry<String, SearchEngine> entry : searchEngines.entrySet()) {
+
+                            Set<String> ids = snapshotIds.getOrDefault(entry.getKey(), new HashSet<>());
+
+                            numRemoved += Math.max(0, entry.getValue().removeDocuments(id -> ! ids.contains(id)));
+                        }
+
+                        appliedOffset = message.path("offset").asLong();
+                        leaderOffset = Math.max(leaderOffset, appliedOffset);
+                        snapshotIds = null;
+
+                        snapshots.inc();
+                        synchronizedLatch.countDown();
+
+                        logger.info("applied snapshot at offset " + appliedOffset + " (dropped " + numRemoved +
+                                " documents not in the snapshot)");
+                        break;
+
+                    case "change":
+
+                        long offset = message.path("offset").asLong();
+
+                        if (offset <= appliedOffset) break; // already part of a snapshot
+
+                        if (offset != appliedOffset + 1) {
+                            throw new IOException("expected change " + (appliedOffset + 1) + " but got " + offset);
+                        }
+
+                        apply(message);
+
+                        appliedOffset = offset;
+                        lastLagMillis = Math.max(0, System.currentTimeMillis() - message.path("millis").asLong());
+                        break;
+
+                    case "heartbeat":
+
+                        leaderOffset = message.path("offset").asLong();
+                        break;
+
+                    default:
+                        logger.debug("ignoring replication message " + line);
+                }
+            }
+
+            throw new IOException("connection closed by leader");
+        }
+    }
+
+    /**
+     * Applies a document (of a snapshot or a change) to the search index of its table.
+     *
+     * @param message the message containing the document.
+     * @return <code>true</code> if the table is indexed by this replica, <code>false</code> otherwise.
+     */
+    private boolean apply(JsonNode message) {
+
+        SearchEngine searchEngine = searchEngines.get(message.path("table").asText());
+
+        if (searchEngine == null) return false; // table not replicated
+
+        VersionedIDItem idItem = new VersionedIDItem(message.path("id").asText(),
+                new Item(message.path("color").asText(), message.path("text").asText()),
+                message.path("version").asInt(-1));
+
+        searchEngine.updateDocument(idItem);
+
+        return true;
+    }
+}
@@ -0,0 +1,281 @@
+package com.dubeanddube.emodb.replication;
+
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.dubeanddube.emodb.search.SearchEngine;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the document updates accepted by the memory indexes of this instance (the leader) as
+ * an ordered change stream, which read replicas apply to their own memory indexes.
+ *
+ * The stream is served on a local socket, as newline-delimited JSON messages. A replica connects
+ * and sends the epoch and offset it has applied so far: if the leader still retains the following
+ * changes in its log (see <code>ChangeLog</code>), they are streamed right away; otherwise (new
+ * replica, restarted leader, or replica fallen too far behind) the replica first receives a snapshot
+ * of all documents. Messages sent by the leader:
+ *
+ * {"type": "snapshot", "epoch": "...", "offset": 41}
+ * {"type": "document", "table": "items", "id": "...", "version": 3, "color": "green", "text": "..."}
+ * {"type": "snapshot-end", "offset": 41}
+ * {"type": "change", "offset": 42, "millis": 1487067330123, "table": "items", "id": "...", ...}
+ * {"type": "heartbeat", "offset": 42, "millis": 1487067331123}
+ *
+ * The snapshot is taken while updates continue, so it may contain changes after its offset, which
+ * the replica receives again afterwards (applying them twice is harmless thanks to the versions).
+ * Every replica is served by its own thread, so a slow replica never holds up the leader or the others.
+ *
+ * @author Dominique Dube
+ */
+public class ReplicationLeader {
+
+    private final Logger logger = LoggerFactory.getLogger(ReplicationLeader.class); // some basic logging
+
+    // number of changes retained for replicas that reconnect (e.g. -Demodb.replication.logSize=1000000)
+    private static final int LOG_SIZE = Integer.getInteger("emodb.replication.logSize", 100000);
+
+    private static final int BATCH_SIZE = 1000; // changes per write to a replica
+
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    private final int port;
+
+    // identifies this run of the leader, offsets of earlier runs are meaningless
+    private final String epoch = UUID.randomUUID().toString();
+
+    private final ChangeLog changeLog = new ChangeLog(LOG_SIZE);
+
+    private final Map<String, SearchEngine> searchEngines = new ConcurrentHashMap<>(); // by table name
+
+    private final AtomicInteger numReplicas = new AtomicInteger(0);
+
+    private final Counter snapshots = Metrics.counter("emodb_replication_snapshots_sent_total",
+            "Snapshots sent to replicas that could not catch up from the change log.");
+
+    /**
+     * Constructs the leader, which does not accept replicas before it is started.
+     *
+     * @param port the local port on which replicas connect.
+     */
+    public ReplicationLeader(int port) {
+
+        this.port = port;
+
+        Metrics.gauge("emodb_replication_offset", "Offset of the latest change published to replicas.",
+                changeLog::getLatestOffset);
+        Metrics.gauge("emodb_replication_replicas", "Number of connected replicas.", numReplicas::get);
+    }
+
+    /**
+     * Publishes all further document updates of a search index (which must be memory-based, so that
+     * snapshots can be taken).
+     *
+     * @param table the name of the indexed table.
+     * @param searchEngine the search index of the table.
+     */
+    public void publish(String table, SearchEngine searchEngine) {
+
+        searchEngines.put(table, searchEngine);
+
+        searchEngine.addUpdateListener((idItem, previousColor) -> changeLog.append(table, idItem));
+    }
+
+    /**
+     * Starts accepting replicas on the local port.
+     *
+     * @throws IOException if the port could not be bound.
+     */
+    public void start() throws IOException {
+
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+        logger.info("publishing change stream to replicas on port " + port + " (epoch " + epoch + ")");
+
+        Thread acceptor = new Thread(() -> {
+
+            while (true) {
+
+                Socket socket;
+
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    logger.warn("failed to accept replica: " + e.getMessage());
+                    continue;
+                }
+
+                Thread sender = new Thread(() -> serve(socket), "replication-" + socket.getPort());
+                sender.setDaemon(true);
+                sender.start();
+            }
+
+        }, "replication-acceptor");
+
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Serves one replica until it disconnects.
+     *
+     * @param socket the connection to the replica.
+     */
+    private void serve(Socket socket) {
+
+        String replica = socket.getRemoteSocketAddress().toString();
+
+        numReplicas.incrementAndGet();
+
+        try (Socket connection = socket) {
+
+            connection.setTcpNoDelay(true);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+
+            String handshake = reader.readLine();
+
+            if (handshake == null) return;
+
+            JsonNode handshakeNode = JsonUtils.MAPPER.readTree(handshake);
+
+            // the next change the replica needs, 0 if it needs a snapshot first
+            long nextOffset = epoch.equals(handshakeNode.path("epoch").asText()) ?
+                    handshakeNode.path("offset").asLong(-1) + 1 : 0;
+
+            logger.info("replica " + replica + " connected" + (nextOffset > 0 ? " at offset " + (nextOffset - 1) : ""));
+
+            JsonGenerator generator = JsonUtils.MAPPER.getFactory().createGenerator(
+                    new BufferedOutputStream(connection.getOutputStream()));
+
+            generator.setRootValueSeparator(null); // every message is terminated by a newline instead
+
+            while (true) {
+
+                List<ChangeLog.Change> changes = nextOffset > 0 ?
+                        changeLog.read(nextOffset, BATCH_SIZE, HEARTBEAT_MILLIS) : null;
+
+                if (changes == null) {
+
+                    logger.info("sending snapshot to replica " + replica);
+
+                    nextOffset = writeSnapshot(generator) + 1;
+
+                    snapshots.inc();
+                    continue;
+                }
+
+                for (ChangeLog.Change change : changes) {
+
+                    generator.writeStartObject();
+                    generator.writeStringField("type", "change");
+                    generator.writeNumberField("offset", change.offset);
+                    generator.writeNumberField("millis", change.millis);
+                    writeDocumentFields(change.table, change.idItem, generator);
+                    generator.writeEndObject();
+                    generator.writeRaw('\n');
+
+                    nextOffset = change.offset + 1;
+                }
+
+                // tells the replica how far behind it is (and that the leader is alive if there were no changes)
+
+                generator.writeStartObject();
+                generator.writeStringField("type", "heartbeat");
+                generator.writeNumberField("offset", changeLog.getLatestOffset());
+                generator.writeNumberField("millis", System.currentTimeMillis());
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+
+                generator.flush();
+            }
+
+        } catch (IOException e) {
+            logger.info("replica " + replica + " disconnected (" + e.getMessage() + ")");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            numReplicas.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes a snapshot of all published search indexes.
+     *
+     * @param generator the generator to which the snapshot is written.
+     * @return the offset of the snapshot, i.e. of the latest change it contains for sure.
+     * @throws IOException if the snapshot could not be written.
+     */
+    private long writeSnapshot(JsonGenerator generator) throws IOException {
+
+        long offset = changeLog.getLatestOffset(); // taken before the documents, so no change is missed
+
+        generator.writeStartObject();
+        generator.writeStringField("type", "snapshot");
+        generator.writeStringField("epoch", epoch);
+        generator.writeNumberField("offset", offset);
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+
+        for (Map.Entry<String, SearchEngine> entry : searchEngines.entrySet()) {
+
+            Collection<VersionedIDItem> idItems = entry.getValue().getDocuments();
+
+            if (idItems == null) throw new IOException("index of table " + entry.getKey() + " is not memory-based");
+
+            for (VersionedIDItem idItem : idItems) {
+
+                generator.writeStartObject();
+                generator.writeStringField("type", "document");
+                writeDocumentFields(entry.getKey(), idItem, generator);
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+            }
+        }
+
+        generator.writeStartObject();
+        generator.writeStringField("type", "snapshot-end");
+        generator.writeNumberField("offset", offset);
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+
+        return offset;
+    }
+
+    /**
+     * Writes the fields of a document into the current message.
+     *
+     * @param table the table of the document.
+     * @param idItem the document.
+     * @param generator the generator to which the fields are written.
+     * @throws IOException if the fields could not be written.
+     */
+    private static void writeDocumentFields(String table, VersionedIDItem idItem, JsonGenerator generator)
+            throws IOException {
+
+        generator.writeStringField("table", table);
+        generator.writeStringField("id", idItem.getId());
+        generator.writeNumberField("version", idItem.getVersion());
+        generator.writeStringField("color", idItem.getItem().getColor());
+        generator.writeStringField("text", idItem.getItem().getText());
+    }
+}
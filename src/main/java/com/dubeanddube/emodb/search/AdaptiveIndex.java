@@ -0,0 +1,512 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Implements an index that keeps several backend indexes warm and routes each query to the
+ * fastest healthy backend.
+ *
+ * All document updates are written to all backends. For every backend, the latencies and
+ * failures of the most recent queries are tracked. A backend becomes unhealthy when its error
+ * rate exceeds <code>MAX_ERROR_RATE</code>; updates it misses while unhealthy (or fails to apply)
+ * are kept and replayed once it recovers. Backends that do not receive queries are probed with
+ * a shadow copy of a query at most once per probe interval, which keeps their latencies up to
+ * date and detects recovery (<code>RECOVERY_PROBES</code> consecutive successes). A backend may
+ * also start out unhealthy (e.g. Elasticsearch was down at startup), with a hook that prepares
+ * it before it is probed (e.g. creates the index once Elasticsearch is up).
+ *
+ * If the p99 latency of the selected backend exceeds the hedging budget, the query is sent
+ * to the next fastest healthy backend as well once the budget has elapsed, and the first
+ * successful response wins.
+ *
+ * Compound queries and facets are routed the same way. Results are always collected from the
+ * backend before they are written (the streaming <code>write*</code> methods are not overridden),
+ * because a hedged or failed-over query can only be answered by a complete response.
+ *
+ * @author Dominique Dube
+ */
+class AdaptiveIndex implements ItemIndex, QueryableIndex, FacetedIndex {
+
+    private final Logger logger = LoggerFactory.getLogger(AdaptiveIndex.class); // some basic logging
+
+    private static final int LATENCY_WINDOW_SIZE = 512;
+
+    private static final long HEDGE_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int MIN_SAMPLES = 20;
+
+    private static final double MAX_ERROR_RATE = 0.5;
+
+    private static final int RECOVERY_PROBES = 3;
+
+    /**
+     * A query that is executed on a backend index.
+     */
+    @FunctionalInterface
+    private interface BackendCall<T> {
+
+        /**
+         * Executes the query on the specified backend index.
+         *
+         * @param index the backend index.
+         * @return the result of the query.
+         * @throws IOException if the query failed.
+         */
+        T apply(ItemIndex index) throws IOException;
+    }
+
+    /**
+     * Wraps a backend index with its routing state.
+     */
+    private static class Backend {
+
+        final String name;
+        final ItemIndex index;
+
+        // prepares an unhealthy backend before it is probed, null if nothing needs to be prepared
+        final BooleanSupplier prepare;
+
+        final LatencyTracker tracker = new LatencyTracker(LATENCY_WINDOW_SIZE);
+
+        // updates that were not applied to this backend, by document ID (newest version only)
+        final Map<String, VersionedIDItem> missedUpdates = new ConcurrentHashMap<>();
+
+        final AtomicInteger consecutiveSuccesses = new AtomicInteger(0);
+        final AtomicLong lastProbeNanos = new AtomicLong(System.nanoTime());
+
+        volatile boolean healthy;
+
+        Backend(String name, ItemIndex index, boolean healthy, BooleanSupplier prepare) {
+
+            this.name = name;
+            this.index = index;
+            this.healthy = healthy;
+            this.prepare = prepare;
+        }
+    }
+
+    private final List<Backend> backends = new ArrayList<>();
+
+    private final long probeIntervalNanos;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+
+        Thread thread = new Thread(runnable, "adaptive-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs an adaptive index without backends.
+     */
+    AdaptiveIndex() {
+
+        this(PROBE_INTERVAL_NANOS);
+    }
+
+    /**
+     * Constructs an adaptive index without backends, with the specified probe interval.
+     *
+     * @param probeIntervalNanos the minimum time between two probes of a backend, in nanoseconds.
+     */
+    AdaptiveIndex(long probeIntervalNanos) {
+
+        this.probeIntervalNanos = probeIntervalNanos;
+    }
+
+    /**
+     * Adds a healthy backend index to which queries may be routed.
+     *
+     * @param name the name of the backend (for logging).
+     * @param index the backend index.
+     */
+    void addBackend(String name, ItemIndex index) {
+
+        addBackend(name, index, true, null);
+    }
+
+    /**
+     * Adds a backend index to which queries may be routed.
+     *
+     * @param name the name of the backend (for logging).
+     * @param index the backend index.
+     * @param healthy <code>false</code> if the backend is known to be unavailable, in which case it
+     *                only receives probes (and missed updates once it recovers).
+     * @param prepare prepares the backend while it is unhealthy, before each probe; returns
+     *                <code>true</code> if the backend is ready to be probed. <code>null</code> if
+     *                nothing needs to be prepared.
+     */
+    void addBackend(String name, ItemIndex index, boolean healthy, BooleanSupplier prepare) {
+
+        backends.add(new Backend(name, index, healthy, prepare));
+
+        if (! healthy) logger.warn("backend " + name + " is unavailable - routing queries elsewhere until it recovers");
+    }
+
+    /**
+     * @see ItemIndex#getDocumentById(String)
+     */
+    @Override
+    public String getDocumentById(String id) {
+
+        return routeJson(index -> index.getDocumentById(id));
+    }
+
+    /**
+     * @see ItemIndex#getDocumentsByColor(String)
+     */
+    @Override
+    public String getDocumentsByColor(String color) {
+
+        return routeJson(index -> index.getDocumentsByColor(color));
+    }
+
+    /**
+     * @see QueryableIndex#query(Query)
+     */
+    @Override
+    public QueryResult query(Query query) throws IOException {
+
+        return route(index -> {
+
+            if (! (index instanceof QueryableIndex)) throw new IOException("backend does not support compound queries");
+
+            return ((QueryableIndex)index).query(query);
+        });
+    }
+
+    /**
+     * @see FacetedIndex#getColorCounts()
+     */
+    @Override
+    public Map<String, Long> getColorCounts() throws IOException {
+
+        return route(index -> {
+
+            if (! (index instanceof FacetedIndex)) throw new IOException("backend does not support facets");
+
+            return ((FacetedIndex)index).getColorCounts();
+        });
+    }
+
+    /**
+     * @see ItemIndex#updateDocument(VersionedIDItem)
+     *
+     * The update is written to all healthy backends and kept for later replay by all other
+     * backends. Returns the outcome of the first backend that did not fail.
+     */
+    @Override
+    public UpdateOutcome updateDocument(VersionedIDItem newItem) {
+
+        UpdateOutcome result = UpdateOutcome.FAILED;
+
+        for (Backend backend : backends) {
+
+            UpdateOutcome outcome = backend.healthy ? backend.index.updateDocument(newItem) : UpdateOutcome.FAILED;
+
+            if (outcome == UpdateOutcome.FAILED) {
+
+                backend.missedUpdates.merge(newItem.getId(), newItem, (prevItem, item) ->
+                        item.getVersion() > prevItem.getVersion() ? item : prevItem);
+            }
+
+            if (result == UpdateOutcome.FAILED) result = outcome;
+        }
+
+        return result;
+    }
+
+    /**
+     * Routes a query with a JSON string result (see <code>route</code>), whose failure is
+     * reported as <code>JsonUtils.NO_SUCCESS</code>.
+     *
+     * @param query the query that is to be executed on a backend index.
+     * @return the JSON string result of the query, <code>JsonUtils.NO_SUCCESS</code> if it failed.
+     */
+    private String routeJson(Function<ItemIndex, String> query) {
+
+        try {
+
+            return route(index -> {
+
+                String response = query.apply(index);
+
+                if (JsonUtils.NO_SUCCESS.equals(response)) throw new IOException("query failed");
+
+                return response;
+            });
+
+        } catch (IOException e) {
+            return JsonUtils.NO_SUCCESS;
+        }
+    }
+
+    /**
+     * Routes the specified query to the fastest healthy backend, hedges it if that backend's
+     * p99 latency exceeds the budget, and probes the remaining backends when due.
+     *
+     * @param query the query that is to be executed on a backend index.
+     * @return the result of the query.
+     * @throws IOException if the query failed on all backends it was sent to.
+     */
+    private <T> T route(BackendCall<T> query) throws IOException {
+
+        Backend primary = null;
+        Backend secondary = null;
+
+        for (Backend backend : backends) {
+
+            if (! backend.healthy) continue;
+
+            if (primary == null || backend.tracker.getP50Nanos() < primary.tracker.getP50Nanos()) {
+                secondary = primary;
+                primary = backend;
+            } else if (secondary == null || backend.tracker.getP50Nanos() < secondary.tracker.getP50Nanos()) {
+                secondary = backend;
+            }
+        }
+
+        if (primary == null) primary = leastFailingBackend(); // nothing healthy - best effort
+
+        for (Backend backend : backends) {
+            if (backend != primary) probeIfDue(backend, query);
+        }
+
+        if (secondary == null) return call(primary, query);
+
+        if (primary.tracker.getP99Nanos() <= HEDGE_BUDGET_NANOS) {
+
+            try {
+                return call(primary, query);
+            } catch (IOException e) {
+                return call(secondary, query); // fail over to the next fastest backend
+            }
+        }
+
+        return callHedged(primary, secondary, query);
+    }
+
+    /**
+     * Executes the query on the primary backend and, if it does not respond within the hedging
+     * budget, on the secondary backend as well. If the primary backend fails within the budget,
+     * the query is sent to the secondary backend right away.
+     *
+     * @param primary the backend that receives the query first.
+     * @param secondary the backend that receives the hedged query.
+     * @param query the query that is to be executed.
+     * @return the first successful result.
+     * @throws IOException if the query failed on both backends.
+     */
+    private <T> T callHedged(Backend primary, Backend secondary, BackendCall<T> query) throws IOException {
+
+        CompletableFuture<T> primaryResponse = callAsync(primary, query);
+
+        try {
+
+            return primaryResponse.get(HEDGE_BUDGET_NANOS, TimeUnit.NANOSECONDS);
+
+        } catch (TimeoutException e) {
+            logger.debug("hedging query on " + secondary.name + " after " + primary.name + " exceeded budget");
+        } catch (ExecutionException e) {
+            return call(secondary, query);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for " + primary.name);
+        }
+
+        CompletableFuture<T> secondaryResponse = callAsync(secondary, query);
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger numPending = new AtomicInteger(2);
+
+        // the first success wins, the result fails only once both calls failed
+        BiConsumer<T, Throwable> completion = (response, failure) -> {
+
+            if (failure == null) {
+                result.complete(response);
+            } else if (numPending.decrementAndGet() == 0) {
+                result.completeExceptionally(failure);
+            }
+        };
+
+        primaryResponse.whenComplete(completion);
+        secondaryResponse.whenComplete(completion);
+
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw new IOException("query failed on " + primary.name + " and " + secondary.name, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for " + primary.name + " and " + secondary.name);
+        }
+    }
+
+    /**
+     * Executes the query on the specified backend in the background.
+     *
+     * @param backend the backend on which the query is executed.
+     * @param query the query that is to be executed.
+     * @return the future result of the query.
+     */
+    private <T> CompletableFuture<T> callAsync(Backend backend, BackendCall<T> query) {
+
+        CompletableFuture<T> response = new CompletableFuture<>();
+
+        executor.execute(() -> {
+
+            try {
+                response.complete(call(backend, query));
+            } catch (IOException e) {
+                response.completeExceptionally(e);
+            }
+        });
+
+        return response;
+    }
+
+    /**
+     * Executes the query on the specified backend and records its latency and outcome.
+     *
+     * @param backend the backend on which the query is executed.
+     * @param query the query that is to be executed.
+     * @return the result of the query.
+     * @throws IOException if the query failed.
+     */
+    private <T> T call(Backend backend, BackendCall<T> query) throws IOException {
+
+        long startNanos = System.nanoTime();
+        boolean success = false;
+
+        try {
+
+            T response = query.apply(backend.index);
+
+            success = true;
+
+            return response;
+
+        } catch (RuntimeException e) {
+            throw new IOException("query failed on " + backend.name, e);
+        } finally {
+
+            backend.tracker.record(System.nanoTime() - startNanos, success);
+
+            if (backend.healthy && backend.tracker.getSampleCount() >= MIN_SAMPLES &&
+                    backend.tracker.getErrorRate() >= MAX_ERROR_RATE) {
+
+                backend.healthy = false;
+                backend.consecutiveSuccesses.set(0);
+
+                logger.warn("backend " + backend.name + " is unhealthy (error rate = " +
+                        backend.tracker.getErrorRate() + ") - routing queries elsewhere");
+            }
+        }
+    }
+
+    /**
+     * Sends a shadow copy of the query to the specified backend in the background, at most once
+     * per probe interval. Replays missed updates and marks an unhealthy backend as healthy again
+     * once enough consecutive probes succeeded.
+     *
+     * @param backend the backend that is to be probed.
+     * @param query the query that is sent as a probe.
+     */
+    private <T> void probeIfDue(Backend backend, BackendCall<T> query) {
+
+        long lastProbeNanos = backend.lastProbeNanos.get();
+        long nowNanos = System.nanoTime();
+
+        if (nowNanos - lastProbeNanos < probeIntervalNanos) return;
+        if (! backend.lastProbeNanos.compareAndSet(lastProbeNanos, nowNanos)) return; // probed elsewhere
+
+        executor.execute(() -> {
+
+            boolean prepared = backend.healthy || backend.prepare == null || backend.prepare.getAsBoolean();
+
+            try {
+                if (prepared) call(backend, query);
+            } catch (IOException e) {
+                prepared = false;
+            }
+
+            if (! prepared) {
+                backend.consecutiveSuccesses.set(0);
+                return;
+            }
+
+            if (backend.healthy) {
+                replayMissedUpdates(backend);
+                return;
+            }
+
+            if (backend.consecutiveSuccesses.incrementAndGet() >= RECOVERY_PROBES && replayMissedUpdates(backend)) {
+
+                backend.tracker.reset();
+                backend.healthy = true;
+
+                logger.info("backend " + backend.name + " recovered - routing queries to it again");
+            }
+        });
+    }
+
+    /**
+     * Applies all updates the specified backend missed.
+     *
+     * @param backend the backend to which the missed updates are applied.
+     * @return <code>true</code> if all missed updates were applied (or were outdated by now),
+     *         <code>false</code> if at least one of them failed again.
+     */
+    private boolean replayMissedUpdates(Backend backend) {
+
+        if (backend.missedUpdates.isEmpty()) return true;
+
+        int numReplayed = 0;
+
+        for (VersionedIDItem idItem : backend.missedUpdates.values()) {
+
+            if (backend.index.updateDocument(idItem) == UpdateOutcome.FAILED) {
+                logger.debug("replay of missed update for " + backend.name + " failed after " + numReplayed);
+                return false;
+            }
+
+            backend.missedUpdates.remove(idItem.getId(), idItem); // unless a newer update was missed meanwhile
+            ++numReplayed;
+        }
+
+        logger.info("replayed " + numReplayed + " missed updates to backend " + backend.name);
+
+        return true;
+    }
+
+    /**
+     * Returns the backend with the lowest error rate.
+     *
+     * @return the backend with the lowest error rate.
+     */
+    private Backend leastFailingBackend() {
+
+        Backend best = backends.get(0);
+
+        for (Backend backend : backends) {
+            if (backend.tracker.getErrorRate() < best.tracker.getErrorRate()) best = backend;
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,193 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.VersionedIDItem;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Tracks the versions of indexed documents and a change counter per color, from which entity
+ * tags (ETags) for HTTP caching of query results are derived without touching the index.
+ *
+ * Tags contain the start time of this process, so that tags from a previous run never match.
+ *
+ * A document is tracked only as long as it is indexed: documents removed from the index are
+ * dropped from the tracker as well (see <code>recordRemovals</code>), so the tracker never holds
+ * more documents than the index.
+ *
+ * @author Dominique Dube
+ */
+class ChangeTracker {
+
+    /**
+     * The tracked state of an indexed document.
+     */
+    private static class DocumentState {
+
+        final long version;
+        final String color;
+
+        DocumentState(long version, String color) {
+
+            this.version = version;
+            this.color = color;
+        }
+    }
+
+    /**
+     * The tracked state of a color.
+     */
+    private static class ColorState {
+
+        final AtomicLong numChanges = new AtomicLong(0);
+
+        volatile long lastChangeMillis = 0;
+    }
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    private final long settleMillis;
+
+    private final Map<String, DocumentState> documents = new ConcurrentHashMap<>();
+
+    private final Map<String, ColorState> colors = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a change tracker.
+     *
+     * @param settleMillis the time after a change during which color tags are withheld, because
+     *                     the change may not be visible to color queries yet (near real-time search).
+     */
+    ChangeTracker(long settleMillis) {
+
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Records a document update that was applied to the index.
+     *
+     * @param idItem the document that was created or updated.
+     * @return the color of the document before the update, <code>null</code> if the document
+     *         was not tracked before (or the update is outdated).
+     */
+    String recordUpdate(VersionedIDItem idItem) {
+
+        String color = idItem.getItem().getColor();
+
+        DocumentState newState = new DocumentState(idItem.getVersion(), color != null ? color.intern() : null);
+        DocumentState[] prevState = { null };
+
+        documents.compute(idItem.getId(), (id, state) -> {
+
+            prevState[0] = state;
+            return state != null && state.version >= newState.version ? state : newState;
+        });
+
+        if (prevState[0] == null) {
+            if (color != null) recordColorChange(color);
+            return null;
+        }
+
+        if (prevState[0].version >= newState.version) return null; // outdated
+
+        if (prevState[0].color != null && ! prevState[0].color.equals(color)) recordColorChange(prevState[0].color);
+
+        if (color != null) recordColorChange(color);
+
+        return prevState[0].color;
+    }
+
+    /**
+     * Records the removal of documents from the index (e.g. of shards that moved to another
+     * cluster member) and stops tracking them.
+     *
+     * @param idFilter accepts the IDs of the removed documents.
+     * @return the number of documents that are no longer tracked.
+     */
+    int recordRemovals(Predicate<String> idFilter) {
+
+        int numRemoved = 0;
+
+        for (Map.Entry<String, DocumentState> entry : documents.entrySet()) {
+
+            if (idFilter.test(entry.getKey()) && documents.remove(entry.getKey(), entry.getValue())) {
+
+                if (entry.getValue().color != null) recordColorChange(entry.getValue().color);
+                ++numRemoved;
+            }
+        }
+
+        return numRemoved;
+    }
+
+    /**
+     * Records the removal of documents from the index (e.g. orphaned documents removed by a
+     * reconciliation) and stops tracking them, unless they were updated to a newer version.
+     *
+     * @param versions the removed versions of the documents, by ID.
+     * @return the number of documents that are no longer tracked.
+     */
+    int recordRemovals(Map<String, Long> versions) {
+
+        int numRemoved = 0;
+
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+
+            DocumentState state = documents.get(entry.getKey());
+
+            if (state != null && state.version <= entry.getValue() && documents.remove(entry.getKey(), state)) {
+
+                if (state.color != null) recordColorChange(state.color);
+                ++numRemoved;
+            }
+        }
+
+        return numRemoved;
+    }
+
+    /**
+     * Returns the ETag for the result of a query for the document with the specified ID.
+     *
+     * @param id the document ID.
+     * @return the ETag, <code>null</code> if the document is not tracked.
+     */
+    String getDocumentTag(String id) {
+
+        DocumentState state = documents.get(id);
+
+        return state == null ? null : "\"" + epoch + "-" + state.version + "\"";
+    }
+
+    /**
+     * Returns the ETag for the result of a query for all documents with the specified color.
+     * The tag is weak, because the order of documents in the result is not defined.
+     *
+     * @param color the document color.
+     * @return the ETag, <code>null</code> if the color changed too recently.
+     */
+    String getColorTag(String color) {
+
+        ColorState state = colors.get(color); // not created here, colors in queries are arbitrary
+
+        if (state == null) return "W/\"" + epoch + "-0\"";
+
+        if (System.currentTimeMillis() - state.lastChangeMillis < settleMillis) return null;
+
+        return "W/\"" + epoch + "-" + state.numChanges.get() + "\"";
+    }
+
+    /**
+     * Records a change to a document of the specified color.
+     *
+     * @param color the color of the changed document.
+     */
+    private void recordColorChange(String color) {
+
+        ColorState state = colors.computeIfAbsent(color, c -> new ColorState());
+
+        state.numChanges.incrementAndGet();
+        state.lastChangeMillis = System.currentTimeMillis();
+    }
+}
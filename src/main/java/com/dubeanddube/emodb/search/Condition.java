@@ -0,0 +1,429 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Defines the conditions of compound queries (see <code>Query</code>): boolean combinations of
+ * conditions on the ID, color, text, and version of documents.
+ *
+ * Conditions are parsed from JSON objects. Every field of an object is a condition, and an object
+ * with several fields requires all of them:
+ *
+ * {"id": "7b8d8a82-77b6-4940-95fe-50ed99b23cb2"}
+ * {"color": "green"}
+ * {"text": "lorem ipsum"}                    (contains all terms, case-insensitive)
+ * {"version": {"gte": 2, "lt": 10}}         (or an exact version, e.g. {"version": 3})
+ * {"and": [...]}, {"or": [...]}, {"not": {...}}
+ *
+ * Every index evaluates a condition in its own way (posting lists in memory, a bool query in
+ * Elasticsearch), but <code>matches</code> defines its meaning.
+ *
+ * @author Dominique Dube
+ */
+public abstract class Condition {
+
+    /**
+     * Checks whether a document satisfies this condition.
+     *
+     * @param idItem the document.
+     * @return <code>true</code> if the document satisfies this condition, <code>false</code> otherwise.
+     */
+    public abstract boolean matches(VersionedIDItem idItem);
+
+    /**
+     * All of the operands hold (all documents if there are none).
+     */
+    public static class And extends Condition {
+
+        public final List<Condition> operands;
+
+        /**
+         * Constructs the condition.
+         *
+         * @param operands the operands.
+         */
+        public And(List<Condition> operands) {
+
+            this.operands = Collections.unmodifiableList(operands);
+        }
+
+        @Override
+        public boolean matches(VersionedIDItem idItem) {
+
+            for (Condition operand : operands) if (! operand.matches(idItem)) return false;
+
+            return true;
+        }
+
+        @Override
+        public String toString() {
+
+            return operands.isEmpty() ? "all" : join(operands, " and ");
+        }
+    }
+
+    /**
+     * At least one of the operands holds.
+     */
+    public static class Or extends Condition {
+
+        public final List<Condition> operands;
+
+        /**
+         * Constructs the condition.
+         *
+         * @param operands the operands (at least one).
+         */
+        public Or(List<Condition> operands) {
+
+            this.operands = Collections.unmodifiableList(operands);
+        }
+
+        @Override
+        public boolean matches(VersionedIDItem idItem) {
+
+            for (Condition operand : operands) if (operand.matches(idItem)) return true;
+
+            return false;
+        }
+
+        @Override
+        public String toString() {
+
+            return join(operands, " or ");
+        }
+    }
+
+    /**
+     * The operand does not hold.
+     */
+    public static class Not extends Condition {
+
+        public final Condition operand;
+
+        /**
+         * Constructs the condition.
+         *
+         * @param operand the negated condition.
+         */
+        public Not(Condition operand) {
+
+            this.operand = operand;
+        }
+
+        @Override
+        public boolean matches(VersionedIDItem idItem) {
+
+            return ! operand.matches(idItem);
+        }
+
+        @Override
+        public String toString() {
+
+            return "not (" + operand + ")";
+        }
+    }
+
+    /**
+     * The document has the specified ID.
+     */
+    public static class IdEquals extends Condition {
+
+        public final String id;
+
+        /**
+         * Constructs the condition.
+         *
+         * @param id the document ID.
+         */
+        public IdEquals(String id) {
+
+            this.id = id;
+        }
+
+        @Override
+        public boolean matches(VersionedIDItem idItem) {
+
+            return idItem.getId().equals(id);
+        }
+
+        @Override
+        public String toString() {
+
+            return "id = " + id;
+        }
+    }
+
+    /**
+     * The document has the specified color.
+     */
+    public static class ColorEquals extends Condition {
+
+        public final String color;
+
+        /**
+         * Constructs the condition.
+         *
+         * @param color the color.
+         */
+        public ColorEquals(String color) {
+
+            this.color = color;
+        }
+
+        @Override
+        public boolean matches(VersionedIDItem idItem) {
+
+            return idItem.getItem().matchesColor(color);
+        }
+
+        @Override
+        public String toString() {
+
+            return "color = " + color;
+        }
+    }
+
+    /**
+     * The text of the document contains all specified terms.
+     */
+    public static class TextContains extends Condition {
+
+        public final Set<String> terms;
+
+        /**
+         * Constructs the condition.
+         *
+         * @param terms the terms, as returned by <code>termsOf</code>.
+         */
+        public TextContains(Set<String> terms) {
+
+            this.terms = Collections.unmodifiableSet(terms);
+        }
+
+        @Override
+        public boolean matches(VersionedIDItem idItem) {
+
+            String text = idItem.getItem().getText();
+
+            return text != null && termsOf(text).containsAll(terms);
+        }
+
+        @Override
+        public String toString() {
+
+            return "text contains " + terms;
+        }
+    }
+
+    /**
+     * The version of the document is within the specified range.
+     */
+    public static class VersionRange extends Condition {
+
+        public final long min; // inclusive
+        public final long max; // inclusive
+
+        /**
+         * Constructs the condition.
+         *
+         * @param min the lowest matching version.
+         * @param max the highest matching version.
+         */
+        public VersionRange(long min, long max) {
+
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public boolean matches(VersionedIDItem idItem) {
+
+            return idItem.getVersion() >= min && idItem.getVersion() <= max;
+        }
+
+        @Override
+        public String toString() {
+
+            return "version in [" + (min == Long.MIN_VALUE ? "" : min) + ", " + (max == Long.MAX_VALUE ? "" : max) + "]";
+        }
+    }
+
+    /**
+     * Splits a text into its terms: lower-case words of letters and digits.
+     *
+     * @param text the text.
+     * @return the distinct terms, in order of their first occurrence.
+     */
+    public static Set<String> termsOf(String text) {
+
+        Set<String> terms = new LinkedHashSet<>();
+
+        for (String term : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (! term.isEmpty()) terms.add(term);
+        }
+
+        return terms;
+    }
+
+    /**
+     * Parses a condition (see the class description for the format).
+     *
+     * @param node the condition as JSON object, <code>null</code> or missing for all documents.
+     * @return the condition.
+     * @throws IllegalArgumentException if the condition is malformed.
+     */
+    static Condition fromJson(JsonNode node) throws IllegalArgumentException {
+
+        if (node == null || node.isMissingNode() || node.isNull()) return new And(Collections.emptyList());
+
+        if (! node.isObject()) throw new IllegalArgumentException("condition must be an object: " + node);
+
+        List<Condition> conditions = new ArrayList<>();
+
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+
+        while (fields.hasNext()) {
+
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode value = field.getValue();
+
+            switch (field.getKey()) {
+
+                case "and":
+                case "or":
+
+                    if (! value.isArray() || value.size() == 0) {
+                        throw new IllegalArgumentException(field.getKey() + " requires a non-empty array of conditions");
+                    }
+
+                    List<Condition> operands = new ArrayList<>();
+
+                    for (JsonNode operand : value) operands.add(fromJson(operand));
+
+                    conditions.add(field.getKey().equals("and") ? new And(operands) : new Or(operands));
+                    break;
+
+                case "not":
+
+                    conditions.add(new Not(fromJson(value)));
+                    break;
+
+                case "id":
+
+                    conditions.add(new IdEquals(textOf(field.getKey(), value)));
+                    break;
+
+                case "color":
+
+                    conditions.add(new ColorEquals(textOf(field.getKey(), value)));
+                    break;
+
+                case "text":
+
+                    Set<String> terms = termsOf(textOf(field.getKey(), value));
+
+                    if (terms.isEmpty()) throw new IllegalArgumentException("text requires at least one term");
+
+                    conditions.add(new TextContains(terms));
+                    break;
+
+                case "version":
+
+                    conditions.add(versionRangeOf(value));
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("unknown condition " + field.getKey());
+            }
+        }
+
+        return conditions.size() == 1 ? conditions.get(0) : new And(conditions);
+    }
+
+    /**
+     * Returns the string value of a condition.
+     *
+     * @param name the name of the condition (for the error message).
+     * @param value the value.
+     * @return the string value.
+     * @throws IllegalArgumentException if the value is not a string.
+     */
+    private static String textOf(String name, JsonNode value) throws IllegalArgumentException {
+
+        if (! value.isTextual()) throw new IllegalArgumentException(name + " requires a string");
+
+        return value.asText();
+    }
+
+    /**
+     * Parses a version range: an exact version, or an object with the bounds <code>gt</code>,
+     * <code>gte</code>, <code>lt</code>, and <code>lte</code>.
+     *
+     * @param value the range.
+     * @return the range as condition.
+     * @throws IllegalArgumentException if the range is malformed.
+     */
+    private static VersionRange versionRangeOf(JsonNode value) throws IllegalArgumentException {
+
+        if (value.isIntegralNumber()) return new VersionRange(value.asLong(), value.asLong());
+
+        if (! value.isObject() || value.size() == 0) {
+            throw new IllegalArgumentException("version requires a number or an object with gt, gte, lt, or lte");
+        }
+
+        long min = Long.MIN_VALUE;
+        long max = Long.MAX_VALUE;
+
+        Iterator<Map.Entry<String, JsonNode>> bounds = value.fields();
+
+        while (bounds.hasNext()) {
+
+            Map.Entry<String, JsonNode> bound = bounds.next();
+
+            if (! bound.getValue().isIntegralNumber()) {
+                throw new IllegalArgumentException("version bound " + bound.getKey() + " requires a number");
+            }
+
+            long version = bound.getValue().asLong();
+
+            switch (bound.getKey()) {
+                case "gt": min = Math.max(min, version + 1); break;
+                case "gte": min = Math.max(min, version); break;
+                case "lt": max = Math.min(max, version - 1); break;
+                case "lte": max = Math.min(max, version); break;
+                default: throw new IllegalArgumentException("unknown version bound " + bound.getKey());
+            }
+        }
+
+        return new VersionRange(min, max);
+    }
+
+    /**
+     * Joins conditions for their string representation.
+     *
+     * @param conditions the conditions.
+     * @param separator the separator.
+     * @return the joined conditions in parentheses.
+     */
+    private static String join(List<Condition> conditions, String separator) {
+
+        StringBuilder builder = new StringBuilder("(");
+
+        for (Condition condition : conditions) {
+            builder.append(builder.length() > 1 ? separator : "").append(condition);
+        }
+
+        return builder.append(')').toString();
+    }
+}
@@ -1,40 +1,72 @@
 package com.dubeanddube.emodb.search;
 
 import com.dubeanddube.emodb.data.*;
+import com.dubeanddube.emodb.events.IndexOperationEvent;
 import com.dubeanddube.emodb.services.HttpUtils;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 /**
  * Implements the index based on a local Elasticsearch instance.
  * Assumes that the Elasticsearch instance is running on localhost:9200.
  *
+ * Queries and updates address an alias (named after the table, e.g. <code>items</code>) rather
+ * than a concrete index. The alias points to a versioned index (<code>items_v1</code>,
+ * <code>items_v2</code>, ...), which allows rebuilding the index in the background and swapping
+ * the alias atomically.
+ *
+ * Besides color and text, the <code>_source</code> of each document holds its version, so that
+ * compound queries can filter on version ranges (the <code>_version</code> cannot be queried).
+ *
  * @author Dominique Dube
  */
-public class ElasticIndex implements ItemIndex {
+public class ElasticIndex implements ItemIndex, ReconcilableIndex, QueryableIndex, FacetedIndex {
 
     private static final Logger staticLogger =
             LoggerFactory.getLogger(ElasticIndex.class); // some basic logging
 
     private final Logger logger = LoggerFactory.getLogger(ElasticIndex.class); // some basic logging
 
+    private static final String BACKEND_NAME = "elasticsearch"; // flight recorder events
+
+    private static final String SCROLL_KEEP_ALIVE = "1m";
+
+    private static final int SCROLL_PAGE_SIZE = 500;
+
+    // Elasticsearch's default refresh interval: changes may be invisible to searches for this long
+    static final long REFRESH_MILLIS = 1000;
+
+    private static final int MAX_COLOR_BUCKETS = 1000; // colors counted by the terms aggregation
+
+    private final String alias; // the alias queries and updates address
+
+    // the versioned index that is currently being rebuilt, null if no rebuild is in progress
+    private volatile String rebuildIndex;
+
     /**
      * Checks and returns whether the EmoSor service is up and running.
      *
@@ -74,19 +106,28 @@ public class ElasticIndex implements ItemIndex {
         return true;
     }
 
-    // omitting default constructor
+    /**
+     * Constructs an index that addresses the specified alias.
+     *
+     * @param alias the name of the alias, e.g. <code>items</code>.
+     */
+    ElasticIndex(String alias) {
+
+        this.alias = alias;
+    }
 
     /**
-     * Deletes an existing Elasticsearch items index to start with a fresh index.
+     * Deletes an existing Elasticsearch index (or the indexes an alias points to).
      *
-     * @return <code>true</code> if the items index was successfully deleted,
+     * @param indexName the name of the index that is to be deleted.
+     * @return <code>true</code> if the index was successfully deleted,
      *         <code>false</code> otherwise.
      */
-    static boolean deleteIndex() {
+    static boolean deleteIndex(String indexName) {
 
-        String url = "http://localhost:9200/items";
+        String url = "http://localhost:9200/" + indexName;
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient client = HttpUtils.sharedClient();
         CloseableHttpResponse response = null;
 
         HttpDelete request = new HttpDelete(url); // DELETE for drop table
@@ -99,89 +140,409 @@ public class ElasticIndex implements ItemIndex {
 
             staticLogger.debug("Elasticsearch delete response = " + responseString);
 
-            ObjectMapper mapper = new ObjectMapper();
+            return isAcknowledged(responseString);
+
+        } catch (IOException e) {
+            return false;
+        } finally {
+            HttpUtils.cleanup(response);
+        }
+    }
+
+    /**
+     * Creates a new, empty Elasticsearch index.
+     *
+     * @param indexName the name of the index that is to be created.
+     * @return <code>true</code> if the index was successfully created,
+     *         <code>false</code> otherwise.
+     */
+    static boolean createIndex(String indexName) {
+
+        String responseString = HttpUtils.execute(new HttpPut("http://localhost:9200/" + indexName));
+
+        staticLogger.debug("Elasticsearch create index response = " + responseString);
+
+        return isAcknowledged(responseString);
+    }
+
+    /**
+     * Returns the names of the indexes the specified alias currently points to.
+     *
+     * @param alias the name of the alias.
+     * @return the names of the aliased indexes (empty if the alias does not exist yet),
+     *         <code>null</code> if Elasticsearch could not be queried.
+     */
+    static List<String> getAliasedIndexes(String alias) {
+
+        String responseString = HttpUtils.get("http://localhost:9200/_alias/" + alias);
+
+        if (responseString == null) return null;
+
+        ObjectMapper mapper = new ObjectMapper();
+
+        JsonNode root;
+        try {
+            root = mapper.readTree(responseString);
+        } catch (IOException e) {
+            staticLogger.debug("could not retrieve Elasticsearch alias response from localhost:9200");
+            return null;
+        }
+
+        List<String> indexNames = new ArrayList<>();
+
+        // a missing alias is reported as an error object; every other field name is an index name
+        Iterator<String> fieldNames = root.fieldNames();
+
+        while (fieldNames.hasNext()) {
+
+            String fieldName = fieldNames.next();
+
+            if (root.path(fieldName).path("aliases").has(alias)) indexNames.add(fieldName);
+        }
+
+        return indexNames;
+    }
+
+    /**
+     * Atomically points the specified alias to the specified index, removing it from all
+     * specified previous indexes in the same request. Queries are thus never served from
+     * a partially built index, nor does the alias ever point to no index at all.
+     *
+     * @param alias the name of the alias.
+     * @param oldIndexNames the indexes the alias is to be removed from.
+     * @param newIndexName the index the alias is to be added to.
+     * @return <code>true</code> if the alias was swapped successfully, <code>false</code> otherwise.
+     */
+    static boolean swapAlias(String alias, List<String> oldIndexNames, String newIndexName) {
+
+        ObjectMapper mapper = new ObjectMapper();
 
-            JsonNode root;
-            try {
-                root = mapper.readTree(responseString);
-            } catch (IOException e) {
-                staticLogger.debug("could not retrieve Elasticsearch delete response from localhost:9200");
-                return false;
+        ObjectNode root = mapper.createObjectNode();
+        ArrayNode actions = root.putArray("actions");
+
+        for (String oldIndexName : oldIndexNames) {
+            actions.addObject().putObject("remove").put("index", oldIndexName).put("alias", alias);
+        }
+
+        actions.addObject().putObject("add").put("index", newIndexName).put("alias", alias);
+
+        HttpPost request = new HttpPost("http://localhost:9200/_aliases");
+
+        try {
+            request.setEntity(new StringEntity(mapper.writeValueAsString(root), "UTF-8"));
+        } catch (IOException e) {
+            return false;
+        }
+
+        String responseString = HttpUtils.execute(request);
+
+        staticLogger.debug("Elasticsearch alias swap response = " + responseString);
+
+        return isAcknowledged(responseString);
+    }
+
+    /**
+     * Resets the index to a fresh, empty versioned index behind the specified alias and deletes
+     * all previous indexes (including an unaliased index of the same name, e.g. <code>items</code>,
+     * left by an earlier version of this prototype).
+     *
+     * @param alias the name of the alias.
+     * @return <code>true</code> if the index was reset successfully, <code>false</code> otherwise.
+     */
+    static boolean resetIndex(String alias) {
+
+        List<String> oldIndexNames = getAliasedIndexes(alias);
+
+        if (oldIndexNames == null) return false;
+
+        if (oldIndexNames.isEmpty() && deleteIndex(alias)) {
+            staticLogger.info("deleted unaliased Elasticsearch " + alias + " index");
+        }
+
+        String newIndexName = nextIndexName(alias, oldIndexNames);
+
+        if (! createIndex(newIndexName) || ! swapAlias(alias, oldIndexNames, newIndexName)) return false;
+
+        for (String oldIndexName : oldIndexNames) deleteIndex(oldIndexName);
+
+        return true;
+    }
+
+    /**
+     * Determines the name of the next versioned index, i.e. one version above the highest
+     * version among the specified index names.
+     *
+     * @param alias the name of the alias, which prefixes the versioned index names.
+     * @param indexNames the names of the existing versioned indexes.
+     * @return the name of the next versioned index, e.g. <code>items_v2</code>.
+     */
+    private static String nextIndexName(String alias, List<String> indexNames) {
+
+        String versionPrefix = alias + "_v";
+
+        long maxVersion = 0;
+
+        for (String indexName : indexNames) {
+
+            if (indexName.startsWith(versionPrefix)) {
+                maxVersion = Math.max(maxVersion,
+                        NumberUtils.toLong(indexName.substring(versionPrefix.length()), 0L));
             }
+        }
+
+        return versionPrefix + (maxVersion + 1);
+    }
+
+    /**
+     * Checks whether the specified Elasticsearch response acknowledges the request.
+     *
+     * @param responseString the response from Elasticsearch that is to be checked.
+     * @return <code>true</code> if the response contains <code>"acknowledged": true</code>,
+     *         <code>false</code> otherwise.
+     */
+    private static boolean isAcknowledged(String responseString) {
 
-            JsonNode ackNode = root.path("acknowledged");
+        if (responseString == null) return false;
 
-            return ! ackNode.isMissingNode() && BooleanUtils.toBoolean(ackNode.asText());
+        ObjectMapper mapper = new ObjectMapper();
 
+        JsonNode root;
+        try {
+            root = mapper.readTree(responseString);
         } catch (IOException e) {
+            staticLogger.debug("could not parse Elasticsearch response from localhost:9200");
             return false;
-        } finally {
-            HttpUtils.cleanup(response, client);
         }
+
+        JsonNode ackNode = root.path("acknowledged");
+
+        return ! ackNode.isMissingNode() && BooleanUtils.toBoolean(ackNode.asText());
     }
 
     /**
-     * @see ItemIndex#getDocumentById(String)
+     * Starts rebuilding the index: creates the next versioned index next to the one currently
+     * behind the alias. From now on until the rebuild is completed or aborted,
+     * all document updates are written to both indexes, while queries are still served from the
+     * current index.
+     *
+     * @return <code>true</code> if the rebuild was started, <code>false</code> if the new index
+     *         could not be created or another rebuild is already in progress.
      */
-    @Override
-    public String getDocumentById(String id) {
+    synchronized boolean beginRebuild() {
 
-        String url = "http://localhost:9200/items/item/" + id;
+        if (rebuildIndex != null) return false;
 
-        String responseString = HttpUtils.get(url);
+        List<String> indexNames = getAliasedIndexes(alias);
 
-        logger.debug("Elasticsearch get document response = " + responseString);
+        if (indexNames == null) return false;
 
-        boolean found = false;
+        String newIndexName = nextIndexName(alias, indexNames);
+
+        if (! createIndex(newIndexName)) return false;
+
+        rebuildIndex = newIndexName;
+
+        logger.info("rebuilding Elasticsearch index into " + newIndexName);
+
+        return true;
+    }
+
+    /**
+     * Indexes the specified documents into the index that is being rebuilt with a single
+     * <code>_bulk</code> request. External versions are used, so a document that has already
+     * been written with a newer version by a concurrent update is left untouched.
+     *
+     * @param idItems the documents that are to be indexed.
+     * @return <code>true</code> if all documents were either indexed or rejected as outdated,
+     *         <code>false</code> otherwise (including the case that no rebuild is in progress).
+     */
+    boolean bulkIndex(List<VersionedIDItem> idItems) {
+
+        String indexName = rebuildIndex;
+
+        if (indexName == null) return false;
+        if (idItems.isEmpty()) return true;
 
         ObjectMapper mapper = new ObjectMapper();
 
-        JsonNode root = null;
+        StringBuilder dataBinary = new StringBuilder();
 
         try {
 
-            root = mapper.readTree(responseString);
+            for (VersionedIDItem idItem : idItems) {
+
+                ObjectNode action = mapper.createObjectNode();
+                action.putObject("index")
+                        .put("_index", indexName)
+                        .put("_type", "item")
+                        .put("_id", idItem.getId())
+                        .put("_version", idItem.getVersion())
+                        .put("_version_type", "external");
 
-            JsonNode foundNode = root.path("found");
+                dataBinary.append(mapper.writeValueAsString(action)).append('\n');
+                ObjectNode source = mapper.createObjectNode()
+                        .put("color", idItem.getItem().getColor())
+                        .put("text", idItem.getItem().getText())
+                        .put("version", idItem.getVersion());
 
-            if (! foundNode.isMissingNode()) {
-                found = BooleanUtils.toBoolean(foundNode.asText());
+                dataBinary.append(mapper.writeValueAsString(source)).append('\n');
             }
 
         } catch (IOException e) {
-            staticLogger.debug("could not retrieve Elasticsearch description from localhost:9200");
+            return false;
         }
 
-        staticLogger.debug("object with ID " + id + (found ? "" : " not") + " found");
+        HttpPost request = new HttpPost("http://localhost:9200/_bulk");
+        request.setEntity(new StringEntity(dataBinary.toString(), "UTF-8"));
+        request.addHeader("content-type", "application/x-ndjson");
+
+        String responseString = HttpUtils.execute(request);
+
+        JsonNode root;
+        try {
+            root = mapper.readTree(responseString);
+        } catch (IOException e) {
+            logger.debug("could not retrieve Elasticsearch bulk response from localhost:9200");
+            return false;
+        }
 
-        JsonResult result;
+        if (! root.path("errors").asBoolean(true)) return true;
 
-        if (! found) {
+        JsonNode itemsArray = root.path("items");
 
-            result = new MessageResult();
-            ((MessageResult)result).success = true;
-            ((MessageResult)result).payload = "no match found";
+        if (! itemsArray.isArray()) return false;
 
-        } else {
+        boolean success = true;
+
+        for (JsonNode itemNode : itemsArray) {
+
+            int status = itemNode.path("index").path("status").asInt();
 
-            // for simplicity, additional error handling omitted
+            // 409 means the document was already updated with a newer version (dual write)
+            if (status >= 300 && status != 409) {
+                logger.debug("bulk indexing failed for document " + itemNode.path("index").path("_id").asText());
+                success = false;
+            }
+        }
+
+        return success;
+    }
+
+    /**
+     * Completes the rebuild: atomically swaps the alias to the rebuilt index,
+     * stops dual writes and deletes the previous index.
+     *
+     * @return <code>true</code> if the alias was swapped, <code>false</code> otherwise (in which
+     *         case the rebuild is still in progress and may be retried or aborted).
+     */
+    synchronized boolean completeRebuild() {
+
+        String newIndexName = rebuildIndex;
+
+        if (newIndexName == null) return false;
+
+        List<String> oldIndexNames = getAliasedIndexes(alias);
 
-            JsonNode colorNode = root.path("_source").path("color");
-            JsonNode textNode = root.path("_source").path("text");
+        if (oldIndexNames == null || ! swapAlias(alias, oldIndexNames, newIndexName)) return false;
 
-            Item item = new Item(colorNode.asText(), textNode.asText());
+        rebuildIndex = null;
 
-            result = new ItemResult();
+        for (String oldIndexName : oldIndexNames) {
 
-            ((ItemResult)result).success = true;
-            ((ItemResult)result).payload = item;
+            if (! deleteIndex(oldIndexName)) logger.warn("could not delete previous index " + oldIndexName);
         }
 
+        logger.info("Elasticsearch alias " + alias + " now points to " + newIndexName);
+
+        return true;
+    }
+
+    /**
+     * Aborts the rebuild: stops dual writes and deletes the partially rebuilt index.
+     * Queries continue to be served from the current index.
+     */
+    synchronized void abortRebuild() {
+
+        String newIndexName = rebuildIndex;
+
+        if (newIndexName == null) return;
+
+        rebuildIndex = null;
+
+        deleteIndex(newIndexName);
+
+        logger.warn("aborted rebuild of Elasticsearch index " + newIndexName);
+    }
+
+    /**
+     * @see ItemIndex#getDocumentById(String)
+     */
+    @Override
+    public String getDocumentById(String id) {
+
+        IndexOperationEvent event = new IndexOperationEvent();
+        event.begin();
+
+        VersionedIDItem idItem;
+
         try {
-            return mapper.writeValueAsString(result);
+            idItem = getVersionedDocument(id);
         } catch (IOException e) {
+            event.record(BACKEND_NAME, "get", id, "failed", 0, 0);
             return JsonUtils.NO_SUCCESS;
         }
+
+        event.record(BACKEND_NAME, "get", id, idItem == null ? "not_found" : "found", idItem == null ? 0 : 1, 0);
+
+        return ItemIndex.serializeItem(idItem == null ? null : idItem.getItem());
+    }
+
+    /**
+     * Returns the document with the specified ID together with its version.
+     *
+     * @param id the requested document ID.
+     * @return the document with the specified ID, <code>null</code> if the document was not found.
+     * @throws IOException if the document could not be retrieved from Elasticsearch.
+     */
+    VersionedIDItem getVersionedDocument(String id) throws IOException {
+
+        String url = "http://localhost:9200/" + alias + "/item/" + id;
+
+        String responseString = HttpUtils.get(url);
+
+        logger.debug("Elasticsearch get document response = " + responseString);
+
+        if (responseString == null) throw new IOException("no reply from Elasticsearch");
+
+        ObjectMapper mapper = new ObjectMapper();
+
+        JsonNode root = mapper.readTree(responseString);
+
+        JsonNode foundNode = root.path("found");
+
+        // a missing index is reported as an error object without found node
+        if (foundNode.isMissingNode() && root.has("error")) {
+            throw new IOException("Elasticsearch get document failed: " + root.path("error"));
+        }
+
+        boolean found = BooleanUtils.toBoolean(foundNode.asText());
+
+        staticLogger.debug("object with ID " + id + (found ? "" : " not") + " found");
+
+        if (! found) return null;
+
+        // for simplicity, additional error handling omitted
+
+        JsonNode colorNode = root.path("_source").path("color");
+        JsonNode textNode = root.path("_source").path("text");
+
+        Item item = new Item(colorNode.asText(), textNode.asText());
+
+        try {
+            return new VersionedIDItem(id, item, root.path("_version").asInt());
+        } catch (IllegalArgumentException e) {
+            return null; // not a UUID
+        }
     }
 
     /**
@@ -190,64 +551,519 @@ public class ElasticIndex implements ItemIndex {
     @Override
     public String getDocumentsByColor(String color) {
 
-        String url = "http://localhost:9200/items/item/_search?size=100";
+        return ItemIndex.writeToString(generator -> writeDocumentsByColor(color, ResultLayout.ENVELOPE, generator));
+    }
+
+    /**
+     * @see ItemIndex#writeDocumentsByColor(String, ResultLayout, JsonGenerator)
+     *
+     * This method pages through all matching documents with the scroll API and copies the
+     * <code>_source</code> of each hit (filtered to color and text) from the streamed
+     * Elasticsearch response directly to the generator, so neither the response nor the result
+     * is ever held in memory as a whole. In the <code>LINES</code> layout, the generator is
+     * flushed after every page, so that clients receive the documents page by page.
+     */
+    @Override
+    public void writeDocumentsByColor(String color, ResultLayout layout, JsonGenerator generator)
+            throws IOException {
 
-        String dataBinary = "{\"query\":{\"query_string\":{\"query\":\"" + color
+        IndexOperationEvent event = new IndexOperationEvent();
+        event.begin();
+
+        String url = "http://localhost:9200/" + alias + "/item/_search?scroll=" + SCROLL_KEEP_ALIVE +
+                "&size=" + SCROLL_PAGE_SIZE;
+
+        // only color and text are returned, so the output matches the other indexes (the version is internal)
+        String dataBinary = "{\"_source\":[\"color\",\"text\"],\"query\":{\"query_string\":{\"query\":\"" + color
                 + "\",\"fields\":[\"color\"]}}}";
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
-        CloseableHttpResponse response = null;
+        HttpPost request = new HttpPost(url); // POST for search with request body
+        request.setEntity(new StringEntity(dataBinary, "UTF-8"));
 
-        HttpPost request = new HttpPost(url); // POST for create/modify document
+        ScrollPage page = writeScrollPage(request, layout, generator, true);
 
-        StringEntity params;
-        try {
-            params = new StringEntity(dataBinary);
-        } catch (UnsupportedEncodingException e) {
-            return JsonUtils.NO_SUCCESS;
+        if (page == null) {
+            event.record(BACKEND_NAME, "scan", color, "failed", 0, 0);
+            throw new IOException("color query failed"); // nothing written yet
         }
-        request.setEntity(params);
 
-        String responseString;
+        if (layout == ResultLayout.LINES) generator.flush();
+
+        int size = page.numHits;
+        String scrollId = page.scrollId;
 
         try {
-            response = client.execute(request);
-            HttpEntity entity = response.getEntity();
-            responseString = EntityUtils.toString(entity);
 
-        } catch (IOException e) {
-            return JsonUtils.NO_SUCCESS;
+            while (page.numHits > 0 && scrollId != null) {
+
+                ObjectNode scrollNode = JsonUtils.MAPPER.createObjectNode();
+                scrollNode.put("scroll", SCROLL_KEEP_ALIVE);
+                scrollNode.put("scroll_id", scrollId);
+
+                HttpPost scrollRequest = new HttpPost("http://localhost:9200/_search/scroll");
+                scrollRequest.setEntity(new StringEntity(JsonUtils.MAPPER.writeValueAsString(scrollNode), "UTF-8"));
+
+                page = writeScrollPage(scrollRequest, layout, generator, false);
+
+                if (page == null) {
+                    event.record(BACKEND_NAME, "scan", color, "failed", size, 0);
+                    throw new IOException("Elasticsearch scroll failed after " + size + " documents");
+                }
+
+                if (layout == ResultLayout.LINES) generator.flush();
+
+                size += page.numHits;
+                if (page.scrollId != null) scrollId = page.scrollId;
+            }
+
         } finally {
-            HttpUtils.cleanup(response, client);
+            if (scrollId != null) clearScroll(scrollId);
         }
 
-        ObjectMapper mapper = new ObjectMapper();
+        ItemIndex.writeItemArrayEnd(size, layout, generator);
 
-        JsonNode root;
+        event.record(BACKEND_NAME, "scan", color, "success", size, 0);
+    }
+
+    /**
+     * @see QueryableIndex#query(Query)
+     *
+     * The condition is translated into a bool query in filter context (no scoring), and the
+     * window is requested with <code>from</code> and <code>size</code>, sorted by ID.
+     */
+    @Override
+    public QueryResult query(Query query) throws IOException {
+
+        IndexOperationEvent event = new IndexOperationEvent();
+        event.begin();
+
+        ObjectNode searchNode = JsonUtils.MAPPER.createObjectNode();
+        searchNode.set("query", toElasticQuery(query.where));
+        searchNode.put("from", query.offset);
+        searchNode.put("size", query.limit);
+        searchNode.put("version", true);
+        searchNode.putArray("_source").add("color").add("text");
+        searchNode.putArray("sort").addObject().put("_uid", "asc");
+
+        String dataBinary = JsonUtils.MAPPER.writeValueAsString(searchNode);
+
+        HttpPost request = new HttpPost("http://localhost:9200/" + alias + "/item/_search");
+        request.setEntity(new StringEntity(dataBinary, "UTF-8"));
+
+        String responseString = HttpUtils.execute(request);
+
+        JsonNode hitsNode = responseString == null ? null : JsonUtils.MAPPER.readTree(responseString).path("hits");
+
+        if (hitsNode == null || ! hitsNode.path("hits").isArray()) {
+            event.record(BACKEND_NAME, "query", query.where.toString(), "failed", 0, 0);
+            throw new IOException("Elasticsearch query failed");
+        }
+
+        QueryResult result = new QueryResult();
+
+        result.success = true;
+        result.total = hitsNode.path("total").asLong();
+        result.plan = "elasticsearch " + searchNode.get("query");
+        result.payload = new ArrayList<>();
+
+        for (JsonNode hitNode : hitsNode.path("hits")) {
+
+            JsonNode sourceNode = hitNode.path("_source");
+
+            Item item = new Item(sourceNode.path("color").asText(), sourceNode.path("text").asText());
+
+            result.payload.add(query.project(new VersionedIDItem(hitNode.path("_id").asText(), item,
+                    hitNode.path("_version").asInt())));
+        }
+
+        result.size = result.payload.size();
+
+        event.record(BACKEND_NAME, "query", query.where.toString(), "success", result.size, 0);
+
+        return result;
+    }
+
+    /**
+     * @see FacetedIndex#getColorCounts()
+     *
+     * The counts come from a terms aggregation on the color, without retrieving any hits (<code>size=0</code>).
+     */
+    @Override
+    public Map<String, Long> getColorCounts() throws IOException {
+
+        IndexOperationEvent event = new IndexOperationEvent();
+        event.begin();
+
+        String dataBinary = "{\"size\":0,\"aggs\":{\"colors\":{\"terms\":{\"field\":\"color.keyword\",\"size\":" +
+                MAX_COLOR_BUCKETS + "}}}}";
+
+        HttpPost request = new HttpPost("http://localhost:9200/" + alias + "/item/_search");
+        request.setEntity(new StringEntity(dataBinary, "UTF-8"));
+
+        String responseString = HttpUtils.execute(request);
+
+        JsonNode bucketsArray = responseString == null ? null :
+                JsonUtils.MAPPER.readTree(responseString).path("aggregations").path("colors").path("buckets");
+
+        if (bucketsArray == null || ! bucketsArray.isArray()) {
+            event.record(BACKEND_NAME, "facets", "color", "failed", 0, 0);
+            throw new IOException("Elasticsearch color aggregation failed");
+        }
+
+        Map<String, Long> counts = new TreeMap<>();
+
+        for (JsonNode bucketNode : bucketsArray) counts.put(bucketNode.path("key").asText(), bucketNode.path("doc_count").asLong());
+
+        event.record(BACKEND_NAME, "facets", "color", "success", counts.size(), 0);
+
+        return counts;
+    }
+
+    /**
+     * Translates a condition into an Elasticsearch query.
+     *
+     * @param condition the condition.
+     * @return the query.
+     */
+    static ObjectNode toElasticQuery(Condition condition) {
+
+        ObjectNode queryNode = JsonUtils.MAPPER.createObjectNode();
+
+        if (condition instanceof Condition.And) {
+
+            List<Condition> operands = ((Condition.And)condition).operands;
+
+            if (operands.isEmpty()) {
+                queryNode.putObject("match_all");
+            } else {
+                ArrayNode filterArray = queryNode.putObject("bool").putArray("filter");
+                for (Condition operand : operands) filterArray.add(toElasticQuery(operand));
+            }
+
+        } else if (condition instanceof Condition.Or) {
+
+            ObjectNode boolNode = queryNode.putObject("bool");
+            ArrayNode shouldArray = boolNode.putArray("should");
+            for (Condition operand : ((Condition.Or)condition).operands) shouldArray.add(toElasticQuery(operand));
+            boolNode.put("minimum_should_match", 1);
+
+        } else if (condition instanceof Condition.Not) {
+
+            queryNode.putObject("bool").putArray("must_not").add(toElasticQuery(((Condition.Not)condition).operand));
+
+        } else if (condition instanceof Condition.IdEquals) {
+
+            queryNode.putObject("ids").putArray("values").add(((Condition.IdEquals)condition).id);
+
+        } else if (condition instanceof Condition.ColorEquals) {
+
+            queryNode.putObject("term").put("color.keyword", ((Condition.ColorEquals)condition).color);
+
+        } else if (condition instanceof Condition.TextContains) {
+
+            queryNode.putObject("match").putObject("text")
+                    .put("query", String.join(" ", ((Condition.TextContains)condition).terms))
+                    .put("operator", "and");
+
+        } else if (condition instanceof Condition.VersionRange) {
+
+            Condition.VersionRange range = (Condition.VersionRange)condition;
+
+            ObjectNode rangeNode = queryNode.putObject("range").putObject("version");
+            if (range.min != Long.MIN_VALUE) rangeNode.put("gte", range.min);
+            if (range.max != Long.MAX_VALUE) rangeNode.put("lte", range.max);
+
+        } else {
+            throw new IllegalArgumentException("unsupported condition " + condition);
+        }
+
+        return queryNode;
+    }
+
+    /**
+     * @see ReconcilableIndex#getRangeDigests(Predicate)
+     *
+     * This method scrolls through all documents, retrieving only their IDs and versions.
+     */
+    @Override
+    public long[] getRangeDigests(Predicate<String> documentFilter) throws IOException {
+
+        long[] digests = new long[RangeDigests.NUM_RANGES];
+
+        scrollVersions((id, version) -> {
+            if (documentFilter.test(id)) RangeDigests.add(digests, id, version);
+        });
+
+        return digests;
+    }
+
+    /**
+     * @see ReconcilableIndex#getVersions(BitSet, Predicate)
+     *
+     * This method scrolls through all documents, retrieving only their IDs and versions.
+     */
+    @Override
+    public Map<String, Long> getVersions(BitSet ranges, Predicate<String> documentFilter) throws IOException {
+
+        Map<String, Long> versions = new HashMap<>();
+
+        scrollVersions((id, version) -> {
+            if (ranges.get(RangeDigests.rangeOf(id)) && documentFilter.test(id)) versions.put(id, version);
+        });
+
+        return versions;
+    }
+
+    /**
+     * @see ReconcilableIndex#removeDocuments(Map)
+     *
+     * This method deletes the documents with a single <code>_bulk</code> request. The versions are
+     * external versions, so a document that was updated to a newer version is not deleted.
+     */
+    @Override
+    public int removeDocuments(Map<String, Long> versions) throws IOException {
+
+        if (versions.isEmpty()) return 0;
+
+        StringBuilder dataBinary = new StringBuilder();
+
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+
+            ObjectNode action = JsonUtils.MAPPER.createObjectNode();
+            action.putObject("delete")
+                    .put("_index", alias)
+                    .put("_type", "item")
+                    .put("_id", entry.getKey())
+                    .put("_version", entry.getValue())
+                    .put("_version_type", "external_gte");
+
+            dataBinary.append(JsonUtils.MAPPER.writeValueAsString(action)).append('\n');
+        }
+
+        HttpPost request = new HttpPost("http://localhost:9200/_bulk");
+        request.setEntity(new StringEntity(dataBinary.toString(), "UTF-8"));
+        request.addHeader("content-type", "application/x-ndjson");
+
+        String responseString = HttpUtils.execute(request);
+
+        if (responseString == null) throw new IOException("no reply from Elasticsearch");
+
+        JsonNode itemsArray = JsonUtils.MAPPER.readTree(responseString).path("items");
+
+        if (! itemsArray.isArray()) throw new IOException("Elasticsearch bulk delete failed");
+
+        int numRemoved = 0;
+
+        for (JsonNode itemNode : itemsArray) {
+
+            int status = itemNode.path("delete").path("status").asInt();
+
+            // 404 means the document is already gone, 409 that it was updated meanwhile
+            if (status < 300) ++numRemoved;
+            else if (status != 404 && status != 409) throw new IOException("Elasticsearch bulk delete failed with " + status);
+        }
+
+        return numRemoved;
+    }
+
+    /**
+     * Scrolls through all documents of the index, retrieving only their IDs and versions.
+     *
+     * @param visitor the visitor that is called with the ID and version of every document.
+     * @throws IOException if the documents could not be read.
+     */
+    private void scrollVersions(BiConsumer<String, Long> visitor) throws IOException {
+
+        String url = "http://localhost:9200/" + alias + "/item/_search?scroll=" + SCROLL_KEEP_ALIVE +
+                "&size=" + SCROLL_PAGE_SIZE;
+
+        String dataBinary = "{\"_source\":false,\"version\":true,\"sort\":[\"_doc\"]," +
+                "\"query\":{\"match_all\":{}}}";
+
+        HttpPost request = new HttpPost(url);
+        request.setEntity(new StringEntity(dataBinary, "UTF-8"));
+
+        String scrollId = null;
 
         try {
-            root = mapper.readTree(responseString);
-        } catch (IOException e) {
-            return JsonUtils.NO_SUCCESS;
+
+            while (true) {
+
+                String responseString = HttpUtils.execute(request);
+
+                if (responseString == null) throw new IOException("no reply from Elasticsearch");
+
+                JsonNode root = JsonUtils.MAPPER.readTree(responseString);
+
+                JsonNode hitsArray = root.path("hits").path("hits");
+
+                if (! hitsArray.isArray()) throw new IOException("Elasticsearch version scroll failed");
+
+                if (root.has("_scroll_id")) scrollId = root.path("_scroll_id").asText();
+
+                if (hitsArray.size() == 0 || scrollId == null) break;
+
+                for (JsonNode hitNode : hitsArray) {
+                    visitor.accept(hitNode.path("_id").asText(), hitNode.path("_version").asLong());
+                }
+
+                ObjectNode scrollNode = JsonUtils.MAPPER.createObjectNode();
+                scrollNode.put("scroll", SCROLL_KEEP_ALIVE);
+                scrollNode.put("scroll_id", scrollId);
+
+                request = new HttpPost("http://localhost:9200/_search/scroll");
+                request.setEntity(new StringEntity(JsonUtils.MAPPER.writeValueAsString(scrollNode), "UTF-8"));
+            }
+
+        } finally {
+            if (scrollId != null) clearScroll(scrollId);
+        }
+    }
+
+    /**
+     * @see ReconcilableIndex#getVersions(Collection)
+     *
+     * This method retrieves the versions with a single <code>_mget</code> request.
+     */
+    @Override
+    public Map<String, Long> getVersions(Collection<String> ids) throws IOException {
+
+        Map<String, Long> versions = new HashMap<>();
+
+        if (ids.isEmpty()) return versions;
+
+        ObjectNode idsNode = JsonUtils.MAPPER.createObjectNode();
+        ArrayNode idsArray = idsNode.putArray("ids");
+
+        for (String id : ids) idsArray.add(id);
+
+        HttpPost request = new HttpPost("http://localhost:9200/" + alias + "/item/_mget?_source=false");
+        request.setEntity(new StringEntity(JsonUtils.MAPPER.writeValueAsString(idsNode), "UTF-8"));
+
+        String responseString = HttpUtils.execute(request);
+
+        if (responseString == null) throw new IOException("no reply from Elasticsearch");
+
+        JsonNode docsArray = JsonUtils.MAPPER.readTree(responseString).path("docs");
+
+        if (! docsArray.isArray()) throw new IOException("Elasticsearch multi get failed");
+
+        for (JsonNode docNode : docsArray) {
+
+            if (docNode.path("found").asBoolean(false)) {
+                versions.put(docNode.path("_id").asText(), docNode.path("_version").asLong());
+            }
         }
 
-        JsonNode hitsArray = root.path("hits").path("hits");
+        return versions;
+    }
+
+    /**
+     * Holds the state of a scroll after a page of hits was written.
+     */
+    private static class ScrollPage {
+
+        String scrollId;
+        int numHits;
+    }
+
+    /**
+     * Executes a search or scroll request and copies the <code>_source</code> of every hit in the
+     * response to the generator while the response is being read.
+     *
+     * @param request the search or scroll request.
+     * @param layout the layout of the result.
+     * @param generator the generator to which the hits are written.
+     * @param first <code>true</code> if this is the first page, in which case the start of the
+     *              result is written as soon as the hits are found in the response.
+     * @return the scroll state after this page, <code>null</code> if the response contained no hits
+     *         (e.g. an error response).
+     * @throws IOException if the response could not be read or the hits could not be written.
+     */
+    private ScrollPage writeScrollPage(HttpUriRequest request, ResultLayout layout, JsonGenerator generator,
+                                       boolean first) throws IOException {
+
+        CloseableHttpClient client = HttpUtils.sharedClient();
+        CloseableHttpResponse response = null;
+
+        try {
+
+            response = client.execute(request);
+            HttpEntity entity = response.getEntity();
+
+            if (entity == null) return null;
 
-        if (! hitsArray.isArray()) return JsonUtils.NO_SUCCESS;
+            try (JsonParser parser = JsonUtils.MAPPER.getFactory().createParser(entity.getContent())) {
 
-        List<Item> matchingItems = new ArrayList<>();
+                if (parser.nextToken() != JsonToken.START_OBJECT) return null;
 
-        for (JsonNode objectNode : hitsArray) {
+                ScrollPage page = new ScrollPage();
+                boolean foundHits = false;
 
-            JsonNode colorNode = objectNode.path("_source").path("color");
-            JsonNode textNode = objectNode.path("_source").path("text");
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
 
-            Item item = new Item(colorNode.asText(), textNode.asText());
+                    String fieldName = parser.getCurrentName();
+                    parser.nextToken();
+
+                    if (fieldName.equals("_scroll_id")) {
+
+                        page.scrollId = parser.getText();
+
+                    } else if (fieldName.equals("hits") && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+
+                            String hitsFieldName = parser.getCurrentName();
+                            parser.nextToken();
+
+                            if (! hitsFieldName.equals("hits") || parser.getCurrentToken() != JsonToken.START_ARRAY) {
+                                parser.skipChildren();
+                                continue;
+                            }
+
+                            foundHits = true;
+                            if (first) ItemIndex.writeItemArrayStart(layout, generator);
+
+                            while (parser.nextToken() == JsonToken.START_OBJECT) { // iterate hits
+
+                                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+
+                                    String hitFieldName = parser.getCurrentName();
+                                    parser.nextToken();
+
+                                    if (hitFieldName.equals("_source")) {
+                                        generator.copyCurrentStructure(parser);
+                                        ++page.numHits;
+                                    } else {
+                                        parser.skipChildren();
+                                    }
+                                }
+                            }
+                        }
+
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+
+                return foundHits ? page : null;
+            }
 
-            matchingItems.add(item);
+        } finally {
+            HttpUtils.cleanup(response);
         }
+    }
+
+    /**
+     * Releases the search context of a scroll in Elasticsearch.
+     *
+     * @param scrollId the ID of the scroll that is to be released.
+     */
+    private void clearScroll(String scrollId) {
+
+        String responseString = HttpUtils.execute(new HttpDelete("http://localhost:9200/_search/scroll/" + scrollId));
 
-        return ItemIndex.serializeItems(matchingItems);
+        logger.debug("Elasticsearch clear scroll response = " + responseString);
     }
 
     /**
@@ -255,17 +1071,46 @@ public class ElasticIndex implements ItemIndex {
      *
      * This method uses the external version feature of Elasticseach to implement OCC.
      * The external version is the intrinsic version of EmoDB.
+     *
+     * While the index is being rebuilt, the update is also written to the rebuilt index.
+     * The result only reflects the update of the index that currently serves queries.
      */
     @Override
-    public boolean updateDocument(VersionedIDItem newItem) {
+    public UpdateOutcome updateDocument(VersionedIDItem newItem) {
+
+        IndexOperationEvent event = new IndexOperationEvent();
+        event.begin();
+
+        String indexName = rebuildIndex;
+
+        if (indexName != null && ! updateDocument(indexName, newItem).isSuccess()) {
+            logger.debug("dual write of document " + newItem.getId() + " to " + indexName + " not applied");
+        }
+
+        UpdateOutcome outcome = updateDocument(alias, newItem);
+
+        // Elasticsearch checks the external version itself, so there are no retries
+        event.record(BACKEND_NAME, "update", newItem.getId(), outcome.name().toLowerCase(), 1, 0);
 
-        String url = "http://localhost:9200/items/item/" + newItem.getId() +
+        return outcome;
+    }
+
+    /**
+     * Updates a document in the specified index or alias.
+     *
+     * @param indexName the index or alias the document is written to.
+     * @param newItem the item that is to be updated.
+     * @return the outcome of the update.
+     */
+    private UpdateOutcome updateDocument(String indexName, VersionedIDItem newItem) {
+
+        String url = "http://localhost:9200/" + indexName + "/item/" + newItem.getId() +
                 "?version=" + newItem.getVersion() + "&version_type=external";
 
         String dataBinary = "{\"color\":\"" + newItem.getItem().getColor() +
-                "\",\"text\":\"" + newItem.getItem().getText() + "\"}";
+                "\",\"text\":\"" + newItem.getItem().getText() + "\",\"version\":" + newItem.getVersion() + "}";
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient client = HttpUtils.sharedClient();
         CloseableHttpResponse response = null;
 
         HttpPut request = new HttpPut(url); // PUT for create table
@@ -274,7 +1119,7 @@ public class ElasticIndex implements ItemIndex {
         try {
             params = new StringEntity(dataBinary);
         } catch (UnsupportedEncodingException e) {
-            return false;
+            return UpdateOutcome.FAILED;
         }
         request.setEntity(params);
 
@@ -292,10 +1137,10 @@ public class ElasticIndex implements ItemIndex {
 
             logger.debug("no valid reply from Elasticsearch during update document");
 
-            return false;
+            return UpdateOutcome.FAILED;
 
         } finally {
-            HttpUtils.cleanup(response, client);
+            HttpUtils.cleanup(response);
         }
 
         ObjectMapper mapper = new ObjectMapper();
@@ -306,7 +1151,7 @@ public class ElasticIndex implements ItemIndex {
             root = mapper.readTree(responseString);
         } catch (IOException e) {
             logger.debug("could not retrieve Elasticsearch description from localhost:9200");
-            return false;
+            return UpdateOutcome.FAILED;
         }
 
         JsonNode resultNode = root.path("result");
@@ -316,26 +1161,34 @@ public class ElasticIndex implements ItemIndex {
             if (resultNode.asText().equals("created")) {
 
                 logger.debug("created Elasticsearch document " + newItem.getId());
-                return true;
+                return UpdateOutcome.CREATED;
 
             } else if (resultNode.asText().equals("updated")) {
 
                 logger.debug("updated Elasticsearch document" + newItem.getId());
-                return true;
+                return UpdateOutcome.UPDATED;
 
             } else {
 
                 logger.debug("unrecognized result string (neither 'created' nor 'updated') for document "
                         + newItem.getId());
 
-                return false;
+                return UpdateOutcome.FAILED;
             }
 
+        } else if (root.path("status").asInt() == 409) {
+
+            // the external version is not newer than the version of the indexed document
+
+            logger.debug("outdated Elasticsearch document " + newItem.getId());
+
+            return UpdateOutcome.OUTDATED;
+
         } else {
 
             logger.debug("unable to locate result node in Elasticsearch update document reply");
 
-            return false;
+            return UpdateOutcome.FAILED;
         }
     }
 }
@@ -0,0 +1,21 @@
+package com.dubeanddube.emodb.search;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Defines the functions an index provides to count documents by color (facets) without
+ * retrieving them.
+ *
+ * @author Dominique Dube
+ */
+interface FacetedIndex {
+
+    /**
+     * Returns the number of indexed documents of each color.
+     *
+     * @return the number of documents by color, sorted by color. Colors without documents are omitted.
+     * @throws IOException if the documents could not be counted.
+     */
+    Map<String, Long> getColorCounts() throws IOException;
+}
@@ -1,19 +1,97 @@
 package com.dubeanddube.emodb.search;
 
 import com.dubeanddube.emodb.data.*;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.List;
 
 /**
  * Defines the interface to items indexes.
- * This prototype supports two index implementions (memory hash map, local Elasticsearch).
+ * This prototype supports three index implementions (memory hash map, local Elasticsearch,
+ * and a memory hot tier in front of local Elasticsearch).
  *
  * @author Dominique Dube
  */
 public interface ItemIndex {
 
+    SerializableString LINE_SEPARATOR = new SerializedString("\n");
+
+    /**
+     * Writes JSON to a generator (used to serialize results in a streaming fashion).
+     */
+    @FunctionalInterface
+    interface JsonWriter {
+
+        /**
+         * Writes JSON to the specified generator.
+         *
+         * @param generator the generator to which the JSON is written.
+         * @throws IOException if the JSON could not be written.
+         */
+        void writeTo(JsonGenerator generator) throws IOException;
+    }
+
+    /**
+     * Helper function to collect the output of a JSON writer in a string.
+     *
+     * @param writer the writer that produces the JSON.
+     * @return the JSON string produced by the writer,
+     *         <code>JsonUtils.NO_SUCCESS</code> if the writer fails.
+     */
+    static String writeToString(JsonWriter writer) {
+
+        StringWriter stringWriter = new StringWriter();
+
+        try (JsonGenerator generator = JsonUtils.MAPPER.getFactory().createGenerator(stringWriter)) {
+            writer.writeTo(generator);
+        } catch (IOException e) {
+            return JsonUtils.NO_SUCCESS;
+        }
+
+        return stringWriter.toString();
+    }
+
+    /**
+     * Helper function to write a JSON string to a generator. The string is copied as is to text
+     * generators, and transcoded for generators of binary formats (e.g. Smile, CBOR).
+     *
+     * @param jsonString the JSON string that is to be written.
+     * @param generator the generator to which the JSON is written.
+     * @throws IOException if the JSON could not be parsed or written.
+     */
+    static void writeJsonString(String jsonString, JsonGenerator generator) throws IOException {
+
+        if (! generator.canWriteBinaryNatively()) {
+            generator.writeRawValue(jsonString);
+            return;
+        }
+
+        try (JsonParser parser = JsonUtils.MAPPER.getFactory().createParser(jsonString)) {
+
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+    }
+
+    /**
+     * Helper function to serialize a single item to a JSON result string.
+     *
+     * @param item the item that is to be serialized, <code>null</code> if no matching item was found.
+     * @return a JSON string with the serialized item (or the "no match found" message),
+     *         <code>JsonUtils.NO_SUCCESS</code> if the serialization fails.
+     */
+    static String serializeItem(Item item) {
+
+        return writeToString(generator -> writeItemResult(item, generator));
+    }
+
     /**
      * Helper function to serialize a list of items to a JSON array string.
      *
@@ -29,12 +107,93 @@ public interface ItemIndex {
         result.payload = items;
 
         try {
-            return (new ObjectMapper()).writeValueAsString(result);
+            return JsonUtils.MAPPER.writeValueAsString(result);
         } catch (JsonProcessingException e) {
             return JsonUtils.NO_SUCCESS;
         }
     }
 
+    /**
+     * Helper function to write a single item result (same format as <code>serializeItem</code>).
+     *
+     * @param item the item that is to be written, <code>null</code> if no matching item was found.
+     * @param generator the generator to which the result is written.
+     * @throws IOException if the result could not be written.
+     */
+    static void writeItemResult(Item item, JsonGenerator generator) throws IOException {
+
+        generator.writeStartObject();
+        generator.writeBooleanField("success", true);
+
+        if (item == null) {
+            generator.writeStringField("payload", "no match found");
+        } else {
+            generator.writeFieldName("payload");
+            writeItem(item, generator);
+        }
+
+        generator.writeEndObject();
+    }
+
+    /**
+     * Helper function to write a single item as JSON object.
+     *
+     * @param item the item that is to be written.
+     * @param generator the generator to which the item is written.
+     * @throws IOException if the item could not be written.
+     */
+    static void writeItem(Item item, JsonGenerator generator) throws IOException {
+
+        generator.writeStartObject();
+        generator.writeStringField("color", item.getColor());
+        generator.writeStringField("text", item.getText());
+        generator.writeEndObject();
+    }
+
+    /**
+     * Helper function to start writing an item array result. The items are written next,
+     * followed by <code>writeItemArrayEnd</code>.
+     *
+     * Unlike <code>serializeItems</code>, the size is written after the payload, as it is not
+     * known before all items have been written. In the <code>LINES</code> layout, the items are
+     * written as root-level values separated by newlines, without anything around them.
+     *
+     * @param layout the layout of the result.
+     * @param generator the generator to which the result is written.
+     * @throws IOException if the result could not be written.
+     */
+    static void writeItemArrayStart(ResultLayout layout, JsonGenerator generator) throws IOException {
+
+        if (layout == ResultLayout.LINES) {
+            generator.setRootValueSeparator(LINE_SEPARATOR);
+            return;
+        }
+
+        generator.writeStartObject();
+        generator.writeBooleanField("success", true);
+        generator.writeArrayFieldStart("payload");
+    }
+
+    /**
+     * Helper function to finish writing an item array result.
+     *
+     * @param size the number of items that were written.
+     * @param layout the layout of the result.
+     * @param generator the generator to which the result is written.
+     * @throws IOException if the result could not be written.
+     */
+    static void writeItemArrayEnd(int size, ResultLayout layout, JsonGenerator generator) throws IOException {
+
+        if (layout == ResultLayout.LINES) {
+            if (size > 0) generator.writeRaw('\n'); // terminates the last line
+            return;
+        }
+
+        generator.writeEndArray();
+        generator.writeNumberField("size", size);
+        generator.writeEndObject();
+    }
+
     /**
      * Returns the document with the specified ID.
      *
@@ -56,13 +215,71 @@ public interface ItemIndex {
      */
     String getDocumentsByColor(String color);
 
+    /**
+     * Writes the document with the specified ID to the specified generator, in the same
+     * format as returned by <code>getDocumentById</code>.
+     *
+     * Unlike <code>getDocumentById</code>, a failure is reported by an exception rather than
+     * written to the generator, so that callers can tell it apart from a result.
+     *
+     * Implementations should override this method to avoid building the intermediate string.
+     *
+     * @param id the requested document ID.
+     * @param generator the generator to which the document is written.
+     * @throws IOException if the document could not be retrieved or written.
+     */
+    default void writeDocumentById(String id, JsonGenerator generator) throws IOException {
+
+        String jsonString = getDocumentById(id);
+
+        if (JsonUtils.NO_SUCCESS.equals(jsonString)) throw new IOException("document query failed");
+
+        writeJsonString(jsonString, generator);
+    }
+
+    /**
+     * Writes all documents with the specified color to the specified generator as they are
+     * retrieved from the index, in the same format as returned by <code>getDocumentsByColor</code>
+     * (except that the size follows the payload) or one document per line. A failure is reported
+     * by an exception; if it occurs after the first document was written, the output remains
+     * incomplete.
+     *
+     * Implementations should override this method to avoid building the intermediate string.
+     *
+     * @param color the requested document color.
+     * @param layout the layout of the result.
+     * @param generator the generator to which the documents are written.
+     * @throws IOException if the documents could not be retrieved or written.
+     */
+    default void writeDocumentsByColor(String color, ResultLayout layout, JsonGenerator generator)
+            throws IOException {
+
+        String jsonString = getDocumentsByColor(color);
+
+        if (JsonUtils.NO_SUCCESS.equals(jsonString)) throw new IOException("color query failed");
+
+        if (layout == ResultLayout.ENVELOPE) {
+            writeJsonString(jsonString, generator);
+            return;
+        }
+
+        JsonNode payload = JsonUtils.MAPPER.readTree(jsonString).path("payload");
+
+        writeItemArrayStart(layout, generator);
+
+        for (JsonNode itemNode : payload) generator.writeTree(itemNode);
+
+        writeItemArrayEnd(payload.size(), layout, generator);
+    }
+
     /**
      * Updates a document in the index. The update will only succeed if the corresponding
      * document does not yet exist or if the version of the update is newer than the
      * version of the existing document.
      *
      * @param newItem the item that is to be updated.
-     * @return <code>true</code> if the item was updated successfully, <code>false</code> otherwise.
+     * @return the outcome of the update, which distinguishes updates that were not applied
+     *         because they are outdated from updates that failed.
      */
-    boolean updateDocument(VersionedIDItem newItem);
+    UpdateOutcome updateDocument(VersionedIDItem newItem);
 }
@@ -0,0 +1,132 @@
+package com.dubeanddube.emodb.search;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the latencies and failures of the most recent calls to a backend in a rolling window.
+ *
+ * Percentiles are recomputed lazily (at most every <code>RECOMPUTE_INTERVAL</code> samples),
+ * so that reading them on every call stays cheap.
+ *
+ * @author Dominique Dube
+ */
+class LatencyTracker {
+
+    private static final int RECOMPUTE_INTERVAL = 16;
+
+    private final long[] latencies;
+    private final boolean[] failures;
+
+    private int next = 0;
+    private int count = 0;
+    private int numFailures = 0;
+
+    private int samplesSinceRecompute = 0;
+    private long p50Nanos = 0;
+    private long p99Nanos = 0;
+
+    /**
+     * Constructs a latency tracker with the specified window size.
+     *
+     * @param windowSize the number of most recent calls that are tracked.
+     */
+    LatencyTracker(int windowSize) {
+
+        this.latencies = new long[windowSize];
+        this.failures = new boolean[windowSize];
+    }
+
+    /**
+     * Records a call to the backend.
+     *
+     * @param latencyNanos the latency of the call in nanoseconds.
+     * @param success <code>true</code> if the call succeeded, <code>false</code> otherwise.
+     */
+    synchronized void record(long latencyNanos, boolean success) {
+
+        if (count == latencies.length) {
+            if (failures[next]) --numFailures; // sample falls out of the window
+        } else {
+            ++count;
+        }
+
+        latencies[next] = latencyNanos;
+        failures[next] = ! success;
+        if (! success) ++numFailures;
+
+        next = (next + 1) % latencies.length;
+
+        if (++samplesSinceRecompute >= RECOMPUTE_INTERVAL) recompute();
+    }
+
+    /**
+     * Returns the number of calls in the window.
+     *
+     * @return the number of calls in the window.
+     */
+    synchronized int getSampleCount() {
+
+        return count;
+    }
+
+    /**
+     * Returns the fraction of failed calls in the window.
+     *
+     * @return the error rate between 0 and 1, 0 if no calls were recorded.
+     */
+    synchronized double getErrorRate() {
+
+        return count == 0 ? 0.0 : (double)numFailures / count;
+    }
+
+    /**
+     * Returns the median latency of the calls in the window.
+     *
+     * @return the median latency in nanoseconds, 0 if no calls were recorded.
+     */
+    synchronized long getP50Nanos() {
+
+        if (samplesSinceRecompute > 0 && p50Nanos == 0) recompute();
+        return p50Nanos;
+    }
+
+    /**
+     * Returns the 99th percentile latency of the calls in the window.
+     *
+     * @return the 99th percentile latency in nanoseconds, 0 if no calls were recorded.
+     */
+    synchronized long getP99Nanos() {
+
+        if (samplesSinceRecompute > 0 && p99Nanos == 0) recompute();
+        return p99Nanos;
+    }
+
+    /**
+     * Clears the window, e.g. after the backend recovered from an outage.
+     */
+    synchronized void reset() {
+
+        next = 0;
+        count = 0;
+        numFailures = 0;
+        samplesSinceRecompute = 0;
+        p50Nanos = 0;
+        p99Nanos = 0;
+    }
+
+    /**
+     * Recomputes the percentiles from the calls in the window.
+     */
+    private void recompute() {
+
+        samplesSinceRecompute = 0;
+
+        if (count == 0) return;
+
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+
+        p50Nanos = sorted[(int)Math.ceil(0.50 * count) - 1];
+        p99Nanos = sorted[(int)Math.ceil(0.99 * count) - 1];
+    }
+}
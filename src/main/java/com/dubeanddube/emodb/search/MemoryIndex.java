@@ -1,29 +1,124 @@
 package com.dubeanddube.emodb.search;
 
 import com.dubeanddube.emodb.data.*;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.dubeanddube.emodb.events.IndexOperationEvent;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.Histogram;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vvcephei.occ_map.OCCHashMap;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * Implements the memory-based index using the OCC hash map.
  *
+ * For compound queries, the index also maintains posting lists: the IDs of the documents by color
+ * and by text term. The query planner intersects the posting lists of the conditions that have one,
+ * smallest first, and only verifies the remaining candidates against the full condition; conditions
+ * without posting lists (version ranges, negations) fall back to a scan of all documents.
+ *
+ * The number of documents per color is counted on every update, so facets and counts by color
+ * are answered without looking at the documents.
+ *
  * @author Dominique Dube
  */
-class MemoryIndex implements ItemIndex {
+class MemoryIndex implements ItemIndex, ReconcilableIndex, QueryableIndex, FacetedIndex {
 
     private final Logger logger = LoggerFactory.getLogger(MemoryIndex.class); // some basic logging
 
+    private static final String BACKEND_NAME = "memory"; // flight recorder events
+
+    // failed compare-and-replace attempts before an update escalates to its lock stripe (0: never)
+    private static final int MAX_OCC_RETRIES = Integer.getInteger("emodb.memoryIndex.maxOccRetries", 8);
+
+    private static final int NUM_LOCK_STRIPES = 64; // power of two
+
+    private static final Histogram OCC_RETRIES = Metrics.sizeHistogram("emodb_memory_index_occ_retries",
+            "Failed compare-and-replace attempts per document update in the memory-based index.");
+
+    private static final Counter OCC_RETRIES_TOTAL = Metrics.counter("emodb_memory_index_occ_retries_total",
+            "Failed compare-and-replace attempts in the memory-based index.");
+
+    private static final Counter LOCK_ESCALATIONS = Metrics.counter("emodb_memory_index_lock_escalations_total",
+            "Document updates in the memory-based index that exceeded the retry cap and took a striped lock.");
+
     private OCCHashMap<String, VersionedIDItem> itemsMap = new OCCHashMap<>();
 
-    // omitting default constructor
+    // maintained on every successful update, so reading the digests costs nothing
+    private final AtomicLongArray rangeDigests = new AtomicLongArray(RangeDigests.NUM_RANGES);
+
+    // fallback for hot documents, so that contending writers queue up instead of spinning
+    // (also serializes the posting list maintenance per document)
+    private final Lock[] lockStripes = new Lock[NUM_LOCK_STRIPES];
+
+    // document IDs by color and by text term (may briefly contain stale IDs, candidates are verified)
+    private final Map<String, Set<String>> colorPostings = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> textPostings = new ConcurrentHashMap<>();
+
+    // number of documents by color, adjusted in O(1) by every update that creates, recolors, or removes a document
+    private final Map<String, LongAdder> colorCounts = new ConcurrentHashMap<>();
+
+    /**
+     * The candidates of a (sub-)condition chosen by the query planner.
+     */
+    private static class Plan {
+
+        final Set<String> ids; // candidate IDs, null if all documents must be scanned
+        final String description;
+
+        /**
+         * Constructs a plan.
+         *
+         * @param ids the candidate IDs, <code>null</code> if all documents must be scanned.
+         * @param description describes how the candidates were found.
+         */
+        Plan(Set<String> ids, String description) {
+
+            this.ids = ids;
+            this.description = description;
+        }
+    }
+
+    /**
+     * Constructs an empty memory-based index for the default table and exports its size as a gauge.
+     */
+    MemoryIndex() {
+
+        this(TableConfig.DEFAULT_TABLE);
+    }
+
+    /**
+     * Constructs an empty memory-based index and exports its size as a gauge.
+     *
+     * @param table the name of the indexed table (for the gauge).
+     */
+    MemoryIndex(String table) {
+
+        for (int i = 0; i < lockStripes.length; ++i) lockStripes[i] = new ReentrantLock();
+
+        Metrics.gauge("emodb_memory_index_documents", "Number of documents in the memory-based index.",
+                () -> itemsMap.size(), "table", table);
+    }
 
     /**
      * @see ItemIndex#getDocumentById(String)
@@ -31,74 +126,536 @@ class MemoryIndex implements ItemIndex {
     @Override
     public String getDocumentById(String id) {
 
+        return ItemIndex.writeToString(generator -> writeDocumentById(id, generator));
+    }
+
+    /**
+     * @see ItemIndex#getDocumentsByColor(String)
+     */
+    @Override
+    public String getDocumentsByColor(String color) {
+
+        return ItemIndex.writeToString(generator -> writeDocumentsByColor(color, ResultLayout.ENVELOPE, generator));
+    }
+
+    /**
+     * @see ItemIndex#writeDocumentById(String, JsonGenerator)
+     */
+    @Override
+    public void writeDocumentById(String id, JsonGenerator generator) throws IOException {
+
+        IndexOperationEvent event = new IndexOperationEvent();
+        event.begin();
+
         VersionedIDItem idItem = itemsMap.get(id);
 
-        JsonResult result;
+        event.record(BACKEND_NAME, "get", id, idItem == null ? "not_found" : "found", idItem == null ? 0 : 1, 0);
+
+        ItemIndex.writeItemResult(idItem == null ? null : idItem.getItem(), generator);
+    }
+
+    /**
+     * @see ItemIndex#writeDocumentsByColor(String, ResultLayout, JsonGenerator)
+     *
+     * Matching items are written while iterating the hash map, without collecting them first.
+     */
+    @Override
+    public void writeDocumentsByColor(String color, ResultLayout layout, JsonGenerator generator)
+            throws IOException {
+
+        IndexOperationEvent event = new IndexOperationEvent();
+        event.begin();
+
+        ItemIndex.writeItemArrayStart(layout, generator);
+
+        int size = 0;
+
+        for (VersionedIDItem idItem : itemsMap.values()) {
+
+            if (idItem.getItem().matchesColor(color)) {
+                ItemIndex.writeItem(idItem.getItem(), generator);
+                ++size;
+            }
+        }
+
+        ItemIndex.writeItemArrayEnd(size, layout, generator);
+
+        event.record(BACKEND_NAME, "scan", color, "success", size, 0);
+    }
+
+    /**
+     * @see ItemIndex#updateDocument(VersionedIDItem)
+     *
+     * The item is installed with compare-and-replace, which fails if the document was changed
+     * concurrently. After <code>MAX_OCC_RETRIES</code> failed attempts, the update takes the lock
+     * stripe of the document and tries again, so that writers of a hot document queue up on the
+     * lock instead of spinning. Writers that have not escalated may still win against the lock
+     * holder, but every lost attempt means a newer version was installed, so the loop ends. If
+     * the document was removed concurrently, the update inserts it instead.
+     */
+    @Override
+    public UpdateOutcome updateDocument(VersionedIDItem newItem) {
+
+        IndexOperationEvent event = new IndexOperationEvent();
+        event.begin();
+
+        String id = newItem.getId();
+        long versionLong = newItem.getVersion();
+
+        VersionedIDItem prevItem = itemsMap.putIfAbsent(id, newItem);
+
+        boolean created = prevItem == null;
+        VersionedIDItem replacedItem = null;
+        int numRetries = 0; // failed attempts, the document was changed concurrently
+
+        Lock lock = null; // taken once the retry cap is reached
+
+        try {
+
+            while (! created && versionLong > prevItem.getVersion()) {
+
+                if (itemsMap.replace(id, prevItem, newItem)) {
+
+                    rangeDigests.addAndGet(RangeDigests.rangeOf(id),
+                            RangeDigests.hash(id, versionLong) - RangeDigests.hash(id, prevItem.getVersion()));
+
+                    replacedItem = prevItem;
+                    break;
+                }
+
+                if (++numRetries == MAX_OCC_RETRIES) {
+
+                    LOCK_ESCALATIONS.inc();
+
+                    lock = lockStripes[id.hashCode() & (NUM_LOCK_STRIPES - 1)];
+                    lock.lock();
+                }
+
+                prevItem = itemsMap.get(id);
+
+                if (prevItem == null) {
+
+                    // removed concurrently (by removeDocuments), so the document is inserted again
+                    prevItem = itemsMap.putIfAbsent(id, newItem);
+                    created = prevItem == null;
+                }
+            }
+
+        } finally {
+            if (lock != null) lock.unlock();
+        }
+
+        if (created) {
+
+            rangeDigests.addAndGet(RangeDigests.rangeOf(id), RangeDigests.hash(id, versionLong));
+
+            updatePostings(id, null);
+            countColor(newItem.getItem().getColor(), 1);
+
+        } else if (replacedItem != null) {
+
+            updatePostings(id, replacedItem);
+
+            // the replaced version is exact (compare-and-replace), so the counts cannot drift
+            if (! newItem.getItem().matchesColor(replacedItem.getItem().getColor())) {
+                countColor(replacedItem.getItem().getColor(), -1);
+                countColor(newItem.getItem().getColor(), 1);
+            }
+        }
+
+        OCC_RETRIES.observe(numRetries);
+        OCC_RETRIES_TOTAL.inc(numRetries);
+
+        UpdateOutcome outcome = created ? UpdateOutcome.CREATED
+                : replacedItem != null ? UpdateOutcome.UPDATED : UpdateOutcome.OUTDATED;
+
+        event.record(BACKEND_NAME, "update", id, outcome.name().toLowerCase(), 1, numRetries);
+
+        return outcome;
+    }
+
+    /**
+     * Removes documents from the index (e.g. the documents of shards that moved to another
+     * cluster member). A document that is updated concurrently is removed in its updated version.
+     *
+     * @param idFilter accepts the IDs of the documents that are to be removed.
+     * @return the number of removed documents.
+     */
+    int removeDocuments(Predicate<String> idFilter) {
+
+        int numRemoved = 0;
+
+        for (String id : itemsMap.keySet()) {
+
+            if (! idFilter.test(id)) continue;
+
+            VersionedIDItem idItem;
+
+            while ((idItem = itemsMap.get(id)) != null) {
+
+                if (removeDocument(idItem)) {
+                    ++numRemoved;
+                    break;
+                }
+            }
+        }
+
+        return numRemoved;
+    }
+
+    /**
+     * @see ReconcilableIndex#removeDocuments(Map)
+     */
+    @Override
+    public int removeDocuments(Map<String, Long> versions) {
+
+        int numRemoved = 0;
+
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+
+            VersionedIDItem idItem = itemsMap.get(entry.getKey());
+
+            if (idItem != null && idItem.getVersion() == entry.getValue() && removeDocument(idItem)) ++numRemoved;
+        }
+
+        return numRemoved;
+    }
+
+    /**
+     * Removes the specified version of a document (compare-and-remove, so that the range digest,
+     * postings and color counts subtract exactly the removed version).
+     *
+     * @param idItem the version of the document that is to be removed.
+     * @return <code>true</code> if the document was removed, <code>false</code> if it was updated
+     *         or removed concurrently.
+     */
+    private boolean removeDocument(VersionedIDItem idItem) {
+
+        String id = idItem.getId();
+
+        if (! itemsMap.remove(id, idItem)) return false;
+
+        rangeDigests.addAndGet(RangeDigests.rangeOf(id), -RangeDigests.hash(id, idItem.getVersion()));
+        updatePostings(id, idItem);
+        countColor(idItem.getItem().getColor(), -1);
+
+        return true;
+    }
+
+    /**
+     * @see QueryableIndex#query(Query)
+     *
+     * The matches are collected and sorted by ID before the window is taken, so paging is stable
+     * as long as the documents do not change.
+     */
+    @Override
+    public QueryResult query(Query query) {
+
+        IndexOperationEvent event = new IndexOperationEvent();
+        event.begin();
+
+        if (query.limit == 0 && query.where instanceof Condition.ColorEquals) {
 
-        if (idItem == null) {
+            // only the number of documents of a color is requested, which is counted anyway
 
-            result = new MessageResult();
-            ((MessageResult)result).success = true;
-            ((MessageResult)result).payload = "no match found";
+            QueryResult result = new QueryResult();
+
+            result.success = true;
+            result.total = getColorCounts().getOrDefault(((Condition.ColorEquals)query.where).color, 0L);
+            result.plan = "color count";
+            result.payload = new ArrayList<>();
+
+            event.record(BACKEND_NAME, "query", query.where.toString(), "success", 0, 0);
+
+            return result;
+        }
+
+        Plan plan = plan(query.where);
+
+        List<VersionedIDItem> matches = new ArrayList<>();
+
+        if (plan.ids == null) {
+
+            for (VersionedIDItem idItem : itemsMap.values()) {
+                if (query.where.matches(idItem)) matches.add(idItem);
+            }
 
         } else {
 
-            result = new ItemResult();
-            ((ItemResult)result).success = true;
-            ((ItemResult)result).payload = idItem.getItem();
+            for (String id : plan.ids) {
+
+                VersionedIDItem idItem = itemsMap.get(id);
+                if (idItem != null && query.where.matches(idItem)) matches.add(idItem);
+            }
+        }
+
+        matches.sort(Comparator.comparing(VersionedIDItem::getId));
+
+        QueryResult result = new QueryResult();
+
+        result.success = true;
+        result.total = matches.size();
+        result.plan = plan.ids == null ?
+                "scan of " + itemsMap.size() + " documents" :
+                plan.description + " -> " + plan.ids.size() + " candidates verified";
+        result.payload = new ArrayList<>();
+
+        for (int i = query.offset; i < matches.size() && i < query.offset + query.limit; ++i) {
+            result.payload.add(query.project(matches.get(i)));
+        }
+
+        result.size = result.payload.size();
+
+        event.record(BACKEND_NAME, "query", query.where.toString(), "success", result.size, 0);
+
+        return result;
+    }
+
+    /**
+     * Chooses the candidates of a condition from the posting lists.
+     *
+     * @param condition the condition.
+     * @return the plan, whose candidates include all documents satisfying the condition
+     *         (but possibly others).
+     */
+    private Plan plan(Condition condition) {
+
+        if (condition instanceof Condition.IdEquals) {
+
+            String id = ((Condition.IdEquals)condition).id;
+
+            return new Plan(Collections.singleton(id), "id " + id);
+
+        } else if (condition instanceof Condition.ColorEquals) {
+
+            String color = ((Condition.ColorEquals)condition).color;
+            Set<String> ids = colorPostings.getOrDefault(color, Collections.emptySet());
+
+            return new Plan(ids, "color " + color + " [" + ids.size() + "]");
+
+        } else if (condition instanceof Condition.TextContains) {
+
+            List<Plan> termPlans = new ArrayList<>();
+
+            for (String term : ((Condition.TextContains)condition).terms) {
+
+                Set<String> ids = textPostings.getOrDefault(term, Collections.emptySet());
+                termPlans.add(new Plan(ids, "text " + term + " [" + ids.size() + "]"));
+            }
+
+            return intersect(termPlans);
+
+        } else if (condition instanceof Condition.And) {
+
+            List<Plan> indexedPlans = new ArrayList<>();
+
+            for (Condition operand : ((Condition.And)condition).operands) {
+
+                Plan plan = plan(operand);
+                if (plan.ids != null) indexedPlans.add(plan); // the other operands only filter the candidates
+            }
+
+            return indexedPlans.isEmpty() ? new Plan(null, "scan") : intersect(indexedPlans);
+
+        } else if (condition instanceof Condition.Or) {
+
+            Set<String> ids = new HashSet<>();
+            StringBuilder description = new StringBuilder("union(");
+
+            for (Condition operand : ((Condition.Or)condition).operands) {
+
+                Plan plan = plan(operand);
+
+                if (plan.ids == null) return new Plan(null, "scan"); // one unindexed operand requires a scan anyway
+
+                ids.addAll(plan.ids);
+                description.append(description.length() > 6 ? ", " : "").append(plan.description);
+            }
+
+            return new Plan(ids, description.append(')').toString());
+        }
+
+        return new Plan(null, "scan"); // version ranges and negations have no posting lists
+    }
+
+    /**
+     * Intersects the candidates of several plans, starting with the smallest, so that the work is
+     * bounded by the most selective posting list.
+     *
+     * @param plans the plans, all with candidates.
+     * @return the plan of the intersection.
+     */
+    private static Plan intersect(List<Plan> plans) {
+
+        if (plans.size() == 1) return plans.get(0);
+
+        plans.sort(Comparator.comparingInt(plan -> plan.ids.size()));
+
+        Set<String> ids = new HashSet<>(plans.get(0).ids);
+        StringBuilder description = new StringBuilder("intersect(").append(plans.get(0).description);
+
+        for (Plan plan : plans.subList(1, plans.size())) {
+
+            if (ids.isEmpty()) break;
+
+            ids.retainAll(plan.ids);
+            description.append(", ").append(plan.description);
         }
 
-        ObjectMapper mapper = new ObjectMapper();
+        return new Plan(ids, description.append(')').toString());
+    }
+
+    /**
+     * Brings the posting lists of a document up to date after it was created, replaced, or removed.
+     * The document's current state is read under its lock stripe, so that concurrent maintenance of
+     * the same document cannot reorder and leave a posting of the current state missing.
+     *
+     * @param id the document ID.
+     * @param previousItem the replaced or removed document, <code>null</code> if it was created.
+     */
+    private void updatePostings(String id, VersionedIDItem previousItem) {
+
+        Lock lock = lockStripes[id.hashCode() & (NUM_LOCK_STRIPES - 1)];
+        lock.lock();
 
         try {
-            return mapper.writeValueAsString(result);
-        } catch (IOException e) {
-            return JsonUtils.NO_SUCCESS;
+
+            VersionedIDItem currentItem = itemsMap.get(id);
+
+            String currentColor = currentItem == null ? null : currentItem.getItem().getColor();
+            Set<String> currentTerms = currentItem == null || currentItem.getItem().getText() == null ?
+                    Collections.emptySet() : Condition.termsOf(currentItem.getItem().getText());
+
+            if (previousItem != null) {
+
+                String previousColor = previousItem.getItem().getColor();
+
+                if (previousColor != null && ! previousColor.equals(currentColor)) removePosting(colorPostings, previousColor, id);
+
+                if (previousItem.getItem().getText() != null) {
+
+                    for (String term : Condition.termsOf(previousItem.getItem().getText())) {
+                        if (! currentTerms.contains(term)) removePosting(textPostings, term, id);
+                    }
+                }
+            }
+
+            if (currentColor != null) colorPostings.computeIfAbsent(currentColor, key -> ConcurrentHashMap.newKeySet()).add(id);
+
+            for (String term : currentTerms) textPostings.computeIfAbsent(term, key -> ConcurrentHashMap.newKeySet()).add(id);
+
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * @see ItemIndex#getDocumentsByColor(String)
+     * Adjusts the number of documents of a color.
+     *
+     * @param color the color, <code>null</code> for documents without color (not counted).
+     * @param delta the change of the number of documents.
+     */
+    private void countColor(String color, int delta) {
+
+        if (color != null) colorCounts.computeIfAbsent(color, key -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * @see FacetedIndex#getColorCounts()
      */
     @Override
-    public String getDocumentsByColor(String color) {
+    public Map<String, Long> getColorCounts() {
 
-        Collection<VersionedIDItem> idItems = itemsMap.values();
+        Map<String, Long> counts = new TreeMap<>();
 
-        List<Item> matchingItems = idItems.stream()
-                .map(VersionedIDItem::getItem)
-                .filter(item -> item.matchesColor(color))
-                .collect(Collectors.toCollection(ArrayList::new));
+        for (Map.Entry<String, LongAdder> entry : colorCounts.entrySet()) {
 
+            long count = entry.getValue().sum();
+            if (count > 0) counts.put(entry.getKey(), count);
+        }
 
-        return ItemIndex.serializeItems(matchingItems);
+        return counts;
     }
 
     /**
-     * @see ItemIndex#updateDocument(VersionedIDItem)
+     * Removes a document ID from a posting list (empty lists are kept, there are few of them).
+     *
+     * @param postings the posting lists.
+     * @param key the key of the posting list.
+     * @param id the document ID.
+     */
+    private static void removePosting(Map<String, Set<String>> postings, String key, String id) {
+
+        Set<String> ids = postings.get(key);
+        if (ids != null) ids.remove(id);
+    }
+
+    /**
+     * Returns a view of all documents in the index (e.g. for a snapshot sent to a replica). The view
+     * is weakly consistent: it reflects some of the updates made while iterating it, and never fails.
+     *
+     * @return the documents in the index.
+     */
+    Collection<VersionedIDItem> getDocuments() {
+
+        return Collections.unmodifiableCollection(itemsMap.values());
+    }
+
+    /**
+     * @see ReconcilableIndex#getRangeDigests(Predicate)
+     *
+     * The digests are maintained incrementally over all documents; only the documents that are
+     * not accepted (usually none, see <code>removeDocuments</code>) are subtracted.
      */
     @Override
-    public boolean updateDocument(VersionedIDItem newItem) {
+    public long[] getRangeDigests(Predicate<String> documentFilter) {
 
-        // remark: maximum number of retries possible extension
+        long[] digests = new long[RangeDigests.NUM_RANGES];
 
-        String id = newItem.getId();
-        long versionLong = newItem.getVersion();
+        for (int i = 0; i < digests.length; ++i) digests[i] = rangeDigests.get(i);
 
-        VersionedIDItem prevItem = itemsMap.putIfAbsent(id, newItem);
+        for (VersionedIDItem idItem : itemsMap.values()) {
 
-        boolean success = prevItem == null;
+            String id = idItem.getId();
 
-        while (! success && versionLong > prevItem.getVersion()) {
+            if (! documentFilter.test(id)) digests[RangeDigests.rangeOf(id)] -= RangeDigests.hash(id, idItem.getVersion());
+        }
 
-            success = itemsMap.replace(id, prevItem, newItem);
-            if (success) break; // shortcut
+        return digests;
+    }
 
-            prevItem = itemsMap.get(id);
+    /**
+     * @see ReconcilableIndex#getVersions(Collection)
+     */
+    @Override
+    public Map<String, Long> getVersions(Collection<String> ids) {
+
+        Map<String, Long> versions = new HashMap<>();
+
+        for (String id : ids) {
+
+            VersionedIDItem idItem = itemsMap.get(id);
+            if (idItem != null) versions.put(id, idItem.getVersion());
         }
 
-        logger.info("hash map size = " + itemsMap.size());
+        return versions;
+    }
+
+    /**
+     * @see ReconcilableIndex#getVersions(BitSet, Predicate)
+     */
+    @Override
+    public Map<String, Long> getVersions(BitSet ranges, Predicate<String> documentFilter) {
+
+        Map<String, Long> versions = new HashMap<>();
+
+        for (VersionedIDItem idItem : itemsMap.values()) {
+
+            String id = idItem.getId();
+
+            if (ranges.get(RangeDigests.rangeOf(id)) && documentFilter.test(id)) versions.put(id, idItem.getVersion());
+        }
 
-        return success;
+        return versions;
     }
 }
@@ -0,0 +1,163 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Defines a compound query: a condition (see <code>Condition</code>), a window of the matching
+ * documents in order of their IDs, and the fields that are returned of each document.
+ *
+ * Queries are parsed from JSON objects, e.g.
+ *
+ * {"where": {"and": [{"color": "green"}, {"text": "lorem"}]}, "offset": 0, "limit": 20, "fields": ["id", "text"]}
+ *
+ * All parts are optional: by default all documents match, and the first 100 documents are
+ * returned with all fields.
+ *
+ * @author Dominique Dube
+ */
+public class Query {
+
+    public static final List<String> ALL_FIELDS = Collections.unmodifiableList(Arrays.asList("id", "color", "text", "version"));
+
+    private static final int DEFAULT_LIMIT = 100;
+
+    // the window (offset + limit) is bounded like Elasticsearch's max_result_window
+    public static final int MAX_WINDOW = 10000;
+
+    public final Condition where;
+    public final int offset;
+    public final int limit;
+    public final List<String> fields; // subset of ALL_FIELDS
+
+    /**
+     * Constructs a query.
+     *
+     * @param where the condition the documents must satisfy.
+     * @param offset the number of matching documents (in order of their IDs) that are skipped.
+     * @param limit the maximum number of matching documents that are returned.
+     * @param fields the fields that are returned of each document.
+     */
+    public Query(Condition where, int offset, int limit, List<String> fields) {
+
+        this.where = where;
+        this.offset = offset;
+        this.limit = limit;
+        this.fields = Collections.unmodifiableList(fields);
+    }
+
+    /**
+     * Parses a query (see the class description for the format).
+     *
+     * @param json the query as JSON object.
+     * @return the query.
+     * @throws IllegalArgumentException if the query is malformed.
+     */
+    public static Query fromJson(String json) throws IllegalArgumentException {
+
+        JsonNode node;
+
+        try {
+            node = json == null || json.trim().isEmpty() ? JsonUtils.MAPPER.createObjectNode() : JsonUtils.MAPPER.readTree(json);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("query is not valid JSON: " + e.getMessage());
+        }
+
+        if (! node.isObject()) throw new IllegalArgumentException("query must be an object");
+
+        Iterator<String> names = node.fieldNames();
+
+        while (names.hasNext()) {
+
+            String name = names.next();
+
+            if (! Arrays.asList("where", "offset", "limit", "fields").contains(name)) {
+                throw new IllegalArgumentException("unknown query field " + name);
+            }
+        }
+
+        int offset = intOf(node, "offset", 0);
+        int limit = intOf(node, "limit", DEFAULT_LIMIT);
+
+        if ((long)offset + limit > MAX_WINDOW) {
+            throw new IllegalArgumentException("offset + limit must not exceed " + MAX_WINDOW);
+        }
+
+        List<String> fields = ALL_FIELDS;
+
+        if (node.has("fields")) {
+
+            JsonNode fieldsNode = node.get("fields");
+
+            if (! fieldsNode.isArray() || fieldsNode.size() == 0) {
+                throw new IllegalArgumentException("fields requires a non-empty array of field names");
+            }
+
+            fields = new ArrayList<>();
+
+            for (JsonNode field : fieldsNode) {
+
+                if (! ALL_FIELDS.contains(field.asText())) {
+                    throw new IllegalArgumentException("unknown field " + field.asText() + " (expected one of " + ALL_FIELDS + ")");
+                }
+
+                if (! fields.contains(field.asText())) fields.add(field.asText());
+            }
+        }
+
+        return new Query(Condition.fromJson(node.get("where")), offset, limit, fields);
+    }
+
+    /**
+     * Returns the requested fields of a matching document.
+     *
+     * @param idItem the document.
+     * @return the requested fields by name, in the requested order.
+     */
+    Map<String, Object> project(VersionedIDItem idItem) {
+
+        Map<String, Object> document = new LinkedHashMap<>();
+
+        for (String field : fields) {
+
+            switch (field) {
+                case "id": document.put(field, idItem.getId()); break;
+                case "color": document.put(field, idItem.getItem().getColor()); break;
+                case "text": document.put(field, idItem.getItem().getText()); break;
+                case "version": document.put(field, idItem.getVersion()); break;
+            }
+        }
+
+        return document;
+    }
+
+    /**
+     * Returns a non-negative integer field of a query.
+     *
+     * @param node the query.
+     * @param name the name of the field.
+     * @param defaultValue the value if the field is missing.
+     * @return the value of the field.
+     * @throws IllegalArgumentException if the field is not a non-negative integer.
+     */
+    private static int intOf(JsonNode node, String name, int defaultValue) throws IllegalArgumentException {
+
+        if (! node.has(name)) return defaultValue;
+
+        JsonNode value = node.get(name);
+
+        if (! value.isInt() || value.asInt() < 0) throw new IllegalArgumentException(name + " requires a non-negative integer");
+
+        return value.asInt();
+    }
+}
@@ -0,0 +1,22 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.QueryResult;
+
+import java.io.IOException;
+
+/**
+ * Defines the functions an index provides to evaluate compound queries (see <code>Query</code>).
+ *
+ * @author Dominique Dube
+ */
+interface QueryableIndex {
+
+    /**
+     * Evaluates a compound query.
+     *
+     * @param query the query.
+     * @return the total number of matching documents, and the requested window of them in order of their IDs.
+     * @throws IOException if the query could not be evaluated.
+     */
+    QueryResult query(Query query) throws IOException;
+}
@@ -0,0 +1,89 @@
+package com.dubeanddube.emodb.search;
+
+/**
+ * Computes Merkle-style digests over (ID, version) pairs, partitioned into a fixed number of ID
+ * ranges. Two sets of documents agree on a range if and only if (with high probability) their
+ * digests for that range are equal.
+ *
+ * A range digest is the sum (modulo 2^64) of the hashes of all its (ID, version) pairs. Sums do
+ * not depend on the order in which documents are visited and can be maintained incrementally by
+ * adding the hash of a new version and subtracting the hash of the replaced one.
+ *
+ * @author Dominique Dube
+ */
+final class RangeDigests {
+
+    static final int NUM_RANGES = 1024; // must be a power of two
+
+    private static final int RANGE_BITS = Integer.numberOfTrailingZeros(NUM_RANGES);
+
+    private RangeDigests() {
+    }
+
+    /**
+     * Returns the range the document with the specified ID falls into.
+     *
+     * @param id the document ID.
+     * @return the range of the document, between 0 and <code>NUM_RANGES - 1</code>.
+     */
+    static int rangeOf(String id) {
+
+        return (int)(hashId(id) >>> (64 - RANGE_BITS));
+    }
+
+    /**
+     * Returns the digest contribution of the specified (ID, version) pair.
+     *
+     * @param id the document ID.
+     * @param version the document version.
+     * @return the hash of the (ID, version) pair.
+     */
+    static long hash(String id, long version) {
+
+        return mix(hashId(id) ^ mix(version + 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+     * Adds the specified (ID, version) pair to the digests.
+     *
+     * @param digests the range digests (of length <code>NUM_RANGES</code>).
+     * @param id the document ID.
+     * @param version the document version.
+     */
+    static void add(long[] digests, String id, long version) {
+
+        digests[rangeOf(id)] += hash(id, version);
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of a document ID, with a final mixing step
+     * so that the upper bits (which select the range) are well distributed.
+     *
+     * @param id the document ID.
+     * @return the hash of the ID.
+     */
+    private static long hashId(String id) {
+
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < id.length(); ++i) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * Applies the SplitMix64 finalizer to the specified value.
+     *
+     * @param value the value that is to be mixed.
+     * @return the mixed value.
+     */
+    private static long mix(long value) {
+
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,59 @@
+package com.dubeanddube.emodb.search;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Defines the functions an index provides so that its contents can be reconciled with the
+ * system of records (see <code>Reconciler</code>).
+ *
+ * @author Dominique Dube
+ */
+interface ReconcilableIndex {
+
+    /**
+     * Returns the range digests over the (ID, version) pairs of the indexed documents accepted by
+     * the document filter. The index may hold other documents (e.g. in cluster mode, an
+     * Elasticsearch index shared with the other members), which are left out.
+     *
+     * @see RangeDigests for how the digests are computed.
+     *
+     * @param documentFilter accepts the IDs of the documents that are included.
+     * @return the range digests (of length <code>RangeDigests.NUM_RANGES</code>).
+     * @throws IOException if the indexed documents could not be read.
+     */
+    long[] getRangeDigests(Predicate<String> documentFilter) throws IOException;
+
+    /**
+     * Returns the indexed versions of the documents with the specified IDs.
+     *
+     * @param ids the IDs of the documents.
+     * @return the indexed version of each document, by ID. Documents that are not indexed are omitted.
+     * @throws IOException if the versions could not be read.
+     */
+    Map<String, Long> getVersions(Collection<String> ids) throws IOException;
+
+    /**
+     * Returns the indexed versions of all documents in the specified ranges that are accepted by
+     * the document filter.
+     *
+     * @param ranges the ranges (see <code>RangeDigests.rangeOf</code>).
+     * @param documentFilter accepts the IDs of the documents that are included.
+     * @return the indexed version of each document, by ID.
+     * @throws IOException if the versions could not be read.
+     */
+    Map<String, Long> getVersions(BitSet ranges, Predicate<String> documentFilter) throws IOException;
+
+    /**
+     * Removes documents from the index, each only if it is still indexed in the specified version
+     * (a document that was updated meanwhile is kept).
+     *
+     * @param versions the versions of the documents that are to be removed, by ID.
+     * @return the number of removed documents.
+     * @throws IOException if the documents could not be removed.
+     */
+    int removeDocuments(Map<String, Long> versions) throws IOException;
+}
@@ -0,0 +1,259 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.services.EmoSor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Reconciles the contents of an index with the system of records (anti-entropy).
+ *
+ * A reconciliation run first scans the table and computes range digests over the
+ * (ID, version) pairs of all documents, and compares them with the range digests of the index.
+ * Only if some ranges differ, the table is scanned a second time, and the documents in the
+ * differing ranges are compared one by one with the versions in the index. Documents that are
+ * missing from the index or outdated in it are reindexed. Indexed documents in the differing
+ * ranges that the second scan does not return (e.g. left over from a previous run of the table)
+ * are removed from the index.
+ *
+ * Only the documents accepted by the document filter are compared (in cluster mode, the documents
+ * of the shards owned by this member), the others are skipped in both scans and left out of the
+ * digests and versions read from the index (which may hold the documents of other members).
+ *
+ * Both scans are throttled to <code>MAX_SCAN_RATE_PER_SECOND</code> documents per second,
+ * so that reconciliation does not compete with live traffic.
+ *
+ * @author Dominique Dube
+ */
+class Reconciler {
+
+    private final Logger logger = LoggerFactory.getLogger(Reconciler.class); // some basic logging
+
+    private static final int SCAN_BATCH_SIZE = 100;
+
+    private static final int MAX_SCAN_RATE_PER_SECOND = 500;
+
+    private final String table;
+
+    private final Predicate<String> documentFilter;
+
+    private final ReconcilableIndex reconcilableIndex;
+
+    private final ItemIndex targetIndex;
+
+    private final Consumer<Map<String, Long>> removalListener;
+
+    /**
+     * Constructs a reconciler.
+     *
+     * @param table the name of the table the index is built from.
+     * @param documentFilter accepts the IDs of the documents the index is to contain.
+     * @param reconcilableIndex the index whose contents are compared with the system of records.
+     * @param targetIndex the index to which divergent documents are written (which writes
+     *                    through to <code>reconcilableIndex</code>, possibly among others).
+     * @param removalListener is called with the versions of the orphaned documents (by ID) after
+     *                        they were removed from <code>reconcilableIndex</code>.
+     */
+    Reconciler(String table, Predicate<String> documentFilter, ReconcilableIndex reconcilableIndex,
+               ItemIndex targetIndex, Consumer<Map<String, Long>> removalListener) {
+
+        this.table = table;
+        this.documentFilter = documentFilter;
+        this.reconcilableIndex = reconcilableIndex;
+        this.targetIndex = targetIndex;
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * Runs a reconciliation.
+     *
+     * @return the number of reindexed and removed documents, -1 if the reconciliation failed.
+     */
+    int reconcile() {
+
+        long[] sorDigests = new long[RangeDigests.NUM_RANGES];
+
+        long numDocuments = scan(idItems -> {
+
+            for (VersionedIDItem idItem : idItems) {
+                RangeDigests.add(sorDigests, idItem.getId(), idItem.getVersion());
+            }
+
+            return true;
+        });
+
+        if (numDocuments < 0) return -1;
+
+        long[] indexDigests;
+
+        try {
+            indexDigests = reconcilableIndex.getRangeDigests(documentFilter);
+        } catch (IOException e) {
+            logger.warn("failed to read range digests from index - " + e.getMessage());
+            return -1;
+        }
+
+        BitSet divergentRanges = new BitSet(RangeDigests.NUM_RANGES);
+
+        for (int range = 0; range < RangeDigests.NUM_RANGES; ++range) {
+            if (sorDigests[range] != indexDigests[range]) divergentRanges.set(range);
+        }
+
+        logger.debug("compared " + numDocuments + " documents, " + divergentRanges.cardinality() +
+                " of " + RangeDigests.NUM_RANGES + " ranges diverge");
+
+        if (divergentRanges.isEmpty()) return 0;
+
+        // the indexed documents are read before the second scan: any document indexed by then is
+        // already in the table, so the scan returns it unless it is orphaned
+
+        Map<String, Long> orphanedVersions;
+
+        try {
+            orphanedVersions = new HashMap<>(reconcilableIndex.getVersions(divergentRanges, documentFilter));
+        } catch (IOException e) {
+            logger.warn("failed to read versions of divergent ranges from index - " + e.getMessage());
+            return -1;
+        }
+
+        int[] numReindexed = { 0 };
+
+        long numScanned = scan(idItems -> {
+
+            List<VersionedIDItem> candidates = new ArrayList<>();
+            List<String> candidateIds = new ArrayList<>();
+
+            for (VersionedIDItem idItem : idItems) {
+
+                if (divergentRanges.get(RangeDigests.rangeOf(idItem.getId()))) {
+                    candidates.add(idItem);
+                    candidateIds.add(idItem.getId());
+                    orphanedVersions.remove(idItem.getId());
+                }
+            }
+
+            Map<String, Long> indexedVersions;
+
+            try {
+                indexedVersions = reconcilableIndex.getVersions(candidateIds);
+            } catch (IOException e) {
+                logger.warn("failed to read versions from index - " + e.getMessage());
+                return false;
+            }
+
+            for (VersionedIDItem idItem : candidates) {
+
+                Long indexedVersion = indexedVersions.get(idItem.getId());
+
+                // a newer indexed version was written after the document was scanned
+                if (indexedVersion != null && indexedVersion >= idItem.getVersion()) continue;
+
+                if (targetIndex.updateDocument(idItem).isSuccess()) {
+
+                    logger.info("reindexed divergent document " + idItem.getId() + " (version " +
+                            idItem.getVersion() + ", indexed version " + indexedVersion + ")");
+                    ++numReindexed[0];
+                }
+            }
+
+            return true;
+        });
+
+        if (numScanned < 0) return -1;
+
+        // documents of shards this member lost during the scan are not orphaned
+        orphanedVersions.keySet().removeIf(id -> ! documentFilter.test(id));
+
+        if (orphanedVersions.isEmpty()) return numReindexed[0];
+
+        int numRemoved;
+
+        try {
+            numRemoved = reconcilableIndex.removeDocuments(orphanedVersions);
+        } catch (IOException e) {
+            logger.warn("failed to remove " + orphanedVersions.size() + " orphaned documents from index - " + e.getMessage());
+            return -1;
+        }
+
+        removalListener.accept(orphanedVersions);
+
+        logger.info("removed " + numRemoved + " of " + orphanedVersions.size() +
+                " orphaned documents that are not in table " + table);
+
+        return numReindexed[0] + numRemoved;
+    }
+
+    /**
+     * Processes a batch of scanned documents.
+     */
+    @FunctionalInterface
+    private interface BatchProcessor {
+
+        /**
+         * Processes a batch of scanned documents.
+         *
+         * @param idItems the scanned documents.
+         * @return <code>true</code> to continue the scan, <code>false</code> to abort it.
+         */
+        boolean process(List<VersionedIDItem> idItems);
+    }
+
+    /**
+     * Scans the whole table in batches, throttled to the maximum scan rate.
+     *
+     * @param processor the processor that is called for every batch (of accepted documents only).
+     * @return the number of scanned documents, -1 if the scan failed or was aborted.
+     */
+    private long scan(BatchProcessor processor) {
+
+        long numDocuments = 0;
+        String fromKey = null;
+
+        long startMillis = System.currentTimeMillis();
+
+        while (true) {
+
+            List<VersionedIDItem> idItems = EmoSor.readDocuments(table, fromKey, SCAN_BATCH_SIZE);
+
+            if (idItems == null) {
+                logger.warn("failed to scan table " + table + " after " + numDocuments + " documents");
+                return -1;
+            }
+
+            List<VersionedIDItem> acceptedItems = new ArrayList<>(idItems.size());
+
+            for (VersionedIDItem idItem : idItems) if (documentFilter.test(idItem.getId())) acceptedItems.add(idItem);
+
+            if (! processor.process(acceptedItems)) return -1;
+
+            numDocuments += idItems.size();
+
+            if (idItems.size() < SCAN_BATCH_SIZE) return numDocuments; // end of table
+
+            fromKey = idItems.get(idItems.size() - 1).getId();
+
+            // throttle: wait until the scan is back at the maximum scan rate
+
+            long aheadMillis = numDocuments * 1000 / MAX_SCAN_RATE_PER_SECOND -
+                    (System.currentTimeMillis() - startMillis);
+
+            if (aheadMillis > 0) {
+                try {
+                    Thread.sleep(aheadMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+        }
+    }
+}
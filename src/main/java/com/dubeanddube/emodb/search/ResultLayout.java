@@ -0,0 +1,15 @@
+package com.dubeanddube.emodb.search;
+
+/**
+ * Defines the layouts in which item array results can be written.
+ *
+ * @author Dominique Dube
+ */
+public enum ResultLayout {
+
+    // a single JSON object with success flag, payload array, and size (see ItemArrayResult)
+    ENVELOPE,
+
+    // one JSON object per item, each on its own line (newline delimited JSON), nothing else
+    LINES
+}
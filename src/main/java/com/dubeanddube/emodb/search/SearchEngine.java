@@ -1,21 +1,33 @@
 package com.dubeanddube.emodb.search;
 
 import com.dubeanddube.emodb.data.*;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.Histogram;
+import com.dubeanddube.emodb.metrics.Metrics;
 import com.dubeanddube.emodb.services.EmoSor;
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.lang3.math.NumberUtils;
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 
 /**
- * Implements the search index, either based on an internal OCC hash map or Elasticsearch.
+ * Implements the search index, either based on an internal OCC hash map, Elasticsearch, or
+ * a bounded memory hot tier in front of Elasticsearch.
  * If Elasticsearch was chosen but no instance of Elasticsearch is running on localhost:9200,
  * the search engine reverts to an internal OCC hash map.
  *
+ * Each search engine indexes one EmoDB table (see <code>TableConfig</code>); a process indexing
+ * several tables runs one search engine per table.
+ *
  * @author Dominique Dube
  */
 public class SearchEngine implements ItemIndex {
@@ -28,16 +40,67 @@ public class SearchEngine implements ItemIndex {
         MEMORY_HASH_MAP,
 
         // manages an index on a local Elasticsearch instance (localhost:9200)
-        LOCAL_ELASTIC_SEARCH
+        LOCAL_ELASTIC_SEARCH,
+
+        // manages a bounded memory hot tier in front of an index on a local Elasticsearch instance
+        TIERED_ELASTIC_SEARCH,
+
+        // manages both a local hash map and a local Elasticsearch index, routes each query
+        // to the fastest healthy one
+        ADAPTIVE_ELASTIC_SEARCH
+    }
+
+    /**
+     * Receives every document update that was applied to the index.
+     */
+    @FunctionalInterface
+    public interface UpdateListener {
+
+        /**
+         * Called after a document update was applied to the index, on the updating thread
+         * (implementations must not block).
+         *
+         * @param idItem the document that was created or updated.
+         * @param previousColor the color of the document before the update, <code>null</code> if unknown
+         *                      or if the document was created.
+         */
+        void onUpdate(VersionedIDItem idItem, String previousColor);
     }
 
     private IndexType indexType;
 
+    private final String table;
+
     private ItemIndex itemIndex;
 
+    private ElasticIndex elasticIndex; // null unless Elasticsearch is used
+
+    private final QueryableIndex queryableIndex; // evaluates compound queries
+
+    private final FacetedIndex facetedIndex; // counts documents by color
+
+    private static final int HOT_TIER_CAPACITY = 10000;
+
+    private static final int REINDEX_SCAN_BATCH_SIZE = 500;
+
+    private final AtomicBoolean reindexing = new AtomicBoolean(false);
+
+    private final Reconciler reconciler;
+
+    // accepts the IDs of the documents this index is to contain (in cluster mode, those of the owned shards)
+    private volatile Predicate<String> documentFilter = id -> true;
+
+    private final ChangeTracker changeTracker;
+
+    private final List<UpdateListener> updateListeners = new CopyOnWriteArrayList<>();
+
+    private final Histogram updateLatency;
+
+    private final Map<UpdateOutcome, Counter> updateOutcomes = new EnumMap<>(UpdateOutcome.class);
+
     /**
      * Constructs a search index with the specified index type.
-     * If LOCAL_ELASTIC_SEARCH is selected and the elastic search instance cannot be located
+     * If any Elasticsearch-based index type is selected and the elastic search instance cannot be located
      * at localhost:9200 the implementation will revert to the memory-based hash map.
      * (This is for demonstration only).
      *
@@ -45,41 +108,122 @@ public class SearchEngine implements ItemIndex {
      */
     public SearchEngine(IndexType indexType) {
 
+        this(indexType, TableConfig.DEFAULT_TABLE, TableConfig.DEFAULT_TABLE);
+    }
+
+    /**
+     * Constructs a search index of the specified table with the specified index type (see
+     * <code>SearchEngine(IndexType)</code>).
+     *
+     * @param indexType the type of index that is to be used by this search engine.
+     * @param table the name of the indexed table, e.g. <code>items</code>.
+     * @param indexName the name of the Elasticsearch alias of the index, e.g. <code>items</code>.
+     */
+    public SearchEngine(IndexType indexType, String table, String indexName) {
+
         this.indexType = indexType;
+        this.table = table;
+
+        if (indexType == IndexType.ADAPTIVE_ELASTIC_SEARCH) {
+
+            // the memory backend serves all queries while Elasticsearch is down, so Elasticsearch
+            // may also join later: its index is reset once it is up, then it receives the missed updates
+
+            boolean elasticUp = ElasticIndex.isUp();
+
+            logger.info("using both memory-based OCC hash map and Elasticsearch-based indexing " +
+                    "via localhost:9200 with latency-aware routing");
+
+            if (elasticUp) resetElasticIndex(indexName);
+            else logger.warn("no Elasticsearch service found at localhost:9200 yet - serving from memory until it is up");
 
-        if (indexType == IndexType.LOCAL_ELASTIC_SEARCH) {
+            this.elasticIndex = new ElasticIndex(indexName);
+
+            AtomicBoolean elasticReady = new AtomicBoolean(elasticUp);
+
+            AdaptiveIndex adaptiveIndex = new AdaptiveIndex();
+            adaptiveIndex.addBackend("memory", new MemoryIndex(table));
+            adaptiveIndex.addBackend("elasticsearch", elasticIndex, elasticUp, () -> elasticReady.get() ||
+                    (ElasticIndex.isUp() && resetElasticIndex(indexName) && elasticReady.compareAndSet(false, true)));
+
+            this.itemIndex = adaptiveIndex;
+
+        } else if (indexType != IndexType.MEMORY_HASH_MAP) {
 
             if (ElasticIndex.isUp()) {
 
-                logger.info("using Elasticsearch-based indexing via localhost:9200");
+                this.elasticIndex = new ElasticIndex(indexName);
 
-                this.itemIndex = new ElasticIndex();
+                if (indexType == IndexType.TIERED_ELASTIC_SEARCH) {
 
-                // start clean: delete index (if it exists from a previous run)
+                    logger.info("using Elasticsearch-based indexing via localhost:9200 with memory hot tier " +
+                            "(capacity = " + HOT_TIER_CAPACITY + ")");
 
+                    this.itemIndex = new TieredIndex(elasticIndex, HOT_TIER_CAPACITY);
 
-                if (ElasticIndex.deleteIndex()) {
-                    logger.info("deleted existing Elasticsearch items index");
                 } else {
-                    logger.warn("could not delete Elasticsearch items index - clean start?");
+
+                    logger.info("using Elasticsearch-based indexing via localhost:9200");
+
+                    this.itemIndex = elasticIndex;
                 }
 
+                resetElasticIndex(indexName);
+
             } else {
 
                 logger.warn("no Elasticsearch service found at localhost:9200 - " + "" +
                         "reverting to memory-based OCC hash map indexing");
 
                 this.indexType = IndexType.MEMORY_HASH_MAP;
-                itemIndex = new MemoryIndex(); // revert to hash map
+                itemIndex = new MemoryIndex(table); // revert to hash map
             }
 
         } else {
 
             logger.info("using memory-based OCC hash map indexing");
-            itemIndex = new MemoryIndex();
+            itemIndex = new MemoryIndex(table);
+        }
+
+        // the adaptive index routes compound queries like all other queries, behind a hot tier (which
+        // holds only part of the documents) they are evaluated by Elasticsearch
+        queryableIndex = itemIndex instanceof QueryableIndex ? (QueryableIndex)itemIndex : elasticIndex;
+        facetedIndex = itemIndex instanceof FacetedIndex ? (FacetedIndex)itemIndex : elasticIndex;
+
+        // Elasticsearch makes changes visible to searches only after a refresh
+        changeTracker = new ChangeTracker(elasticIndex != null ? ElasticIndex.REFRESH_MILLIS : 0);
+
+        reconciler = new Reconciler(table, id -> documentFilter.test(id),
+                itemIndex instanceof ReconcilableIndex ? (ReconcilableIndex)itemIndex : elasticIndex, this,
+                changeTracker::recordRemovals);
+
+        updateLatency = Metrics.latencyHistogram("emodb_index_update_seconds",
+                "Latency of document updates in the search index.", "index", this.indexType.name(), "table", table);
+
+        for (UpdateOutcome outcome : UpdateOutcome.values()) {
+            updateOutcomes.put(outcome, Metrics.counter("emodb_index_updates_total",
+                    "Document updates in the search index by outcome.", "outcome", outcome.name().toLowerCase(),
+                    "table", table));
         }
     }
 
+    /**
+     * Starts clean: replaces any Elasticsearch index from a previous run with a fresh versioned index.
+     *
+     * @param indexName the name of the Elasticsearch alias of the index.
+     * @return <code>true</code> if the index was reset, <code>false</code> otherwise.
+     */
+    private boolean resetElasticIndex(String indexName) {
+
+        if (ElasticIndex.resetIndex(indexName)) {
+            logger.info("reset Elasticsearch index " + indexName);
+            return true;
+        }
+
+        logger.warn("could not reset Elasticsearch index " + indexName + " - continuing anyway");
+        return false;
+    }
+
     /**
      * Returns the index type that is used by this search index.
      *
@@ -90,6 +234,16 @@ public class SearchEngine implements ItemIndex {
         return indexType;
     }
 
+    /**
+     * Returns the name of the table indexed by this search index.
+     *
+     * @return the name of the indexed table.
+     */
+    public String getTable() {
+
+        return table;
+    }
+
     /**
      * @see ItemIndex#getDocumentById(String)
      */
@@ -108,79 +262,326 @@ public class SearchEngine implements ItemIndex {
         return itemIndex.getDocumentsByColor(color);
     }
 
+    /**
+     * @see ItemIndex#writeDocumentById(String, JsonGenerator)
+     */
+    @Override
+    public void writeDocumentById(String id, JsonGenerator generator) throws IOException {
+
+        itemIndex.writeDocumentById(id, generator);
+    }
+
+    /**
+     * Writes the document with the specified ID if it also has the specified color, in the same
+     * format as <code>writeDocumentById</code>.
+     *
+     * @param id the requested document ID.
+     * @param color the color the document must have.
+     * @param generator the generator to which the result is written.
+     * @throws IOException if the document could not be retrieved or written.
+     */
+    public void writeDocumentById(String id, String color, JsonGenerator generator) throws IOException {
+
+        Query query = new Query(new Condition.And(Arrays.asList(new Condition.IdEquals(id), new Condition.ColorEquals(color))),
+                0, 1, Arrays.asList("color", "text"));
+
+        QueryResult result = query(query);
+
+        Map<String, Object> document = result.payload.isEmpty() ? null : result.payload.get(0);
+
+        ItemIndex.writeItemResult(document == null ? null :
+                new Item((String)document.get("color"), (String)document.get("text")), generator);
+    }
+
+    /**
+     * @see ItemIndex#writeDocumentsByColor(String, ResultLayout, JsonGenerator)
+     */
+    @Override
+    public void writeDocumentsByColor(String color, ResultLayout layout, JsonGenerator generator)
+            throws IOException {
+
+        itemIndex.writeDocumentsByColor(color, layout, generator);
+    }
+
+    /**
+     * Evaluates a compound query (see <code>Query</code>): in memory with the posting lists of the
+     * memory-based index, or as bool query by Elasticsearch.
+     *
+     * @param query the query.
+     * @return the total number of matching documents, and the requested window of them in order of their IDs.
+     * @throws IOException if the query could not be evaluated.
+     */
+    public QueryResult query(Query query) throws IOException {
+
+        return queryableIndex.query(query);
+    }
+
     /**
      * @see ItemIndex#updateDocument(VersionedIDItem)
      */
     @Override
-    public boolean updateDocument(VersionedIDItem newItem) {
+    public UpdateOutcome updateDocument(VersionedIDItem newItem) {
+
+        long startNanos = System.nanoTime();
+
+        UpdateOutcome outcome = itemIndex.updateDocument(newItem);
+
+        updateLatency.observeNanos(System.nanoTime() - startNanos);
+        updateOutcomes.get(outcome).inc();
+
+        if (outcome.isSuccess()) {
+
+            String previousColor = changeTracker.recordUpdate(newItem);
+
+            for (UpdateListener listener : updateListeners) listener.onUpdate(newItem, previousColor);
+        }
+
+        return outcome;
+    }
+
+    /**
+     * Returns the number of documents of each color: from counters maintained on every update in
+     * the memory-based index, or from a terms aggregation in Elasticsearch.
+     *
+     * @return the number of documents by color, sorted by color. Colors without documents are omitted.
+     * @throws IOException if the documents could not be counted.
+     */
+    public Map<String, Long> getColorCounts() throws IOException {
 
-        return itemIndex.updateDocument(newItem);
+        return facetedIndex.getColorCounts();
     }
 
     /**
-     * Loads the sample data in the items table into this search index (milestone 1).
+     * Adds a listener that receives every document update applied to the index from now on.
+     *
+     * @param listener the listener that is to be added.
+     */
+    public void addUpdateListener(UpdateListener listener) {
+
+        updateListeners.add(listener);
+    }
+
+    /**
+     * Restricts the documents this index is to contain, e.g. to the shards owned by this cluster
+     * member. Reconciliations only compare the accepted documents with the table from now on;
+     * documents that are no longer accepted are not removed by this method (see <code>removeDocuments</code>).
+     *
+     * @param documentFilter accepts the IDs of the documents this index is to contain.
+     */
+    public void setDocumentFilter(Predicate<String> documentFilter) {
+
+        this.documentFilter = documentFilter;
+    }
+
+    /**
+     * Loads documents from a full scan of the indexed table into this search index (e.g. the
+     * documents of shards this cluster member gained). Documents already indexed in the same or a
+     * newer version are left as they are.
+     *
+     * @param idFilter accepts the IDs of the documents that are to be loaded.
+     * @return the number of loaded documents, -1 if the scan failed.
+     */
+    public long loadDocuments(Predicate<String> idFilter) {
+
+        long numLoaded = 0;
+        String fromKey = null;
+
+        while (true) {
+
+            List<VersionedIDItem> idItems = EmoSor.readDocuments(table, fromKey, REINDEX_SCAN_BATCH_SIZE);
+
+            if (idItems == null) {
+                logger.warn("failed to load documents of table " + table + " after " + numLoaded + " documents");
+                return -1;
+            }
+
+            for (VersionedIDItem idItem : idItems) {
+                if (idFilter.test(idItem.getId()) && updateDocument(idItem).isSuccess()) ++numLoaded;
+            }
+
+            if (idItems.size() < REINDEX_SCAN_BATCH_SIZE) return numLoaded; // end of table
+
+            fromKey = idItems.get(idItems.size() - 1).getId();
+        }
+    }
+
+    /**
+     * Removes documents from this search index (e.g. the documents of shards that moved to another
+     * cluster member). Only supported by the memory-based index.
+     *
+     * @param idFilter accepts the IDs of the documents that are to be removed.
+     * @return the number of removed documents, -1 if this index does not support removal.
+     */
+    public int removeDocuments(Predicate<String> idFilter) {
+
+        if (! (itemIndex instanceof MemoryIndex)) {
+            logger.warn("removing documents is only supported for memory-based indexing");
+            return -1;
+        }
+
+        int numRemoved = ((MemoryIndex)itemIndex).removeDocuments(idFilter);
+
+        changeTracker.recordRemovals(idFilter);
+
+        return numRemoved;
+    }
+
+    /**
+     * Returns all documents in this search index (e.g. for a snapshot sent to a replica). Only
+     * supported by the memory-based index, whose view reflects concurrent updates only partly.
+     *
+     * @return the documents in the index, <code>null</code> if this index does not support listing them.
+     */
+    public Collection<VersionedIDItem> getDocuments() {
+
+        if (! (itemIndex instanceof MemoryIndex)) return null;
+
+        return ((MemoryIndex)itemIndex).getDocuments();
+    }
+
+    /**
+     * Returns the ETag for the result of <code>getDocumentById</code>, derived from the version
+     * of the document. The tag changes whenever the document is updated.
+     *
+     * @param id the document ID.
+     * @return the ETag, <code>null</code> if no tag can be given (e.g. unknown document).
+     */
+    public String getDocumentTag(String id) {
+
+        return changeTracker.getDocumentTag(id);
+    }
+
+    /**
+     * Returns the ETag for the result of <code>getDocumentsByColor</code>, derived from a counter
+     * of changes to documents of that color. The tag changes whenever a document of that color
+     * is updated, or changes to or from that color.
+     *
+     * @param color the document color.
+     * @return the ETag, <code>null</code> if no tag can be given (e.g. recent change not yet
+     *         visible to queries).
+     */
+    public String getColorTag(String color) {
+
+        return changeTracker.getColorTag(color);
+    }
+
+    /**
+     * Loads the sample data in the indexed table into this search index (milestone 1).
      *
      * @return <code>true</code> if all sample data was loaded successfully, <code>false</code> otherwise.
      */
     public boolean loadSampleData() {
 
-        String responseString = EmoSor.readItems();
+        List<VersionedIDItem> idItems = EmoSor.readDocuments(table, null, 1000);
 
-        // Attempt to parse JSON objects from the response string.
-        // Note that error handling is trivial here - in a productive system, more
-        // should be done to account for all sorts of problems (e.g. no response
-        // at all, unexpected objects, JSON format problems, etc.).
+        if (idItems == null) return false;
 
-        JsonFactory factory = new JsonFactory();
-        ObjectMapper mapper = new ObjectMapper(factory);
+        for (VersionedIDItem idItem : idItems) {
+            updateDocument(idItem); // update document for the first time
+        }
 
-        JsonNode rootNode;
+        return true; // all document updates succeeded
+    }
 
-        try {
-            rootNode = mapper.readTree(responseString);
-        } catch (IOException e) {
-            logger.debug("Unable to create root node from which to obtain items");
+    /**
+     * Reconciles this search index with the indexed table: compares the versions of all documents
+     * in the table with the versions in the index (using range digests, so that ranges
+     * without differences are cheap), reindexes missing or outdated documents, and removes indexed
+     * documents that are not in the table. The scan of the table is throttled, so this method may
+     * run for a long time.
+     *
+     * @return the number of reindexed and removed documents, -1 if the reconciliation failed.
+     */
+    public int reconcile() {
+
+        return reconciler.reconcile();
+    }
+
+    /**
+     * Checks whether this search index can be reindexed, i.e. whether it is based on Elasticsearch.
+     *
+     * @return <code>true</code> if this search index can be reindexed, <code>false</code> otherwise.
+     */
+    public boolean canReindex() {
+
+        return elasticIndex != null;
+    }
+
+    /**
+     * Checks whether a reindex is currently in progress.
+     *
+     * @return <code>true</code> if a reindex is in progress, <code>false</code> otherwise.
+     */
+    public boolean isReindexing() {
+
+        return reindexing.get();
+    }
+
+    /**
+     * Rebuilds the Elasticsearch index from a full scan of the indexed table without downtime.
+     *
+     * The documents are bulk-loaded into a new versioned index while queries continue to be
+     * served from the current index. Document updates arriving in the meantime are written
+     * to both indexes. Once the scan is complete, the alias is swapped atomically and the
+     * previous index is deleted. If anything fails, the new index is discarded and the current
+     * index stays in place.
+     *
+     * Only one reindex can run at a time. The memory-based index is never reindexed.
+     *
+     * @return <code>true</code> if the index was rebuilt and swapped successfully,
+     *         <code>false</code> otherwise.
+     */
+    public boolean reindex() {
+
+        if (! canReindex()) {
+            logger.warn("reindexing is only supported for Elasticsearch-based indexing");
             return false;
         }
 
-        if (! rootNode.isArray()) {
-            logger.debug("Root node is not of type array");
+        if (! reindexing.compareAndSet(false, true)) {
+            logger.warn("reindex already in progress");
             return false;
         }
 
-        for (JsonNode root : rootNode) { // iterate documents
+        try {
+
+            if (! elasticIndex.beginRebuild()) {
+                logger.warn("failed to create new Elasticsearch index for reindex");
+                return false;
+            }
 
-            JsonNode colorNode = root.path("color");
-            String color = colorNode.isMissingNode() ? null : colorNode.asText();
+            long numDocuments = 0;
+            String fromKey = null;
 
-            JsonNode textNode = root.path("text");
-            String text = textNode.isMissingNode() ? null : textNode.asText();
+            while (true) {
 
-            JsonNode idNode = root.path("~id");
-            String id = idNode.isMissingNode() ? null : idNode.asText();
+                List<VersionedIDItem> idItems = EmoSor.readDocuments(table, fromKey, REINDEX_SCAN_BATCH_SIZE);
 
-            JsonNode versionNode = root.path("~version");
-            String version = versionNode.isMissingNode() ? null : versionNode.asText();
+                if (idItems == null || ! elasticIndex.bulkIndex(idItems)) {
+                    logger.warn("failed to reindex table " + table + " after " + numDocuments + " documents");
+                    elasticIndex.abortRebuild();
+                    return false;
+                }
 
-            // some simple error handling
-            if (color == null || text == null || id == null || version == null) {
-                logger.debug("missing JSON node");
-                return false;
-            }
+                numDocuments += idItems.size();
 
-            Item item = new Item(color, text);
+                if (idItems.size() < REINDEX_SCAN_BATCH_SIZE) break; // end of table
 
-            int versionInt = NumberUtils.toInt(version, -1);
+                fromKey = idItems.get(idItems.size() - 1).getId();
+            }
 
-            if (versionInt == -1) {
-                logger.debug("encountered illegal version format");
+            if (! elasticIndex.completeRebuild()) {
+                logger.warn("failed to swap Elasticsearch alias to reindexed table " + table);
+                elasticIndex.abortRebuild();
                 return false;
             }
 
-            VersionedIDItem idItem = new VersionedIDItem(id, item, versionInt);
-            updateDocument(idItem); // update document for the first time
-        }
+            logger.info("reindexed " + numDocuments + " documents of table " + table);
 
-        return true; // all document updates succeeded
+            return true;
+
+        } finally {
+            reindexing.set(false);
+        }
     }
 }
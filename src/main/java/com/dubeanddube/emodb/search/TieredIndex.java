@@ -0,0 +1,347 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Implements a tiered index: a bounded memory-based hot tier in front of the Elasticsearch index.
+ *
+ * Elasticsearch remains the system of record for search and holds the full corpus. The hot tier
+ * holds the most frequently accessed documents (recently read or written) and the results of the
+ * most frequently queried colors, so that the hot working set is served without a round trip to
+ * Elasticsearch.
+ *
+ * Eviction is driven by access frequency: every hit increments an entry's counter, and once the
+ * hot tier exceeds its capacity, the least frequently used entries are evicted and all counters
+ * are halved, so that formerly hot entries age out over time.
+ *
+ * Reconciliation compares Elasticsearch with the system of records; documents it removes from
+ * Elasticsearch are dropped from the hot tier as well.
+ *
+ * @author Dominique Dube
+ */
+class TieredIndex implements ItemIndex, ReconcilableIndex {
+
+    private final Logger logger = LoggerFactory.getLogger(TieredIndex.class); // some basic logging
+
+    // fraction of the capacity evicted at once, which amortizes the cost of an eviction pass
+    private static final double EVICTION_FRACTION = 0.1;
+
+    private static final int MAX_HOT_COLORS = 64;
+
+    /**
+     * Wraps a hot tier value with its access frequency.
+     */
+    private static class HotEntry<V> {
+
+        final V value;
+        final AtomicInteger frequency;
+
+        int frequencySnapshot; // stable sort key during eviction
+
+        HotEntry(V value, int frequency) {
+
+            this.value = value;
+            this.frequency = new AtomicInteger(frequency);
+        }
+    }
+
+    private final ElasticIndex elasticIndex;
+
+    private final int capacity;
+
+    private final Map<String, HotEntry<VersionedIDItem>> hotItems = new ConcurrentHashMap<>();
+
+    // serialized color query results, invalidated whenever a document of that color changes
+    private final Map<String, HotEntry<String>> hotColors = new ConcurrentHashMap<>();
+
+    // when each color (or, for the key "", any color) was last invalidated
+    private final Map<String, Long> colorChangeMillis = new ConcurrentHashMap<>();
+
+    // number of invalidations of each color (or, for the key "", of all colors)
+    private final Map<String, AtomicLong> colorGenerations = new ConcurrentHashMap<>();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Constructs a tiered index on top of the specified Elasticsearch index.
+     *
+     * @param elasticIndex the Elasticsearch index that serves as the system of record for search.
+     * @param capacity the maximum number of documents held in the hot tier.
+     */
+    TieredIndex(ElasticIndex elasticIndex, int capacity) {
+
+        this.elasticIndex = elasticIndex;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @see ItemIndex#getDocumentById(String)
+     *
+     * Served from the hot tier if possible, otherwise read from Elasticsearch and
+     * added to the hot tier.
+     */
+    @Override
+    public String getDocumentById(String id) {
+
+        HotEntry<VersionedIDItem> hotEntry = hotItems.get(id);
+
+        if (hotEntry != null) {
+
+            hotEntry.frequency.incrementAndGet();
+            return ItemIndex.serializeItem(hotEntry.value.getItem());
+        }
+
+        VersionedIDItem idItem;
+
+        try {
+            idItem = elasticIndex.getVersionedDocument(id);
+        } catch (IOException e) {
+            return JsonUtils.NO_SUCCESS;
+        }
+
+        if (idItem == null) return ItemIndex.serializeItem(null);
+
+        putHotItem(idItem);
+
+        return ItemIndex.serializeItem(idItem.getItem());
+    }
+
+    /**
+     * @see ItemIndex#getDocumentsByColor(String)
+     *
+     * Served from the hot tier if the color was queried before and no document of that color
+     * has changed since, otherwise queried from Elasticsearch and added to the hot tier.
+     */
+    @Override
+    public String getDocumentsByColor(String color) {
+
+        HotEntry<String> hotEntry = hotColors.get(color);
+
+        if (hotEntry != null) {
+
+            hotEntry.frequency.incrementAndGet();
+            return hotEntry.value;
+        }
+
+        // a change before the query may not be visible to the search yet (refresh interval), and a
+        // change during the query may be missing from its result, so in either case it is not cached
+
+        boolean cacheable = ! changedRecently(color);
+        long generation = getGeneration(color);
+
+        String jsonString = elasticIndex.getDocumentsByColor(color);
+
+        if (cacheable && ! JsonUtils.NO_SUCCESS.equals(jsonString) && getGeneration(color) == generation) {
+
+            HotEntry<String> newEntry = new HotEntry<>(jsonString, 1);
+
+            hotColors.put(color, newEntry);
+
+            // an invalidation between the check and the put may have missed the new entry
+            if (getGeneration(color) != generation) hotColors.remove(color, newEntry);
+
+            if (hotColors.size() > MAX_HOT_COLORS) evict(hotColors, MAX_HOT_COLORS);
+        }
+
+        return jsonString;
+    }
+
+    /**
+     * @see ItemIndex#updateDocument(VersionedIDItem)
+     *
+     * Writes to Elasticsearch first, then to the hot tier (only if newer than the hot copy).
+     * An outdated update changes nothing, so a hot copy (which is at least as new) is kept. If
+     * Elasticsearch fails, the hot copy is dropped so that subsequent reads fall through to
+     * Elasticsearch.
+     */
+    @Override
+    public UpdateOutcome updateDocument(VersionedIDItem newItem) {
+
+        String id = newItem.getId();
+
+        HotEntry<VersionedIDItem> prevEntry = hotItems.get(id);
+
+        UpdateOutcome outcome = elasticIndex.updateDocument(newItem);
+
+        if (outcome == UpdateOutcome.OUTDATED) return outcome;
+
+        if (outcome.isSuccess()) {
+            putHotItem(newItem);
+        } else {
+            hotItems.remove(id);
+        }
+
+        // the previous color is only known for hot documents
+        if (prevEntry != null) {
+            invalidateColor(prevEntry.value.getItem().getColor());
+        } else {
+            invalidateColor("");
+            hotColors.clear();
+        }
+
+        invalidateColor(newItem.getItem().getColor());
+
+        return outcome;
+    }
+
+    /**
+     * @see ReconcilableIndex#getRangeDigests(Predicate)
+     */
+    @Override
+    public long[] getRangeDigests(Predicate<String> documentFilter) throws IOException {
+
+        return elasticIndex.getRangeDigests(documentFilter);
+    }
+
+    /**
+     * @see ReconcilableIndex#getVersions(Collection)
+     */
+    @Override
+    public Map<String, Long> getVersions(Collection<String> ids) throws IOException {
+
+        return elasticIndex.getVersions(ids);
+    }
+
+    /**
+     * @see ReconcilableIndex#getVersions(BitSet, Predicate)
+     */
+    @Override
+    public Map<String, Long> getVersions(BitSet ranges, Predicate<String> documentFilter) throws IOException {
+
+        return elasticIndex.getVersions(ranges, documentFilter);
+    }
+
+    /**
+     * @see ReconcilableIndex#removeDocuments(Map)
+     *
+     * The hot copies of the documents are dropped whether or not Elasticsearch removed them,
+     * so that subsequent reads fall through to Elasticsearch.
+     */
+    @Override
+    public int removeDocuments(Map<String, Long> versions) throws IOException {
+
+        try {
+            return elasticIndex.removeDocuments(versions);
+        } finally {
+
+            for (String id : versions.keySet()) hotItems.remove(id);
+
+            invalidateColor("");
+            hotColors.clear();
+        }
+    }
+
+    /**
+     * Removes the result of the specified color from the hot tier and records the time.
+     *
+     * @param color the color that is to be invalidated, "" for all colors.
+     */
+    private void invalidateColor(String color) {
+
+        colorGenerations.computeIfAbsent(color, key -> new AtomicLong()).incrementAndGet();
+        colorChangeMillis.put(color, System.currentTimeMillis());
+        hotColors.remove(color);
+    }
+
+    /**
+     * Returns the generation of the specified color, which grows with every invalidation of the
+     * color or of all colors.
+     *
+     * @param color the color.
+     * @return the generation of the color.
+     */
+    private long getGeneration(String color) {
+
+        AtomicLong generation = colorGenerations.get(color);
+        AtomicLong allGeneration = colorGenerations.get("");
+
+        return (generation == null ? 0 : generation.get()) + (allGeneration == null ? 0 : allGeneration.get());
+    }
+
+    /**
+     * Checks whether the specified color was invalidated within the search refresh interval.
+     *
+     * @param color the color that is to be checked.
+     * @return <code>true</code> if the color (or all colors) changed recently, <code>false</code> otherwise.
+     */
+    private boolean changedRecently(String color) {
+
+        long thresholdMillis = System.currentTimeMillis() - ElasticIndex.REFRESH_MILLIS;
+
+        return colorChangeMillis.getOrDefault(color, 0L) > thresholdMillis ||
+                colorChangeMillis.getOrDefault("", 0L) > thresholdMillis;
+    }
+
+    /**
+     * Adds the specified document to the hot tier unless the hot tier already holds
+     * the same or a newer version of it.
+     *
+     * @param idItem the document that is to be added to the hot tier.
+     */
+    private void putHotItem(VersionedIDItem idItem) {
+
+        hotItems.merge(idItem.getId(), new HotEntry<>(idItem, 1), (prevEntry, newEntry) ->
+                newEntry.value.getVersion() > prevEntry.value.getVersion() ?
+                        new HotEntry<>(newEntry.value, prevEntry.frequency.get() + 1) : prevEntry);
+
+        if (hotItems.size() > capacity) evict(hotItems, capacity);
+    }
+
+    /**
+     * Evicts the least frequently used entries from the specified hot tier map and ages the
+     * remaining entries by halving their access frequency. Only one thread evicts at a time,
+     * other threads continue without waiting.
+     *
+     * @param hotMap the hot tier map from which entries are to be evicted.
+     * @param maxSize the maximum size of the hot tier map.
+     */
+    private <V> void evict(Map<String, HotEntry<V>> hotMap, int maxSize) {
+
+        if (! evictionLock.tryLock()) return;
+
+        try {
+
+            int numToEvict = hotMap.size() - maxSize + (int)Math.ceil(maxSize * EVICTION_FRACTION);
+
+            if (numToEvict <= 0) return;
+
+            List<Map.Entry<String, HotEntry<V>>> entries = new ArrayList<>(hotMap.entrySet());
+
+            for (Map.Entry<String, HotEntry<V>> entry : entries) {
+                entry.getValue().frequencySnapshot = entry.getValue().frequency.get();
+            }
+
+            entries.sort(Comparator.comparingInt(entry -> entry.getValue().frequencySnapshot));
+
+            for (int i = 0; i < numToEvict && i < entries.size(); ++i) {
+
+                Map.Entry<String, HotEntry<V>> entry = entries.get(i);
+                hotMap.remove(entry.getKey(), entry.getValue());
+            }
+
+            for (HotEntry<V> hotEntry : hotMap.values()) {
+                hotEntry.frequency.updateAndGet(frequency -> frequency >> 1);
+            }
+
+            logger.debug("evicted " + numToEvict + " entries from hot tier");
+
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+}
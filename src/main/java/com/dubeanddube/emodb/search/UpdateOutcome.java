@@ -0,0 +1,31 @@
+package com.dubeanddube.emodb.search;
+
+/**
+ * Defines the possible outcomes of a document update in an index.
+ *
+ * @author Dominique Dube
+ */
+public enum UpdateOutcome {
+
+    // the document did not exist before and was added to the index
+    CREATED,
+
+    // the document existed with an older version and was replaced
+    UPDATED,
+
+    // the document exists with the same or a newer version, the update was not applied
+    OUTDATED,
+
+    // the update could not be applied for some other reason (e.g. index not reachable)
+    FAILED;
+
+    /**
+     * Checks whether this outcome means that the update was applied to the index.
+     *
+     * @return <code>true</code> if the document was created or updated, <code>false</code> otherwise.
+     */
+    public boolean isSuccess() {
+
+        return this == CREATED || this == UPDATED;
+    }
+}
@@ -0,0 +1,202 @@
+package com.dubeanddube.emodb.services;
+
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes every document update applied to the search index to WebSocket subscribers, so that
+ * clients are notified of changes instead of polling queries.
+ *
+ * Subscribers may restrict the feed to one color with the <code>color</code> parameter; they then
+ * receive updates of documents that have that color, or had it before the update. Messages are
+ * sent asynchronously, and each subscriber may have at most <code>MAX_PENDING_MESSAGES</code>
+ * messages waiting to be sent. A subscriber that falls further behind is disconnected, so that
+ * slow consumers cannot hold up the index updates or make the buffers grow without bound.
+ *
+ * @author Dominique Dube
+ */
+@WebSocket
+public class ChangeFeed {
+
+    private final Logger logger = LoggerFactory.getLogger(ChangeFeed.class); // some basic logging
+
+    private static final int MAX_PENDING_MESSAGES = 256;
+
+    private static final int MAX_SUBSCRIBERS = 1000;
+
+    private static final Counter DROPPED_SUBSCRIBERS = Metrics.counter("emodb_change_feed_dropped_subscribers_total",
+            "Change feed subscribers disconnected because they fell too far behind.");
+
+    /**
+     * A connected subscriber with its color filter and its number of unsent messages.
+     */
+    private class Subscriber implements WriteCallback {
+
+        final Session session;
+        final String color; // null for all colors
+
+        final AtomicInteger numPending = new AtomicInteger(0);
+
+        Subscriber(Session session, String color) {
+
+            this.session = session;
+            this.color = color;
+        }
+
+        void send(String message) {
+
+            if (numPending.incrementAndGet() > MAX_PENDING_MESSAGES) {
+                DROPPED_SUBSCRIBERS.inc();
+                drop("too slow");
+                return;
+            }
+
+            try {
+                session.getRemote().sendString(message, this);
+            } catch (RuntimeException e) {
+                drop("connection closed"); // closed concurrently
+            }
+        }
+
+        void drop(String reason) {
+
+            if (subscribers.remove(session) == null) return; // dropped already
+
+            logger.info("dropping change feed subscriber " + session.getRemoteAddress() + " (" + reason + ")");
+
+            session.close(StatusCode.POLICY_VIOLATION, reason);
+        }
+
+        @Override
+        public void writeSuccess() {
+
+            numPending.decrementAndGet();
+        }
+
+        @Override
+        public void writeFailed(Throwable cause) {
+
+            drop("send failed");
+        }
+    }
+
+    private final Map<Session, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a change feed without subscribers and exports the number of subscribers as a gauge.
+     *
+     * @param table the name of the table whose updates are fed (for the gauge).
+     */
+    public ChangeFeed(String table) {
+
+        Metrics.gauge("emodb_change_feed_subscribers", "Number of connected change feed subscribers.",
+                subscribers::size, "table", table);
+    }
+
+    /**
+     * Registers a newly connected subscriber.
+     *
+     * @param session the WebSocket session of the subscriber.
+     */
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+
+        if (subscribers.size() >= MAX_SUBSCRIBERS) {
+            session.close(StatusCode.TRY_AGAIN_LATER, "too many subscribers");
+            return;
+        }
+
+        List<String> colors = session.getUpgradeRequest().getParameterMap().get("color");
+        String color = colors != null && ! colors.isEmpty() ? colors.get(0) : null;
+
+        subscribers.put(session, new Subscriber(session, color));
+
+        logger.info("change feed subscriber " + session.getRemoteAddress() + " connected" +
+                (color != null ? " (color " + color + ")" : ""));
+    }
+
+    /**
+     * Removes a disconnected subscriber.
+     *
+     * @param session the WebSocket session of the subscriber.
+     * @param statusCode the close status code.
+     * @param reason the close reason.
+     */
+    @OnWebSocketClose
+    public void onClose(Session session, int statusCode, String reason) {
+
+        subscribers.remove(session);
+    }
+
+    /**
+     * Removes a subscriber whose connection failed.
+     *
+     * @param session the WebSocket session of the subscriber.
+     * @param cause the cause of the failure.
+     */
+    @OnWebSocketError
+    public void onError(Session session, Throwable cause) {
+
+        subscribers.remove(session);
+    }
+
+    /**
+     * Sends a document update to all subscribers interested in it. Does not block.
+     *
+     * The message is a JSON object with the fields <code>id</code>, <code>version</code>,
+     * <code>color</code>, <code>text</code>, and <code>previousColor</code> (only if the
+     * color changed).
+     *
+     * @param idItem the document that was created or updated.
+     * @param previousColor the color of the document before the update, <code>null</code> if unknown.
+     */
+    public void publish(VersionedIDItem idItem, String previousColor) {
+
+        if (subscribers.isEmpty()) return;
+
+        String color = idItem.getItem().getColor();
+
+        if (previousColor != null && previousColor.equals(color)) previousColor = null;
+
+        ObjectNode messageNode = JsonUtils.MAPPER.createObjectNode();
+        messageNode.put("id", idItem.getId());
+        messageNode.put("version", idItem.getVersion());
+        messageNode.put("color", color);
+        messageNode.put("text", idItem.getItem().getText());
+        if (previousColor != null) messageNode.put("previousColor", previousColor);
+
+        String message;
+
+        try {
+            message = JsonUtils.MAPPER.writeValueAsString(messageNode); // once for all subscribers
+        } catch (JsonProcessingException e) {
+            logger.warn("failed to write change feed message for document " + idItem.getId());
+            return;
+        }
+
+        for (Subscriber subscriber : subscribers.values()) {
+
+            if (subscriber.color == null || subscriber.color.equals(color) || subscriber.color.equals(previousColor)) {
+                subscriber.send(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.dubeanddube.emodb.services;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses a streamed HTTP response body with gzip or deflate once it exceeds a size threshold.
+ *
+ * The body is buffered until it exceeds the threshold. If it never does, it is sent uncompressed
+ * on close, as compression does not pay off for small bodies. Otherwise the Content-Encoding
+ * header is set, and the buffered and all further bytes are compressed on the fly. Flushing a
+ * compressed stream flushes the compressor, so partial results still reach the client early.
+ *
+ * Spark's own compression (gzip once a route sets the Content-Encoding header) cannot be used:
+ * the header has to be set before the first byte of the body, when its size is not known yet,
+ * and it supports neither deflate nor a distinct tag for the compressed representation.
+ *
+ * @author Dominique Dube
+ */
+class CompressingOutputStream extends OutputStream {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final int COMPRESSOR_BUFFER_SIZE = 8192;
+
+    private final HttpServletResponse response;
+    private final String encoding;
+    private final int threshold;
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private OutputStream compressor = null; // set once the threshold is exceeded
+
+    private Deflater deflater = null; // not owned by the compressor, ended on close
+
+    private boolean closed = false;
+
+    /**
+     * Constructs a compressing output stream for the specified response.
+     *
+     * @param response the response whose body is written.
+     * @param encoding the content encoding, <code>GZIP</code> or <code>DEFLATE</code>.
+     * @param threshold the body size in bytes above which the body is compressed.
+     */
+    CompressingOutputStream(HttpServletResponse response, String encoding, int threshold) {
+
+        this.response = response;
+        this.encoding = encoding;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Selects the content encoding from an Accept-Encoding header, preferring gzip.
+     *
+     * @param acceptEncoding the value of the Accept-Encoding header, <code>null</code> if absent.
+     * @return <code>GZIP</code>, <code>DEFLATE</code>, or <code>null</code> if the client
+     *         accepts neither.
+     */
+    static String selectEncoding(String acceptEncoding) {
+
+        if (acceptEncoding == null) return null;
+
+        boolean acceptsDeflate = false;
+
+        for (String coding : acceptEncoding.split(",")) {
+
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+
+            if (parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")) continue; // explicitly refused
+
+            if (name.equalsIgnoreCase(GZIP)) return GZIP;
+            if (name.equalsIgnoreCase(DEFLATE)) acceptsDeflate = true;
+        }
+
+        return acceptsDeflate ? DEFLATE : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+
+        if (closed) throw new IOException("stream closed");
+
+        if (compressor != null) {
+            compressor.write(bytes, offset, length);
+            return;
+        }
+
+        buffer.write(bytes, offset, length);
+
+        if (buffer.size() > threshold) startCompression();
+    }
+
+    @Override
+    public void flush() throws IOException {
+
+        // remark: a buffered body stays buffered, it is small enough to be sent as a whole later
+
+        if (compressor != null) compressor.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (closed) return;
+
+        closed = true;
+
+        if (compressor != null) {
+
+            try {
+                compressor.close(); // writes the trailer and closes the response stream
+            } finally {
+                if (deflater != null) deflater.end();
+            }
+
+            return;
+        }
+
+        response.setContentLength(buffer.size()); // complete body, no need for chunked encoding
+
+        OutputStream out = response.getOutputStream();
+
+        buffer.writeTo(out);
+        buffer = null;
+
+        out.close();
+    }
+
+    /**
+     * Sets the response headers for the compressed body and starts compressing the body,
+     * beginning with the buffered bytes.
+     *
+     * @throws IOException if the buffered bytes could not be written.
+     */
+    private void startCompression() throws IOException {
+
+        response.setHeader("Content-Encoding", encoding);
+
+        // the compressed body is a different representation, which needs a different (strong) tag
+        String tag = response.getHeader("ETag");
+
+        if (tag != null) response.setHeader("ETag", tag.substring(0, tag.length() - 1) + "-" + encoding + "\"");
+
+        OutputStream out = response.getOutputStream();
+
+        if (encoding.equals(GZIP)) {
+            compressor = new GZIPOutputStream(out, COMPRESSOR_BUFFER_SIZE, true);
+        } else {
+            deflater = new Deflater();
+            compressor = new DeflaterOutputStream(out, deflater, COMPRESSOR_BUFFER_SIZE, true);
+        }
+
+        buffer.writeTo(compressor);
+        buffer = null;
+    }
+}
@@ -0,0 +1,145 @@
+package com.dubeanddube.emodb.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of concurrently executing requests of one kind, with a limit that adapts
+ * to the observed latency (gradient-based, similar to TCP Vegas congestion control).
+ *
+ * The limiter tracks the lowest latency seen recently as an estimate of the latency without
+ * queueing. While requests complete close to that latency, the limit grows; once latency rises
+ * beyond <code>LATENCY_TOLERANCE</code> times that estimate (requests queue up somewhere, e.g.
+ * in Elasticsearch), the limit shrinks proportionally. Requests beyond the limit are rejected
+ * right away instead of waiting, so that overload results in fast failures rather than
+ * growing queues.
+ *
+ * @author Dominique Dube
+ */
+class ConcurrencyLimiter {
+
+    private final Logger logger = LoggerFactory.getLogger(ConcurrencyLimiter.class); // some basic logging
+
+    // latency increase (relative to the lowest recent latency) that is accepted without shrinking the limit
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // weight of a new limit estimate, smooths the limit against latency outliers
+    private static final double SMOOTHING = 0.2;
+
+    // the lowest latency is re-measured after this many samples, so it follows changes in the backends
+    private static final int MIN_LATENCY_RESET_SAMPLES = 1000;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    private volatile double limit;
+
+    private long minLatencyNanos = Long.MAX_VALUE;
+    private int samplesSinceReset = 0;
+
+    /**
+     * Constructs a concurrency limiter.
+     *
+     * @param name the name of the limited request kind (for logging).
+     * @param initialLimit the initial limit.
+     * @param minLimit the lowest possible limit.
+     * @param maxLimit the highest possible limit.
+     */
+    ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Admits a request if the limit allows it. Every admitted request must be released.
+     *
+     * @return <code>true</code> if the request is admitted, <code>false</code> if it is to be rejected.
+     */
+    boolean tryAcquire() {
+
+        while (true) {
+
+            int current = inFlight.get();
+
+            if (current >= (int)limit) return false;
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Releases an admitted request and adapts the limit to its latency.
+     *
+     * @param latencyNanos the latency of the request in nanoseconds.
+     * @param success <code>false</code> if the request failed, in which case its latency is not
+     *                representative and the limit is not adapted.
+     */
+    void release(long latencyNanos, boolean success) {
+
+        int current = inFlight.getAndDecrement();
+
+        if (success) adapt(latencyNanos, current);
+    }
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the current limit.
+     */
+    int getLimit() {
+
+        return (int)limit;
+    }
+
+    /**
+     * Returns the number of admitted requests that have not been released yet.
+     *
+     * @return the number of requests in flight.
+     */
+    int getInFlight() {
+
+        return inFlight.get();
+    }
+
+    /**
+     * Adapts the limit to the latency of a completed request.
+     *
+     * @param latencyNanos the latency of the request in nanoseconds.
+     * @param numInFlight the number of requests in flight when the request completed.
+     */
+    private synchronized void adapt(long latencyNanos, int numInFlight) {
+
+        latencyNanos = Math.max(latencyNanos, 1);
+
+        if (++samplesSinceReset >= MIN_LATENCY_RESET_SAMPLES) {
+            samplesSinceReset = 0;
+            minLatencyNanos = latencyNanos;
+        } else if (latencyNanos < minLatencyNanos) {
+            minLatencyNanos = latencyNanos;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, LATENCY_TOLERANCE * minLatencyNanos / latencyNanos));
+
+        // remark: without load near the limit, low latency says nothing about a higher limit
+        if (gradient >= 1.0 && numInFlight < limit / 2) return;
+
+        double newLimit = limit * gradient + Math.sqrt(limit); // square root: headroom to probe for more
+
+        newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+
+        if ((int)newLimit != (int)limit) {
+            logger.debug("concurrency limit for " + name + " changed to " + (int)newLimit +
+                    " (latency " + latencyNanos / 1000 + " us, minimum " + minLatencyNanos / 1000 + " us)");
+        }
+
+        limit = newLimit;
+    }
+}
@@ -1,15 +1,24 @@
 package com.dubeanddube.emodb.services;
 
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Bundles RESTful methods to access EmoDB's databus.
@@ -18,15 +27,18 @@ import java.io.UnsupportedEncodingException;
  */
 public class EmoBus {
 
+    private static final Logger logger = LoggerFactory.getLogger(EmoBus.class); // some basic logging
+
     // Remark: there is lots of potential to extract more generic code portions in this class.
 
-    private static final String BUS_SUBSCRIPTION_NAME = "items-subscription";
+    // the databus counts pending events exactly up to this limit (and stops counting there)
+    private static final int PENDING_EVENTS_LIMIT = 10000;
 
-    public static boolean acknowledgeEvents(String eventString) {
+    public static boolean acknowledgeEvents(String subscription, String eventString) {
 
-        String url = "http://localhost:8080/bus/1/" + BUS_SUBSCRIPTION_NAME + "/ack";
+        String url = "http://localhost:8080/bus/1/" + subscription + "/ack";
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient client = HttpUtils.sharedClient();
         CloseableHttpResponse response = null;
 
         HttpPost request = new HttpPost(url); // POST for acknowledgements
@@ -53,48 +65,152 @@ public class EmoBus {
         } catch (IOException e) {
             return false;
         } finally {
-            HttpUtils.cleanup(response, client);
+            HttpUtils.cleanup(response);
         }
     }
 
     /**
      * Polls up to 5 pending events from the databus.
      *
+     * @param subscription the name of the subscription, e.g. <code>items-subscription</code>.
      * @return a JSON string containing up to 5 pending events, <code>null</code> if the request
      *         was unsuccessful for some reason.
      */
-    public static String pollPendingEvents() {
+    public static String pollPendingEvents(String subscription) {
 
-        String url = "http://localhost:8080/bus/1/" + BUS_SUBSCRIPTION_NAME + "/poll?ttl=10&limit=5";
+        String url = "http://localhost:8080/bus/1/" + subscription + "/poll?ttl=10&limit=5";
 
         return HttpUtils.get(url);
     }
 
     /**
-     * Returns the approximate number of unacknowledged pending events for the items table subscription.
+     * A document update polled from the databus.
+     */
+    public static class Event {
+
+        public final String eventKey;
+        public final VersionedIDItem idItem;
+        public final long writeMillis; // time of the EmoDB write, -1 if unknown
+
+        /**
+         * Constructs an event.
+         *
+         * @param eventKey the key by which the event is acknowledged.
+         * @param idItem the updated document.
+         * @param writeMillis the time of the EmoDB write in milliseconds since the epoch, -1 if unknown.
+         */
+        public Event(String eventKey, VersionedIDItem idItem, long writeMillis) {
+
+            this.eventKey = eventKey;
+            this.idItem = idItem;
+            this.writeMillis = writeMillis;
+        }
+    }
+
+    /**
+     * Decodes the response of <code>pollPendingEvents</code> into document updates. Events
+     * lacking a relevant field, or with an illegal version or ID, are logged and skipped (and thus
+     * never acknowledged).
+     *
+     * @param responseString the poll response, a JSON array of events.
+     * @return the decoded events, in the order of the response.
+     * @throws IOException if the response is missing or not a JSON array.
+     */
+    public static List<Event> decodeEvents(String responseString) throws IOException {
+
+        if (responseString == null) throw new IOException("no poll response");
+
+        JsonNode rootNode = JsonUtils.MAPPER.readTree(responseString);
+
+        if (! rootNode.isArray()) throw new IOException("expected array of documents");
+
+        List<Event> events = new ArrayList<>(rootNode.size());
+
+        for (JsonNode root : rootNode) { // iterate the objects
+
+            JsonNode eventKeyNode = root.path("eventKey");
+            JsonNode content = root.path("content");
+
+            JsonNode versionNode = content.path("~version");
+            JsonNode colorNode = content.path("color");
+            JsonNode textNode = content.path("text");
+            JsonNode idNode = content.path("~id"); // intrinsic field
+            JsonNode lastUpdateNode = content.path("~lastUpdateAt"); // intrinsic field
+
+            // some very basic error handling
+            if (eventKeyNode.isMissingNode() || versionNode.isMissingNode() ||
+                    colorNode.isMissingNode() || textNode.isMissingNode() || idNode.isMissingNode()) {
+                logger.warn("at least one relevant document node is missing");
+                continue;
+            }
+
+            int version = NumberUtils.toInt(versionNode.asText(), -1);
+
+            if (version == -1) {
+                logger.warn("encountered illegal version format");
+                continue;
+            }
+
+            VersionedIDItem idItem;
+
+            try {
+                idItem = new VersionedIDItem(idNode.asText(), new Item(colorNode.asText(), textNode.asText()), version);
+            } catch (IllegalArgumentException e) {
+                logger.warn("encountered illegal document ID " + idNode.asText());
+                continue;
+            }
+
+            events.add(new Event(eventKeyNode.asText(), idItem,
+                    parseTimestamp(lastUpdateNode.isMissingNode() ? null : lastUpdateNode.asText())));
+        }
+
+        return events;
+    }
+
+    /**
+     * Parses an EmoDB timestamp (e.g. <code>2017-02-14T10:15:30.123Z</code>).
+     *
+     * @param timestamp the timestamp, may be <code>null</code>.
+     * @return the timestamp in milliseconds since the epoch, -1 if missing or malformed.
+     */
+    private static long parseTimestamp(String timestamp) {
+
+        if (timestamp == null) return -1;
+
+        try {
+            return Instant.parse(timestamp).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the approximate number of unacknowledged pending events for a subscription.
      * This number is approximate and may be higher or lower than the actual number.
      * Consult the API documentation for more details.
      *
-     * @return the approximate number of unacknowledged pending events on the databus.
-     *         Returns -1 if the call fails for some reason.
+     * @param subscription the name of the subscription, e.g. <code>items-subscription</code>.
+     * @return the approximate number of unacknowledged pending events on the databus (at most
+     *         <code>PENDING_EVENTS_LIMIT</code>). Returns -1 if the call fails for some reason.
      */
-    public static int getNumPendingEvents() {
+    public static int getNumPendingEvents(String subscription) {
 
-        String url = "http://localhost:8080/bus/1/" + BUS_SUBSCRIPTION_NAME + "/size?limit=10";
+        String url = "http://localhost:8080/bus/1/" + subscription + "/size?limit=" + PENDING_EVENTS_LIMIT;
         String result = HttpUtils.get(url);
         return NumberUtils.toInt(result, -1);
     }
 
     /**
-     * Unsubscribes from changes to the SoR items table.
+     * Unsubscribes from changes to a SoR table.
      *
+     * @param subscription the name of the subscription, e.g. <code>items-subscription</code>.
      * @return <code>true</code> if unsubscribing was successful, <code>false</code> otherwise.
      */
-    public static boolean unsubscribe() {
+    public static boolean unsubscribe(String subscription) {
 
-        String url = "http://localhost:8080/bus/1/" + BUS_SUBSCRIPTION_NAME;
+        String url = "http://localhost:8080/bus/1/" + subscription;
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient client = HttpUtils.sharedClient();
         CloseableHttpResponse response = null;
 
         HttpDelete request = new HttpDelete(url); // DELETE for unsubscribe
@@ -112,22 +228,24 @@ public class EmoBus {
         } catch (IOException e) {
             return false;
         } finally {
-            HttpUtils.cleanup(response, client);
+            HttpUtils.cleanup(response);
         }
     }
 
     /**
-     * Subscribes to any change in the SoR items table.
+     * Subscribes to any change in a SoR table.
      *
+     * @param subscription the name of the subscription, e.g. <code>items-subscription</code>.
+     * @param table the name of the table, e.g. <code>items</code>.
      * @return <code>true</code> if subscribing was successful, <code>false</code> otherwise.
      */
-    public static boolean subscribe() {
+    public static boolean subscribe(String subscription, String table) {
 
-        String url = "http://localhost:8080/bus/1/" + BUS_SUBSCRIPTION_NAME;
+        String url = "http://localhost:8080/bus/1/" + subscription;
 
-        String dataBinary = "intrinsic(\"~table\":\"items\")";
+        String dataBinary = "intrinsic(\"~table\":\"" + table + "\")";
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient client = HttpUtils.sharedClient();
         CloseableHttpResponse response = null;
 
         HttpPut request = new HttpPut(url); // PUT for subscribe
@@ -153,7 +271,7 @@ public class EmoBus {
         } catch (IOException e) {
             return false;
         } finally {
-            HttpUtils.cleanup(response, client);
+            HttpUtils.cleanup(response);
         }
     }
 }
@@ -1,19 +1,32 @@
 package com.dubeanddube.emodb.services;
 
 import com.dubeanddube.emodb.data.IDItem;
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Bundles RESTful methods to access EmoDB's system of records.
@@ -22,25 +35,124 @@ import java.io.UnsupportedEncodingException;
  */
 public class EmoSor {
 
-    private static final String SOR_TABLE_NAME = "items";
+    private static final Logger logger = LoggerFactory.getLogger(EmoSor.class); // some basic logging
 
-    public static String readItems() {
+    public static String readItems(String table) {
 
-        // Remark: a possible next task would be to scan tables partially with the 'from' keyword.
+        return readItems(table, null, 1000);
+    }
+
+    /**
+     * Reads a partial scan of a table. The scan starts right after the document with the
+     * specified key, so that consecutive calls with the ID of the last returned document page
+     * through the whole table.
+     *
+     * @param table the name of the table, e.g. <code>items</code>.
+     * @param fromKey the ID of the document after which the scan starts, <code>null</code> to
+     *                start at the beginning of the table.
+     * @param limit the maximum number of documents to return.
+     * @return a JSON array string with up to <code>limit</code> documents, <code>null</code> if
+     *         the request was unsuccessful for some reason.
+     */
+    public static String readItems(String table, String fromKey, int limit) {
 
-        String url = "http://localhost:8080/sor/1/" + SOR_TABLE_NAME + "?limit=1000";
+        String url = "http://localhost:8080/sor/1/" + table + "?limit=" + limit;
+
+        if (fromKey != null) {
+            try {
+                url += "&from=" + URLEncoder.encode(fromKey, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
 
         return HttpUtils.get(url);
     }
 
     /**
-     * Returns the size of the items table.
+     * Reads a partial scan of a table (see <code>readItems(String, String, int)</code>) and
+     * parses the documents including their intrinsic ID and version.
+     *
+     * Note that error handling is trivial here - in a productive system, more
+     * should be done to account for all sorts of problems (e.g. no response
+     * at all, unexpected objects, JSON format problems, etc.).
+     *
+     * @param table the name of the table, e.g. <code>items</code>.
+     * @param fromKey the ID of the document after which the scan starts, <code>null</code> to
+     *                start at the beginning of the table.
+     * @param limit the maximum number of documents to return.
+     * @return the parsed documents, <code>null</code> if the scan failed or the response could
+     *         not be parsed.
+     */
+    public static List<VersionedIDItem> readDocuments(String table, String fromKey, int limit) {
+
+        String responseString = readItems(table, fromKey, limit);
+
+        if (responseString == null) return null;
+
+        JsonFactory factory = new JsonFactory();
+        ObjectMapper mapper = new ObjectMapper(factory);
+
+        JsonNode rootNode;
+
+        try {
+            rootNode = mapper.readTree(responseString);
+        } catch (IOException e) {
+            logger.debug("Unable to create root node from which to obtain items");
+            return null;
+        }
+
+        if (! rootNode.isArray()) {
+            logger.debug("Root node is not of type array");
+            return null;
+        }
+
+        List<VersionedIDItem> idItems = new ArrayList<>(rootNode.size());
+
+        for (JsonNode root : rootNode) { // iterate documents
+
+            JsonNode colorNode = root.path("color");
+            String color = colorNode.isMissingNode() ? null : colorNode.asText();
+
+            JsonNode textNode = root.path("text");
+            String text = textNode.isMissingNode() ? null : textNode.asText();
+
+            JsonNode idNode = root.path("~id");
+            String id = idNode.isMissingNode() ? null : idNode.asText();
+
+            JsonNode versionNode = root.path("~version");
+            String version = versionNode.isMissingNode() ? null : versionNode.asText();
+
+            // some simple error handling
+            if (color == null || text == null || id == null || version == null) {
+                logger.debug("missing JSON node");
+                return null;
+            }
+
+            Item item = new Item(color, text);
+
+            int versionInt = NumberUtils.toInt(version, -1);
+
+            if (versionInt == -1) {
+                logger.debug("encountered illegal version format");
+                return null;
+            }
+
+            idItems.add(new VersionedIDItem(id, item, versionInt));
+        }
+
+        return idItems;
+    }
+
+    /**
+     * Returns the size of a table.
      *
-     * @return the size of the items table, -1 if the size could not be read from the system of records.
+     * @param table the name of the table, e.g. <code>items</code>.
+     * @return the size of the table, -1 if the size could not be read from the system of records.
      */
-    public static long getTableSize() {
+    public static long getTableSize(String table) {
 
-        String url = "http://localhost:8080/sor/1/_table/" + SOR_TABLE_NAME + "/size?limit=1000";
+        String url = "http://localhost:8080/sor/1/_table/" + table + "/size?limit=1000";
 
         String responseString = HttpUtils.get(url);
 
@@ -54,21 +166,22 @@ public class EmoSor {
      *
      * The POST method is used for both document creation and updating (see API description).
      *
+     * @param table the name of the table, e.g. <code>items</code>.
      * @param idItem the ID item that contains the color and text that is to be updated.
      * @param comment the comment for the audit, e.g. "initial-submission" for document creation.
      * @return <code>true</code> if the document update was successful, <code>false</code> otherwise.
      */
-    public static boolean updateDocument(IDItem idItem, String comment) {
+    public static boolean updateDocument(String table, IDItem idItem, String comment) {
 
         String documentId = idItem.getId();
 
-        String url = "http://localhost:8080/sor/1/" + SOR_TABLE_NAME + "/" +
+        String url = "http://localhost:8080/sor/1/" + table + "/" +
                 documentId + "?audit=comment:'" + comment + "',host:localhost";
 
         String dataBinary = "{.., \"color\":\"" + idItem.getItem().getColor() +
                 "\",\"text\":\"" + idItem.getItem().getText() + "\"}";
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient client = HttpUtils.sharedClient();
         CloseableHttpResponse response = null;
 
         HttpPost request = new HttpPost(url); // POST for create/modify document
@@ -94,23 +207,84 @@ public class EmoSor {
         } catch (IOException e) {
             return false;
         } finally {
-            HttpUtils.cleanup(response, client);
+            HttpUtils.cleanup(response);
+        }
+    }
+
+    /**
+     * Updates (or creates) the documents of all specified ID items in a single request, using the
+     * stream update API of the system of records. Preferable to single updates for bulk loads, since
+     * it saves a round trip and a connection per document.
+     *
+     * @param table the name of the table, e.g. <code>items</code>.
+     * @param idItems the ID items that contain the colors and texts that are to be updated.
+     * @param comment the comment for the audit, e.g. "initial-submission" for document creation.
+     * @return <code>true</code> if all document updates were successful, <code>false</code> otherwise.
+     */
+    public static boolean updateDocuments(String table, List<? extends IDItem> idItems, String comment) {
+
+        String url = "http://localhost:8080/sor/1/_stream?audit=comment:'" + comment + "',host:localhost";
+
+        String dataBinary;
+
+        try {
+
+            ArrayNode updatesNode = JsonUtils.MAPPER.createArrayNode();
+
+            for (IDItem idItem : idItems) {
+
+                // unlike single updates, the delta is embedded in JSON, so its strings must be escaped
+                String delta = "{..,\"color\":" + JsonUtils.MAPPER.writeValueAsString(idItem.getItem().getColor()) +
+                        ",\"text\":" + JsonUtils.MAPPER.writeValueAsString(idItem.getItem().getText()) + "}";
+
+                updatesNode.addObject()
+                        .put("table", table)
+                        .put("key", idItem.getId())
+                        .put("delta", delta);
+            }
+
+            dataBinary = JsonUtils.MAPPER.writeValueAsString(updatesNode);
+
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+
+        CloseableHttpClient client = HttpUtils.sharedClient();
+        CloseableHttpResponse response = null;
+
+        HttpPost request = new HttpPost(url);
+
+        HttpUtils.addApiHeader(request);
+        request.setEntity(new StringEntity(dataBinary, ContentType.APPLICATION_JSON));
+
+        try {
+            response = client.execute(request);
+            HttpEntity entity = response.getEntity();
+            String responseString = EntityUtils.toString(entity);
+
+            return EmoGen.isSuccess(responseString);
+
+        } catch (IOException e) {
+            return false;
+        } finally {
+            HttpUtils.cleanup(response);
         }
     }
 
     /**
-     * Creates the items table for milestone 0.
+     * Creates a table (the items table for milestone 0).
      *
-     * @return <code>true</code> if the items table was successfully created, <code>false</code> otherwise.
+     * @param table the name of the table, e.g. <code>items</code>.
+     * @return <code>true</code> if the table was successfully created, <code>false</code> otherwise.
      */
-    public static boolean createTable() {
+    public static boolean createTable(String table) {
 
-        String url = "http://localhost:8080/sor/1/_table/" + SOR_TABLE_NAME +
+        String url = "http://localhost:8080/sor/1/_table/" + table +
                 "?options=placement:'ugc_global:ugc'&audit=comment:'initial+provisioning',host:localhost";
 
         String dataBinary = "{\"type\":\"review\",\"client\":\"TestCustomer\"}";
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient client = HttpUtils.sharedClient();
         CloseableHttpResponse response = null;
 
         HttpPut request = new HttpPut(url); // PUT for create table
@@ -137,22 +311,23 @@ public class EmoSor {
         } catch (IOException e) {
             return false;
         } finally {
-            HttpUtils.cleanup(response, client);
+            HttpUtils.cleanup(response);
         }
     }
 
     /**
-     * Drops the items table.
+     * Drops a table.
      *
-     * @return <code>true</code> if the items table was dropped successfully,
+     * @param table the name of the table, e.g. <code>items</code>.
+     * @return <code>true</code> if the table was dropped successfully,
      *         <code>false</code> otherwise.
      */
-    public static boolean dropTable() {
+    public static boolean dropTable(String table) {
 
-        String url = "http://localhost:8080/sor/1/_table/" + SOR_TABLE_NAME +
+        String url = "http://localhost:8080/sor/1/_table/" + table +
                 "?audit=comment:'clean-slate',host:localhost";
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient client = HttpUtils.sharedClient();
         CloseableHttpResponse response = null;
 
         HttpDelete request = new HttpDelete(url); // DELETE for drop table
@@ -170,7 +345,7 @@ public class EmoSor {
         } catch (IOException e) {
             return false;
         } finally {
-            HttpUtils.cleanup(response, client);
+            HttpUtils.cleanup(response);
         }
     }
 }
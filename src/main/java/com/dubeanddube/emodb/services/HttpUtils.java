@@ -1,14 +1,41 @@
 package com.dubeanddube.emodb.services;
 
+import com.dubeanddube.emodb.events.OutboundRequestEvent;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.Histogram;
+import com.dubeanddube.emodb.metrics.Metrics;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.AbstractHttpMessage;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
 
 /**
  * Bundles some generic HTTP-related functions for convenience.
@@ -17,6 +44,67 @@ import java.io.IOException;
  */
 public class HttpUtils {
 
+    private static final Logger logger = LoggerFactory.getLogger(HttpUtils.class); // some basic logging
+
+    private static final Pattern UUID_PATTERN =
+            Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    // status classes of the request counters, "1xx" to "5xx" by status code / 100
+    private static final String[] STATUS_CLASSES = { "error", "1xx", "2xx", "3xx", "4xx", "5xx", "connect_error" };
+
+    private static final int ERROR = 0;
+    private static final int CONNECT_ERROR = 6;
+
+    /**
+     * The metrics of the requests with one target, method, and path template, looked up once.
+     */
+    private static class RequestMetrics {
+
+        final String target;
+        final String method;
+        final String path;
+
+        final Histogram latency;
+
+        // by index into STATUS_CLASSES, looked up when the status class first occurs
+        final AtomicReferenceArray<Counter> counters = new AtomicReferenceArray<>(STATUS_CLASSES.length);
+
+        RequestMetrics(String target, String method, String path) {
+
+            this.target = target;
+            this.method = method;
+            this.path = path;
+
+            latency = Metrics.latencyHistogram("emodb_outbound_request_seconds",
+                    "Latency of requests to EmoDB and Elasticsearch until the response headers arrive.",
+                    "target", target, "method", method, "path", path);
+        }
+
+        /**
+         * Counts a request with the specified status class.
+         *
+         * @param statusClass the index of the status class in <code>STATUS_CLASSES</code>.
+         */
+        void count(int statusClass) {
+
+            Counter counter = counters.get(statusClass);
+
+            if (counter == null) {
+
+                counter = Metrics.counter("emodb_outbound_requests_total",
+                        "Requests to EmoDB and Elasticsearch by response status class.",
+                        "target", target, "method", method, "path", path, "status", STATUS_CLASSES[statusClass]);
+
+                counters.set(statusClass, counter); // a racing lookup returns the same counter
+            }
+
+            counter.inc();
+        }
+    }
+
+    // by target, method, and path template (bounded, see normalizePath)
+    private static final Map<String, RequestMetrics> requestMetrics = new ConcurrentHashMap<>();
+
     /**
      * Adds the API header to the specified request.
      *
@@ -27,6 +115,228 @@ public class HttpUtils {
         request.addHeader("X-BV-API-Key", "local_admin");
     }
 
+    /**
+     * Returns the HTTP client for requests to the backends (EmoDB, Elasticsearch).
+     *
+     * All callers (the consumers and indexes of all tables, the query service) share one client
+     * and thus one pool of keep-alive connections, whose size bounds the concurrent requests per
+     * backend. Connections are handed out first come, first served, so no table can take the
+     * connections of the others for good.
+     *
+     * @return the shared HTTP client, which must not be closed by the caller (see <code>cleanup</code>).
+     */
+    public static CloseableHttpClient sharedClient() {
+
+        return SHARED_CLIENT;
+    }
+
+    /**
+     * Retries requests like the default retry handler, and counts requests whose connection could
+     * not be established (they never reach the request executor).
+     */
+    private static final HttpRequestRetryHandler INSTRUMENTED_RETRY_HANDLER = new DefaultHttpRequestRetryHandler() {
+
+        @Override
+        public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+
+            if (exception instanceof ConnectException || exception instanceof ConnectTimeoutException) {
+
+                HttpClientContext clientContext = HttpClientContext.adapt(context);
+
+                HttpHost host = clientContext.getTargetHost();
+                HttpRequest request = clientContext.getRequest();
+
+                requestMetricsOf(host, request).count(CONNECT_ERROR);
+            }
+
+            return super.retryRequest(exception, executionCount, context);
+        }
+    };
+
+    /**
+     * Executes requests like the default executor and records their latency (until the response
+     * headers are received) and outcome per target and path, as metrics and flight recorder events.
+     */
+    private static final HttpRequestExecutor INSTRUMENTED_EXECUTOR = new HttpRequestExecutor() {
+
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection connection, HttpContext context)
+                throws IOException, HttpException {
+
+            RequestMetrics metrics = requestMetricsOf(HttpCoreContext.adapt(context).getTargetHost(), request);
+
+            OutboundRequestEvent event = new OutboundRequestEvent();
+            event.begin();
+
+            long startNanos = System.nanoTime();
+            int statusClass = ERROR;
+            int statusCode = 0;
+            long responseBytes = -1;
+
+            try {
+
+                HttpResponse response = super.execute(request, connection, context);
+                statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode >= 100 && statusCode < 600) statusClass = statusCode / 100;
+                if (response.getEntity() != null) responseBytes = response.getEntity().getContentLength();
+                return response;
+
+            } finally {
+
+                event.record(metrics.target, metrics.method, metrics.path, statusCode, requestBytesOf(request), responseBytes);
+
+                metrics.latency.observeNanos(System.nanoTime() - startNanos);
+                metrics.count(statusClass);
+            }
+        }
+    };
+
+    private static final PoolingHttpClientConnectionManager CONNECTION_MANAGER = createConnectionManager();
+
+    // remark: declared after the executor and retry handler it is built with
+    private static final CloseableHttpClient SHARED_CLIENT = HttpClientBuilder.create()
+            .setConnectionManager(CONNECTION_MANAGER)
+            .setDefaultRequestConfig(RequestConfig.custom()
+                    .setConnectionRequestTimeout(10000) // waiting for a pooled connection
+                    .build())
+            .setRequestExecutor(INSTRUMENTED_EXECUTOR)
+            .setRetryHandler(INSTRUMENTED_RETRY_HANDLER)
+            .build(); // remark: content compression is on by default, it must not be disabled here
+
+    /**
+     * Creates the connection pool of the shared client, sized by the system properties
+     * <code>emodb.http.maxConnections</code> (default 128) and
+     * <code>emodb.http.maxConnectionsPerRoute</code> (default 64), and exports its usage as gauges.
+     *
+     * @return the connection pool.
+     */
+    private static PoolingHttpClientConnectionManager createConnectionManager() {
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(Integer.getInteger("emodb.http.maxConnections", 128));
+        connectionManager.setDefaultMaxPerRoute(Integer.getInteger("emodb.http.maxConnectionsPerRoute", 64));
+
+        Metrics.gauge("emodb_http_pool_connections", "Pooled connections to the backends by state.",
+                () -> connectionManager.getTotalStats().getLeased(), "state", "leased");
+        Metrics.gauge("emodb_http_pool_connections", "Pooled connections to the backends by state.",
+                () -> connectionManager.getTotalStats().getAvailable(), "state", "available");
+        Metrics.gauge("emodb_http_pool_pending_requests", "Requests waiting for a pooled connection.",
+                () -> connectionManager.getTotalStats().getPending());
+
+        return connectionManager;
+    }
+
+    /**
+     * Returns the metrics of requests like the specified one, looking them up on first use.
+     *
+     * @param host the target of the request, <code>null</code> if unknown.
+     * @param request the request, <code>null</code> if unknown.
+     * @return the metrics of the target, method, and path template of the request.
+     */
+    private static RequestMetrics requestMetricsOf(HttpHost host, HttpRequest request) {
+
+        String target = host == null ? "unknown" : targetOf(host.getPort());
+        String method = request == null ? "unknown" : request.getRequestLine().getMethod();
+        String path = request == null ? "unknown" : normalizePath(request.getRequestLine().getUri());
+
+        return requestMetrics.computeIfAbsent(target + ' ' + method + ' ' + path,
+                key -> new RequestMetrics(target, method, path));
+    }
+
+    /**
+     * Returns the length of the body of the specified request.
+     *
+     * @param request the request.
+     * @return the length of the request body, -1 if the request has no body or its length is unknown.
+     */
+    private static long requestBytesOf(HttpRequest request) {
+
+        if (! (request instanceof HttpEntityEnclosingRequest)) return -1;
+
+        HttpEntity entity = ((HttpEntityEnclosingRequest)request).getEntity();
+
+        return entity == null ? -1 : entity.getContentLength();
+    }
+
+    /**
+     * Returns the metric label of the backend listening on the specified local port.
+     *
+     * @param port the port of the request target.
+     * @return the backend name.
+     */
+    private static String targetOf(int port) {
+
+        switch (port) {
+            case 8080: return "emodb";
+            case 8081: return "emodb_admin";
+            case 9200: return "elasticsearch";
+            case 4567: return "spark";
+            default: return Integer.toString(port);
+        }
+    }
+
+    /**
+     * Reduces a request URI to a path template with a bounded number of distinct values
+     * (metric labels): the query is removed, IDs become <code>{id}</code> and numbers <code>{n}</code>.
+     *
+     * @param uri the request URI (absolute or path only).
+     * @return the path template, e.g. <code>/sor/{n}/items/{id}</code>.
+     */
+    static String normalizePath(String uri) {
+
+        // remark: no regular expressions except for IDs, this runs for every backend request
+
+        int start = 0;
+        int schemeEnd = uri.indexOf("://");
+
+        if (schemeEnd > 0 && uri.indexOf('/') > schemeEnd) {
+            start = uri.indexOf('/', schemeEnd + 3);
+            if (start < 0) start = uri.length();
+        }
+
+        int end = uri.indexOf('?', start);
+        if (end < 0) end = uri.length();
+
+        StringBuilder builder = new StringBuilder();
+
+        for (int segmentStart = start; segmentStart < end; ) {
+
+            int segmentEnd = uri.indexOf('/', segmentStart);
+            if (segmentEnd < 0 || segmentEnd > end) segmentEnd = end;
+
+            if (segmentEnd > segmentStart) {
+
+                builder.append('/');
+
+                int length = segmentEnd - segmentStart;
+
+                if (length > 40 || (length == 36 && UUID_PATTERN.matcher(uri.substring(segmentStart, segmentEnd)).matches())) {
+
+                    builder.append("{id}"); // document IDs, scroll IDs
+
+                } else {
+
+                    boolean inNumber = false;
+
+                    for (int i = segmentStart; i < segmentEnd; ++i) {
+
+                        char c = uri.charAt(i);
+                        boolean digit = c >= '0' && c <= '9';
+
+                        if (! digit) builder.append(c);
+                        else if (! inNumber) builder.append("{n}");
+
+                        inNumber = digit;
+                    }
+                }
+            }
+
+            segmentStart = segmentEnd + 1;
+        }
+
+        return builder.length() == 0 ? "/" : builder.toString();
+    }
+
     /**
      * Executes an HTTP GET request via Apache's HTTP lib.
      *
@@ -35,7 +345,7 @@ public class HttpUtils {
      */
     public static String get(String url) {
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient client = sharedClient();
         CloseableHttpResponse response = null;
 
         HttpGet request = new HttpGet(url);
@@ -51,23 +361,47 @@ public class HttpUtils {
         } catch (IOException e) {
             return null;
         } finally {
-            cleanup(response, client);
+            cleanup(response);
+        }
+    }
+
+    /**
+     * Executes the specified HTTP request via Apache's HTTP lib and returns the response body.
+     * Unlike {@link #get(String)}, no API header is added (the caller prepares the request).
+     *
+     * @param request the fully prepared request that is to be executed.
+     * @return the response body of the request, <code>null</code> if unsuccessful.
+     */
+    public static String execute(HttpUriRequest request) {
+
+        CloseableHttpClient client = sharedClient();
+        CloseableHttpResponse response = null;
+
+        try {
+
+            response = client.execute(request);
+            HttpEntity entity = response.getEntity();
+            return entity != null ? EntityUtils.toString(entity) : null;
+
+        } catch (IOException e) {
+            return null;
+        } finally {
+            cleanup(response);
         }
     }
 
     /**
-     * Cleans up the response and client object of an HTTP request procedure.
+     * Cleans up the response of an HTTP request procedure. The shared client stays open; a fully
+     * read response returns its connection to the pool, any other response closes it.
      *
-     * @param response the response that is to be cleaned up.
-     * @param client the client that is to be cleaned up.
+     * @param response the response that is to be cleaned up, may be <code>null</code>.
      */
-    public static void cleanup(CloseableHttpResponse response, CloseableHttpClient client) {
+    public static void cleanup(CloseableHttpResponse response) {
 
         try {
             if (response != null) response.close();
-            client.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.warn("could not close HTTP response (" + e.getMessage() + ")");
         }
     }
 }
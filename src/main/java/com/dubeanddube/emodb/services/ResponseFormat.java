@@ -0,0 +1,148 @@
+package com.dubeanddube.emodb.services;
+
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.search.ResultLayout;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.IOException;
+
+/**
+ * Defines the formats in which query results can be returned, and selects one for a request
+ * (content negotiation). Text JSON is the default.
+ *
+ * @author Dominique Dube
+ */
+enum ResponseFormat {
+
+    JSON("json", "application/json", JsonUtils.MAPPER, ResultLayout.ENVELOPE),
+
+    // one document per line, only for results with several documents
+    NDJSON("ndjson", "application/x-ndjson", JsonUtils.MAPPER, ResultLayout.LINES),
+
+    SMILE("smile", "application/x-jackson-smile", JsonUtils.SMILE_MAPPER, ResultLayout.ENVELOPE),
+
+    CBOR("cbor", "application/cbor", JsonUtils.CBOR_MAPPER, ResultLayout.ENVELOPE);
+
+    private final String name;
+    private final String contentType;
+    private final ObjectMapper mapper;
+    private final ResultLayout layout;
+
+    ResponseFormat(String name, String contentType, ObjectMapper mapper, ResultLayout layout) {
+
+        this.name = name;
+        this.contentType = contentType;
+        this.mapper = mapper;
+        this.layout = layout;
+    }
+
+    /**
+     * Selects the response format, either by the <code>format</code> parameter (json, ndjson,
+     * smile, cbor) or by the Accept header: the supported media type with the highest quality
+     * value, the first listed one among equals. Media types with <code>q=0</code> are refused.
+     *
+     * @param formatParam the value of the format parameter, <code>null</code> if absent.
+     * @param accept the value of the Accept header, <code>null</code> if absent.
+     * @return the selected response format, <code>JSON</code> if nothing else is supported.
+     */
+    static ResponseFormat negotiate(String formatParam, String accept) {
+
+        if (formatParam != null) {
+
+            for (ResponseFormat format : values()) {
+                if (format.name.equalsIgnoreCase(formatParam)) return format;
+            }
+        }
+
+        if (accept == null) return JSON;
+
+        ResponseFormat selected = JSON;
+        double selectedQuality = 0;
+
+        for (String mediaRange : accept.split(",")) {
+
+            String[] parts = mediaRange.split(";");
+            String mediaType = parts[0].trim();
+
+            double quality = 1;
+
+            for (int i = 1; i < parts.length; ++i) {
+
+                String parameter = parts[i].trim();
+
+                if (parameter.startsWith("q=")) quality = NumberUtils.toDouble(parameter.substring(2), 0);
+            }
+
+            if (quality <= selectedQuality) continue; // refused (q=0), or not preferred to an earlier type
+
+            for (ResponseFormat format : values()) {
+
+                if (format.contentType.equalsIgnoreCase(mediaType)) {
+                    selected = format;
+                    selectedQuality = quality;
+                }
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * Returns the content type of this format.
+     *
+     * @return the content type of this format.
+     */
+    String getContentType() {
+
+        return contentType;
+    }
+
+    /**
+     * Returns the object mapper that writes this format.
+     *
+     * @return the object mapper that writes this format.
+     */
+    ObjectMapper getMapper() {
+
+        return mapper;
+    }
+
+    /**
+     * Returns the layout of results with several documents in this format.
+     *
+     * @return the layout of results with several documents.
+     */
+    ResultLayout getLayout() {
+
+        return layout;
+    }
+
+    /**
+     * Derives the ETag of this representation from the ETag of the result, since each format
+     * is a different representation of the same result.
+     *
+     * @param tag the ETag of the result.
+     * @return the ETag of the result in this format.
+     */
+    String getTag(String tag) {
+
+        return this == JSON ? tag : tag.substring(0, tag.length() - 1) + "-" + name + "\"";
+    }
+
+    /**
+     * Returns the failure message (see <code>JsonUtils.NO_SUCCESS</code>) in this format.
+     *
+     * @return the failure message as string (text formats) or byte array (binary formats).
+     */
+    Object getFailureBody() {
+
+        if (! mapper.getFactory().canHandleBinaryNatively()) return JsonUtils.NO_SUCCESS;
+
+        try {
+            return mapper.writeValueAsBytes(JsonUtils.MAPPER.readTree(JsonUtils.NO_SUCCESS));
+        } catch (IOException e) {
+            return JsonUtils.NO_SUCCESS;
+        }
+    }
+}
@@ -1,22 +1,111 @@
 package com.dubeanddube.emodb.services;
 
+import com.dubeanddube.emodb.cluster.Cluster;
+import com.dubeanddube.emodb.data.CountResult;
+import com.dubeanddube.emodb.data.FacetResult;
+import com.dubeanddube.emodb.data.HealthResult;
 import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.MessageResult;
+import com.dubeanddube.emodb.data.QueryResult;
+import com.dubeanddube.emodb.events.QueryRequestEvent;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.FreshnessMonitor;
+import com.dubeanddube.emodb.metrics.Histogram;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.dubeanddube.emodb.search.ItemIndex;
+import com.dubeanddube.emodb.search.Query;
+import com.dubeanddube.emodb.search.ResultLayout;
 import com.dubeanddube.emodb.search.SearchEngine;
+import com.dubeanddube.emodb.search.UpdateOutcome;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
 
 import static spark.Spark.get;
+import static spark.Spark.port;
+import static spark.Spark.post;
+import static spark.Spark.threadPool;
+import static spark.Spark.webSocket;
+import static spark.Spark.webSocketIdleTimeoutMillis;
 
 /**
  * Sets up the SPARK route for retrieving queries to the index structure (milestone 1).
  *
+ * Every indexed table has its own routes under its route prefix (e.g. <code>/orders/document</code>),
+ * the routes of the first table are also available without a prefix by default. All tables share
+ * the Jetty thread pool and the concurrency limits, so that a busy table cannot take all threads.
+ *
  * @author Dominique Dube
  */
 public class Spark {
 
     private final Logger logger = LoggerFactory.getLogger(Spark.class); // some basic logging
 
-    private static final int SPARK_PORT = 4567;
+    // configurable, so that several cluster members can run on one host (e.g. -Demodb.spark.port=4568)
+    private static final int SPARK_PORT = Integer.getInteger("emodb.spark.port", 4567);
+
+    // bodies up to this size are sent uncompressed, compressing them does not pay off
+    private static final int MIN_COMPRESSION_SIZE = 1024;
+
+    // caches may store results, but must revalidate them (cheap thanks to the ETag)
+    private static final String CACHE_CONTROL = "public, max-age=0, must-revalidate";
+
+    // Jetty thread pool, configurable with system properties (e.g. -Demodb.spark.maxThreads=128)
+    private static final int MAX_THREADS = Integer.getInteger("emodb.spark.maxThreads", 64);
+    private static final int MIN_THREADS = Integer.getInteger("emodb.spark.minThreads", 8);
+    private static final int THREAD_IDLE_TIMEOUT_MILLIS = 30000;
+
+    // upper bounds of the adaptive concurrency limits, which must leave threads for Jetty and /ping
+    private static final int MAX_POINT_CONCURRENCY = Integer.getInteger("emodb.spark.maxPointConcurrency", 32);
+    private static final int MAX_SCAN_CONCURRENCY = Integer.getInteger("emodb.spark.maxScanConcurrency", 8);
+
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    // /health fails if the index lags further behind EmoDB (e.g. -Demodb.freshness.alertSeconds=60)
+    private static final int FRESHNESS_ALERT_SECONDS = Integer.getInteger("emodb.freshness.alertSeconds", 30);
+
+    // quiet change feeds are closed after this time, unless the client sends pings
+    private static final int WEBSOCKET_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final ExecutorService reindexExecutor = Executors.newSingleThreadExecutor();
+
+    private final Cluster cluster; // null unless running in cluster mode
+
+    // queries the other cluster members in parallel
+    private final ExecutorService clusterExecutor = Executors.newCachedThreadPool();
+
+    private final ConcurrencyLimiter pointLimiter =
+            new ConcurrencyLimiter("point lookups", MAX_POINT_CONCURRENCY / 2, 1, MAX_POINT_CONCURRENCY);
+
+    private final ConcurrencyLimiter scanLimiter =
+            new ConcurrencyLimiter("scans", MAX_SCAN_CONCURRENCY / 2, 1, MAX_SCAN_CONCURRENCY);
+
+    private volatile boolean ready = false; // whether the application startup is complete
+
+    // the lag checked by /health, the freshness of the index by default
+    private volatile LongSupplier lagMillisSupplier = FreshnessMonitor::getLagMillis;
 
     /**
      * Sets up a SPARK micro framework service with embedded Jetty listening on port 4567.
@@ -30,38 +119,809 @@ public class Spark {
      *
      * curl "http://localhost:4567/document?color=green"
      *
-     * @param searchEngine the search index instance.
+     * Example for streaming all documents with a specific color, one document per line:
+     *
+     * curl -H "Accept: application/x-ndjson" "http://localhost:4567/document?color=green"
+     *
+     * If both ID and color are given, the document is returned only if it has that color.
+     *
+     * Example for a compound query (see <code>Query</code> for the format):
+     *
+     * curl -XPOST "http://localhost:4567/query" -d '{"where": {"color": "green", "text": "lorem"}, "limit": 10}'
+     *
+     * Examples for counting documents by color, without retrieving them:
+     *
+     * curl "http://localhost:4567/facets"
+     * curl "http://localhost:4567/count?color=green"
+     *
+     * Results are returned as text JSON, or as Smile or CBOR if requested in the Accept header
+     * (application/x-jackson-smile, application/cbor) or with the format parameter.
+     *
+     * Results larger than 1 KB are compressed if the client accepts gzip or deflate encoding.
+     *
+     * Concurrent requests are limited (separately for lookups by ID and color queries), with limits
+     * that adapt to the observed latency. Requests beyond the limit are rejected with a 503
+     * (Service Unavailable) response and a Retry-After header.
+     *
+     * Results carry an ETag, which can be sent back in an If-None-Match header to receive
+     * a 304 (Not Modified) response without payload if the result has not changed.
+     *
+     * Example for subscribing to all updates of documents with a specific color (WebSocket):
+     *
+     * wscat -c "ws://localhost:4567/changes?color=green"
+     *
+     * Example for reading the metrics (Prometheus text format):
+     *
+     * curl "http://localhost:4567/metrics"
+     *
+     * Example for rebuilding the Elasticsearch index in the background (queries continue to be served):
+     *
+     * curl -XPOST "http://localhost:4567/reindex"
+     *
+     * The routes of further tables are prefixed with their route prefix, e.g.
+     *
+     * curl "http://localhost:4567/orders/document?color=green"
+     *
+     * @param searchEngines the search index instances by route prefix (e.g. "" and <code>/orders</code>).
+     */
+    public Spark(final Map<String, SearchEngine> searchEngines) {
+
+        this(searchEngines, null);
+    }
+
+    /**
+     * Sets up a SPARK micro framework service as above, for a member of a cluster.
+     *
+     * Documents by ID are looked up at the member owning them, and documents by color, compound
+     * queries, and counts are collected from all members (results of other members carry no ETag). Requests from other members
+     * (marked by <code>Cluster.FORWARDED_HEADER</code>) are answered from the local index only.
+     * Document updates polled by other members are received on <code>/cluster/updates</code>.
+     *
+     * @param searchEngines the search index instances by route prefix (e.g. "" and <code>/orders</code>).
+     * @param cluster the cluster, <code>null</code> if not running in cluster mode.
      */
-    public Spark(final SearchEngine searchEngine) {
+    public Spark(final Map<String, SearchEngine> searchEngines, final Cluster cluster) {
 
-        logger.info("setting up SPARK route /document");
+        this.cluster = cluster;
 
-        get("/ping", (request, response) -> "pong");
+        if (MAX_POINT_CONCURRENCY + MAX_SCAN_CONCURRENCY >= MAX_THREADS) {
+            logger.warn("concurrency limits leave no threads for other requests - raise emodb.spark.maxThreads");
+        }
 
-        get("/document", (request, response) -> {
+        port(SPARK_PORT);
+        threadPool(MAX_THREADS, MIN_THREADS, THREAD_IDLE_TIMEOUT_MILLIS); // before the first route
+
+        for (Map.Entry<String, SearchEngine> entry : searchEngines.entrySet()) {
+
+            String prefix = entry.getKey();
+            SearchEngine searchEngine = entry.getValue();
+
+            logger.info("setting up SPARK WebSocket " + prefix + "/changes");
+
+            ChangeFeed changeFeed = new ChangeFeed(searchEngine.getTable());
+
+            webSocket(prefix + "/changes", changeFeed); // before the first route as well
+
+            searchEngine.addUpdateListener(changeFeed::publish);
+        }
+
+        webSocketIdleTimeoutMillis(WEBSOCKET_IDLE_TIMEOUT_MILLIS);
+
+        Metrics.gauge("emodb_query_concurrency_limit", "Current adaptive concurrency limit of queries.",
+                pointLimiter::getLimit, "kind", "point");
+        Metrics.gauge("emodb_query_concurrency_limit", "Current adaptive concurrency limit of queries.",
+                scanLimiter::getLimit, "kind", "scan");
+        Metrics.gauge("emodb_query_in_flight", "Number of queries being executed.",
+                pointLimiter::getInFlight, "kind", "point");
+        Metrics.gauge("emodb_query_in_flight", "Number of queries being executed.",
+                scanLimiter::getInFlight, "kind", "scan");
+
+        get("/ping", instrumented("/ping", (request, response) -> "pong"));
+
+        get("/health", (request, response) -> {
+
+            HealthResult result = new HealthResult();
+
+            long lagMillis = lagMillisSupplier.getAsLong();
+
+            result.ready = ready;
+            result.success = ready && lagMillis <= FRESHNESS_ALERT_SECONDS * 1000L;
+            result.freshnessLagSeconds = lagMillis / 1000.0;
+            result.alertThresholdSeconds = FRESHNESS_ALERT_SECONDS;
+            result.pendingEvents = FreshnessMonitor.getNumPendingEvents();
+
+            response.type("application/json");
+            if (! result.success) response.status(503);
+
+            try {
+                return JsonUtils.MAPPER.writeValueAsString(result);
+            } catch (IOException e) {
+                return JsonUtils.NO_SUCCESS;
+            }
+        });
+
+        get("/metrics", (request, response) -> {
+
+            response.type(Metrics.CONTENT_TYPE);
+            return Metrics.scrape();
+        });
+
+        searchEngines.forEach(this::addTableRoutes);
+    }
+
+    /**
+     * Sets up the query and reindex routes of one table.
+     *
+     * @param prefix the route prefix of the table, e.g. "" or <code>/orders</code>.
+     * @param searchEngine the search index of the table.
+     */
+    private void addTableRoutes(String prefix, SearchEngine searchEngine) {
+
+        logger.info("setting up SPARK routes " + prefix + "/document and " + prefix + "/reindex for table " +
+                searchEngine.getTable());
+
+        get(prefix + "/document", instrumented(prefix + "/document", (request, response) -> {
 
             String idParam = request.queryParams("id");
             String colorParam = request.queryParams("color");
 
-            String jsonString;
+            response.type("application/json");
+
+            if (idParam == null && colorParam == null) return JsonUtils.NO_SUCCESS;
 
-            if (idParam != null) {
+            // with both parameters, the document by ID is returned only if it has the color
 
-                if (colorParam != null) logger.debug("ignoring color parameter");
-                jsonString = searchEngine.getDocumentById(idParam);
+            ResponseFormat format = ResponseFormat.negotiate(request.queryParams("format"), request.headers("Accept"));
 
-            } else if (colorParam != null) {
+            // documents by ID are a single object, which is not split into lines
+            if (idParam != null && format == ResponseFormat.NDJSON) format = ResponseFormat.JSON;
+
+            response.type(format.getContentType());
+            response.header("Vary", "Accept, Accept-Encoding");
+
+            // in cluster mode, the result is (partly) answered by other members, unless this is such a request
+
+            boolean distributed = cluster != null && request.headers(Cluster.FORWARDED_HEADER) == null &&
+                    (idParam == null || ! cluster.isLocal(idParam));
+
+            // the tag is taken before the query, so a concurrent change can only make it older than the result
+
+            String tag = distributed ? null :
+                    idParam != null ? searchEngine.getDocumentTag(idParam) : searchEngine.getColorTag(colorParam);
+
+            if (tag != null) tag = format.getTag(tag);
+
+            String matchingTag = tag == null ? null : matchingTag(request.headers("If-None-Match"), tag);
+
+            if (matchingTag != null) {
+
+                // answered without touching the index, so not subject to admission control
+                response.header("ETag", matchingTag); // the tag of the (possibly compressed) cached response
+                response.header("Cache-Control", CACHE_CONTROL);
+                response.status(304);
+                return "";
+            }
 
-                jsonString = searchEngine.getDocumentsByColor(colorParam);
+            // point lookups and scans are limited separately, so slow scans cannot starve point lookups
+
+            ConcurrencyLimiter limiter = idParam != null ? pointLimiter : scanLimiter;
+
+            if (! limiter.tryAcquire()) {
+
+                logger.debug("rejecting request, concurrency limit " + limiter.getLimit() + " reached");
+
+                response.status(503);
+                response.header("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+                return format.getFailureBody();
+            }
+
+            long startNanos = System.nanoTime();
+            boolean success = false;
+
+            try {
+
+                if (tag != null) {
+                    response.header("ETag", tag);
+                    response.header("Cache-Control", CACHE_CONTROL);
+                }
+
+                // results are written straight to the response as they are retrieved from the index
+
+                String encoding = CompressingOutputStream.selectEncoding(request.headers("Accept-Encoding"));
+
+                OutputStream out = encoding == null ? response.raw().getOutputStream() :
+                        new CompressingOutputStream(response.raw(), encoding, MIN_COMPRESSION_SIZE);
+
+                JsonGenerator generator = format.getMapper().getFactory().createGenerator(out);
+
+                // a result that fails halfway must not be completed to valid JSON on close
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
+                try {
+
+                    if (distributed) {
+                        writeDistributedResult(prefix, searchEngine, idParam, colorParam, format.getLayout(), generator);
+                    } else if (idParam != null && colorParam != null) {
+                        searchEngine.writeDocumentById(idParam, colorParam, generator);
+                    } else if (idParam != null) {
+                        searchEngine.writeDocumentById(idParam, generator);
+                    } else {
+                        searchEngine.writeDocumentsByColor(colorParam, format.getLayout(), generator);
+                    }
+
+                } catch (IOException e) {
+
+                    if (response.raw().isCommitted()) throw e; // connection is aborted, output is incomplete
+
+                    // nothing sent yet: replace the result (and its tag, so the failure is not cached)
+                    response.raw().reset();
+                    response.type(format.getContentType());
+                    return format.getFailureBody();
+                }
+
+                generator.close();
+                success = true;
+
+                return ""; // response is committed already
+
+            } finally {
+                limiter.release(System.nanoTime() - startNanos, success);
+            }
+        }));
+
+        post(prefix + "/query", instrumented(prefix + "/query", (request, response) -> {
+
+            response.type("application/json");
+
+            Query query;
+
+            try {
+                query = Query.fromJson(request.body());
+            } catch (IllegalArgumentException e) {
+
+                MessageResult result = new MessageResult();
+                result.success = false;
+                result.payload = e.getMessage();
+
+                response.status(400);
+                return JsonUtils.MAPPER.writeValueAsString(result);
+            }
+
+            // compound queries may scan, so they share the limit of scans
+
+            if (! scanLimiter.tryAcquire()) {
+
+                logger.debug("rejecting request, concurrency limit " + scanLimiter.getLimit() + " reached");
+
+                response.status(503);
+                response.header("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+                return JsonUtils.NO_SUCCESS;
+            }
+
+            long startNanos = System.nanoTime();
+            boolean success = false;
+
+            try {
+
+                boolean distributed = cluster != null && request.headers(Cluster.FORWARDED_HEADER) == null;
+
+                QueryResult result = distributed ?
+                        queryCluster(prefix, searchEngine, request.body(), query) : searchEngine.query(query);
+
+                String responseString = JsonUtils.MAPPER.writeValueAsString(result);
+
+                success = true;
+
+                return responseString;
+
+            } catch (IOException e) {
+                logger.debug("compound query failed: " + e.getMessage());
+                return JsonUtils.NO_SUCCESS;
+            } finally {
+                scanLimiter.release(System.nanoTime() - startNanos, success);
+            }
+        }));
+
+        get(prefix + "/facets", instrumented(prefix + "/facets", (request, response) -> {
+
+            response.type("application/json");
+
+            Map<String, Long> counts = countColors(prefix, searchEngine, request, response);
+
+            if (counts == null) return JsonUtils.NO_SUCCESS;
+
+            FacetResult result = new FacetResult();
+            result.success = true;
+            result.total = counts.values().stream().mapToLong(Long::longValue).sum();
+            result.payload = counts;
+
+            return JsonUtils.MAPPER.writeValueAsString(result);
+        }));
+
+        get(prefix + "/count", instrumented(prefix + "/count", (request, response) -> {
+
+            String colorParam = request.queryParams("color");
+
+            response.type("application/json");
+
+            if (colorParam == null) return JsonUtils.NO_SUCCESS;
+
+            Map<String, Long> counts = countColors(prefix, searchEngine, request, response);
+
+            if (counts == null) return JsonUtils.NO_SUCCESS;
+
+            CountResult result = new CountResult();
+            result.success = true;
+            result.count = counts.getOrDefault(colorParam, 0L);
+
+            return JsonUtils.MAPPER.writeValueAsString(result);
+        }));
+
+        if (cluster != null) addClusterRoutes(prefix, searchEngine);
+
+        post(prefix + "/reindex", instrumented(prefix + "/reindex", (request, response) -> {
+
+            MessageResult result = new MessageResult();
+
+            if (! searchEngine.canReindex()) {
+
+                result.success = false;
+                result.payload = "reindexing requires Elasticsearch-based indexing";
+
+            } else if (searchEngine.isReindexing()) {
+
+                result.success = false;
+                result.payload = "reindex already in progress";
 
             } else {
 
-                jsonString = JsonUtils.NO_SUCCESS;
+                reindexExecutor.execute(searchEngine::reindex);
+
+                result.success = true;
+                result.payload = "reindex started";
             }
 
             response.type("application/json");
-            return jsonString;
-        });
+
+            try {
+                return JsonUtils.MAPPER.writeValueAsString(result);
+            } catch (IOException e) {
+                return JsonUtils.NO_SUCCESS;
+            }
+        }));
+    }
+
+    /**
+     * Sets up the route on which a cluster member receives the document updates of its shards that
+     * were polled from the shared subscription by other members.
+     *
+     * Updates of documents this member does not own (any more) are rejected, so that the sender
+     * does not acknowledge them and forwards them to the right owner once they are redelivered.
+     *
+     * @param prefix the route prefix of the table, e.g. "" or <code>/orders</code>.
+     * @param searchEngine the search index of the table.
+     */
+    private void addClusterRoutes(String prefix, SearchEngine searchEngine) {
+
+        logger.info("setting up SPARK route " + prefix + "/cluster/updates for table " + searchEngine.getTable());
+
+        post(prefix + "/cluster/updates", instrumented(prefix + "/cluster/updates", (request, response) -> {
+
+            response.type("application/json");
+
+            List<Cluster.ForwardedUpdate> updates;
+
+            try {
+                updates = Cluster.parseUpdates(request.body());
+            } catch (IOException e) {
+                logger.warn("rejecting forwarded updates: " + e.getMessage());
+                return JsonUtils.NO_SUCCESS;
+            }
+
+            int numRejected = 0;
+
+            for (Cluster.ForwardedUpdate update : updates) {
+
+                if (! cluster.isLocal(update.idItem.getId())) {
+                    ++numRejected;
+                    continue;
+                }
+
+                UpdateOutcome outcome = searchEngine.updateDocument(update.idItem);
+
+                if (outcome.isSuccess() && update.writeMillis >= 0) {
+                    FreshnessMonitor.recordApplied(searchEngine.getTable(), update.writeMillis);
+                }
+
+                if (outcome == UpdateOutcome.FAILED) ++numRejected;
+            }
+
+            MessageResult result = new MessageResult();
+            result.success = numRejected == 0;
+            result.payload = (updates.size() - numRejected) + " of " + updates.size() + " updates applied";
+
+            try {
+                return JsonUtils.MAPPER.writeValueAsString(result);
+            } catch (IOException e) {
+                return JsonUtils.NO_SUCCESS;
+            }
+        }));
+    }
+
+    /**
+     * Writes the result of a query that other cluster members take part in: a document by ID is
+     * looked up at its owner, and documents by color are collected from all members in parallel.
+     * Nothing is written unless all members answered, so a failure can still be replaced.
+     *
+     * @param prefix the route prefix of the table.
+     * @param searchEngine the search index of the table (for the local part of color queries).
+     * @param idParam the requested document ID, <code>null</code> for a query by color.
+     * @param colorParam the requested color, <code>null</code> for a query by ID only.
+     * @param layout the layout of color results.
+     * @param generator the generator to which the result is written.
+     * @throws IOException if a member did not answer, or the result could not be written.
+     */
+    private void writeDistributedResult(String prefix, SearchEngine searchEngine, String idParam, String colorParam,
+                                        ResultLayout layout, JsonGenerator generator) throws IOException {
+
+        if (idParam != null) {
+
+            String owner = cluster.ownerOf(idParam);
+
+            generator.writeTree(parseResult(cluster.query(owner, prefix + "/document?format=json&id=" +
+                    URLEncoder.encode(idParam, "UTF-8") +
+                    (colorParam != null ? "&color=" + URLEncoder.encode(colorParam, "UTF-8") : "")), owner));
+            return;
+        }
+
+        String pathAndQuery = prefix + "/document?format=json&color=" + URLEncoder.encode(colorParam, "UTF-8");
+
+        List<String> members = new ArrayList<>(cluster.getRemoteMembers());
+        List<Future<String>> remoteResults = new ArrayList<>();
+
+        for (String member : members) remoteResults.add(clusterExecutor.submit(() -> cluster.query(member, pathAndQuery)));
+
+        // the local part is retrieved while the other members are working on theirs
+
+        List<JsonNode> payloads = new ArrayList<>();
+
+        payloads.add(parseResult(searchEngine.getDocumentsByColor(colorParam), cluster.getSelf()).path("payload"));
+
+        for (int i = 0; i < members.size(); ++i) {
+
+            String responseString;
+
+            try {
+                responseString = remoteResults.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("query of cluster member " + members.get(i) + " failed: " + e);
+            }
+
+            payloads.add(parseResult(responseString, members.get(i)).path("payload"));
+        }
+
+        ItemIndex.writeItemArrayStart(layout, generator);
+
+        int size = 0;
+
+        for (JsonNode payload : payloads) {
+
+            for (JsonNode item : payload) {
+                generator.writeTree(item);
+                ++size;
+            }
+        }
+
+        ItemIndex.writeItemArrayEnd(size, layout, generator);
+    }
+
+    /**
+     * Counts the documents of a table by color, on all cluster members unless this is a request
+     * of another member. Counts are cheap, so they are limited like point lookups.
+     *
+     * @param prefix the route prefix of the table.
+     * @param searchEngine the search index of the table.
+     * @param request the request.
+     * @param response the response, whose status is set if the request is rejected.
+     * @return the number of documents by color, <code>null</code> if the documents could not be counted.
+     */
+    private Map<String, Long> countColors(String prefix, SearchEngine searchEngine, Request request, Response response) {
+
+        if (! pointLimiter.tryAcquire()) {
+
+            logger.debug("rejecting request, concurrency limit " + pointLimiter.getLimit() + " reached");
+
+            response.status(503);
+            response.header("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+            return null;
+        }
+
+        long startNanos = System.nanoTime();
+        boolean success = false;
+
+        try {
+
+            boolean distributed = cluster != null && request.headers(Cluster.FORWARDED_HEADER) == null;
+
+            List<String> members = distributed ? new ArrayList<>(cluster.getRemoteMembers()) : new ArrayList<>();
+            List<Future<String>> remoteResults = new ArrayList<>();
+
+            for (String member : members) {
+                remoteResults.add(clusterExecutor.submit(() -> cluster.query(member, prefix + "/facets")));
+            }
+
+            Map<String, Long> counts = new TreeMap<>(searchEngine.getColorCounts());
+
+            for (int i = 0; i < members.size(); ++i) {
+
+                String responseString;
+
+                try {
+                    responseString = remoteResults.get(i).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException("query of cluster member " + members.get(i) + " failed: " + e);
+                }
+
+                parseResult(responseString, members.get(i)).path("payload").fields().forEachRemaining(
+                        entry -> counts.merge(entry.getKey(), entry.getValue().asLong(), Long::sum));
+            }
+
+            success = true;
+
+            return counts;
+
+        } catch (IOException e) {
+            logger.debug("counting documents failed: " + e.getMessage());
+            return null;
+        } finally {
+            pointLimiter.release(System.nanoTime() - startNanos, success);
+        }
+    }
+
+    /**
+     * Evaluates a compound query on all cluster members in parallel and merges their results.
+     * Every member returns the first <code>offset + limit</code> of its matches (with their IDs),
+     * so that the requested window of the merged matches, in order of their IDs, is complete.
+     *
+     * @param prefix the route prefix of the table.
+     * @param searchEngine the search index of the table (for the local part of the query).
+     * @param body the request body of the query.
+     * @param query the parsed query.
+     * @return the merged result.
+     * @throws IOException if a member did not answer.
+     */
+    private QueryResult queryCluster(String prefix, SearchEngine searchEngine, String body, Query query)
+            throws IOException {
+
+        ObjectNode memberQueryNode = (ObjectNode)JsonUtils.MAPPER.readTree(body == null || body.trim().isEmpty() ? "{}" : body);
+
+        memberQueryNode.put("offset", 0);
+        memberQueryNode.put("limit", query.offset + query.limit);
+        ArrayNode fieldsArray = memberQueryNode.putArray("fields"); // the IDs are needed to merge
+        for (String field : Query.ALL_FIELDS) fieldsArray.add(field);
+
+        String memberBody = JsonUtils.MAPPER.writeValueAsString(memberQueryNode);
+
+        List<String> members = new ArrayList<>(cluster.getRemoteMembers());
+        List<Future<String>> remoteResults = new ArrayList<>();
+
+        for (String member : members) {
+            remoteResults.add(clusterExecutor.submit(() -> cluster.query(member, prefix + "/query", memberBody)));
+        }
+
+        QueryResult localResult = searchEngine.query(Query.fromJson(memberBody));
+
+        long total = localResult.total;
+        List<Map<String, Object>> matches = new ArrayList<>(localResult.payload);
+
+        for (int i = 0; i < members.size(); ++i) {
+
+            String responseString;
+
+            try {
+                responseString = remoteResults.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("query of cluster member " + members.get(i) + " failed: " + e);
+            }
+
+            JsonNode result = parseResult(responseString, members.get(i));
+
+            total += result.path("total").asLong();
+            matches.addAll(JsonUtils.MAPPER.convertValue(result.path("payload"),
+                    new TypeReference<List<Map<String, Object>>>() {}));
+        }
+
+        matches.sort(Comparator.comparing(document -> (String)document.get("id")));
+
+        QueryResult mergedResult = new QueryResult();
+
+        mergedResult.success = true;
+        mergedResult.total = total;
+        mergedResult.plan = "merged from " + (members.size() + 1) + " members, locally " + localResult.plan;
+        mergedResult.payload = new ArrayList<>();
+
+        for (int i = query.offset; i < matches.size() && i < query.offset + query.limit; ++i) {
+
+            Map<String, Object> document = new LinkedHashMap<>();
+
+            for (String field : query.fields) document.put(field, matches.get(i).get(field));
+
+            mergedResult.payload.add(document);
+        }
+
+        mergedResult.size = mergedResult.payload.size();
+
+        return mergedResult;
+    }
+
+    /**
+     * Parses a query result of a cluster member.
+     *
+     * @param responseString the JSON result, <code>null</code> if the member could not be reached.
+     * @param member the ID of the member (for the error message).
+     * @return the parsed result.
+     * @throws IOException if there is no result, or it is malformed or reports a failure.
+     */
+    private static JsonNode parseResult(String responseString, String member) throws IOException {
+
+        if (responseString == null) throw new IOException("cluster member " + member + " did not answer");
+
+        JsonNode result = JsonUtils.MAPPER.readTree(responseString);
+
+        if (result == null || ! result.path("success").asBoolean()) {
+            throw new IOException("cluster member " + member + " failed to answer the query");
+        }
+
+        return result;
+    }
+
+    /**
+     * Wraps a route so that its latency and response status are recorded as metrics and flight
+     * recorder events. The metrics of the route are looked up once, here.
+     *
+     * @param path the path of the route (metric label).
+     * @param route the route that is to be wrapped.
+     * @return the instrumented route.
+     */
+    private static Route instrumented(String path, Route route) {
+
+        Histogram latency = Metrics.latencyHistogram("emodb_http_request_seconds",
+                "Latency of requests to the query server.", "route", path);
+
+        // by status code / 100, from "1xx" to "5xx"
+        Counter[] requests = new Counter[6];
+
+        for (int statusClass = 1; statusClass < requests.length; ++statusClass) {
+            requests[statusClass] = Metrics.counter("emodb_http_requests_total",
+                    "Requests to the query server by response status class.", "route", path, "status", statusClass + "xx");
+        }
+
+        return (request, response) -> {
+
+            QueryRequestEvent event = new QueryRequestEvent();
+            event.begin();
+
+            long startNanos = System.nanoTime();
+            int statusClass = 5; // unless the route returns
+            int statusCode = 0;
+            long responseBytes = -1;
+
+            try {
+
+                Object body = route.handle(request, response);
+                statusCode = response.raw().getStatus();
+                if (statusCode >= 100 && statusCode < 600) statusClass = statusCode / 100;
+                responseBytes = sizeOf(body);
+                return body;
+
+            } finally {
+
+                event.record(path, request.requestMethod(), request.queryString(), statusCode, responseBytes);
+
+                latency.observeNanos(System.nanoTime() - startNanos);
+
+                requests[statusClass].inc();
+            }
+        };
+    }
+
+    /**
+     * Returns the size of a body returned by a route.
+     *
+     * @param body the body.
+     * @return the length of the body (characters for strings), -1 if the body was streamed.
+     */
+    private static long sizeOf(Object body) {
+
+        if (body instanceof byte[]) return ((byte[])body).length;
+
+        if (body instanceof String && ! ((String)body).isEmpty()) return ((String)body).length();
+
+        return -1; // streamed to the response output stream (or 304 without body)
+    }
+
+    /**
+     * Finds the entity tag of an If-None-Match header that matches the specified ETag (weak
+     * comparison). Tags of compressed bodies match as well, since they carry the ETag of the
+     * result plus the content encoding (see <code>CompressingOutputStream</code>).
+     *
+     * @param ifNoneMatch the value of the If-None-Match header, <code>null</code> if absent.
+     * @param tag the ETag of the current result.
+     * @return the matching entity tag as sent by the client (which is the ETag of the response it
+     *         holds), the specified ETag if the header is <code>*</code>, <code>null</code> if
+     *         nothing matches.
+     */
+    static String matchingTag(String ifNoneMatch, String tag) {
+
+        if (ifNoneMatch == null) return null;
+
+        String opaqueTag = tag.startsWith("W/") ? tag.substring(2) : tag;
+        String opaquePrefix = opaqueTag.substring(0, opaqueTag.length() - 1); // without the closing quote
+
+        for (String candidate : ifNoneMatch.split(",")) {
+
+            candidate = candidate.trim();
+
+            if (candidate.equals("*")) return tag;
+
+            String opaqueCandidate = candidate.startsWith("W/") ? candidate.substring(2) : candidate;
+
+            if (opaqueCandidate.equals(opaqueTag) ||
+                    opaqueCandidate.equals(opaquePrefix + "-" + CompressingOutputStream.GZIP + "\"") ||
+                    opaqueCandidate.equals(opaquePrefix + "-" + CompressingOutputStream.DEFLATE + "\"")) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Sets whether the application is ready to serve queries, i.e. whether its startup is complete.
+     * Until then, <code>/health</code> reports not being ready.
+     *
+     * @param ready <code>true</code> if the application is ready, <code>false</code> otherwise.
+     */
+    public void setReady(boolean ready) {
+
+        this.ready = ready;
+    }
+
+    /**
+     * Sets the lag that <code>/health</code> reports and checks against the alert threshold, e.g.
+     * the replication lag of a read replica instead of the freshness of an index fed by the databus.
+     *
+     * @param lagMillisSupplier supplies the current lag in milliseconds.
+     */
+    public void setLagSupplier(LongSupplier lagMillisSupplier) {
+
+        this.lagMillisSupplier = lagMillisSupplier;
+    }
+
+    /**
+     * Returns the port the Spark server listens on.
+     *
+     * @return the port (<code>emodb.spark.port</code>, 4567 by default).
+     */
+    public static int getPort() {
+
+        return SPARK_PORT;
+    }
+
+    /**
+     * Waits until the Spark server has started (or failed to start).
+     */
+    public void awaitInitialization() {
+
+        spark.Spark.awaitInitialization();
+    }
+
+    /**
+     * Stops the Spark server.
+     */
+    public void stop() {
+
+        spark.Spark.stop();
     }
 
     /**
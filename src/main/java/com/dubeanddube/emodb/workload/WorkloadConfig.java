@@ -0,0 +1,93 @@
+package com.dubeanddube.emodb.workload;
+
+import com.dubeanddube.emodb.data.TableConfig;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * POJO containing the parameters of a synthetic workload, read from system properties with the
+ * prefix <code>emodb.workload.</code> (e.g. <code>-Demodb.workload.writeRate=100</code>).
+ *
+ * @author Dominique Dube
+ */
+public class WorkloadConfig {
+
+    private static final String PREFIX = "emodb.workload.";
+
+    // target rates in operations per second, reads are split into ID and color queries
+    public double writeRate = 10;
+    public double readRate = 50;
+    public double colorReadFraction = 0.1;
+
+    // number of distinct documents and the Zipfian skew of their popularity (0 = uniform)
+    public int corpusSize = 1000;
+    public double keySkew = 0.99;
+
+    // relative weights of the document colors
+    public Map<String, Double> colorWeights = new LinkedHashMap<>();
+
+    // the number of words per document text is uniformly distributed between these bounds
+    public int minTextWords = 5;
+    public int maxTextWords = 25;
+
+    // executing threads; operations beyond MAX_OUTSTANDING waiting ones are dropped
+    public int threads = 32;
+
+    public long seed = 42; // determines the document IDs
+
+    public String table = TableConfig.DEFAULT_TABLE; // the table written to
+
+    public String queryUrl = "http://localhost:4567/document"; // the query API
+
+    /**
+     * Reads the workload parameters from system properties, using the defaults for missing ones.
+     *
+     * Colors are specified as <code>color:weight</code> pairs, e.g.
+     * <code>-Demodb.workload.colors=red:5,green:3,blue:1</code> (a missing weight counts as 1).
+     *
+     * @return the workload parameters.
+     */
+    public static WorkloadConfig fromProperties() {
+
+        WorkloadConfig config = new WorkloadConfig();
+
+        config.writeRate = NumberUtils.toDouble(System.getProperty(PREFIX + "writeRate"), config.writeRate);
+        config.readRate = NumberUtils.toDouble(System.getProperty(PREFIX + "readRate"), config.readRate);
+        config.colorReadFraction = NumberUtils.toDouble(System.getProperty(PREFIX + "colorReadFraction"),
+                config.colorReadFraction);
+        config.corpusSize = Integer.getInteger(PREFIX + "corpusSize", config.corpusSize);
+        config.keySkew = NumberUtils.toDouble(System.getProperty(PREFIX + "keySkew"), config.keySkew);
+        config.minTextWords = Integer.getInteger(PREFIX + "minTextWords", config.minTextWords);
+        config.maxTextWords = Integer.getInteger(PREFIX + "maxTextWords", config.maxTextWords);
+        config.threads = Integer.getInteger(PREFIX + "threads", config.threads);
+        config.seed = Long.getLong(PREFIX + "seed", config.seed);
+        config.queryUrl = System.getProperty(PREFIX + "queryUrl", config.queryUrl);
+
+        // the first indexed table by default, whose routes have no prefix by default
+        config.table = System.getProperty(PREFIX + "table",
+                System.getProperty("emodb.tables", config.table).split(",")[0].trim());
+
+        String colors = System.getProperty(PREFIX + "colors", "red,orange,yellow,green,blue,indigo,violet");
+
+        for (String pair : colors.split(",")) {
+
+            String[] parts = pair.trim().split(":");
+
+            if (! parts[0].isEmpty()) {
+                config.colorWeights.put(parts[0], parts.length > 1 ? NumberUtils.toDouble(parts[1], 1) : 1);
+            }
+        }
+
+        return config;
+    }
+
+    @Override
+    public String toString() {
+
+        return "table " + table + ", " + writeRate + " writes/s, " + readRate + " reads/s (" + colorReadFraction + " by color), " +
+                corpusSize + " documents with skew " + keySkew + ", colors " + colorWeights + ", " +
+                minTextWords + "-" + maxTextWords + " words per text";
+    }
+}
@@ -0,0 +1,376 @@
+package com.dubeanddube.emodb.workload;
+
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.metrics.Counter;
+import com.dubeanddube.emodb.metrics.Histogram;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.dubeanddube.emodb.services.EmoSor;
+import com.dubeanddube.emodb.services.HttpUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+/**
+ * Generates a synthetic workload of document writes to the system of records and queries to the
+ * query API, at configurable target rates (see <code>WorkloadConfig</code>).
+ *
+ * The generator is open-loop: operations arrive at exponentially distributed intervals (a Poisson
+ * process) whose timing does not depend on how fast earlier operations complete, and latency is
+ * measured from the intended start of an operation rather than its actual start. A slow system thus
+ * shows up as queueing delay in the measured latencies, instead of silently lowering the offered
+ * load (coordinated omission). Operations that would exceed <code>MAX_OUTSTANDING</code> waiting
+ * ones are dropped and counted, so that an overloaded system cannot exhaust the memory.
+ *
+ * Documents are drawn from a fixed corpus with Zipfian popularity, for both writes and reads by ID.
+ *
+ * @author Dominique Dube
+ */
+public class WorkloadGenerator {
+
+    private final Logger logger = LoggerFactory.getLogger(WorkloadGenerator.class); // some basic logging
+
+    private static final int MAX_OUTSTANDING = 10000;
+
+    private static final int REPORT_INTERVAL_MILLIS = 10000;
+
+    private static final String[] WORDS = { "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing",
+            "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna",
+            "aliqua", "enim", "ad", "minim", "veniam", "quis", "nostrud", "exercitation", "ullamco", "laboris",
+            "nisi", "aliquip", "ex", "ea", "commodo", "consequat", "lacus", "augue", "vitae", "mauris", "nunc" };
+
+    /**
+     * The latency and outcome metrics of one operation kind.
+     */
+    private static class OperationMetrics {
+
+        final Histogram latency;
+        final Counter successes;
+        final Counter failures;
+
+        OperationMetrics(String operationName) {
+
+            latency = Metrics.latencyHistogram("emodb_workload_latency_seconds",
+                    "Latency of workload operations, measured from their intended start.", "operation", operationName);
+            successes = Metrics.counter("emodb_workload_operations_total", "Number of executed workload operations.",
+                    "operation", operationName, "outcome", "success");
+            failures = Metrics.counter("emodb_workload_operations_total", "Number of executed workload operations.",
+                    "operation", operationName, "outcome", "failure");
+        }
+
+        long count() {
+
+            return successes.get() + failures.get();
+        }
+    }
+
+    private final OperationMetrics writeMetrics = new OperationMetrics("write");
+    private final OperationMetrics idReadMetrics = new OperationMetrics("read_id");
+    private final OperationMetrics colorReadMetrics = new OperationMetrics("read_color");
+
+    /**
+     * An operation of the workload.
+     */
+    @FunctionalInterface
+    private interface Operation {
+
+        /**
+         * Executes the operation.
+         *
+         * @return <code>true</code> if the operation succeeded, <code>false</code> otherwise.
+         */
+        boolean execute();
+    }
+
+    private final WorkloadConfig config;
+
+    private final String[] documentIds;
+    private final ZipfianGenerator documentRanks;
+
+    private final String[] colors;
+    private final double[] cumulativeColorWeights;
+
+    private final ExecutorService executor;
+    private final AtomicInteger numOutstanding = new AtomicInteger(0);
+
+    private final Counter droppedOperations = Metrics.counter("emodb_workload_dropped_operations_total",
+            "Workload operations dropped because too many were outstanding.");
+
+    /**
+     * Constructs a workload generator.
+     *
+     * @param config the workload parameters.
+     * @throws IllegalArgumentException if the parameters are invalid.
+     */
+    public WorkloadGenerator(WorkloadConfig config) throws IllegalArgumentException {
+
+        if (config.writeRate < 0 || config.readRate < 0) throw new IllegalArgumentException("negative rate");
+        if (config.colorWeights.isEmpty()) throw new IllegalArgumentException("no colors");
+        if (config.minTextWords < 1 || config.maxTextWords < config.minTextWords) {
+            throw new IllegalArgumentException("invalid text length range");
+        }
+
+        this.config = config;
+
+        Random random = new Random(config.seed);
+
+        documentIds = new String[config.corpusSize];
+        for (int i = 0; i < documentIds.length; ++i) documentIds[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+
+        documentRanks = new ZipfianGenerator(config.corpusSize, config.keySkew);
+
+        colors = new String[config.colorWeights.size()];
+        cumulativeColorWeights = new double[colors.length];
+
+        double totalWeight = 0;
+        int i = 0;
+
+        for (Map.Entry<String, Double> entry : config.colorWeights.entrySet()) {
+
+            totalWeight += entry.getValue();
+            colors[i] = entry.getKey();
+            cumulativeColorWeights[i++] = totalWeight;
+        }
+
+        executor = Executors.newFixedThreadPool(config.threads, runnable -> {
+
+            Thread thread = new Thread(runnable, "workload-executor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts generating the workload in background threads. Runs until the application exits.
+     */
+    public void start() {
+
+        logger.info("starting synthetic workload: " + config);
+
+        startArrivals("write", config.writeRate, this::write);
+        startArrivals("read", config.readRate, this::read);
+
+        Thread reporter = new Thread(this::report, "workload-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Starts a thread that submits operations of one kind as a Poisson process with the specified rate.
+     *
+     * @param name the name of the operation kind.
+     * @param rate the rate in operations per second, no operations if not positive.
+     * @param operation the operation to submit, which accepts its intended start time.
+     */
+    private void startArrivals(String name, double rate, LongConsumer operation) {
+
+        if (rate <= 0) return;
+
+        double meanIntervalNanos = 1e9 / rate;
+
+        Thread thread = new Thread(() -> {
+
+            Random random = new Random(config.seed + name.hashCode());
+
+            long intendedStartNanos = System.nanoTime();
+
+            while (true) {
+
+                // exponential inter-arrival time (-log(1 - u) avoids log(0))
+                intendedStartNanos += (long)(-Math.log(1 - random.nextDouble()) * meanIntervalNanos);
+
+                long waitNanos = intendedStartNanos - System.nanoTime();
+                if (waitNanos > 0) LockSupport.parkNanos(waitNanos);
+
+                // remark: a late arrival is submitted right away, it keeps its intended start time
+                submit(operation, intendedStartNanos);
+            }
+
+        }, "workload-" + name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Submits an operation for execution, unless too many are outstanding.
+     *
+     * @param operation the operation to submit.
+     * @param intendedStartNanos the time at which the operation was intended to start.
+     */
+    private void submit(LongConsumer operation, long intendedStartNanos) {
+
+        if (numOutstanding.incrementAndGet() > MAX_OUTSTANDING) {
+            numOutstanding.decrementAndGet();
+            droppedOperations.inc();
+            return;
+        }
+
+        executor.execute(() -> {
+            try {
+                operation.accept(intendedStartNanos);
+            } finally {
+                numOutstanding.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Writes a random document of the corpus to the system of records.
+     *
+     * @param intendedStartNanos the time at which the operation was intended to start.
+     */
+    private void write(long intendedStartNanos) {
+
+        VersionedIDItem idItem = new VersionedIDItem(nextDocumentId(), new Item(nextColor(), nextText()), 0);
+
+        measure(writeMetrics, intendedStartNanos, () -> EmoSor.updateDocument(config.table, idItem, "workload"));
+    }
+
+    /**
+     * Queries a random document of the corpus by ID, or all documents of a random color.
+     *
+     * @param intendedStartNanos the time at which the operation was intended to start.
+     */
+    private void read(long intendedStartNanos) {
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        boolean byColor = random.nextDouble() < config.colorReadFraction;
+
+        String url = byColor ? config.queryUrl + "?color=" + encode(nextColor()) :
+                config.queryUrl + "?id=" + encode(nextDocumentId());
+
+        measure(byColor ? colorReadMetrics : idReadMetrics, intendedStartNanos, () -> HttpUtils.get(url) != null);
+    }
+
+    /**
+     * Executes an operation and records its latency from the intended start and its outcome.
+     *
+     * @param metrics the metrics of the operation kind.
+     * @param intendedStartNanos the time at which the operation was intended to start.
+     * @param operation the operation.
+     */
+    private void measure(OperationMetrics metrics, long intendedStartNanos, Operation operation) {
+
+        boolean success;
+
+        try {
+            success = operation.execute();
+        } catch (RuntimeException e) {
+            success = false;
+        }
+
+        metrics.latency.observeNanos(System.nanoTime() - intendedStartNanos);
+
+        (success ? metrics.successes : metrics.failures).inc();
+    }
+
+    /**
+     * Logs the achieved operation rates periodically.
+     */
+    private void report() {
+
+        long lastWrites = 0;
+        long lastReads = 0;
+        long lastFailures = 0;
+
+        while (true) {
+
+            try {
+                Thread.sleep(REPORT_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long writes = writeMetrics.count();
+            long reads = idReadMetrics.count() + colorReadMetrics.count();
+            long failures = writeMetrics.failures.get() + idReadMetrics.failures.get() + colorReadMetrics.failures.get();
+
+            double seconds = REPORT_INTERVAL_MILLIS / 1000.0;
+
+            logger.info(String.format("workload: %.1f writes/s, %.1f reads/s, %d failed, %d outstanding, %d dropped",
+                    (writes - lastWrites) / seconds, (reads - lastReads) / seconds, failures - lastFailures,
+                    numOutstanding.get(), droppedOperations.get()));
+
+            lastWrites = writes;
+            lastReads = reads;
+            lastFailures = failures;
+        }
+    }
+
+    /**
+     * Draws a document ID from the corpus according to the Zipfian popularity.
+     *
+     * @return the document ID.
+     */
+    private String nextDocumentId() {
+
+        return documentIds[(int)documentRanks.next()];
+    }
+
+    /**
+     * Draws a color according to the color weights.
+     *
+     * @return the color.
+     */
+    private String nextColor() {
+
+        double u = ThreadLocalRandom.current().nextDouble() * cumulativeColorWeights[colors.length - 1];
+
+        for (int i = 0; i < colors.length - 1; ++i) {
+            if (u < cumulativeColorWeights[i]) return colors[i];
+        }
+
+        return colors[colors.length - 1];
+    }
+
+    /**
+     * Generates a document text with a random number of words within the configured range.
+     *
+     * @return the text, a sentence starting with a capital letter and ending with a period.
+     */
+    private String nextText() {
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        int numWords = random.nextInt(config.minTextWords, config.maxTextWords + 1);
+
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < numWords; ++i) {
+            if (i > 0) builder.append(' ');
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        builder.setCharAt(0, Character.toUpperCase(builder.charAt(0)));
+
+        return builder.append('.').toString();
+    }
+
+    /**
+     * URL-encodes a query parameter value.
+     *
+     * @param value the value.
+     * @return the encoded value.
+     */
+    private static String encode(String value) {
+
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+    }
+}
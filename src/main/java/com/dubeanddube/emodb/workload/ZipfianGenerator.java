@@ -0,0 +1,64 @@
+package com.dubeanddube.emodb.workload;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Draws ranks from a Zipfian distribution over <code>0 .. n-1</code>, where rank 0 is the most
+ * popular (the algorithm of Gray et al., "Quickly Generating Billion-Record Synthetic Databases",
+ * as used by YCSB).
+ *
+ * The skew ranges from 0 (uniform) to just below 1 (highly skewed, e.g. 0.99 for YCSB's default).
+ * Construction takes time linear in <code>n</code>, drawing takes constant time.
+ *
+ * @author Dominique Dube
+ */
+class ZipfianGenerator {
+
+    private final long n;
+    private final double theta;
+
+    private final double alpha;
+    private final double zetaN;
+    private final double eta;
+
+    /**
+     * Constructs a Zipfian generator.
+     *
+     * @param n the number of ranks.
+     * @param theta the skew, from 0 (inclusive) to 1 (exclusive).
+     * @throws IllegalArgumentException if <code>n</code> or <code>theta</code> is out of range.
+     */
+    ZipfianGenerator(long n, double theta) throws IllegalArgumentException {
+
+        if (n < 1) throw new IllegalArgumentException("number of ranks must be positive");
+        if (theta < 0 || theta >= 1) throw new IllegalArgumentException("skew must be in [0, 1)");
+
+        this.n = n;
+        this.theta = theta;
+
+        double zeta2 = 1 + Math.pow(0.5, theta);
+
+        double zeta = 0;
+        for (long i = 1; i <= n; ++i) zeta += 1 / Math.pow(i, theta);
+
+        this.zetaN = zeta;
+        this.alpha = 1 / (1 - theta);
+        this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+    }
+
+    /**
+     * Draws the next rank.
+     *
+     * @return a rank from 0 to <code>n - 1</code>.
+     */
+    long next() {
+
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * zetaN;
+
+        if (uz < 1) return 0;
+        if (uz < 1 + Math.pow(0.5, theta)) return Math.min(1, n - 1);
+
+        return Math.min(n - 1, (long)(n * Math.pow(eta * u - eta + 1, alpha)));
+    }
+}
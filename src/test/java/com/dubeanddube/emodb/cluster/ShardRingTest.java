@@ -0,0 +1,131 @@
+package com.dubeanddube.emodb.cluster;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Unit tests of the shard ring: stability of the assignment when members join and leave, and the
+ * shares of the members.
+ *
+ * @author Dominique Dube
+ */
+public class ShardRingTest extends TestCase {
+
+    private static final List<String> MEMBERS = Arrays.asList("node-a", "node-b", "node-c", "node-d");
+
+    /**
+     * A joining member takes about 1/n of the shards, and only shards that move to it change owner.
+     */
+    public void testJoin() {
+
+        ShardRing ring = new ShardRing(MEMBERS);
+
+        List<String> members = new ArrayList<>(MEMBERS);
+        members.add("node-e");
+
+        ShardRing grownRing = new ShardRing(members);
+
+        int numMoved = 0;
+
+        for (int shard = 0; shard < ShardRing.NUM_SHARDS; ++shard) {
+
+            if (ring.ownerOf(shard).equals(grownRing.ownerOf(shard))) continue;
+
+            assertEquals("node-e", grownRing.ownerOf(shard));
+            ++numMoved;
+        }
+
+        assertEquals(numMoved, grownRing.getNumShards("node-e"));
+        assertMovedShare(numMoved, members.size());
+    }
+
+    /**
+     * The shards of a leaving member are spread over the remaining members, all other shards keep
+     * their owner.
+     */
+    public void testLeave() {
+
+        ShardRing ring = new ShardRing(MEMBERS);
+        ShardRing shrunkRing = new ShardRing(MEMBERS.subList(1, MEMBERS.size()));
+
+        int numMoved = 0;
+
+        for (int shard = 0; shard < ShardRing.NUM_SHARDS; ++shard) {
+
+            String owner = ring.ownerOf(shard);
+
+            if (owner.equals("node-a")) {
+                assertFalse(shrunkRing.ownerOf(shard).equals("node-a"));
+                ++numMoved;
+            } else {
+                assertEquals(owner, shrunkRing.ownerOf(shard));
+            }
+        }
+
+        assertEquals(0, shrunkRing.getNumShards("node-a"));
+        assertMovedShare(numMoved, MEMBERS.size());
+
+        for (String member : shrunkRing.getMembers()) {
+            assertTrue(shrunkRing.getNumShards(member) >= ring.getNumShards(member));
+        }
+    }
+
+    /**
+     * The assignment does not depend on the order of the members, every shard has an owner, and
+     * documents map to valid shards.
+     */
+    public void testAssignment() {
+
+        List<String> members = new ArrayList<>(MEMBERS);
+        Collections.reverse(members);
+
+        ShardRing ring = new ShardRing(MEMBERS);
+        ShardRing reversedRing = new ShardRing(members);
+
+        int numShards = 0;
+
+        for (String member : MEMBERS) numShards += ring.getNumShards(member);
+
+        assertEquals(ShardRing.NUM_SHARDS, numShards);
+
+        for (int shard = 0; shard < ShardRing.NUM_SHARDS; ++shard) {
+            assertEquals(ring.ownerOf(shard), reversedRing.ownerOf(shard));
+        }
+
+        for (int i = 0; i < 1000; ++i) {
+
+            String id = UUID.randomUUID().toString();
+            int shard = ShardRing.shardOf(id);
+
+            assertTrue(shard >= 0 && shard < ShardRing.NUM_SHARDS);
+            assertEquals(ring.ownerOf(shard), ring.ownerOfDocument(id));
+        }
+
+        try {
+            new ShardRing(Collections.<String>emptyList());
+            fail("a ring needs members");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Asserts that the number of moved shards is about 1/n of all shards (between half and twice
+     * that, the virtual nodes do not even out the shares exactly).
+     *
+     * @param numMoved the number of shards that changed owner.
+     * @param numMembers the number of members of the larger ring.
+     */
+    private static void assertMovedShare(int numMoved, int numMembers) {
+
+        int expected = ShardRing.NUM_SHARDS / numMembers;
+
+        assertTrue("moved " + numMoved + " shards, expected about " + expected,
+                numMoved > expected / 2 && numMoved < 2 * expected);
+    }
+}
@@ -0,0 +1,106 @@
+package com.dubeanddube.emodb.harness;
+
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.dubeanddube.emodb.data.QueryResult;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.search.Query;
+import com.dubeanddube.emodb.search.SearchEngine;
+import com.fasterxml.jackson.databind.JsonNode;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Checks that the memory-based and the Elasticsearch-based index return the same documents for
+ * color scans and compound queries, using the Elasticsearch stand-in (which listens on
+ * localhost:9200, so no real Elasticsearch may be running).
+ *
+ * @author Dominique Dube
+ */
+public class ColorScanParityTest extends TestCase {
+
+    private static final String[] COLORS = { "green", "red", "blue" };
+
+    private ElasticsearchStandIn elasticsearch;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        elasticsearch = new ElasticsearchStandIn(new StandInServer.Faults(0, 0, 0));
+        elasticsearch.start();
+    }
+
+    @Override
+    protected void tearDown() {
+
+        elasticsearch.stop();
+    }
+
+    /**
+     * Both indexes return the same documents, with the same fields, for every color.
+     */
+    public void testColorScans() throws IOException {
+
+        SearchEngine memoryEngine = new SearchEngine(SearchEngine.IndexType.MEMORY_HASH_MAP, "items", "parity_items");
+        SearchEngine elasticEngine = new SearchEngine(SearchEngine.IndexType.LOCAL_ELASTIC_SEARCH, "items", "parity_items");
+
+        assertEquals(SearchEngine.IndexType.LOCAL_ELASTIC_SEARCH, elasticEngine.getIndexType());
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100; ++i) {
+
+            VersionedIDItem idItem = new VersionedIDItem(new UUID(random.nextLong(), random.nextLong()).toString(),
+                    new Item(COLORS[i % COLORS.length], "text " + i), 1 + random.nextInt(5));
+
+            memoryEngine.updateDocument(idItem);
+            elasticEngine.updateDocument(idItem);
+        }
+
+        for (String color : COLORS) {
+
+            List<String> memoryDocuments = payloadOf(memoryEngine.getDocumentsByColor(color));
+
+            assertEquals(100 / COLORS.length + (color.equals("green") ? 1 : 0), memoryDocuments.size());
+            assertEquals(memoryDocuments, payloadOf(elasticEngine.getDocumentsByColor(color)));
+
+            Query query = Query.fromJson("{\"where\": {\"color\": \"" + color + "\"}, \"limit\": 10}");
+
+            QueryResult memoryResult = memoryEngine.query(query);
+            QueryResult elasticResult = elasticEngine.query(query);
+
+            assertEquals(memoryResult.total, elasticResult.total);
+            assertEquals(memoryResult.payload, elasticResult.payload);
+        }
+
+        assertEquals(memoryEngine.getColorCounts(), elasticEngine.getColorCounts());
+    }
+
+    /**
+     * Returns the documents of a color scan result.
+     *
+     * @param result the result in the envelope layout.
+     * @return the documents as JSON strings, sorted.
+     * @throws IOException if the result is not valid JSON.
+     */
+    private static List<String> payloadOf(String result) throws IOException {
+
+        JsonNode root = JsonUtils.MAPPER.readTree(result);
+
+        assertTrue(root.path("success").asBoolean());
+
+        List<String> documents = new ArrayList<>();
+
+        for (JsonNode document : root.path("payload")) documents.add(document.toString());
+
+        Collections.sort(documents);
+
+        return documents;
+    }
+}
@@ -0,0 +1,667 @@
+package com.dubeanddube.emodb.harness;
+
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process stand-in for the subset of the Elasticsearch 5 API used by <code>ElasticIndex</code>
+ * on localhost:9200: index creation and deletion, aliases, externally versioned document
+ * updates, gets, multi gets, bulk indexing, and scrolled searches (color queries and version scans).
+ *
+ * Unlike Elasticsearch, searches see updates immediately (there is no refresh interval).
+ *
+ * @author Dominique Dube
+ */
+class ElasticsearchStandIn extends StandInServer {
+
+    private static final int PORT = 9200;
+
+    /**
+     * An indexed document with its external version.
+     */
+    private static class Document {
+
+        final long version;
+        final JsonNode source;
+
+        Document(long version, JsonNode source) {
+
+            this.version = version;
+            this.source = source;
+        }
+    }
+
+    /**
+     * The remaining hits of an open scroll.
+     */
+    private static class Scroll {
+
+        final List<ObjectNode> hits;
+        final int pageSize;
+        int position = 0;
+
+        Scroll(List<ObjectNode> hits, int pageSize) {
+
+            this.hits = hits;
+            this.pageSize = pageSize;
+        }
+    }
+
+    // documents by index name, then by ID
+    private final Map<String, Map<String, Document>> indexes = new ConcurrentHashMap<>();
+
+    // index names by alias name
+    private final Map<String, Set<String>> aliases = new ConcurrentHashMap<>();
+
+    private final Map<String, Scroll> scrolls = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs the Elasticsearch stand-in.
+     *
+     * @param faults the latency and failures injected into every request.
+     */
+    ElasticsearchStandIn(Faults faults) {
+
+        super("Elasticsearch", faults);
+    }
+
+    /**
+     * Starts listening on localhost:9200.
+     *
+     * @throws IOException if the port is not available.
+     */
+    void start() throws IOException {
+
+        listen(PORT, this::handle);
+    }
+
+    /**
+     * Dispatches a request by method and path.
+     *
+     * @param exchange the request.
+     * @throws IOException if the response could not be sent.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+
+        String[] segments = pathSegments(exchange);
+        String method = exchange.getRequestMethod();
+
+        if (segments.length == 0) {
+
+            respond(exchange, 200, "{\"name\":\"stand-in\",\"cluster_name\":\"harness\"," +
+                    "\"version\":{\"number\":\"5.2.0\"},\"tagline\":\"You Know, for Search\"}");
+
+        } else if (segments[0].equals("_alias") && segments.length == 2) {
+            handleGetAlias(exchange, segments[1]);
+        } else if (segments[0].equals("_aliases")) {
+            handleAliases(exchange);
+        } else if (segments[0].equals("_bulk")) {
+            handleBulk(exchange);
+        } else if (segments[0].equals("_search") && segments.length >= 2 && segments[1].equals("scroll")) {
+
+            if (method.equals("DELETE")) {
+                if (segments.length == 3) scrolls.remove(segments[2]);
+                respond(exchange, 200, "{\"succeeded\":true}");
+            } else {
+                JsonNode body = JsonUtils.MAPPER.readTree(readBody(exchange));
+                respondScrollPage(exchange, body.path("scroll_id").asText());
+            }
+
+        } else if (segments.length == 1) {
+
+            if (method.equals("PUT")) {
+                handleCreateIndex(exchange, segments[0]);
+            } else if (method.equals("DELETE")) {
+                handleDeleteIndex(exchange, segments[0]);
+            } else {
+                respondError(exchange, 405, "method_not_allowed");
+            }
+
+        } else if (segments.length == 3 && segments[1].equals("item")) {
+
+            if (segments[2].equals("_search")) {
+                handleSearch(exchange, segments[0]);
+            } else if (segments[2].equals("_mget")) {
+                handleMultiGet(exchange, segments[0]);
+            } else if (method.equals("PUT") || method.equals("POST")) {
+                handleIndexDocument(exchange, segments[0], segments[2]);
+            } else if (method.equals("GET")) {
+                handleGetDocument(exchange, segments[0], segments[2]);
+            } else {
+                respondError(exchange, 405, "method_not_allowed");
+            }
+
+        } else {
+            respondError(exchange, 400, "illegal_argument_exception");
+        }
+    }
+
+    /**
+     * Resolves an index or alias name to the name of an existing index.
+     *
+     * @param name the index or alias name.
+     * @return the index name, <code>null</code> if neither an index nor an alias has that name.
+     */
+    private String resolve(String name) {
+
+        if (indexes.containsKey(name)) return name;
+
+        Set<String> indexNames = aliases.get(name);
+
+        return indexNames == null || indexNames.isEmpty() ? null : indexNames.iterator().next();
+    }
+
+    /**
+     * Handles a request for the indexes of an alias (GET /_alias/{alias}).
+     */
+    private void handleGetAlias(HttpExchange exchange, String alias) throws IOException {
+
+        Set<String> indexNames = aliases.get(alias);
+
+        if (indexNames == null || indexNames.isEmpty()) {
+            respond(exchange, 404, "{\"error\":\"alias [" + alias + "] missing\",\"status\":404}");
+            return;
+        }
+
+        ObjectNode root = JsonUtils.MAPPER.createObjectNode();
+
+        for (String indexName : indexNames) root.putObject(indexName).putObject("aliases").putObject(alias);
+
+        respond(exchange, 200, JsonUtils.MAPPER.writeValueAsString(root));
+    }
+
+    /**
+     * Handles alias actions (POST /_aliases), which are applied atomically.
+     */
+    private void handleAliases(HttpExchange exchange) throws IOException {
+
+        JsonNode actions = JsonUtils.MAPPER.readTree(readBody(exchange)).path("actions");
+
+        synchronized (aliases) { // atomic, like in Elasticsearch
+
+            for (JsonNode action : actions) {
+
+                JsonNode remove = action.path("remove");
+                JsonNode add = action.path("add");
+
+                if (! remove.isMissingNode()) {
+
+                    Set<String> indexNames = aliases.get(remove.path("alias").asText());
+                    if (indexNames != null) indexNames.remove(remove.path("index").asText());
+
+                } else if (! add.isMissingNode()) {
+
+                    aliases.computeIfAbsent(add.path("alias").asText(), a -> ConcurrentHashMap.newKeySet())
+                            .add(add.path("index").asText());
+                }
+            }
+        }
+
+        respond(exchange, 200, "{\"acknowledged\":true}");
+    }
+
+    /**
+     * Handles the creation of an empty index (PUT /{index}).
+     */
+    private void handleCreateIndex(HttpExchange exchange, String indexName) throws IOException {
+
+        if (indexes.putIfAbsent(indexName, new ConcurrentHashMap<>()) != null) {
+            respondError(exchange, 400, "index_already_exists_exception");
+            return;
+        }
+
+        respond(exchange, 200, "{\"acknowledged\":true,\"shards_acknowledged\":true}");
+    }
+
+    /**
+     * Handles the deletion of an index, or of the indexes an alias points to (DELETE /{name}).
+     */
+    private void handleDeleteIndex(HttpExchange exchange, String name) throws IOException {
+
+        // deleting an alias deletes the indexes it points to
+        Set<String> indexNames = indexes.containsKey(name) ? Collections.singleton(name) : aliases.get(name);
+
+        if (indexNames == null || indexNames.isEmpty()) {
+            respondError(exchange, 404, "index_not_found_exception");
+            return;
+        }
+
+        for (String indexName : new ArrayList<>(indexNames)) {
+
+            indexes.remove(indexName);
+
+            for (Set<String> aliasedIndexNames : aliases.values()) aliasedIndexNames.remove(indexName);
+        }
+
+        respond(exchange, 200, "{\"acknowledged\":true}");
+    }
+
+    /**
+     * Handles an externally versioned document update (PUT /{name}/item/{id}?version=...).
+     */
+    private void handleIndexDocument(HttpExchange exchange, String name, String id) throws IOException {
+
+        Map<String, String> params = queryParams(exchange);
+
+        long version = NumberUtils.toLong(params.get("version"), 1);
+
+        JsonNode source = JsonUtils.MAPPER.readTree(readBody(exchange));
+
+        String indexName = resolve(name);
+
+        if (indexName == null) { // auto-create, like Elasticsearch
+            indexName = name;
+            indexes.putIfAbsent(indexName, new ConcurrentHashMap<>());
+        }
+
+        int status = indexDocument(indexName, id, version, source);
+
+        if (status == 409) {
+            respond(exchange, 409, "{\"error\":{\"type\":\"version_conflict_engine_exception\"},\"status\":409}");
+            return;
+        }
+
+        ObjectNode root = JsonUtils.MAPPER.createObjectNode();
+        root.put("_index", indexName).put("_type", "item").put("_id", id).put("_version", version);
+        root.put("result", status == 201 ? "created" : "updated");
+        root.put("created", status == 201);
+
+        respond(exchange, status, JsonUtils.MAPPER.writeValueAsString(root));
+    }
+
+    /**
+     * Indexes a document with an external version.
+     *
+     * @return 201 if created, 200 if updated, 409 if the indexed version is not older, 404 if the
+     *         index does not exist.
+     */
+    private int indexDocument(String indexName, String id, long version, JsonNode source) {
+
+        Map<String, Document> documents = indexes.get(indexName);
+
+        if (documents == null) return 404;
+
+        int[] status = new int[1];
+
+        documents.compute(id, (key, previous) -> {
+
+            if (previous != null && previous.version >= version) {
+                status[0] = 409;
+                return previous;
+            }
+
+            status[0] = previous == null ? 201 : 200;
+            return new Document(version, source);
+        });
+
+        return status[0];
+    }
+
+    /**
+     * Deletes a document unless it was indexed with a newer external version.
+     *
+     * @return 200 if deleted, 409 if the indexed version is newer, 404 if the document or the
+     *         index does not exist.
+     */
+    private int deleteDocument(String indexName, String id, long version) {
+
+        Map<String, Document> documents = indexes.get(indexName);
+
+        if (documents == null) return 404;
+
+        int[] status = { 404 };
+
+        documents.computeIfPresent(id, (key, previous) -> {
+
+            if (previous.version > version) {
+                status[0] = 409;
+                return previous;
+            }
+
+            status[0] = 200;
+            return null;
+        });
+
+        return status[0];
+    }
+
+    /**
+     * Handles a document get (GET /{name}/item/{id}).
+     */
+    private void handleGetDocument(HttpExchange exchange, String name, String id) throws IOException {
+
+        String indexName = resolve(name);
+
+        if (indexName == null) {
+            respondError(exchange, 404, "index_not_found_exception");
+            return;
+        }
+
+        Document document = indexes.getOrDefault(indexName, new ConcurrentHashMap<>()).get(id);
+
+        ObjectNode root = JsonUtils.MAPPER.createObjectNode();
+        root.put("_index", indexName).put("_type", "item").put("_id", id);
+        root.put("found", document != null);
+
+        if (document != null) {
+            root.put("_version", document.version);
+            root.set("_source", document.source);
+        }
+
+        respond(exchange, document != null ? 200 : 404, JsonUtils.MAPPER.writeValueAsString(root));
+    }
+
+    /**
+     * Handles a multi get of document versions (POST /{name}/item/_mget).
+     */
+    private void handleMultiGet(HttpExchange exchange, String name) throws IOException {
+
+        JsonNode ids = JsonUtils.MAPPER.readTree(readBody(exchange)).path("ids");
+
+        String indexName = resolve(name);
+        Map<String, Document> documents = indexName == null ? null : indexes.get(indexName);
+
+        if (documents == null) {
+            respondError(exchange, 404, "index_not_found_exception");
+            return;
+        }
+
+        ObjectNode root = JsonUtils.MAPPER.createObjectNode();
+        ArrayNode docs = root.putArray("docs");
+
+        for (JsonNode idNode : ids) {
+
+            Document document = documents.get(idNode.asText());
+
+            ObjectNode doc = docs.addObject();
+            doc.put("_index", indexName).put("_type", "item").put("_id", idNode.asText());
+            doc.put("found", document != null);
+            if (document != null) doc.put("_version", document.version);
+        }
+
+        respond(exchange, 200, JsonUtils.MAPPER.writeValueAsString(root));
+    }
+
+    /**
+     * Handles bulk indexing with external versions, and bulk deletion with external_gte
+     * versions (POST /_bulk).
+     */
+    private void handleBulk(HttpExchange exchange) throws IOException {
+
+        String[] lines = readBody(exchange).split("\n");
+
+        ObjectNode root = JsonUtils.MAPPER.createObjectNode();
+        root.put("took", 1);
+        ArrayNode items = root.putArray("items");
+
+        boolean errors = false;
+
+        for (int i = 0; i < lines.length; ++i) {
+
+            JsonNode actionNode = JsonUtils.MAPPER.readTree(lines[i]);
+            String type = actionNode.has("delete") ? "delete" : "index";
+            JsonNode action = actionNode.path(type);
+
+            String indexName = resolve(action.path("_index").asText());
+            String id = action.path("_id").asText();
+            long version = action.path("_version").asLong(1);
+
+            int status;
+
+            if (type.equals("delete")) {
+                status = indexName == null ? 404 : deleteDocument(indexName, id, version);
+            } else {
+                JsonNode source = JsonUtils.MAPPER.readTree(lines[++i]);
+                status = indexName == null ? 404 : indexDocument(indexName, id, version, source);
+            }
+
+            if (status >= 300) errors = true;
+
+            items.addObject().putObject(type)
+                    .put("_index", action.path("_index").asText()).put("_type", "item").put("_id", id)
+                    .put("status", status);
+        }
+
+        root.put("errors", errors);
+
+        respond(exchange, 200, JsonUtils.MAPPER.writeValueAsString(root));
+    }
+
+    /**
+     * Handles a search with a scroll: a <code>query_string</code> query on the color field, or a
+     * <code>match_all</code> query (optionally without <code>_source</code> but with versions). The
+     * <code>_source</code> may also be limited to a list of fields.
+     */
+    private void handleSearch(HttpExchange exchange, String name) throws IOException {
+
+        Map<String, String> params = queryParams(exchange);
+        JsonNode body = JsonUtils.MAPPER.readTree(readBody(exchange));
+
+        String indexName = resolve(name);
+        Map<String, Document> documents = indexName == null ? null : indexes.get(indexName);
+
+        if (documents == null) {
+            respondError(exchange, 404, "index_not_found_exception");
+            return;
+        }
+
+        JsonNode query = body.path("query");
+        JsonNode sourceFilter = body.path("_source"); // a boolean or the included fields
+        boolean withSource = sourceFilter.asBoolean(true);
+        boolean withVersion = body.path("version").asBoolean(false);
+
+        List<ObjectNode> hits = new ArrayList<>();
+
+        for (Map.Entry<String, Document> entry : new TreeMap<>(documents).entrySet()) {
+
+            Document document = entry.getValue();
+
+            if (! query.isMissingNode() && ! matches(query, entry.getKey(), document)) continue;
+
+            ObjectNode hit = JsonUtils.MAPPER.createObjectNode();
+            hit.put("_index", indexName).put("_type", "item").put("_id", entry.getKey()).put("_score", 1.0);
+            if (withVersion) hit.put("_version", document.version);
+            if (sourceFilter.isArray()) {
+
+                ObjectNode source = hit.putObject("_source");
+
+                for (JsonNode field : sourceFilter) {
+                    if (document.source.has(field.asText())) source.set(field.asText(), document.source.get(field.asText()));
+                }
+
+            } else if (withSource) {
+                hit.set("_source", document.source);
+            }
+
+            hits.add(hit);
+        }
+
+        if (! params.containsKey("scroll")) {
+
+            // a single page (from/size in the body), sorted by ID like the TreeMap above
+
+            int from = body.path("from").asInt(0);
+            int size = body.path("size").asInt(NumberUtils.toInt(params.get("size"), 10));
+
+            ObjectNode root = JsonUtils.MAPPER.createObjectNode();
+            root.put("took", 1);
+            root.put("timed_out", false);
+
+            ObjectNode hitsNode = root.putObject("hits");
+            hitsNode.put("total", hits.size());
+            ArrayNode hitsArray = hitsNode.putArray("hits");
+
+            for (int i = from; i < hits.size() && i < from + size; ++i) hitsArray.add(hits.get(i));
+
+            // terms aggregations over all hits, buckets by descending document count
+
+            Iterator<Map.Entry<String, JsonNode>> aggs = body.path("aggs").fields();
+
+            while (aggs.hasNext()) {
+
+                Map.Entry<String, JsonNode> agg = aggs.next();
+
+                JsonNode terms = agg.getValue().path("terms");
+                String field = terms.path("field").asText().replace(".keyword", "");
+
+                Map<String, Integer> docCounts = new TreeMap<>();
+
+                for (ObjectNode hit : hits) {
+                    docCounts.merge(documents.get(hit.path("_id").asText()).source.path(field).asText(), 1, Integer::sum);
+                }
+
+                List<Map.Entry<String, Integer>> buckets = new ArrayList<>(docCounts.entrySet());
+                buckets.sort((a, b) -> b.getValue() - a.getValue());
+
+                ArrayNode bucketsArray = root.with("aggregations").putObject(agg.getKey()).putArray("buckets");
+
+                for (Map.Entry<String, Integer> bucket : buckets.subList(0, Math.min(buckets.size(), terms.path("size").asInt(10)))) {
+                    bucketsArray.addObject().put("key", bucket.getKey()).put("doc_count", bucket.getValue());
+                }
+            }
+
+            respond(exchange, 200, JsonUtils.MAPPER.writeValueAsString(root));
+            return;
+        }
+
+        String scrollId = UUID.randomUUID().toString();
+
+        scrolls.put(scrollId, new Scroll(hits, NumberUtils.toInt(params.get("size"), 10)));
+
+        respondScrollPage(exchange, scrollId);
+    }
+
+    /**
+     * Evaluates the subset of the query DSL used by the service: match_all, query_string on the
+     * color, and bool queries (filter, should, must_not) of ids, term, match (operator and), and range.
+     */
+    private static boolean matches(JsonNode query, String id, Document document) {
+
+        JsonNode source = document.source;
+
+        if (query.has("match_all")) return true;
+
+        if (query.has("query_string")) {
+            return query.path("query_string").path("query").asText().equalsIgnoreCase(source.path("color").asText());
+        }
+
+        if (query.has("ids")) {
+
+            for (JsonNode value : query.path("ids").path("values")) if (value.asText().equals(id)) return true;
+
+            return false;
+        }
+
+        if (query.has("term")) {
+
+            Map.Entry<String, JsonNode> term = query.path("term").fields().next();
+
+            return term.getValue().asText().equals(source.path(term.getKey().replace(".keyword", "")).asText());
+        }
+
+        if (query.has("match")) {
+
+            Map.Entry<String, JsonNode> match = query.path("match").fields().next();
+
+            Set<String> terms = termsOf(source.path(match.getKey()).asText());
+
+            return terms.containsAll(termsOf(match.getValue().path("query").asText()));
+        }
+
+        if (query.has("range")) {
+
+            Map.Entry<String, JsonNode> range = query.path("range").fields().next();
+
+            long value = source.path(range.getKey()).asLong();
+
+            return value >= range.getValue().path("gte").asLong(Long.MIN_VALUE) &&
+                    value <= range.getValue().path("lte").asLong(Long.MAX_VALUE);
+        }
+
+        if (query.has("bool")) {
+
+            JsonNode bool = query.path("bool");
+
+            for (JsonNode filter : bool.path("filter")) if (! matches(filter, id, document)) return false;
+            for (JsonNode mustNot : bool.path("must_not")) if (matches(mustNot, id, document)) return false;
+
+            if (bool.path("should").size() == 0) return true;
+
+            for (JsonNode should : bool.path("should")) if (matches(should, id, document)) return true;
+
+            return false;
+        }
+
+        throw new IllegalArgumentException("unsupported query " + query);
+    }
+
+    /**
+     * Splits a text into lower-case terms, like the standard analyzer.
+     */
+    private static Set<String> termsOf(String text) {
+
+        Set<String> terms = new HashSet<>();
+
+        for (String term : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) if (! term.isEmpty()) terms.add(term);
+
+        return terms;
+    }
+
+    /**
+     * Responds with the next page of an open scroll.
+     */
+    private void respondScrollPage(HttpExchange exchange, String scrollId) throws IOException {
+
+        Scroll scroll = scrolls.get(scrollId);
+
+        if (scroll == null) {
+            respondError(exchange, 404, "search_context_missing_exception");
+            return;
+        }
+
+        ObjectNode root = JsonUtils.MAPPER.createObjectNode();
+        root.put("_scroll_id", scrollId);
+        root.put("took", 1);
+        root.put("timed_out", false);
+
+        ObjectNode hitsNode = root.putObject("hits");
+        hitsNode.put("total", scroll.hits.size());
+        ArrayNode hitsArray = hitsNode.putArray("hits");
+
+        synchronized (scroll) {
+
+            int end = Math.min(scroll.hits.size(), scroll.position + scroll.pageSize);
+
+            for (int i = scroll.position; i < end; ++i) hitsArray.add(scroll.hits.get(i));
+
+            scroll.position = end;
+        }
+
+        respond(exchange, 200, JsonUtils.MAPPER.writeValueAsString(root));
+    }
+
+    /**
+     * Responds with an Elasticsearch error object.
+     */
+    private void respondError(HttpExchange exchange, int status, String type) throws IOException {
+
+        respond(exchange, status, "{\"error\":{\"type\":\"" + type + "\"},\"status\":" + status + "}");
+    }
+}
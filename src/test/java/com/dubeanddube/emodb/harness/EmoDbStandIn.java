@@ -0,0 +1,492 @@
+package com.dubeanddube.emodb.harness;
+
+import com.dubeanddube.emodb.data.JsonUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the subset of the EmoDB API used by <code>EmoSor</code>,
+ * <code>EmoBus</code>, and <code>EmoGen</code>: the tables of the System of Record
+ * (create, drop, size, scan, delta and stream updates) and databus subscriptions to one table each
+ * (subscribe, poll, size, acknowledge) on localhost:8080, and ping and healthcheck on localhost:8081.
+ *
+ * Like EmoDB, the databus holds at most one unclaimed event per document, and a poll returns the
+ * current content of the document (including the intrinsic <code>~version</code> and
+ * <code>~lastUpdateAt</code>). Claimed events are redelivered once their TTL expires.
+ *
+ * @author Dominique Dube
+ */
+class EmoDbStandIn extends StandInServer {
+
+    private static final int API_PORT = 8080;
+    private static final int ADMIN_PORT = 8081;
+
+    // the only form of subscription condition the application uses
+    private static final Pattern TABLE_CONDITION = Pattern.compile("intrinsic\\(\"~table\":\"([^\"]*)\"\\)");
+
+    /**
+     * A databus event of a subscription.
+     */
+    private static class Event {
+
+        final String documentId;
+        long claimedUntilMillis = 0; // unclaimed
+
+        Event(String documentId) {
+
+            this.documentId = documentId;
+        }
+    }
+
+    /**
+     * A databus subscription with its pending events in insertion order.
+     */
+    private static class Subscription {
+
+        final String table;
+
+        final Map<String, Event> events = new LinkedHashMap<>(); // by event key
+
+        final Map<String, String> unclaimedKeys = new HashMap<>(); // event keys by document ID
+
+        Subscription(String table) {
+
+            this.table = table;
+        }
+    }
+
+    // by table name, documents with intrinsic fields, ordered by ID so that scans can continue from a key
+    private final Map<String, NavigableMap<String, ObjectNode>> tables = new ConcurrentHashMap<>();
+
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs the EmoDB stand-in.
+     *
+     * @param faults the latency and failures injected into every request.
+     */
+    EmoDbStandIn(Faults faults) {
+
+        super("EmoDB", faults);
+    }
+
+    /**
+     * Starts listening on localhost:8080 and localhost:8081.
+     *
+     * @throws IOException if a port is not available.
+     */
+    void start() throws IOException {
+
+        listen(API_PORT, this::handleApi);
+        listen(ADMIN_PORT, this::handleAdmin);
+    }
+
+    /**
+     * Handles requests to the admin port (ping, healthcheck).
+     *
+     * @param exchange the request.
+     * @throws IOException if the response could not be sent.
+     */
+    private void handleAdmin(HttpExchange exchange) throws IOException {
+
+        String path = exchange.getRequestURI().getPath();
+
+        if (path.equals("/ping")) {
+            respond(exchange, 200, "text/plain", "pong\n");
+        } else if (path.equals("/healthcheck")) {
+
+            ObjectNode root = JsonUtils.MAPPER.createObjectNode();
+
+            for (String component : new String[] { "blob-cassandra", "databus-cassandra", "deadlocks",
+                    "queue-cassandra", "sor-cassandra" }) {
+                root.putObject(component).put("healthy", true);
+            }
+
+            respond(exchange, 200, JsonUtils.MAPPER.writeValueAsString(root));
+
+        } else {
+            respond(exchange, 404, "{\"success\":false}");
+        }
+    }
+
+    /**
+     * Handles requests to the API port (System of Record and databus).
+     *
+     * @param exchange the request.
+     * @throws IOException if the response could not be sent.
+     */
+    private void handleApi(HttpExchange exchange) throws IOException {
+
+        String[] segments = pathSegments(exchange);
+        String method = exchange.getRequestMethod();
+
+        if (segments.length >= 3 && segments[0].equals("sor")) {
+
+            if (segments[2].equals("_table")) {
+                handleTable(exchange, method, segments);
+            } else if (segments[2].equals("_stream") && method.equals("POST")) {
+                handleStream(exchange);
+            } else if (segments.length == 3 && method.equals("GET")) {
+                handleScan(exchange, segments[2]);
+            } else if (segments.length == 4 && method.equals("POST")) {
+                handleUpdate(exchange, segments[2], segments[3]);
+            } else {
+                respond(exchange, 404, "{\"success\":false}");
+            }
+
+        } else if (segments.length >= 3 && segments[0].equals("bus")) {
+
+            String subscriptionName = segments[2];
+            String operation = segments.length > 3 ? segments[3] : "";
+
+            if (operation.isEmpty() && method.equals("PUT")) {
+
+                Matcher matcher = TABLE_CONDITION.matcher(readBody(exchange));
+
+                if (! matcher.find()) {
+                    respond(exchange, 400, "{\"success\":false,\"reason\":\"unsupported condition\"}");
+                    return;
+                }
+
+                subscriptions.putIfAbsent(subscriptionName, new Subscription(matcher.group(1)));
+                respond(exchange, 200, "{\"success\":true}");
+
+            } else if (operation.isEmpty() && method.equals("DELETE")) {
+
+                subscriptions.remove(subscriptionName);
+                respond(exchange, 200, "{\"success\":true}");
+
+            } else if (operation.equals("poll")) {
+                handlePoll(exchange, subscriptionName);
+            } else if (operation.equals("size")) {
+                handleSize(exchange, subscriptionName);
+            } else if (operation.equals("ack")) {
+                handleAck(exchange, subscriptionName);
+            } else {
+                respond(exchange, 404, "{\"success\":false}");
+            }
+
+        } else {
+            respond(exchange, 404, "{\"success\":false}");
+        }
+    }
+
+    /**
+     * Handles table requests: create (PUT), drop (DELETE), and size (GET .../size).
+     */
+    private void handleTable(HttpExchange exchange, String method, String[] segments) throws IOException {
+
+        if (segments.length < 4) {
+            respond(exchange, 404, "{\"success\":false}");
+            return;
+        }
+
+        String table = segments[3];
+
+        if (segments.length == 5 && segments[4].equals("size")) {
+
+            NavigableMap<String, ObjectNode> documents = tables.get(table);
+
+            respond(exchange, 200, Integer.toString(documents != null ? documents.size() : 0));
+
+        } else if (method.equals("PUT")) {
+
+            tables.putIfAbsent(table, new ConcurrentSkipListMap<>());
+            respond(exchange, 200, "{\"success\":true}");
+
+        } else if (method.equals("DELETE")) {
+
+            if (tables.remove(table) != null) {
+                respond(exchange, 200, "{\"success\":true}");
+            } else {
+                respondUnknownTable(exchange, table);
+            }
+
+        } else {
+            respond(exchange, 404, "{\"success\":false}");
+        }
+    }
+
+    /**
+     * Handles a scan of a table (GET with <code>limit</code> and optional <code>from</code>).
+     */
+    private void handleScan(HttpExchange exchange, String table) throws IOException {
+
+        NavigableMap<String, ObjectNode> documents = tables.get(table);
+
+        if (documents == null) {
+            respondUnknownTable(exchange, table);
+            return;
+        }
+
+        Map<String, String> params = queryParams(exchange);
+
+        int limit = NumberUtils.toInt(params.get("limit"), 10);
+        String from = params.get("from");
+
+        ArrayNode result = JsonUtils.MAPPER.createArrayNode();
+
+        for (ObjectNode document : (from == null ? documents : documents.tailMap(from, false)).values()) {
+
+            if (result.size() >= limit) break;
+            result.add(document);
+        }
+
+        respond(exchange, 200, JsonUtils.MAPPER.writeValueAsString(result));
+    }
+
+    /**
+     * Handles a delta update of a document (POST with a body like <code>{.., "color":"red"}</code>).
+     */
+    private void handleUpdate(HttpExchange exchange, String table, String id) throws IOException {
+
+        if (! tables.containsKey(table)) {
+            respondUnknownTable(exchange, table);
+            return;
+        }
+
+        JsonNode delta = parseDelta(readBody(exchange));
+
+        if (delta == null) {
+            respond(exchange, 400, "{\"success\":false,\"reason\":\"malformed delta\"}");
+            return;
+        }
+
+        applyDelta(table, id, delta);
+
+        respond(exchange, 200, "{\"success\":true}");
+    }
+
+    /**
+     * Handles a stream update (POST of an array of objects with <code>table</code>, <code>key</code>,
+     * and <code>delta</code>), which applies the deltas like single updates.
+     */
+    private void handleStream(HttpExchange exchange) throws IOException {
+
+        JsonNode updates;
+
+        try {
+            updates = JsonUtils.MAPPER.readTree(readBody(exchange));
+        } catch (IOException e) {
+            updates = null;
+        }
+
+        if (updates == null || ! updates.isArray()) {
+            respond(exchange, 400, "{\"success\":false,\"reason\":\"malformed updates\"}");
+            return;
+        }
+
+        for (JsonNode update : updates) {
+
+            JsonNode delta = parseDelta(update.path("delta").asText());
+
+            if (delta == null || ! update.hasNonNull("key")) {
+                respond(exchange, 400, "{\"success\":false,\"reason\":\"malformed delta\"}");
+                return;
+            }
+
+            String table = update.path("table").asText();
+
+            if (! tables.containsKey(table)) {
+                respondUnknownTable(exchange, table);
+                return;
+            }
+
+            applyDelta(table, update.get("key").asText(), delta);
+        }
+
+        respond(exchange, 200, "{\"success\":true}");
+    }
+
+    /**
+     * Parses a delta of the form <code>{.., "color":"red"}</code> (the only form the application uses).
+     *
+     * @param text the delta.
+     * @return the fields set by the delta, <code>null</code> if the delta is malformed.
+     */
+    private static JsonNode parseDelta(String text) {
+
+        try {
+            // the delta keeps all other fields ("..,"), which is what the stand-in does anyway
+            return JsonUtils.MAPPER.readTree(text.replaceFirst("^\\{\\s*\\.\\.\\s*,", "{"));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Responds that a table does not exist, like EmoDB.
+     *
+     * @param exchange the request.
+     * @param table the name of the table.
+     * @throws IOException if the response could not be sent.
+     */
+    private void respondUnknownTable(HttpExchange exchange, String table) throws IOException {
+
+        respond(exchange, 404, "{\"reason\":\"Unknown table: " + table + "\",\"table\":\"" + table + "\"}");
+    }
+
+    /**
+     * Applies a delta to a document and adds an event for it to every subscription of its table.
+     *
+     * @param table the name of the table.
+     * @param id the ID of the document.
+     * @param delta the fields set by the delta.
+     */
+    private void applyDelta(String table, String id, JsonNode delta) {
+
+        String now = Instant.now().toString();
+
+        NavigableMap<String, ObjectNode> documents = tables.get(table);
+
+        if (documents == null) return; // dropped concurrently
+
+        synchronized (documents) {
+
+            ObjectNode previous = documents.get(id);
+            ObjectNode document = previous == null ? JsonUtils.MAPPER.createObjectNode() : previous.deepCopy();
+
+            document.put("~id", id);
+            document.put("~table", table);
+            document.put("~version", previous == null ? 1 : previous.path("~version").asInt() + 1);
+            document.put("~signature", UUID.randomUUID().toString().replace("-", ""));
+            document.put("~deleted", false);
+            if (previous == null) document.put("~firstUpdateAt", now);
+            document.put("~lastUpdateAt", now);
+            document.put("~lastMutateAt", now);
+
+            delta.fields().forEachRemaining(field -> document.set(field.getKey(), field.getValue()));
+
+            documents.put(id, document);
+        }
+
+        for (Subscription subscription : subscriptions.values()) {
+
+            if (! subscription.table.equals(table)) continue;
+
+            synchronized (subscription) {
+
+                if (subscription.unclaimedKeys.containsKey(id)) continue; // the pending event covers this change
+
+                String eventKey = UUID.randomUUID().toString();
+
+                subscription.events.put(eventKey, new Event(id));
+                subscription.unclaimedKeys.put(id, eventKey);
+            }
+        }
+    }
+
+    /**
+     * Handles a poll (GET with <code>ttl</code> and <code>limit</code>): claims up to
+     * <code>limit</code> unclaimed events for <code>ttl</code> seconds.
+     */
+    private void handlePoll(HttpExchange exchange, String subscriptionName) throws IOException {
+
+        Map<String, String> params = queryParams(exchange);
+
+        int ttlSeconds = NumberUtils.toInt(params.get("ttl"), 30);
+        int limit = NumberUtils.toInt(params.get("limit"), 10);
+
+        Subscription subscription = subscriptions.get(subscriptionName);
+
+        ArrayNode result = JsonUtils.MAPPER.createArrayNode();
+
+        NavigableMap<String, ObjectNode> documents = subscription != null ? tables.get(subscription.table) : null;
+
+        if (documents != null) {
+
+            long nowMillis = System.currentTimeMillis();
+
+            synchronized (subscription) {
+
+                for (Map.Entry<String, Event> entry : subscription.events.entrySet()) {
+
+                    if (result.size() >= limit) break;
+
+                    Event event = entry.getValue();
+
+                    if (event.claimedUntilMillis > nowMillis) continue;
+
+                    event.claimedUntilMillis = nowMillis + ttlSeconds * 1000L;
+                    subscription.unclaimedKeys.remove(event.documentId, entry.getKey());
+
+                    ObjectNode eventNode = result.addObject();
+                    eventNode.put("eventKey", entry.getKey());
+                    eventNode.set("content", documents.get(event.documentId));
+                    eventNode.putArray("tags");
+                }
+            }
+        }
+
+        respond(exchange, 200, JsonUtils.MAPPER.writeValueAsString(result));
+    }
+
+    /**
+     * Handles a size request (GET with <code>limit</code>): counts the unacknowledged events.
+     */
+    private void handleSize(HttpExchange exchange, String subscriptionName) throws IOException {
+
+        int limit = NumberUtils.toInt(queryParams(exchange).get("limit"), Integer.MAX_VALUE);
+
+        Subscription subscription = subscriptions.get(subscriptionName);
+
+        int size;
+
+        if (subscription == null) {
+            size = 0;
+        } else {
+            synchronized (subscription) {
+                size = subscription.events.size();
+            }
+        }
+
+        respond(exchange, 200, Integer.toString(Math.min(size, limit)));
+    }
+
+    /**
+     * Handles an acknowledgement (POST with a JSON array of event keys).
+     */
+    private void handleAck(HttpExchange exchange, String subscriptionName) throws IOException {
+
+        JsonNode eventKeys;
+
+        try {
+            eventKeys = JsonUtils.MAPPER.readTree(readBody(exchange));
+        } catch (IOException e) {
+            respond(exchange, 400, "{\"success\":false}");
+            return;
+        }
+
+        Subscription subscription = subscriptions.get(subscriptionName);
+
+        if (subscription != null && eventKeys.isArray()) {
+
+            synchronized (subscription) {
+
+                for (JsonNode eventKey : eventKeys) {
+
+                    Event event = subscription.events.remove(eventKey.asText());
+
+                    if (event != null) subscription.unclaimedKeys.remove(event.documentId, eventKey.asText());
+                }
+            }
+        }
+
+        respond(exchange, 200, "{\"success\":true}");
+    }
+}
@@ -0,0 +1,301 @@
+package com.dubeanddube.emodb.harness;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Base class of the in-process HTTP stand-ins for EmoDB and Elasticsearch, which injects latency
+ * and failures into every request before it is handled (once enabled).
+ *
+ * @author Dominique Dube
+ */
+abstract class StandInServer {
+
+    private final Logger logger = LoggerFactory.getLogger(StandInServer.class); // some basic logging
+
+    static {
+        // like the real servers: without it, responses on kept-alive connections wait for delayed ACKs
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * Latency and failures injected into every request of a stand-in.
+     */
+    static class Faults {
+
+        final int latencyMillis;
+        final int jitterMillis;
+        final double failureRate;
+
+        /**
+         * Constructs the faults of a stand-in.
+         *
+         * @param latencyMillis the latency added to every request in milliseconds.
+         * @param jitterMillis the maximum random latency added on top in milliseconds.
+         * @param failureRate the probability of a request failing with 503 Service Unavailable.
+         */
+        Faults(int latencyMillis, int jitterMillis, double failureRate) {
+
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.failureRate = failureRate;
+        }
+
+        /**
+         * Reads the faults from system properties with the specified prefix, e.g.
+         * <code>-Dharness.elasticsearch.latencyMillis=5</code>.
+         *
+         * @param prefix the property prefix (e.g. <code>harness.elasticsearch</code>).
+         * @return the faults, none if no property is set.
+         */
+        static Faults fromProperties(String prefix) {
+
+            return new Faults(Integer.getInteger(prefix + ".latencyMillis", 0),
+                    Integer.getInteger(prefix + ".jitterMillis", 0),
+                    Double.parseDouble(System.getProperty(prefix + ".failureRate", "0")));
+        }
+
+        @Override
+        public String toString() {
+
+            return "latency " + latencyMillis + " ms (+ up to " + jitterMillis + " ms), failure rate " + failureRate;
+        }
+    }
+
+    /**
+     * Handles a request that passed fault injection.
+     */
+    @FunctionalInterface
+    interface Handler {
+
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private final String name;
+
+    private final Faults faults;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<Integer, HttpServer> servers = new HashMap<>();
+
+    private volatile boolean faultsEnabled = false; // the application starts without faults
+
+    /**
+     * Constructs a stand-in.
+     *
+     * @param name the name of the stand-in (for logging).
+     * @param faults the latency and failures injected into every request.
+     */
+    StandInServer(String name, Faults faults) {
+
+        this.name = name;
+        this.faults = faults;
+    }
+
+    /**
+     * Listens on the specified local port and dispatches all requests to the handler.
+     *
+     * @param port the port.
+     * @param handler the handler.
+     * @throws IOException if the port is not available.
+     */
+    void listen(int port, Handler handler) throws IOException {
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 64);
+
+        server.createContext("/", exchange -> {
+
+            try {
+
+                injectFaults(exchange);
+
+                if (exchange.getResponseCode() == -1) handler.handle(exchange); // not failed
+
+            } catch (RuntimeException e) {
+
+                logger.warn(name + " stand-in failed to handle " + exchange.getRequestURI(), e);
+                respond(exchange, 500, "{\"error\":\"stand-in failure\",\"status\":500}");
+
+            } finally {
+                exchange.close();
+            }
+        });
+
+        server.setExecutor(executor);
+        server.start();
+
+        servers.put(port, server);
+
+        logger.info(name + " stand-in listening on localhost:" + port + " (" + faults + ")");
+    }
+
+    /**
+     * Starts injecting the configured latency and failures into every request.
+     */
+    void enableFaults() {
+
+        faultsEnabled = true;
+    }
+
+    /**
+     * Stops listening on all ports.
+     */
+    void stop() {
+
+        for (HttpServer server : servers.values()) server.stop(0);
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Delays the request by the configured latency and fails it with the configured probability.
+     *
+     * @param exchange the request.
+     * @throws IOException if the failure response could not be sent.
+     */
+    private void injectFaults(HttpExchange exchange) throws IOException {
+
+        if (! faultsEnabled) return;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long delayMillis = faults.latencyMillis + (faults.jitterMillis > 0 ? random.nextInt(faults.jitterMillis + 1) : 0);
+
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (faults.failureRate > 0 && random.nextDouble() < faults.failureRate) {
+            respond(exchange, 503, "{\"success\":false,\"error\":\"injected failure\",\"status\":503}");
+        }
+    }
+
+    /**
+     * Sends a JSON response.
+     *
+     * @param exchange the request.
+     * @param status the HTTP status code.
+     * @param body the JSON body.
+     * @throws IOException if the response could not be sent.
+     */
+    static void respond(HttpExchange exchange, int status, String body) throws IOException {
+
+        respond(exchange, status, "application/json", body);
+    }
+
+    /**
+     * Sends a response.
+     *
+     * @param exchange the request.
+     * @param status the HTTP status code.
+     * @param contentType the content type of the body.
+     * @param body the body.
+     * @throws IOException if the response could not be sent.
+     */
+    static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+
+        if (bytes.length > 0) {
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Reads the request body.
+     *
+     * @param exchange the request.
+     * @return the body, "" if none.
+     * @throws IOException if the body could not be read.
+     */
+    static String readBody(HttpExchange exchange) throws IOException {
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        try (InputStream inputStream = exchange.getRequestBody()) {
+
+            byte[] buffer = new byte[8192];
+
+            for (int n; (n = inputStream.read(buffer)) > 0; ) body.write(buffer, 0, n);
+        }
+
+        return body.toString("UTF-8");
+    }
+
+    /**
+     * Parses the query parameters of the request.
+     *
+     * @param exchange the request.
+     * @return the decoded query parameters (the first value of each).
+     */
+    static Map<String, String> queryParams(HttpExchange exchange) {
+
+        Map<String, String> params = new HashMap<>();
+
+        String query = exchange.getRequestURI().getRawQuery();
+
+        if (query == null) return params;
+
+        for (String pair : query.split("&")) {
+
+            int index = pair.indexOf('=');
+
+            try {
+                String key = URLDecoder.decode(index < 0 ? pair : pair.substring(0, index), "UTF-8");
+                String value = index < 0 ? "" : URLDecoder.decode(pair.substring(index + 1), "UTF-8");
+                params.putIfAbsent(key, value);
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                // skip malformed pairs
+            }
+        }
+
+        return params;
+    }
+
+    /**
+     * Splits the request path into its segments.
+     *
+     * @param exchange the request.
+     * @return the path segments, e.g. <code>["sor", "1", "items"]</code> for <code>/sor/1/items</code>.
+     */
+    static String[] pathSegments(HttpExchange exchange) {
+
+        String path = exchange.getRequestURI().getPath();
+
+        while (path.startsWith("/")) path = path.substring(1);
+
+        return path.isEmpty() ? new String[0] : path.split("/");
+    }
+}
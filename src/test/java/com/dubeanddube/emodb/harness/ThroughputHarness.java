@@ -0,0 +1,323 @@
+package com.dubeanddube.emodb.harness;
+
+import com.dubeanddube.emodb.App;
+import com.dubeanddube.emodb.data.IDItem;
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.TableConfig;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import com.dubeanddube.emodb.metrics.FreshnessMonitor;
+import com.dubeanddube.emodb.metrics.Metrics;
+import com.dubeanddube.emodb.services.EmoSor;
+import com.dubeanddube.emodb.services.HttpUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the whole application against in-process stand-ins for EmoDB and Elasticsearch, drives
+ * document writes at a fixed rate through <code>EmoSor</code>, queries documents by ID at a fixed
+ * rate, and reports the indexing throughput, the freshness lag (EmoDB write until the index
+ * accepted the update), and the query latency.
+ *
+ * Writes and queries are issued open-loop: they are started on schedule no matter how long
+ * earlier ones take, so that a slow pipeline shows up as latency and backlog instead of a lower
+ * offered load. Latency and failures are injected into the stand-ins once the application has
+ * started, so that its startup does not abort. The stand-ins listen on the usual ports (8080, 8081, 9200), so no real EmoDB or
+ * Elasticsearch may be running. Note that the application's own document updater writes one
+ * document per second on top of the configured rate.
+ *
+ * Configured with system properties:
+ *
+ * harness.writeRate          writes per second (default 2)
+ * harness.queryRate          queries per second (default 10)
+ * harness.durationSeconds    duration of the load (default 60)
+ * harness.drainSeconds       maximum wait for the databus backlog to drain afterwards (default 60)
+ * harness.drainBacklog       backlog that counts as drained (default 2)
+ * harness.emodb.latencyMillis, harness.emodb.jitterMillis, harness.emodb.failureRate
+ * harness.elasticsearch.latencyMillis, harness.elasticsearch.jitterMillis, harness.elasticsearch.failureRate
+ *
+ * Run with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.dubeanddube.emodb.harness.ThroughputHarness -Dharness.writeRate=5
+ *
+ * @author Dominique Dube
+ */
+public class ThroughputHarness {
+
+    private static final int WRITE_RATE = Integer.getInteger("harness.writeRate", 2);
+    private static final int QUERY_RATE = Integer.getInteger("harness.queryRate", 10);
+    private static final int DURATION_SECONDS = Integer.getInteger("harness.durationSeconds", 60);
+    private static final int DRAIN_SECONDS = Integer.getInteger("harness.drainSeconds", 60);
+
+    // the application's own document updater keeps a backlog of about this size
+    private static final int DRAIN_BACKLOG = Integer.getInteger("harness.drainBacklog", 2);
+
+    private static final String[] COLORS = { "red", "green", "blue", "yellow", "black", "white" };
+
+    private static final String LAG_HISTOGRAM = "emodb_index_freshness_lag_seconds";
+
+    private final AtomicLong numWrites = new AtomicLong(0);
+    private final AtomicLong numFailedWrites = new AtomicLong(0);
+    private final AtomicLong numFailedQueries = new AtomicLong(0);
+
+    private final List<Long> queryLatencies = Collections.synchronizedList(new ArrayList<>()); // nanoseconds
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        new ThroughputHarness().run();
+
+        System.exit(0); // the application threads do not terminate
+    }
+
+    /**
+     * Starts the stand-ins and the application, runs the load, and prints the report.
+     *
+     * @throws IOException if a stand-in could not be started.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void run() throws IOException, InterruptedException {
+
+        EmoDbStandIn emoDb = new EmoDbStandIn(StandInServer.Faults.fromProperties("harness.emodb"));
+        ElasticsearchStandIn elasticsearch =
+                new ElasticsearchStandIn(StandInServer.Faults.fromProperties("harness.elasticsearch"));
+
+        emoDb.start();
+        elasticsearch.start();
+
+        App.main(new String[0]);
+
+        List<VersionedIDItem> documents = EmoSor.readDocuments(TableConfig.DEFAULT_TABLE, null, 1000);
+
+        if (documents == null || documents.isEmpty()) {
+            System.err.println("no documents in the items table - is the application running?");
+            return;
+        }
+
+        List<String> ids = new ArrayList<>();
+        for (VersionedIDItem document : documents) ids.add(document.getId());
+
+        // the application started without faults, the load runs with them
+
+        emoDb.enableFaults();
+        elasticsearch.enableFaults();
+
+        long appliedBefore = getNumAppliedUpdates();
+        Map<Double, Long> lagBefore = getLagBuckets();
+
+        System.out.println("offering " + WRITE_RATE + " writes/s and " + QUERY_RATE + " queries/s on " +
+                ids.size() + " documents for " + DURATION_SECONDS + " s");
+
+        long startNanos = System.nanoTime();
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        ExecutorService workers = Executors.newCachedThreadPool();
+
+        if (WRITE_RATE > 0) {
+            scheduler.scheduleAtFixedRate(() -> workers.execute(() -> write(ids)),
+                    0, 1_000_000_000L / WRITE_RATE, TimeUnit.NANOSECONDS);
+        }
+
+        if (QUERY_RATE > 0) {
+            scheduler.scheduleAtFixedRate(() -> workers.execute(() -> query(ids)),
+                    0, 1_000_000_000L / QUERY_RATE, TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(DURATION_SECONDS * 1000L);
+
+        scheduler.shutdownNow();
+        workers.shutdown();
+        workers.awaitTermination(30, TimeUnit.SECONDS);
+
+        long loadNanos = System.nanoTime() - startNanos;
+
+        long appliedAfterLoad = getNumAppliedUpdates();
+
+        // let the listener catch up with the backlog (the backlog is updated at every poll)
+
+        Thread.sleep(5000);
+
+        long drainStartNanos = System.nanoTime();
+        long drainEndNanos = drainStartNanos + DRAIN_SECONDS * 1_000_000_000L;
+
+        while (! isDrained() && System.nanoTime() < drainEndNanos) {
+            Thread.sleep(500);
+        }
+
+        long drainNanos = System.nanoTime() - drainStartNanos;
+
+        report(loadNanos, appliedAfterLoad - appliedBefore, getNumAppliedUpdates() - appliedBefore, drainNanos,
+                diff(getLagBuckets(), lagBefore));
+    }
+
+    /**
+     * Checks whether the databus backlog reported at the last poll has drained.
+     *
+     * @return <code>true</code> if the backlog is known and at most <code>DRAIN_BACKLOG</code>.
+     */
+    private static boolean isDrained() {
+
+        int numPendingEvents = FreshnessMonitor.getNumPendingEvents();
+
+        return numPendingEvents >= 0 && numPendingEvents <= DRAIN_BACKLOG;
+    }
+
+    /**
+     * Writes a random document update through <code>EmoSor</code>.
+     *
+     * @param ids the IDs of the documents.
+     */
+    private void write(List<String> ids) {
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long writeNumber = numWrites.incrementAndGet();
+
+        Item item = new Item(COLORS[random.nextInt(COLORS.length)], "Harness write number " + writeNumber);
+
+        // the version is assigned by EmoDB, so it is ignored here
+        IDItem idItem = new VersionedIDItem(ids.get(random.nextInt(ids.size())), item, 0);
+
+        if (! EmoSor.updateDocument(TableConfig.DEFAULT_TABLE, idItem, "harness")) {
+            numFailedWrites.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queries a random document by ID from the query server and records the latency.
+     *
+     * @param ids the IDs of the documents.
+     */
+    private void query(List<String> ids) {
+
+        String id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+
+        long startNanos = System.nanoTime();
+
+        String responseString = HttpUtils.get("http://localhost:4567/document?id=" + id);
+
+        long latencyNanos = System.nanoTime() - startNanos;
+
+        if (responseString == null || ! responseString.contains("\"success\":true")) {
+            numFailedQueries.incrementAndGet();
+        } else {
+            queryLatencies.add(latencyNanos);
+        }
+    }
+
+    /**
+     * Prints the report.
+     */
+    private void report(long loadNanos, long numAppliedDuringLoad, long numApplied, long drainNanos,
+                        Map<Double, Long> lagBuckets) {
+
+        double loadSeconds = loadNanos / 1e9;
+
+        System.out.println();
+        System.out.println("writes:          " + numWrites.get() + " (" + numFailedWrites.get() + " failed), " +
+                String.format("%.1f/s", numWrites.get() / loadSeconds));
+        System.out.println("index updates:   " + numAppliedDuringLoad + " during load, " +
+                String.format("%.1f/s", numAppliedDuringLoad / loadSeconds) + "; " + numApplied + " after drain");
+        System.out.println("backlog:         " + FreshnessMonitor.getNumPendingEvents() + " pending events after " +
+                String.format("%.1f s", drainNanos / 1e9) + " of draining");
+
+        long numLagged = lagBuckets.isEmpty() ? 0 : Collections.max(lagBuckets.values());
+
+        System.out.println("freshness lag:   " + numLagged + " updates, p50 <= " + quantile(lagBuckets, 0.5) +
+                " s, p90 <= " + quantile(lagBuckets, 0.9) + " s, p99 <= " + quantile(lagBuckets, 0.99) + " s");
+
+        List<Long> latencies = new ArrayList<>(queryLatencies);
+        Collections.sort(latencies);
+
+        System.out.println("query latency:   " + latencies.size() + " queries (" + numFailedQueries.get() + " failed)" +
+                (latencies.isEmpty() ? "" : String.format(", p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                        percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                        latencies.get(latencies.size() - 1) / 1e6)));
+    }
+
+    /**
+     * Returns the number of updates applied to the search index so far.
+     *
+     * @return the number of created and updated documents.
+     */
+    private static long getNumAppliedUpdates() {
+
+        return Metrics.counter("emodb_index_updates_total", "", "outcome", "created").get() +
+                Metrics.counter("emodb_index_updates_total", "", "outcome", "updated").get();
+    }
+
+    /**
+     * Reads the cumulative buckets of the freshness lag histogram from the exported metrics.
+     *
+     * @return the cumulative counts by bucket upper bound (+Inf as infinity).
+     */
+    private static Map<Double, Long> getLagBuckets() {
+
+        Map<Double, Long> buckets = new TreeMap<>();
+
+        String prefix = LAG_HISTOGRAM + "_bucket{le=\"";
+
+        for (String line : Metrics.scrape().split("\n")) {
+
+            if (! line.startsWith(prefix)) continue;
+
+            String upperBound = line.substring(prefix.length(), line.indexOf('"', prefix.length()));
+            long count = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+
+            buckets.put(upperBound.equals("+Inf") ? Double.POSITIVE_INFINITY : Double.parseDouble(upperBound), count);
+        }
+
+        return buckets;
+    }
+
+    /**
+     * Subtracts earlier cumulative bucket counts from later ones.
+     */
+    private static Map<Double, Long> diff(Map<Double, Long> after, Map<Double, Long> before) {
+
+        Map<Double, Long> buckets = new TreeMap<>();
+
+        for (Map.Entry<Double, Long> entry : after.entrySet()) {
+            buckets.put(entry.getKey(), entry.getValue() - before.getOrDefault(entry.getKey(), 0L));
+        }
+
+        return buckets;
+    }
+
+    /**
+     * Estimates a quantile from cumulative histogram buckets.
+     *
+     * @return the upper bound of the bucket that contains the quantile, "-" if there are no observations.
+     */
+    private static String quantile(Map<Double, Long> buckets, double q) {
+
+        long total = buckets.isEmpty() ? 0 : Collections.max(buckets.values());
+
+        if (total == 0) return "-";
+
+        for (Map.Entry<Double, Long> entry : buckets.entrySet()) {
+            if (entry.getValue() >= q * total) return entry.getKey().toString();
+        }
+
+        return "+Inf";
+    }
+
+    /**
+     * Returns a percentile of sorted latencies in milliseconds.
+     */
+    private static double percentile(List<Long> sortedLatencies, double q) {
+
+        int index = (int)Math.min(sortedLatencies.size() - 1, Math.ceil(q * sortedLatencies.size()) - 1);
+
+        return sortedLatencies.get(Math.max(0, index)) / 1e6;
+    }
+}
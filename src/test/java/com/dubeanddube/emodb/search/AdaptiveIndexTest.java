@@ -0,0 +1,194 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.*;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests of the adaptive index: failover to a healthy backend, recovery, and replay of
+ * missed updates.
+ *
+ * @author Dominique Dube
+ */
+public class AdaptiveIndexTest extends TestCase {
+
+    private static final long MAX_WAIT_MILLIS = 10000;
+
+    private static final String A = "7b8d8a82-77b6-4940-95fe-50ed99b23cb2";
+    private static final String B = "1f0c3e5a-2d4b-4c6e-8f7a-9b0c1d2e3f4a";
+
+    /**
+     * A memory index that can be taken down, in which case all queries and updates fail.
+     */
+    private static class FlakyIndex extends MemoryIndex {
+
+        final AtomicBoolean down = new AtomicBoolean(false);
+        final AtomicInteger numQueries = new AtomicInteger(0);
+
+        @Override
+        public String getDocumentById(String id) {
+
+            numQueries.incrementAndGet();
+
+            return down.get() ? JsonUtils.NO_SUCCESS : super.getDocumentById(id);
+        }
+
+        @Override
+        public UpdateOutcome updateDocument(VersionedIDItem newItem) {
+
+            return down.get() ? UpdateOutcome.FAILED : super.updateDocument(newItem);
+        }
+
+        @Override
+        public Map<String, Long> getColorCounts() {
+
+            if (down.get()) throw new IllegalStateException("down");
+
+            return super.getColorCounts();
+        }
+    }
+
+    /**
+     * Queries are answered by the remaining backend while the other one fails.
+     */
+    public void testFailover() throws Exception {
+
+        FlakyIndex first = new FlakyIndex();
+        FlakyIndex second = new FlakyIndex();
+
+        AdaptiveIndex adaptiveIndex = new AdaptiveIndex(TimeUnit.HOURS.toNanos(1));
+        adaptiveIndex.addBackend("first", first);
+        adaptiveIndex.addBackend("second", second);
+
+        assertEquals(UpdateOutcome.CREATED, adaptiveIndex.updateDocument(item(A, "green", 1)));
+
+        String expected = adaptiveIndex.getDocumentById(A);
+
+        first.down.set(true);
+
+        for (int i = 0; i < 100; ++i) assertEquals(expected, adaptiveIndex.getDocumentById(A));
+
+        assertEquals(Long.valueOf(1), adaptiveIndex.getColorCounts().get("green"));
+
+        second.down.set(true);
+        first.down.set(false);
+
+        for (int i = 0; i < 100; ++i) assertEquals(expected, adaptiveIndex.getDocumentById(A));
+
+        first.down.set(true);
+
+        assertEquals(JsonUtils.NO_SUCCESS, adaptiveIndex.getDocumentById(A));
+
+        try {
+            adaptiveIndex.getColorCounts();
+            fail("facets must fail if all backends fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A backend that was down receives the updates it missed once it recovered, and then
+     * serves queries again.
+     */
+    public void testReplayAfterRecovery() throws Exception {
+
+        FlakyIndex stable = new FlakyIndex();
+        FlakyIndex flaky = new FlakyIndex();
+
+        flaky.down.set(true);
+
+        AdaptiveIndex adaptiveIndex = new AdaptiveIndex(0);
+        adaptiveIndex.addBackend("stable", stable);
+        adaptiveIndex.addBackend("flaky", flaky, false, null);
+
+        adaptiveIndex.updateDocument(item(A, "green", 1));
+        adaptiveIndex.updateDocument(item(B, "red", 1));
+        adaptiveIndex.updateDocument(item(A, "blue", 2));
+
+        assertEquals(stable.getDocumentById(A), adaptiveIndex.getDocumentById(A));
+        assertEquals(JsonUtils.NO_SUCCESS, flaky.getDocumentById(A));
+
+        flaky.down.set(false);
+
+        long deadlineMillis = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+
+        while (! flaky.getDocumentById(B).equals(stable.getDocumentById(B))) {
+
+            assertTrue("missed updates were not replayed", System.currentTimeMillis() < deadlineMillis);
+
+            adaptiveIndex.getDocumentById(A); // triggers probes
+            Thread.sleep(10);
+        }
+
+        assertEquals(stable.getDocumentById(A), flaky.getDocumentById(A)); // the newest version only
+        assertEquals(stable.getColorCounts(), flaky.getColorCounts());
+
+        // once recovered, the flaky backend serves queries even if the stable one fails
+
+        stable.down.set(true);
+
+        assertEquals(flaky.getDocumentById(A), adaptiveIndex.getDocumentById(A));
+    }
+
+    /**
+     * An unhealthy backend is only probed once it was prepared.
+     */
+    public void testPrepareBeforeProbe() throws Exception {
+
+        FlakyIndex stable = new FlakyIndex();
+        FlakyIndex late = new FlakyIndex();
+
+        AtomicBoolean ready = new AtomicBoolean(false);
+        AtomicInteger numPrepares = new AtomicInteger(0);
+
+        AdaptiveIndex adaptiveIndex = new AdaptiveIndex(0);
+        adaptiveIndex.addBackend("stable", stable);
+        adaptiveIndex.addBackend("late", late, false, () -> {
+            numPrepares.incrementAndGet();
+            return ready.get();
+        });
+
+        adaptiveIndex.updateDocument(item(A, "green", 1));
+
+        long deadlineMillis = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+
+        while (numPrepares.get() < 5) {
+
+            assertTrue("unhealthy backend was not prepared", System.currentTimeMillis() < deadlineMillis);
+
+            adaptiveIndex.getDocumentById(A);
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, late.numQueries.get());
+
+        ready.set(true);
+
+        while (! late.getDocumentById(A).equals(stable.getDocumentById(A))) {
+
+            assertTrue("prepared backend did not recover", System.currentTimeMillis() < deadlineMillis);
+
+            adaptiveIndex.getDocumentById(A);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Constructs a versioned document.
+     *
+     * @param id the document ID.
+     * @param color the color of the document.
+     * @param version the version of the document.
+     * @return the versioned document.
+     */
+    private static VersionedIDItem item(String id, String color, int version) {
+
+        return new VersionedIDItem(id, new Item(color, "text of " + id), version);
+    }
+}
@@ -0,0 +1,54 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import junit.framework.TestCase;
+
+import java.util.Collections;
+
+/**
+ * Unit tests of the change tracker: document and color tags, and pruning of removed documents.
+ *
+ * @author Dominique Dube
+ */
+public class ChangeTrackerTest extends TestCase {
+
+    private static final String A = "7b8d8a82-77b6-4940-95fe-50ed99b23cb2";
+    private static final String B = "1f0c3e5a-2d4b-4c6e-8f7a-9b0c1d2e3f4a";
+
+    /**
+     * Documents removed from the index are no longer tracked, and the tags of their colors change.
+     */
+    public void testRemovals() {
+
+        ChangeTracker changeTracker = new ChangeTracker(0);
+
+        changeTracker.recordUpdate(new VersionedIDItem(A, new Item("green", "a"), 1));
+        changeTracker.recordUpdate(new VersionedIDItem(B, new Item("red", "b"), 1));
+
+        String greenTag = changeTracker.getColorTag("green");
+        String redTag = changeTracker.getColorTag("red");
+
+        assertEquals(1, changeTracker.recordRemovals(id -> id.equals(A)));
+
+        assertNull(changeTracker.getDocumentTag(A));
+        assertNotNull(changeTracker.getDocumentTag(B));
+        assertFalse(greenTag.equals(changeTracker.getColorTag("green")));
+        assertEquals(redTag, changeTracker.getColorTag("red"));
+
+        // a document updated after the removed version is kept
+
+        changeTracker.recordUpdate(new VersionedIDItem(B, new Item("red", "b"), 2));
+
+        assertEquals(0, changeTracker.recordRemovals(Collections.singletonMap(B, 1L)));
+        assertNotNull(changeTracker.getDocumentTag(B));
+
+        assertEquals(1, changeTracker.recordRemovals(Collections.singletonMap(B, 2L)));
+        assertNull(changeTracker.getDocumentTag(B));
+
+        // a removed document that is indexed again is tracked as a new document
+
+        assertNull(changeTracker.recordUpdate(new VersionedIDItem(A, new Item("blue", "a"), 1)));
+        assertNotNull(changeTracker.getDocumentTag(A));
+    }
+}
@@ -0,0 +1,148 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.Item;
+import com.dubeanddube.emodb.data.QueryResult;
+import com.dubeanddube.emodb.data.VersionedIDItem;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Unit tests of compound queries on the memory-based index: the plans chosen from the posting
+ * lists, and their results compared with a full scan that evaluates the condition on every document.
+ *
+ * @author Dominique Dube
+ */
+public class ConditionQueryTest extends TestCase {
+
+    private static final String[] COLORS = { "green", "red", "blue", "yellow" };
+    private static final String[] WORDS = { "lorem", "ipsum", "dolor", "sit", "amet", "consectetur" };
+
+    private final Random random = new Random(42);
+
+    private final MemoryIndex memoryIndex = new MemoryIndex();
+    private final List<VersionedIDItem> idItems = new ArrayList<>();
+
+    @Override
+    protected void setUp() {
+
+        for (int i = 0; i < 1000; ++i) {
+
+            String text = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+
+            VersionedIDItem idItem = new VersionedIDItem(new UUID(random.nextLong(), random.nextLong()).toString(),
+                    new Item(COLORS[random.nextInt(COLORS.length)], text), 1 + random.nextInt(10));
+
+            memoryIndex.updateDocument(idItem);
+            idItems.add(idItem);
+        }
+
+        // updates move documents between posting lists
+
+        for (int i = 0; i < 200; ++i) {
+
+            VersionedIDItem current = idItems.get(i);
+            VersionedIDItem updated = new VersionedIDItem(current.getId(),
+                    new Item(COLORS[random.nextInt(COLORS.length)], WORDS[random.nextInt(WORDS.length)]),
+                    (int)current.getVersion() + 1);
+
+            memoryIndex.updateDocument(updated);
+            idItems.set(i, updated);
+        }
+    }
+
+    /**
+     * Indexed conditions are evaluated on the candidates of the posting lists, and return the same
+     * documents as a full scan.
+     */
+    public void testIndexedConditions() {
+
+        String id = idItems.get(7).getId();
+
+        assertMatchesScan("{\"id\": \"" + id + "\"}", "id " + id);
+        assertMatchesScan("{\"color\": \"green\"}", "color green");
+        assertMatchesScan("{\"text\": \"lorem\"}", "text lorem");
+        assertMatchesScan("{\"text\": \"LOREM ipsum\"}", "intersect(");
+        assertMatchesScan("{\"color\": \"red\", \"text\": \"dolor\"}", "intersect(");
+        assertMatchesScan("{\"and\": [{\"color\": \"blue\"}, {\"version\": {\"gte\": 5}}]}", "color blue");
+        assertMatchesScan("{\"or\": [{\"color\": \"green\"}, {\"text\": \"amet\"}]}", "union(");
+        assertMatchesScan("{\"and\": [{\"or\": [{\"color\": \"red\"}, {\"color\": \"yellow\"}]}, {\"text\": \"sit\"}]}", "intersect(");
+        assertMatchesScan("{\"and\": [{\"color\": \"green\"}, {\"not\": {\"text\": \"lorem\"}}]}", "color green");
+        assertMatchesScan("{\"color\": \"purple\"}", "color purple [0]");
+        assertMatchesScan("{\"id\": \"" + UUID.randomUUID() + "\"}", "id ");
+    }
+
+    /**
+     * Conditions without posting lists are evaluated by a full scan.
+     */
+    public void testScannedConditions() {
+
+        assertMatchesScan("{\"version\": {\"gte\": 3, \"lt\": 7}}", "scan of ");
+        assertMatchesScan("{\"not\": {\"color\": \"green\"}}", "scan of ");
+        assertMatchesScan("{\"or\": [{\"color\": \"green\"}, {\"version\": 4}]}", "scan of ");
+        assertMatchesScan("{}", "scan of ");
+    }
+
+    /**
+     * The window of a query is taken from the matches in order of their IDs.
+     */
+    public void testWindow() {
+
+        Query all = Query.fromJson("{\"where\": {\"color\": \"green\"}, \"limit\": 10000}");
+
+        List<Map<String, Object>> matches = memoryIndex.query(all).payload;
+
+        QueryResult window = memoryIndex.query(Query.fromJson(
+                "{\"where\": {\"color\": \"green\"}, \"offset\": 20, \"limit\": 15, \"fields\": [\"id\", \"version\"]}"));
+
+        assertEquals(matches.size(), window.total);
+        assertEquals(15, window.size);
+
+        for (int i = 0; i < 15; ++i) {
+
+            Map<String, Object> document = window.payload.get(i);
+
+            assertEquals(2, document.size());
+            assertEquals(matches.get(20 + i).get("id"), document.get("id"));
+            assertEquals(matches.get(20 + i).get("version"), document.get("version"));
+        }
+
+        QueryResult count = memoryIndex.query(Query.fromJson("{\"where\": {\"color\": \"green\"}, \"limit\": 0}"));
+
+        assertEquals("color count", count.plan);
+        assertEquals(matches.size(), count.total);
+        assertEquals(0, count.payload.size());
+    }
+
+    /**
+     * Asserts that a query returns the same documents, in the same order, as a full scan, and that
+     * its plan starts as expected.
+     *
+     * @param where the condition as JSON.
+     * @param expectedPlan the expected start of the plan.
+     */
+    private void assertMatchesScan(String where, String expectedPlan) {
+
+        Query query = Query.fromJson("{\"where\": " + where + ", \"limit\": 10000}");
+
+        List<VersionedIDItem> expected = new ArrayList<>();
+
+        for (VersionedIDItem idItem : idItems) if (query.where.matches(idItem)) expected.add(idItem);
+
+        expected.sort(Comparator.comparing(VersionedIDItem::getId));
+
+        QueryResult result = memoryIndex.query(query);
+
+        assertTrue(result.success);
+        assertTrue(where + " planned as " + result.plan, result.plan.startsWith(expectedPlan));
+        assertEquals(where, expected.size(), result.total);
+        assertEquals(where, expected.size(), result.size);
+
+        for (int i = 0; i < expected.size(); ++i) assertEquals(where, query.project(expected.get(i)), result.payload.get(i));
+    }
+}
@@ -0,0 +1,246 @@
+package com.dubeanddube.emodb.search;
+
+import com.dubeanddube.emodb.data.*;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests of the range digests and of their incremental maintenance by the memory-based index.
+ *
+ * @author Dominique Dube
+ */
+public class RangeDigestsTest extends TestCase {
+
+    private static final int NUM_DOCUMENTS = 2000;
+
+    private final Random random = new Random(42);
+
+    /**
+     * The digests do not depend on the order in which documents are added.
+     */
+    public void testOrderIndependence() {
+
+        List<VersionedIDItem> idItems = randomItems(NUM_DOCUMENTS);
+
+        long[] digests = digestsOf(idItems);
+
+        Collections.shuffle(idItems, random);
+
+        assertTrue(Arrays.equals(digests, digestsOf(idItems)));
+    }
+
+    /**
+     * Adding the hash of a new version and subtracting the hash of the replaced one yields the
+     * digests of the updated documents, and only the range of the updated document changes.
+     */
+    public void testIncrementalUpdate() {
+
+        List<VersionedIDItem> idItems = randomItems(NUM_DOCUMENTS);
+
+        long[] digests = digestsOf(idItems);
+        long[] previousDigests = digests.clone();
+
+        VersionedIDItem replaced = idItems.get(17);
+        VersionedIDItem updated = new VersionedIDItem(replaced.getId(), new Item("blue", "updated"), 2);
+
+        RangeDigests.add(digests, updated.getId(), updated.getVersion());
+        digests[RangeDigests.rangeOf(replaced.getId())] -= RangeDigests.hash(replaced.getId(), replaced.getVersion());
+
+        idItems.set(17, updated);
+
+        assertTrue(Arrays.equals(digestsOf(idItems), digests));
+
+        for (int range = 0; range < RangeDigests.NUM_RANGES; ++range) {
+            assertEquals(range == RangeDigests.rangeOf(updated.getId()), digests[range] != previousDigests[range]);
+        }
+    }
+
+    /**
+     * Different versions of the same document hash differently, and IDs spread over the ranges.
+     */
+    public void testHashAndRanges() {
+
+        String id = UUID.randomUUID().toString();
+
+        assertFalse(RangeDigests.hash(id, 1) == RangeDigests.hash(id, 2));
+
+        BitSet usedRanges = new BitSet(RangeDigests.NUM_RANGES);
+
+        for (VersionedIDItem idItem : randomItems(NUM_DOCUMENTS)) {
+
+            int range = RangeDigests.rangeOf(idItem.getId());
+
+            assertTrue(range >= 0 && range < RangeDigests.NUM_RANGES);
+            usedRanges.set(range);
+        }
+
+        // 2000 random IDs leave about 1024 * e^(-2000/1024) = 145 of 1024 ranges empty
+        assertTrue(usedRanges.cardinality() > RangeDigests.NUM_RANGES * 3 / 4);
+    }
+
+    /**
+     * The memory-based index maintains the digests of its documents through creates, updates,
+     * outdated updates, and removals, and leaves out the documents the filter does not accept.
+     */
+    public void testMemoryIndexDigests() {
+
+        MemoryIndex memoryIndex = new MemoryIndex();
+
+        Map<String, VersionedIDItem> expected = new HashMap<>();
+
+        for (VersionedIDItem idItem : randomItems(NUM_DOCUMENTS)) {
+            memoryIndex.updateDocument(idItem);
+            expected.put(idItem.getId(), idItem);
+        }
+
+        List<String> ids = new ArrayList<>(expected.keySet());
+
+        for (int i = 0; i < 500; ++i) {
+
+            VersionedIDItem current = expected.get(ids.get(random.nextInt(ids.size())));
+            VersionedIDItem updated = new VersionedIDItem(current.getId(), new Item("red", "update " + i),
+                    (int)current.getVersion() + 1);
+
+            assertEquals(UpdateOutcome.UPDATED, memoryIndex.updateDocument(updated));
+            assertEquals(UpdateOutcome.OUTDATED, memoryIndex.updateDocument(current));
+
+            expected.put(updated.getId(), updated);
+        }
+
+        Map<String, Long> removed = new HashMap<>();
+
+        for (int i = 0; i < 100; ++i) {
+
+            VersionedIDItem idItem = expected.remove(ids.get(i));
+            if (idItem != null) removed.put(idItem.getId(), idItem.getVersion());
+        }
+
+        removed.put(ids.get(100), expected.get(ids.get(100)).getVersion() - 1); // outdated, kept
+
+        assertEquals(removed.size() - 1, memoryIndex.removeDocuments(removed));
+
+        assertTrue(Arrays.equals(digestsOf(new ArrayList<>(expected.values())), memoryIndex.getRangeDigests(id -> true)));
+
+        String rejectedId = ids.get(200);
+
+        List<VersionedIDItem> accepted = new ArrayList<>(expected.values());
+        accepted.remove(expected.get(rejectedId));
+
+        assertTrue(Arrays.equals(digestsOf(accepted), memoryIndex.getRangeDigests(id -> ! id.equals(rejectedId))));
+
+        BitSet ranges = new BitSet(RangeDigests.NUM_RANGES);
+        ranges.set(RangeDigests.rangeOf(rejectedId));
+
+        Map<String, Long> versions = memoryIndex.getVersions(ranges, id -> true);
+
+        assertEquals(Long.valueOf(expected.get(rejectedId).getVersion()), versions.get(rejectedId));
+
+        for (String id : versions.keySet()) assertEquals(RangeDigests.rangeOf(rejectedId), RangeDigests.rangeOf(id));
+
+        assertFalse(memoryIndex.getVersions(ranges, id -> ! id.equals(rejectedId)).containsKey(rejectedId));
+    }
+
+    /**
+     * The digests and the color counts stay exact while documents are updated and removed
+     * concurrently, including updates of documents that are removed between attempts.
+     */
+    public void testConcurrentUpdatesAndRemovals() throws Exception {
+
+        MemoryIndex memoryIndex = new MemoryIndex();
+
+        List<VersionedIDItem> idItems = randomItems(8);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread[] writers = new Thread[4];
+
+        for (int w = 0; w < writers.length; ++w) {
+
+            int writer = w;
+
+            writers[w] = new Thread(() -> {
+
+                Random writerRandom = new Random(writer);
+
+                for (int i = 1; i <= 20000; ++i) {
+
+                    VersionedIDItem idItem = idItems.get(writerRandom.nextInt(idItems.size()));
+
+                    if (writer == 0 && i % 4 == 0) {
+                        memoryIndex.removeDocuments(id -> id.equals(idItem.getId()));
+                    } else {
+                        memoryIndex.updateDocument(new VersionedIDItem(idItem.getId(),
+                                new Item(i % 2 == 0 ? "green" : "red", "update " + i), i));
+                    }
+                }
+            });
+
+            writers[w].setUncaughtExceptionHandler((thread, e) -> failure.set(e));
+            writers[w].start();
+        }
+
+        for (Thread writer : writers) writer.join();
+
+        assertNull(failure.get());
+
+        BitSet allRanges = new BitSet(RangeDigests.NUM_RANGES);
+        allRanges.set(0, RangeDigests.NUM_RANGES);
+
+        long[] digests = new long[RangeDigests.NUM_RANGES];
+
+        for (Map.Entry<String, Long> version : memoryIndex.getVersions(allRanges, id -> true).entrySet()) {
+            RangeDigests.add(digests, version.getKey(), version.getValue());
+        }
+
+        assertTrue(Arrays.equals(digests, memoryIndex.getRangeDigests(id -> true)));
+
+        long numCounted = 0;
+
+        for (long count : memoryIndex.getColorCounts().values()) numCounted += count;
+
+        assertEquals(memoryIndex.getVersions(allRanges, id -> true).size(), numCounted);
+    }
+
+    /**
+     * Computes the range digests of the specified documents.
+     *
+     * @param idItems the documents.
+     * @return the range digests.
+     */
+    private static long[] digestsOf(List<VersionedIDItem> idItems) {
+
+        long[] digests = new long[RangeDigests.NUM_RANGES];
+
+        for (VersionedIDItem idItem : idItems) RangeDigests.add(digests, idItem.getId(), idItem.getVersion());
+
+        return digests;
+    }
+
+    /**
+     * Generates documents with random IDs.
+     *
+     * @param numDocuments the number of documents.
+     * @return the documents, in version 1.
+     */
+    private List<VersionedIDItem> randomItems(int numDocuments) {
+
+        List<VersionedIDItem> idItems = new ArrayList<>();
+
+        for (int i = 0; i < numDocuments; ++i) {
+            idItems.add(new VersionedIDItem(new UUID(random.nextLong(), random.nextLong()).toString(),
+                    new Item(i % 2 == 0 ? "green" : "red", "text " + i), 1));
+        }
+
+        return idItems;
+    }
+}
@@ -0,0 +1,216 @@
+package com.dubeanddube.emodb.services;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Unit tests of the compressing output stream: the size threshold, both encodings, the ETag of
+ * compressed bodies, and the selection of the encoding.
+ *
+ * @author Dominique Dube
+ */
+public class CompressingOutputStreamTest extends TestCase {
+
+    private static final int THRESHOLD = 1024;
+
+    /**
+     * Captures the headers and the body of a response.
+     */
+    private static class CapturedResponse {
+
+        final Map<String, String> headers = new HashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        int contentLength = -1;
+        boolean closed = false;
+
+        final ServletOutputStream out = new ServletOutputStream() {
+
+            @Override
+            public void write(int b) {
+
+                body.write(b);
+            }
+
+            @Override
+            public void close() {
+
+                closed = true;
+            }
+
+            @Override
+            public boolean isReady() {
+
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+
+        /**
+         * Returns a response that writes to this capture (only the methods used by the stream).
+         *
+         * @return the response.
+         */
+        HttpServletResponse response() {
+
+            return (HttpServletResponse)Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+
+                        switch (method.getName()) {
+                            case "setHeader": headers.put((String)args[0], (String)args[1]); return null;
+                            case "getHeader": return headers.get((String)args[0]);
+                            case "setContentLength": contentLength = (Integer)args[0]; return null;
+                            case "getOutputStream": return out;
+                            default: throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+
+    /**
+     * A body up to the threshold is sent uncompressed, as a whole, with its tag unchanged.
+     */
+    public void testBelowThreshold() throws IOException {
+
+        CapturedResponse captured = new CapturedResponse();
+        captured.headers.put("ETag", "\"abc-1\"");
+
+        byte[] body = bodyOfSize(THRESHOLD);
+
+        CompressingOutputStream out = new CompressingOutputStream(captured.response(), CompressingOutputStream.GZIP, THRESHOLD);
+
+        out.write(body, 0, 100);
+        out.flush();
+
+        assertEquals(0, captured.body.size()); // still buffered
+
+        out.write(body, 100, body.length - 100);
+        out.close();
+
+        assertNull(captured.headers.get("Content-Encoding"));
+        assertEquals("\"abc-1\"", captured.headers.get("ETag"));
+        assertEquals(body.length, captured.contentLength);
+        assertEquals(new String(body, StandardCharsets.UTF_8), captured.body.toString("UTF-8"));
+        assertTrue(captured.closed);
+    }
+
+    /**
+     * A body above the threshold is compressed with gzip and gets an encoding-specific tag.
+     */
+    public void testGzipAboveThreshold() throws IOException {
+
+        CapturedResponse captured = new CapturedResponse();
+        captured.headers.put("ETag", "W/\"abc-7\"");
+
+        byte[] body = bodyOfSize(10 * THRESHOLD);
+
+        try (CompressingOutputStream out = new CompressingOutputStream(captured.response(), CompressingOutputStream.GZIP, THRESHOLD)) {
+            for (byte b : body) out.write(b);
+        }
+
+        assertEquals("gzip", captured.headers.get("Content-Encoding"));
+        assertEquals("W/\"abc-7-gzip\"", captured.headers.get("ETag"));
+        assertEquals(-1, captured.contentLength);
+        assertTrue(captured.body.size() < body.length);
+        assertEquals(new String(body, StandardCharsets.UTF_8),
+                readAll(new GZIPInputStream(new ByteArrayInputStream(captured.body.toByteArray()))));
+        assertTrue(captured.closed);
+    }
+
+    /**
+     * A body above the threshold is compressed with deflate, and flushing a compressed body sends
+     * everything written so far.
+     */
+    public void testDeflateFlush() throws IOException {
+
+        CapturedResponse captured = new CapturedResponse();
+        captured.headers.put("ETag", "\"abc-2\"");
+
+        byte[] body = bodyOfSize(3 * THRESHOLD);
+
+        CompressingOutputStream out = new CompressingOutputStream(captured.response(), CompressingOutputStream.DEFLATE, THRESHOLD);
+
+        out.write(body, 0, 2 * THRESHOLD);
+        out.flush();
+
+        // the flushed part can be decompressed before the body is complete
+
+        InputStream partial = new InflaterInputStream(new ByteArrayInputStream(captured.body.toByteArray()));
+        byte[] prefix = new byte[2 * THRESHOLD];
+        int numRead = 0;
+
+        while (numRead < prefix.length) numRead += partial.read(prefix, numRead, prefix.length - numRead);
+
+        assertEquals(new String(body, 0, prefix.length, StandardCharsets.UTF_8), new String(prefix, StandardCharsets.UTF_8));
+
+        out.write(body, 2 * THRESHOLD, THRESHOLD);
+        out.close();
+
+        assertEquals("deflate", captured.headers.get("Content-Encoding"));
+        assertEquals("\"abc-2-deflate\"", captured.headers.get("ETag"));
+        assertEquals(new String(body, StandardCharsets.UTF_8),
+                readAll(new InflaterInputStream(new ByteArrayInputStream(captured.body.toByteArray()))));
+    }
+
+    /**
+     * The encoding is selected from the Accept-Encoding header, preferring gzip.
+     */
+    public void testSelectEncoding() {
+
+        assertNull(CompressingOutputStream.selectEncoding(null));
+        assertNull(CompressingOutputStream.selectEncoding("identity"));
+        assertNull(CompressingOutputStream.selectEncoding("br, gzip;q=0"));
+        assertEquals("gzip", CompressingOutputStream.selectEncoding("deflate, gzip"));
+        assertEquals("gzip", CompressingOutputStream.selectEncoding("GZIP;q=0.5"));
+        assertEquals("deflate", CompressingOutputStream.selectEncoding("gzip;q=0.0, deflate"));
+    }
+
+    /**
+     * Creates a compressible body of the specified size.
+     *
+     * @param size the size in bytes.
+     * @return the body.
+     */
+    private static byte[] bodyOfSize(int size) {
+
+        StringBuilder body = new StringBuilder();
+
+        for (int i = 0; body.length() < size; ++i) body.append("{\"color\":\"green\",\"text\":\"lorem ").append(i).append("\"}\n");
+
+        return body.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a stream to its end.
+     *
+     * @param in the stream.
+     * @return the content of the stream as UTF-8 string.
+     * @throws IOException if the stream could not be read.
+     */
+    private static String readAll(InputStream in) throws IOException {
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int numRead;
+
+        while ((numRead = in.read(buffer)) > 0) content.write(buffer, 0, numRead);
+
+        return content.toString("UTF-8");
+    }
+}
@@ -0,0 +1,129 @@
+package com.dubeanddube.emodb.services;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests of the concurrency limiter: admission, and growth and shrinkage of the limit with
+ * the observed latency.
+ *
+ * @author Dominique Dube
+ */
+public class ConcurrencyLimiterTest extends TestCase {
+
+    private static final long BASE_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Requests beyond the limit are rejected until admitted requests are released.
+     */
+    public void testAdmission() {
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 1, 100);
+
+        for (int i = 0; i < 4; ++i) assertTrue(limiter.tryAcquire());
+
+        assertFalse(limiter.tryAcquire());
+        assertEquals(4, limiter.getInFlight());
+
+        limiter.release(BASE_LATENCY_NANOS, false);
+
+        assertEquals(3, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    /**
+     * The limit grows up to the maximum while requests run at the limit without added latency.
+     */
+    public void testGrowth() {
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 2, 50);
+
+        int previousLimit = limiter.getLimit();
+
+        for (int i = 0; i < 20; ++i) {
+
+            runAtLimit(limiter, BASE_LATENCY_NANOS);
+
+            assertTrue(limiter.getLimit() >= previousLimit);
+            previousLimit = limiter.getLimit();
+        }
+
+        assertEquals(50, limiter.getLimit());
+
+        for (int i = 0; i < 20; ++i) runAtLimit(limiter, BASE_LATENCY_NANOS);
+
+        assertEquals(50, limiter.getLimit()); // bounded
+    }
+
+    /**
+     * The limit does not grow while the load stays far below it, because low latency then says
+     * nothing about a higher limit.
+     */
+    public void testNoGrowthWithoutLoad() {
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 20, 2, 100);
+
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(BASE_LATENCY_NANOS, true);
+        }
+
+        assertEquals(20, limiter.getLimit());
+    }
+
+    /**
+     * The limit shrinks once latency rises well beyond the lowest recent latency, but not below
+     * the minimum, and recovers once latency drops again. Failed requests do not adapt the limit.
+     */
+    public void testShrinkAndRecovery() {
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 40, 2, 100);
+
+        runAtLimit(limiter, BASE_LATENCY_NANOS); // establishes the lowest latency
+
+        int limitBefore = limiter.getLimit();
+
+        for (int i = 0; i < 10; ++i) {
+
+            assertTrue(limiter.tryAcquire());
+            limiter.release(10 * BASE_LATENCY_NANOS, false);
+        }
+
+        assertEquals(limitBefore, limiter.getLimit());
+
+        for (int i = 0; i < 50; ++i) runAtLimit(limiter, 10 * BASE_LATENCY_NANOS);
+
+        int shrunkLimit = limiter.getLimit();
+
+        assertTrue("limit " + shrunkLimit + " did not shrink", shrunkLimit < limitBefore / 4);
+        assertTrue(shrunkLimit >= 2);
+
+        // latency within the tolerance (twice the lowest latency) does not shrink the limit
+
+        runAtLimit(limiter, 2 * BASE_LATENCY_NANOS);
+
+        assertTrue(limiter.getLimit() >= shrunkLimit);
+
+        for (int i = 0; i < 50; ++i) runAtLimit(limiter, BASE_LATENCY_NANOS);
+
+        assertTrue(limiter.getLimit() > 2 * shrunkLimit);
+    }
+
+    /**
+     * Admits as many requests as the limit allows, then releases them all with the specified
+     * latency.
+     *
+     * @param limiter the limiter.
+     * @param latencyNanos the latency of every request.
+     */
+    private static void runAtLimit(ConcurrencyLimiter limiter, long latencyNanos) {
+
+        int numAdmitted = 0;
+
+        while (limiter.tryAcquire()) ++numAdmitted;
+
+        for (int i = 0; i < numAdmitted; ++i) limiter.release(latencyNanos, true);
+    }
+}
@@ -0,0 +1,59 @@
+package com.dubeanddube.emodb.services;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Unit tests of the decoding of databus poll responses.
+ *
+ * @author Dominique Dube
+ */
+public class EmoBusTest extends TestCase {
+
+    private static final String A = "7b8d8a82-77b6-4940-95fe-50ed99b23cb2";
+    private static final String B = "1f0c3e5a-2d4b-4c6e-8f7a-9b0c1d2e3f4a";
+
+    /**
+     * Events are decoded in order, and malformed events are skipped.
+     */
+    public void testDecodeEvents() throws IOException {
+
+        String responseString = "[" +
+                "{\"eventKey\":\"k1\",\"content\":{\"~id\":\"" + A + "\",\"~version\":3," +
+                "\"~lastUpdateAt\":\"2017-02-14T10:15:30.123Z\",\"color\":\"green\",\"text\":\"lorem\"},\"tags\":[]}," +
+                "{\"eventKey\":\"k2\",\"content\":{\"~id\":\"" + B + "\",\"~version\":1,\"color\":\"red\"}}," +
+                "{\"eventKey\":\"k3\",\"content\":{\"~id\":\"" + B + "\",\"~version\":\"x\",\"color\":\"red\",\"text\":\"\"}}," +
+                "{\"eventKey\":\"k4\",\"content\":{\"~id\":\"no-uuid\",\"~version\":1,\"color\":\"red\",\"text\":\"\"}}," +
+                "{\"eventKey\":\"k5\",\"content\":{\"~id\":\"" + B + "\",\"~version\":2,\"color\":\"red\",\"text\":\"ipsum\"}}" +
+                "]";
+
+        List<EmoBus.Event> events = EmoBus.decodeEvents(responseString);
+
+        assertEquals(2, events.size());
+
+        assertEquals("k1", events.get(0).eventKey);
+        assertEquals(A, events.get(0).idItem.getId());
+        assertEquals(3, events.get(0).idItem.getVersion());
+        assertEquals("green", events.get(0).idItem.getItem().getColor());
+        assertEquals("lorem", events.get(0).idItem.getItem().getText());
+        assertEquals(1487067330123L, events.get(0).writeMillis);
+
+        assertEquals("k5", events.get(1).eventKey);
+        assertEquals(B, events.get(1).idItem.getId());
+        assertEquals(-1, events.get(1).writeMillis);
+
+        assertTrue(EmoBus.decodeEvents("[]").isEmpty());
+
+        for (String malformed : new String[] { null, "{\"success\":false}", "not json" }) {
+
+            try {
+                EmoBus.decodeEvents(malformed);
+                fail("malformed response " + malformed + " was decoded");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.dubeanddube.emodb.services;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests of the path templates that label the metrics of backend requests.
+ *
+ * @author Dominique Dube
+ */
+public class HttpUtilsTest extends TestCase {
+
+    /**
+     * The scheme, host, and query are removed, IDs and numbers are replaced.
+     */
+    public void testNormalizePath() {
+
+        assertEquals("/items_v{n}/item/{id}",
+                HttpUtils.normalizePath("http://localhost:9200/items_v12/item/7b8d8a82-77b6-4940-95fe-50ed99b23cb2?version=3"));
+        assertEquals("/sor/{n}/items/{id}",
+                HttpUtils.normalizePath("/sor/1/items/7B8D8A82-77B6-4940-95FE-50ED99B23CB2"));
+        assertEquals("/_search/scroll/{id}",
+                HttpUtils.normalizePath("http://localhost:9200/_search/scroll/DnF1ZXJ5VGhlbkZldGNoBQAAAAAAAAABFmZ3TjZtMWRBUTdHVnNvMFJ3"));
+        assertEquals("/bus/{n}/subscriber-{n}-of-{n}/poll",
+                HttpUtils.normalizePath("/bus/1/subscriber-12-of-345/poll?ttl=30&limit=50"));
+        assertEquals("/a/b", HttpUtils.normalizePath("/a//b/"));
+        assertEquals("/", HttpUtils.normalizePath("http://localhost:8080"));
+        assertEquals("/", HttpUtils.normalizePath("http://localhost:8080/?x=1"));
+        assertEquals("/ping", HttpUtils.normalizePath("/ping?next=http://localhost/x"));
+    }
+}
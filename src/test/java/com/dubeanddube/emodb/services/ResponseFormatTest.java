@@ -0,0 +1,42 @@
+package com.dubeanddube.emodb.services;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests of the content negotiation of response formats.
+ *
+ * @author Dominique Dube
+ */
+public class ResponseFormatTest extends TestCase {
+
+    /**
+     * The format parameter takes precedence over the Accept header.
+     */
+    public void testFormatParameter() {
+
+        assertEquals(ResponseFormat.CBOR, ResponseFormat.negotiate("CBOR", "application/json"));
+        assertEquals(ResponseFormat.NDJSON, ResponseFormat.negotiate("ndjson", null));
+        assertEquals(ResponseFormat.SMILE, ResponseFormat.negotiate("xml", "application/x-jackson-smile"));
+    }
+
+    /**
+     * The supported media type with the highest quality value is selected, list order only breaks
+     * ties, and refused media types are never selected.
+     */
+    public void testAcceptQualities() {
+
+        assertEquals(ResponseFormat.JSON, ResponseFormat.negotiate(null, null));
+        assertEquals(ResponseFormat.JSON, ResponseFormat.negotiate(null, "*/*"));
+        assertEquals(ResponseFormat.CBOR, ResponseFormat.negotiate(null, "text/html, application/cbor"));
+        assertEquals(ResponseFormat.SMILE, ResponseFormat.negotiate(null, "application/x-jackson-smile, application/cbor"));
+
+        assertEquals(ResponseFormat.JSON, ResponseFormat.negotiate(null, "application/cbor;q=0, application/json"));
+        assertEquals(ResponseFormat.JSON, ResponseFormat.negotiate(null, "application/cbor; q=0.0"));
+        assertEquals(ResponseFormat.SMILE,
+                ResponseFormat.negotiate(null, "application/json;q=0.1, application/x-jackson-smile"));
+        assertEquals(ResponseFormat.NDJSON,
+                ResponseFormat.negotiate(null, "application/cbor;q=0.5, application/x-ndjson;charset=utf-8;q=0.8"));
+        assertEquals(ResponseFormat.CBOR,
+                ResponseFormat.negotiate(null, "application/cbor;q=0.5, application/x-jackson-smile;q=0.5"));
+    }
+}
@@ -0,0 +1,28 @@
+package com.dubeanddube.emodb.services;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests of the conditional requests of the query server.
+ *
+ * @author Dominique Dube
+ */
+public class SparkTest extends TestCase {
+
+    /**
+     * The tag of the cached response that matches is returned, so that a 304 response carries the
+     * same ETag as the 200 response that is being revalidated.
+     */
+    public void testMatchingTag() {
+
+        assertNull(Spark.matchingTag(null, "W/\"abc-7\""));
+        assertNull(Spark.matchingTag("W/\"abc-6\", \"abc-7-br\"", "W/\"abc-7\""));
+        assertNull(Spark.matchingTag("W/\"abc-7-gzip-gzip\"", "W/\"abc-7\""));
+
+        assertEquals("W/\"abc-7\"", Spark.matchingTag("W/\"abc-7\"", "W/\"abc-7\""));
+        assertEquals("\"abc-7\"", Spark.matchingTag("\"abc-7\"", "W/\"abc-7\"")); // weak comparison
+        assertEquals("W/\"abc-7-gzip\"", Spark.matchingTag("W/\"abc-6\", W/\"abc-7-gzip\"", "W/\"abc-7\""));
+        assertEquals("\"abc-7-cbor-deflate\"", Spark.matchingTag("\"abc-7-cbor-deflate\"", "\"abc-7-cbor\""));
+        assertEquals("W/\"abc-7\"", Spark.matchingTag("*", "W/\"abc-7\""));
+    }
+}